@@ -0,0 +1,365 @@
+package bdmm.app.mle;
+
+import bdmm.evolution.speciation.PiecewiseBirthDeathMigrationDistribution;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.inference.Runnable;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import org.apache.commons.math3.exception.TooManyEvaluationsException;
+import org.apache.commons.math3.optim.InitialGuess;
+import org.apache.commons.math3.optim.MaxEval;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Maximum-likelihood estimation of the parameters of a BDMM likelihood on a fixed tree.
+ *
+ * Nelder-Mead optimisations from several starting points, and afterwards the profile likelihood of each parameter
+ * element, are run as independent tasks on a pool of likelihood copies, one per thread.
+ * The profile interval of an element is the range of its values over which the log-likelihood, maximised over all
+ * other elements, stays within profileDrop of the maximum.
+ */
+@Description("Maximum-likelihood estimates of BDMM parameters on a fixed tree, with profile-likelihood intervals. " +
+        "Optimisations from several starting points and the profiles of the parameters are run in parallel on copies of the likelihood.")
+public class BirthDeathMigrationMLE extends Runnable {
+
+    public Input<PiecewiseBirthDeathMigrationDistribution> likelihoodInput = new Input<>("likelihood",
+            "BDMM likelihood to maximise, taking the parameters directly as inputs.",
+            Input.Validate.REQUIRED);
+
+    public Input<List<RealParameter>> parametersInput = new Input<>("parameter",
+            "Parameters to estimate; all other inputs of the likelihood are kept fixed.",
+            new ArrayList<>());
+
+    public Input<Boolean> logTransformInput = new Input<>("logTransform",
+            "Optimise over the logarithm of the (positive) parameters (default true).", true);
+
+    public Input<Integer> startsInput = new Input<>("starts",
+            "Number of optimisations, the first from the current values and the others from random perturbations of them (default 4).", 4);
+
+    public Input<Double> perturbationInput = new Input<>("perturbation",
+            "Standard deviation of the perturbation of the starting points, on the optimisation scale (default 0.5).", 0.5);
+
+    public Input<Integer> maxEvaluationsInput = new Input<>("maxEvaluations",
+            "Maximum number of likelihood evaluations per optimisation (default 20000).", 20000);
+
+    public Input<Boolean> profileInput = new Input<>("profile",
+            "Compute profile-likelihood intervals (default true).", true);
+
+    public Input<Double> profileDropInput = new Input<>("profileDrop",
+            "Decrease of the log-likelihood from the maximum bounding the profile intervals (default 1.92, i.e. 95%).", 1.92);
+
+    public Input<Double> profileStepInput = new Input<>("profileStep",
+            "Step along a parameter element, on the optimisation scale, when searching the ends of its profile interval (default 0.1).", 0.1);
+
+    public Input<Integer> threadsInput = new Input<>("threads",
+            "Number of threads (default: number of available processors).",
+            Runtime.getRuntime().availableProcessors());
+
+    public Input<String> outFileInput = new Input<>("outFile",
+            "File the estimates are written to (default: standard output).");
+
+    // number of bisections refining each end of a profile interval
+    static final int profileBisections = 12;
+
+    // maximal number of steps in each direction when searching the ends of a profile interval
+    static final int maxProfileSteps = 200;
+
+    List<RealParameter> parameters;
+    int dimension;
+    boolean logTransform;
+
+    BlockingQueue<Worker> workers;
+    ExecutorService executor;
+
+    /**
+     * A likelihood copy with its own copies of the parameters
+     */
+    class Worker {
+
+        PiecewiseBirthDeathMigrationDistribution likelihood;
+        RealParameter[] parameterCopies;
+
+        Worker(int index) {
+
+            Map<Object, Object> replacements = new IdentityHashMap<>();
+            parameterCopies = new RealParameter[parameters.size()];
+
+            for (int p=0; p<parameters.size(); p++) {
+
+                RealParameter parameter = parameters.get(p);
+                parameterCopies[p] = new RealParameter(parameter.getValues());
+                parameterCopies[p].setLower(parameter.getLower());
+                parameterCopies[p].setUpper(parameter.getUpper());
+
+                replacements.put(parameter, parameterCopies[p]);
+            }
+
+            likelihood = likelihoodInput.get().copyReplacing(replacements);
+            likelihood.setID(likelihoodInput.get().getID() + ".mle" + index);
+        }
+
+        /**
+         * @param x parameter values on the optimisation scale
+         * @return log-likelihood, -infinity outside the parameter bounds
+         */
+        double logL(double[] x) {
+
+            int i = 0;
+            for (RealParameter parameter : parameterCopies) {
+                for (int j=0; j<parameter.getDimension(); j++) {
+
+                    double value = logTransform ? Math.exp(x[i++]) : x[i++];
+                    if (value < parameter.getLower() || value > parameter.getUpper())
+                        return Double.NEGATIVE_INFINITY;
+
+                    parameter.setValue(j, value);
+                }
+            }
+
+            double logL = likelihood.calculateLogP();
+            return Double.isNaN(logL) ? Double.NEGATIVE_INFINITY : logL;
+        }
+
+        /**
+         * Maximise over all elements except a fixed one
+         * @param start starting point, including the fixed element
+         * @param fixed index of the element kept at its value in start, -1 if none
+         * @return the best point found, and its log-likelihood in the last element
+         */
+        double[] maximize(double[] start, int fixed) {
+
+            int free = fixed < 0 ? dimension : dimension - 1;
+
+            double[] best = new double[dimension + 1];
+            System.arraycopy(start, 0, best, 0, dimension);
+            best[dimension] = logL(start);
+
+            if (free == 0) return best;
+
+            double[] freeStart = new double[free];
+            for (int i=0, k=0; i<dimension; i++) if (i != fixed) freeStart[k++] = start[i];
+
+            double[] x = start.clone();
+
+            try {
+                new SimplexOptimizer(1e-10, 1e-8).optimize(
+                        new MaxEval(maxEvaluationsInput.get()),
+                        new ObjectiveFunction(freeX -> {
+
+                            for (int i=0, k=0; i<dimension; i++) if (i != fixed) x[i] = freeX[k++];
+
+                            double value = logL(x);
+                            if (value > best[dimension]) {
+                                System.arraycopy(x, 0, best, 0, dimension);
+                                best[dimension] = value;
+                            }
+                            return value;
+                        }),
+                        GoalType.MAXIMIZE,
+                        new InitialGuess(freeStart),
+                        new NelderMeadSimplex(free, 0.1));
+
+            } catch (TooManyEvaluationsException e) {
+                Log.warning.println("BDMM MLE: maximum number of evaluations reached, using the best point found.");
+            }
+
+            return best;
+        }
+    }
+
+    @Override
+    public void initAndValidate() {
+
+        parameters = parametersInput.get();
+        logTransform = logTransformInput.get();
+
+        if (parameters.isEmpty())
+            throw new RuntimeException("Error in BDMM MLE setup: at least one parameter is needed.");
+
+        dimension = 0;
+        for (RealParameter parameter : parameters) {
+
+            dimension += parameter.getDimension();
+
+            if (logTransform) {
+                for (int j=0; j<parameter.getDimension(); j++) {
+                    if (!(parameter.getValue(j) > 0))
+                        throw new RuntimeException("Error in BDMM MLE setup: " + parameter.getID() + " has a value that is not positive, "
+                                + "which logTransform cannot start from. Use logTransform=false or positive starting values.");
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() throws Exception {
+
+        int threads = Math.max(1, threadsInput.get());
+
+        workers = new LinkedBlockingQueue<>();
+        for (int t=0; t<threads; t++) workers.add(new Worker(t));
+
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+
+            double[] x0 = new double[dimension];
+            int i = 0;
+            for (RealParameter parameter : parameters) {
+                for (int j=0; j<parameter.getDimension(); j++)
+                    x0[i++] = logTransform ? Math.log(parameter.getValue(j)) : parameter.getValue(j);
+            }
+
+            // starting points drawn up front, so that they do not depend on the number of threads
+            List<Future<double[]>> starts = new ArrayList<>();
+            for (int s=0; s<startsInput.get(); s++) {
+
+                double[] start = x0.clone();
+                if (s > 0) for (int k=0; k<dimension; k++) start[k] += perturbationInput.get()*Randomizer.nextGaussian();
+
+                starts.add(submit(worker -> worker.maximize(start, -1)));
+            }
+
+            double[] best = null;
+            for (Future<double[]> start : starts) {
+                double[] result = start.get();
+                if (best == null || result[dimension] > best[dimension]) best = result;
+            }
+
+            double[][] intervals = null;
+
+            if (profileInput.get()) {
+
+                List<Future<double[]>> profiles = new ArrayList<>();
+                for (int k=0; k<dimension; k++) {
+
+                    int element = k;
+                    double[] mle = best;
+                    profiles.add(submit(worker -> new double[] {
+                            profileEnd(worker, mle, element, -1),
+                            profileEnd(worker, mle, element, +1)}));
+                }
+
+                intervals = new double[dimension][];
+                for (int k=0; k<dimension; k++) intervals[k] = profiles.get(k).get();
+            }
+
+            report(best, intervals);
+
+            // leave the parameters at their estimates
+            i = 0;
+            for (RealParameter parameter : parameters) {
+                for (int j=0; j<parameter.getDimension(); j++) parameter.setValue(j, backTransform(best[i++]));
+            }
+
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    interface Task {
+        double[] run(Worker worker);
+    }
+
+    Future<double[]> submit(Task task) {
+
+        return executor.submit(() -> {
+            Worker worker = workers.take();
+            try {
+                return task.run(worker);
+            } finally {
+                workers.put(worker);
+            }
+        });
+    }
+
+    /**
+     * Walk along one element from the MLE until the profile log-likelihood drops by more than profileDrop,
+     * then bisect between the last two values.
+     * @param worker
+     * @param mle estimates, with the maximal log-likelihood in the last element
+     * @param element
+     * @param direction -1 for the lower end, +1 for the upper end
+     * @return end of the interval on the original scale, the end of the range of the scale if it was not reached
+     */
+    double profileEnd(Worker worker, double[] mle, int element, int direction) {
+
+        double threshold = mle[dimension] - profileDropInput.get();
+        double step = profileStepInput.get();
+
+        double[] inside = mle;
+        double[] point = mle.clone();
+
+        for (int s=0; s<maxProfileSteps; s++) {
+
+            double[] start = inside.clone();
+            start[element] = inside[element] + direction*step;
+
+            point = worker.maximize(start, element);
+
+            if (point[dimension] < threshold) {
+
+                // the end lies between inside and point
+                double[] outside = point;
+                for (int b=0; b<profileBisections; b++) {
+
+                    double[] middle = inside.clone();
+                    middle[element] = (inside[element] + outside[element])/2;
+
+                    double[] result = worker.maximize(middle, element);
+                    if (result[dimension] < threshold) outside = result;
+                    else inside = result;
+                }
+
+                return backTransform((inside[element] + outside[element])/2);
+            }
+
+            inside = point;
+        }
+
+        return direction > 0 ? Double.POSITIVE_INFINITY : backTransform(Double.NEGATIVE_INFINITY);
+    }
+
+    double backTransform(double x) {
+        return logTransform ? Math.exp(x) : x;
+    }
+
+    void report(double[] best, double[][] intervals) throws FileNotFoundException {
+
+        PrintStream out = outFileInput.get() == null ? System.out : new PrintStream(outFileInput.get());
+
+        out.println("logL\t" + best[dimension]);
+        out.println(intervals == null ? "parameter\testimate" : "parameter\testimate\tlower\tupper");
+
+        int i = 0;
+        for (RealParameter parameter : parameters) {
+            for (int j=0; j<parameter.getDimension(); j++) {
+
+                String name = parameter.getDimension() > 1 ? parameter.getID() + (j+1) : parameter.getID();
+                out.print(name + "\t" + backTransform(best[i]));
+                if (intervals != null) out.print("\t" + intervals[i][0] + "\t" + intervals[i][1]);
+                out.println();
+                i++;
+            }
+        }
+
+        if (out != System.out) out.close();
+    }
+}
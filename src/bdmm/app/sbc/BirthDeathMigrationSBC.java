@@ -0,0 +1,519 @@
+package bdmm.app.sbc;
+
+import bdmm.evolution.speciation.BirthDeathMigrationModelUncoloured;
+import bdmm.evolution.speciation.PiecewiseBirthDeathMigrationDistribution;
+import bdmm.treesimulator.PopHistory;
+import bdmm.treesimulator.PopHistorySimulator;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Runnable;
+import beast.base.inference.distribution.ParametricDistribution;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import org.apache.commons.math3.distribution.ChiSquaredDistribution;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Simulation-based calibration (SBC) of BDMM inference.
+ *
+ * For each replicate, the parameters are drawn from their priors, a tip-typed tree is simulated with them (conditioned
+ * on at least numberOfLeaves samples), and the posterior of the parameters given that tree is sampled with a short
+ * Metropolis chain on a copy of the likelihood. If the simulator, the likelihood and the chain agree, the rank of each
+ * true value among its posterior samples is uniformly distributed, and credible intervals cover the true values at
+ * their nominal rate.
+ *
+ * The prior draws and the random number streams of all replicates are fixed up front, from the seed, so that the
+ * results do not depend on the number of threads. Replicates run as independent tasks, one per thread at a time, each
+ * thread keeping its own copy of the likelihood to set up the simulations.
+ */
+@Description("Simulation-based calibration of BDMM inference: parameters are drawn from their priors, trees simulated " +
+        "with them, and the posterior given each tree sampled by a short MCMC run. Reports the ranks of the true values " +
+        "among the posterior samples and the coverage of credible intervals. Replicates are run in parallel.")
+public class BirthDeathMigrationSBC extends Runnable {
+
+    public Input<BirthDeathMigrationModelUncoloured> likelihoodInput = new Input<>("likelihood",
+            "BDMM likelihood taking the parameters directly as inputs, with the tip types given by typeLabel. Its tree is " +
+                    "replaced by the simulated trees, which need an origin.",
+            Input.Validate.REQUIRED);
+
+    public Input<List<RealParameter>> parametersInput = new Input<>("parameter",
+            "Parameters drawn from their priors; all other inputs of the likelihood are kept fixed.",
+            new ArrayList<>());
+
+    public Input<List<ParametricDistribution>> priorsInput = new Input<>("distr",
+            "Prior of each parameter, in the same order, applying to all its elements.",
+            new ArrayList<>());
+
+    public Input<Integer> replicatesInput = new Input<>("replicates",
+            "Number of simulated trees (default 100).", 100);
+
+    public Input<Integer> numberOfLeavesInput = new Input<>("numberOfLeaves",
+            "Minimal number of leaves of the simulated trees (default 1). The likelihood conditions on at least one " +
+                    "sample, so larger values make the ranks slightly non-uniform.", 1);
+
+    public Input<Boolean> logTransformInput = new Input<>("logTransform",
+            "Run the chains on the logarithm of the (positive) parameters (default true).", true);
+
+    public Input<Integer> burninInput = new Input<>("burnin",
+            "Number of chain steps (updates of a single parameter element) discarded in each replicate, during which the " +
+                    "proposal scales are tuned (default 2000).", 2000);
+
+    public Input<Integer> chainLengthInput = new Input<>("chainLength",
+            "Number of chain steps after the burn-in in each replicate (default 10000).", 10000);
+
+    public Input<Integer> posteriorSamplesInput = new Input<>("posteriorSamples",
+            "Number of posterior samples kept from each chain, evenly spaced; ranks go from 0 to this number (default 99).", 99);
+
+    public Input<Integer> binsInput = new Input<>("bins",
+            "Number of bins of the rank histograms (default 10).", 10);
+
+    public Input<List<Double>> coverageLevelsInput = new Input<>("coverageLevel",
+            "Levels of the central credible intervals whose coverage is reported (default 0.5, 0.9 and 0.95).",
+            new ArrayList<>());
+
+    public Input<Long> seedInput = new Input<>("seed",
+            "Seed of the prior draws, simulations and chains (default: drawn from BEAST's random number generator).");
+
+    public Input<Integer> threadsInput = new Input<>("threads",
+            "Number of threads (default: number of available processors).",
+            Runtime.getRuntime().availableProcessors());
+
+    public Input<String> outFileInput = new Input<>("outFile",
+            "File the ranks and the summary are written to (default: standard output).");
+
+    // acceptance rate the proposal scales are tuned towards during the burn-in
+    static final double targetAcceptance = 0.44;
+
+    List<RealParameter> parameters;
+    List<ParametricDistribution> priors;
+    int dimension;
+    boolean logTransform;
+    double[] coverageLevels;
+
+    BlockingQueue<Worker> workers;
+    ExecutorService executor;
+
+    /**
+     * Copy of the likelihood used to set up the simulations of the replicates run on one thread
+     */
+    class Worker {
+
+        PiecewiseBirthDeathMigrationDistribution model;
+        RealParameter[] parameterCopies;
+
+        Worker(int index) {
+            Map<Object, Object> replacements = new IdentityHashMap<>();
+            parameterCopies = copyParameters(replacements);
+
+            model = likelihoodInput.get().copyReplacing(replacements);
+            model.setID(likelihoodInput.get().getID() + ".sbc" + index);
+        }
+    }
+
+    /**
+     * Outcome of a replicate
+     */
+    static class Replicate {
+        int leaves;
+        double[] truth;
+        int[] ranks;
+        boolean[][] covered;
+        double acceptance;
+        long evaluations;
+    }
+
+    @Override
+    public void initAndValidate() {
+
+        parameters = parametersInput.get();
+        priors = priorsInput.get();
+        logTransform = logTransformInput.get();
+
+        if (parameters.isEmpty())
+            throw new RuntimeException("Error in BDMM SBC setup: at least one parameter is needed.");
+        if (priors.size() != parameters.size())
+            throw new RuntimeException("Error in BDMM SBC setup: there should be one prior (distr) per parameter.");
+        if (!likelihoodInput.get().conditionOnSurvival.get())
+            throw new RuntimeException("Error in BDMM SBC setup: the likelihood should condition on survival " +
+                    "(conditionOnSurvival=true), as the simulated trees have at least one sample.");
+        if (likelihoodInput.get().typeLabel.get() == null)
+            throw new RuntimeException("Error in BDMM SBC setup: the tip types of the likelihood should be given by typeLabel.");
+        if (chainLengthInput.get() < posteriorSamplesInput.get())
+            throw new RuntimeException("Error in BDMM SBC setup: chainLength should be at least posteriorSamples.");
+
+        dimension = 0;
+        for (RealParameter parameter : parameters) dimension += parameter.getDimension();
+
+        List<Double> levels = coverageLevelsInput.get();
+        coverageLevels = levels.isEmpty() ? new double[] {0.5, 0.9, 0.95}
+                : levels.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    @Override
+    public void run() throws Exception {
+
+        int threads = Math.max(1, threadsInput.get());
+        int replicates = replicatesInput.get();
+
+        workers = new LinkedBlockingQueue<>();
+        for (int t=0; t<threads; t++) workers.add(new Worker(t));
+
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        PrintStream out = outFileInput.get() == null ? System.out : new PrintStream(outFileInput.get());
+
+        try {
+            // true values, starting points and streams drawn up front, so that they do not depend on the number of
+            // threads, and before any replicate evaluates the priors
+            SplittableRandom root = new SplittableRandom(seedInput.get() != null ? seedInput.get() : Randomizer.nextLong());
+
+            SplittableRandom[] randoms = new SplittableRandom[replicates];
+            double[][] truths = new double[replicates][];
+            double[][] starts = new double[replicates][];
+            for (int r=0; r<replicates; r++) {
+                randoms[r] = root.split();
+                truths[r] = drawFromPriors(randoms[r]);
+                starts[r] = drawFromPriors(randoms[r]);
+            }
+
+            List<Future<Replicate>> results = new ArrayList<>();
+            for (int r=0; r<replicates; r++) {
+
+                SplittableRandom random = randoms[r];
+                double[] truth = truths[r];
+                double[] start = starts[r];
+
+                results.add(executor.submit(() -> {
+                    Worker worker = workers.take();
+                    try {
+                        return runReplicate(worker, truth, start, random);
+                    } finally {
+                        workers.put(worker);
+                    }
+                }));
+            }
+
+            long startTime = System.nanoTime();
+
+            out.print("replicate\tleaves\tacceptance");
+            for (String name : elementNames()) out.print("\t" + name + "\t" + name + ".rank");
+            out.println();
+
+            List<Replicate> done = new ArrayList<>();
+            long evaluations = 0;
+
+            for (int r=0; r<replicates; r++) {
+
+                Replicate replicate = results.get(r).get();
+                done.add(replicate);
+                evaluations += replicate.evaluations;
+
+                out.print(r + "\t" + replicate.leaves + "\t" + replicate.acceptance);
+                for (int e=0; e<dimension; e++) out.print("\t" + replicate.truth[e] + "\t" + replicate.ranks[e]);
+                out.println();
+                out.flush();
+            }
+
+            double seconds = (System.nanoTime() - startTime)/1e9;
+            Log.info.println("BDMM SBC: " + replicates + " replicates in " + String.format("%.1f", seconds) + " s ("
+                    + String.format("%.2f", replicates/seconds) + " replicates/s, "
+                    + String.format("%.0f", evaluations/seconds) + " likelihood evaluations/s).");
+
+            report(out, done);
+
+        } finally {
+            executor.shutdown();
+            if (out != System.out) out.close();
+        }
+    }
+
+    /**
+     * Simulate a tree with the true values, then sample the posterior given that tree
+     */
+    Replicate runReplicate(Worker worker, double[] truth, double[] start, SplittableRandom random) {
+
+        setValues(worker.parameterCopies, truth);
+        PopHistorySimulator simulator = worker.model.newPopHistorySimulator();
+        simulator.setRandom(random);
+        simulator.setConditionOnSurvival(true);
+
+        Tree tree = simulateTree(simulator, numberOfLeavesInput.get(), worker.model.origin.get().getValue());
+
+        // likelihood of the simulated tree, initialised at the true values for which the tree is valid
+        Map<Object, Object> replacements = new IdentityHashMap<>();
+        RealParameter[] parameterCopies = copyParameters(replacements);
+        setValues(parameterCopies, truth);
+        replacements.put(likelihoodInput.get().treeInput.get(), tree);
+        PiecewiseBirthDeathMigrationDistribution likelihood = likelihoodInput.get().copyReplacing(replacements);
+
+        Replicate replicate = new Replicate();
+        replicate.leaves = tree.getLeafNodeCount();
+        replicate.truth = truth;
+
+        double[][] samples = samplePosterior(likelihood, parameterCopies, start, random, replicate);
+
+        replicate.ranks = new int[dimension];
+        replicate.covered = new boolean[dimension][coverageLevels.length];
+
+        for (int e=0; e<dimension; e++) {
+
+            double[] values = new double[samples.length];
+            for (int s=0; s<samples.length; s++) values[s] = samples[s][e];
+            Arrays.sort(values);
+
+            // ties (e.g. a chain that did not move) are broken at random
+            int below = 0, equal = 0;
+            for (double value : values) {
+                if (value < truth[e]) below++;
+                else if (value == truth[e]) equal++;
+            }
+            replicate.ranks[e] = below + random.nextInt(equal + 1);
+
+            for (int l=0; l<coverageLevels.length; l++) {
+                double lower = quantile(values, (1 - coverageLevels[l])/2);
+                double upper = quantile(values, (1 + coverageLevels[l])/2);
+                replicate.covered[e][l] = lower <= truth[e] && truth[e] <= upper;
+            }
+        }
+
+        return replicate;
+    }
+
+    /**
+     * @return tip-typed tree of the simulated samples, with heights measured from the present at the end time
+     */
+    Tree simulateTree(PopHistorySimulator simulator, int minimumLeaves, double endTime) {
+
+        PopHistory history = simulator.SimulatePopHistory(minimumLeaves);
+        Node root = simulator.buildTipTypedTreeFromStructuredPopHistory(history, false);
+
+        // the reconstructed heights are measured from the last sample
+        double offset = endTime - history.getEventTime(history.getEventCount() - 1);
+        String typeLabel = likelihoodInput.get().typeLabel.get();
+
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            node.setHeight(node.getHeight() + offset);
+            if (node.isLeaf()) {
+                node.setID("t" + (node.getNr() + 1));
+                node.setMetaData(typeLabel, node.getMetaData("type"));
+            }
+            for (Node child : node.getChildren()) stack.push(child);
+        }
+
+        return new Tree(root);
+    }
+
+    /**
+     * Metropolis chain updating one element at a time with Gaussian proposals, whose scales are tuned during the burn-in
+     * @return the posterior samples
+     */
+    double[][] samplePosterior(PiecewiseBirthDeathMigrationDistribution likelihood, RealParameter[] parameterCopies,
+                               double[] start, SplittableRandom random, Replicate replicate) {
+
+        int burnin = burninInput.get();
+        int chainLength = chainLengthInput.get();
+        int sampleCount = posteriorSamplesInput.get();
+
+        double[] x = new double[dimension];
+        for (int e=0; e<dimension; e++) x[e] = logTransform ? Math.log(start[e]) : start[e];
+
+        double[] scales = new double[dimension];
+        int[] updates = new int[dimension];
+        for (int e=0; e<dimension; e++) scales[e] = logTransform ? 0.5 : 0.5*Math.max(Math.abs(start[e]), 1e-3);
+
+        double current = logPosterior(likelihood, parameterCopies, x);
+        replicate.evaluations++;
+
+        double[][] samples = new double[sampleCount][];
+        long accepted = 0;
+
+        for (int step=0; step<burnin + chainLength; step++) {
+
+            int e = step % dimension;
+            double old = x[e];
+            x[e] = old + scales[e]*random.nextGaussian();
+
+            double proposed = logPosterior(likelihood, parameterCopies, x);
+            replicate.evaluations++;
+
+            boolean accept = proposed - current >= 0 || Math.log(random.nextDouble()) < proposed - current;
+            if (accept) current = proposed;
+            else x[e] = old;
+
+            if (step < burnin) {
+                updates[e]++;
+                scales[e] *= Math.exp(((accept ? 1 : 0) - targetAcceptance)/Math.sqrt(updates[e]));
+            } else {
+                if (accept) accepted++;
+
+                // evenly spaced samples, the last one at the end of the chain
+                int kept = step - burnin + 1;
+                int sample = (int) ((long) kept*sampleCount/chainLength);
+                if (sample > (long) (kept - 1)*sampleCount/chainLength) {
+                    samples[sample - 1] = new double[dimension];
+                    for (int k=0; k<dimension; k++) samples[sample - 1][k] = backTransform(x[k]);
+                }
+            }
+        }
+
+        replicate.acceptance = chainLength > 0 ? (double) accepted/chainLength : 0;
+        return samples;
+    }
+
+    /**
+     * @param x parameter values on the chain's scale
+     * @return log-likelihood plus log-prior, including the Jacobian of the log transform, -infinity outside the bounds
+     */
+    double logPosterior(PiecewiseBirthDeathMigrationDistribution likelihood, RealParameter[] parameterCopies, double[] x) {
+
+        double logP = 0;
+        int i = 0;
+        for (int p=0; p<parameterCopies.length; p++) {
+            RealParameter parameter = parameterCopies[p];
+            ParametricDistribution prior = priors.get(p);
+
+            for (int j=0; j<parameter.getDimension(); j++) {
+
+                double value = backTransform(x[i]);
+                if (value < parameter.getLower() || value > parameter.getUpper())
+                    return Double.NEGATIVE_INFINITY;
+
+                parameter.setValue(j, value);
+
+                // priors are shared by all threads
+                synchronized (prior) {
+                    logP += prior.logDensity(value);
+                }
+                if (logTransform) logP += x[i];
+                i++;
+            }
+        }
+
+        if (logP == Double.NEGATIVE_INFINITY || Double.isNaN(logP)) return Double.NEGATIVE_INFINITY;
+
+        double logL = likelihood.calculateLogP();
+        return Double.isNaN(logL) ? Double.NEGATIVE_INFINITY : logP + logL;
+    }
+
+    double[] drawFromPriors(SplittableRandom random) {
+
+        double[] values = new double[dimension];
+        int i = 0;
+        for (int p=0; p<parameters.size(); p++) {
+            for (int j=0; j<parameters.get(p).getDimension(); j++) {
+                try {
+                    values[i++] = priors.get(p).inverseCumulativeProbability(random.nextDouble());
+                } catch (Exception e) {
+                    throw new RuntimeException("Error in BDMM SBC: cannot draw from the prior of "
+                            + parameters.get(p).getID() + ": " + e.getMessage());
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @param replacements filled with the parameters and their copies
+     * @return copies of the parameters, with their bounds
+     */
+    RealParameter[] copyParameters(Map<Object, Object> replacements) {
+
+        RealParameter[] parameterCopies = new RealParameter[parameters.size()];
+
+        for (int p=0; p<parameters.size(); p++) {
+
+            RealParameter parameter = parameters.get(p);
+            parameterCopies[p] = new RealParameter(parameter.getValues());
+            parameterCopies[p].setLower(parameter.getLower());
+            parameterCopies[p].setUpper(parameter.getUpper());
+
+            replacements.put(parameter, parameterCopies[p]);
+        }
+
+        return parameterCopies;
+    }
+
+    void setValues(RealParameter[] parameterCopies, double[] values) {
+        int i = 0;
+        for (RealParameter parameter : parameterCopies)
+            for (int j=0; j<parameter.getDimension(); j++) parameter.setValue(j, values[i++]);
+    }
+
+    double backTransform(double x) {
+        return logTransform ? Math.exp(x) : x;
+    }
+
+    static double quantile(double[] sorted, double probability) {
+        double position = probability*(sorted.length - 1);
+        int below = (int) Math.floor(position);
+        int above = Math.min(below + 1, sorted.length - 1);
+        return sorted[below] + (position - below)*(sorted[above] - sorted[below]);
+    }
+
+    List<String> elementNames() {
+        List<String> names = new ArrayList<>();
+        for (RealParameter parameter : parameters) {
+            for (int j=0; j<parameter.getDimension(); j++)
+                names.add(parameter.getDimension() > 1 ? parameter.getID() + (j+1) : parameter.getID());
+        }
+        return names;
+    }
+
+    /**
+     * Rank histogram of each element, with the p-value of a chi-squared test of its uniformity, and the coverage of
+     * the credible intervals
+     */
+    void report(PrintStream out, List<Replicate> replicates) {
+
+        int bins = Math.max(1, Math.min(binsInput.get(), posteriorSamplesInput.get() + 1));
+        int rankCount = posteriorSamplesInput.get() + 1;
+        int n = replicates.size();
+
+        out.println();
+        out.print("parameter\tuniformity.p");
+        for (double level : coverageLevels) out.print("\tcoverage" + level);
+        for (int b=0; b<bins; b++) out.print("\tbin" + (b+1));
+        out.println();
+
+        List<String> names = elementNames();
+
+        for (int e=0; e<dimension; e++) {
+
+            int[] counts = new int[bins];
+            int[] covered = new int[coverageLevels.length];
+
+            for (Replicate replicate : replicates) {
+                counts[(int) ((long) replicate.ranks[e]*bins/rankCount)]++;
+                for (int l=0; l<coverageLevels.length; l++) if (replicate.covered[e][l]) covered[l]++;
+            }
+
+            // expected counts per bin, the bins covering slightly different numbers of ranks
+            double chiSquared = 0;
+            for (int b=0; b<bins; b++) {
+                int ranksInBin = (int) (((long) (b+1)*rankCount + bins - 1)/bins - ((long) b*rankCount + bins - 1)/bins);
+                double expected = (double) n*ranksInBin/rankCount;
+                chiSquared += (counts[b] - expected)*(counts[b] - expected)/expected;
+            }
+            double pValue = bins > 1 ? 1 - new ChiSquaredDistribution(bins - 1).cumulativeProbability(chiSquared) : 1;
+
+            out.print(names.get(e) + "\t" + pValue);
+            for (int l=0; l<coverageLevels.length; l++) out.print("\t" + (double) covered[l]/n);
+            for (int b=0; b<bins; b++) out.print("\t" + counts[b]);
+            out.println();
+        }
+    }
+}
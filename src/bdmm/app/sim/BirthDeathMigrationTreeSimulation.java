@@ -0,0 +1,93 @@
+package bdmm.app.sim;
+
+import bdmm.evolution.speciation.PiecewiseBirthDeathMigrationDistribution;
+import bdmm.treesimulator.BatchTreeSimulator;
+import bdmm.treesimulator.PopHistorySimulator;
+import bdmm.treesimulator.TreeWriter;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.inference.Runnable;
+import beast.base.util.Randomizer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Simulates a batch of tip-typed trees under the BDMM model of a likelihood, with its current parameter values, from
+ * the origin to the present, and writes them to a file.
+ *
+ * The replicates are simulated in parallel by a BatchTreeSimulator and written in order by a TreeWriter, so that the
+ * file is the same for a given seed whatever the number of threads. The simulators of the threads are all set up
+ * before the simulation starts, as setting one up updates the rates of the likelihood.
+ */
+@Description("Simulates tip-typed trees under the BDMM model of a likelihood with its current parameter values, in " +
+        "parallel, and writes them to a Newick or Nexus file. The trees only depend on the seed, not on the number of threads.")
+public class BirthDeathMigrationTreeSimulation extends Runnable {
+
+    public Input<PiecewiseBirthDeathMigrationDistribution> likelihoodInput = new Input<>("likelihood",
+            "BDMM likelihood whose model is simulated from its origin (which should not be only the root edge) to the present. " +
+                    "Its tree is not used.",
+            Input.Validate.REQUIRED);
+
+    public Input<Integer> replicatesInput = new Input<>("replicates",
+            "Number of simulated trees (default 100).", 100);
+
+    public Input<Integer> numberOfLeavesInput = new Input<>("numberOfLeaves",
+            "Minimal number of leaves of the simulated trees; populations with fewer samples are simulated again (default 1).", 1);
+
+    public Input<Boolean> conditionOnSurvivalInput = new Input<>("conditionOnSurvival",
+            "Simulate the populations conditioned on leaving at least one sample, instead of discarding the populations " +
+                    "without samples (default false).", false);
+
+    public Input<Long> seedInput = new Input<>("seed",
+            "Seed of the simulations (default: drawn from BEAST's random number generator).");
+
+    public Input<Integer> threadsInput = new Input<>("threads",
+            "Number of threads (default: number of available processors).",
+            Runtime.getRuntime().availableProcessors());
+
+    public Input<String> outFileInput = new Input<>("outFile",
+            "File the trees are written to, in Nexus if it ends with .nex or .nexus and otherwise in Newick, gzipped if " +
+                    "it ends with .gz.",
+            Input.Validate.REQUIRED);
+
+    @Override
+    public void initAndValidate() {
+
+        if (replicatesInput.get() < 0)
+            throw new RuntimeException("Error in BDMM tree simulation setup: the number of replicates should not be negative.");
+    }
+
+    @Override
+    public void run() throws Exception {
+
+        int threads = Math.max(1, threadsInput.get());
+        int replicates = replicatesInput.get();
+        int minimumLeaves = numberOfLeavesInput.get();
+
+        // one simulator per thread, taken by the threads when they start
+        Queue<PopHistorySimulator> simulators = new ConcurrentLinkedQueue<>();
+        for (int t=0; t<threads; t++) {
+            PopHistorySimulator simulator = likelihoodInput.get().newPopHistorySimulator();
+            simulator.setConditionOnSurvival(conditionOnSurvivalInput.get());
+            simulators.add(simulator);
+        }
+
+        BatchTreeSimulator batch = new BatchTreeSimulator(simulators::poll, threads);
+        long seed = seedInput.get() != null ? seedInput.get() : Randomizer.nextLong();
+
+        long startTime = System.nanoTime();
+
+        try (TreeWriter writer = new TreeWriter(outFileInput.get())) {
+
+            batch.simulate(replicates, seed,
+                    simulator -> simulator.buildTipTypedTreeFromStructuredPopHistory(simulator.SimulatePopHistory(minimumLeaves), false),
+                    writer::write);
+        }
+
+        double seconds = (System.nanoTime() - startTime)/1e9;
+        Log.info.println("BDMM tree simulation: " + replicates + " trees written to " + outFileInput.get() + " in "
+                + String.format("%.1f", seconds) + " s (" + String.format("%.2f", replicates/seconds) + " trees/s).");
+    }
+}
@@ -0,0 +1,246 @@
+package bdmm.evolution.operators;
+
+import bdmm.evolution.speciation.PiecewiseBirthDeathMigrationDistribution;
+import bdmm.evolution.speciation.QuadraticSurrogateLikelihood;
+import beast.base.core.BEASTInterface;
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.Distribution;
+import beast.base.inference.Operator;
+import beast.base.inference.StateNode;
+import beast.base.util.Randomizer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Two-stage delayed acceptance (Christen & Fox 2005) around an arbitrary operator.
+ *
+ * Stage 1 accepts the proposal y of the wrapped operator at x with probability
+ * min(1, HR * L~(y)/L~(x)), where L~ is a cheap approximation of the likelihood. Only proposals passing it are
+ * handed to the MCMC, together with the log ratio log L~(x) - log L~(y) in place of the Hastings ratio, so that the
+ * usual acceptance step becomes min(1, pi(y)/pi(x) * L~(x)/L~(y)). The chain then still targets pi exactly,
+ * provided L~ is positive wherever pi is, and L~ is a fixed function of the state: both values of L~ within one
+ * proposal have to come from the same function, and it must not change from one proposal to the next.
+ * A QuadraticSurrogateLikelihood is only adapted at the current state before a proposal, and only during its
+ * adaptationCalls, so the chain targets pi exactly from the end of that adaptation on.
+ *
+ * L~ is evaluated within proposal(), before the MCMC stores the calculation nodes, so it is evaluated on a copy of the
+ * approximate likelihood, which no other part of the model uses (a QuadraticSurrogateLikelihood evaluates a copy of
+ * its exact likelihood itself). L~(x) is kept together with the values of the state nodes L~ depends on, and only
+ * evaluated again if another operator changed one of them since, or if the surrogate was adapted.
+ */
+@Description("Delayed-acceptance wrapper: proposals of the wrapped operator are screened with an approximate likelihood " +
+        "(e.g. a BirthDeathMigrationModelUncoloured with loose relTolerance), and only those passing the screening are " +
+        "evaluated with the exact posterior. The posterior is preserved if the approximate likelihood is a fixed function " +
+        "of the state; with a QuadraticSurrogateLikelihood, only once its adaptation is over.")
+public class DelayedAcceptanceOperator extends Operator {
+
+    public Input<Operator> operatorInput = new Input<>("operator",
+            "Operator whose proposals are screened.",
+            Input.Validate.REQUIRED);
+
+    public Input<Distribution> approximateLikelihoodInput = new Input<>("approximateLikelihood",
+            "Cheap approximation of the likelihood, sharing the tree and parameters of the exact one, " +
+                    "but not part of the posterior itself.",
+            Input.Validate.REQUIRED);
+
+    Operator operator;
+    Distribution approximateLikelihood;
+
+    // state nodes L~ depends on, null if one of them cannot be compared (L~(x) is then never kept)
+    List<StateNode> approximationStateNodes;
+
+    // L~ of the current state and the state node values it was evaluated for, null if unknown
+    double currentLogL;
+    double[] currentValues;
+
+    // L~ of the proposed state, which becomes the current one if the proposal is accepted
+    double proposedLogL;
+    double[] proposedValues;
+
+    long screened, rejectedAtFirstStage;
+
+    @Override
+    public void initAndValidate() {
+
+        operator = operatorInput.get();
+
+        Distribution approximation = approximateLikelihoodInput.get();
+
+        if (approximation instanceof PiecewiseBirthDeathMigrationDistribution)
+            approximateLikelihood = ((PiecewiseBirthDeathMigrationDistribution) approximation).copyReplacing(new IdentityHashMap<>());
+        else if (approximation instanceof QuadraticSurrogateLikelihood)
+            approximateLikelihood = approximation;
+        else
+            approximateLikelihood = SpeculativeRandomWalkOperator.copyReplacing(approximation, new IdentityHashMap<>());
+
+        approximationStateNodes = stateNodesOf(approximation);
+    }
+
+    @Override
+    public double proposal() {
+
+        // a surrogate is only adapted here, so that L~(x) and L~(y) come from the same fit
+        if (approximateLikelihood instanceof QuadraticSurrogateLikelihood) {
+            QuadraticSurrogateLikelihood surrogate = (QuadraticSurrogateLikelihood) approximateLikelihood;
+            if (!surrogate.isAdapted()) currentValues = null;
+            surrogate.adapt();
+        }
+
+        double[] values = stateNodeValues();
+        if (currentValues == null || !Arrays.equals(values, currentValues)) {
+            currentLogL = approximateLikelihood.calculateLogP();
+            currentValues = values;
+        }
+        double logLx = currentLogL;
+
+        proposedValues = null;
+
+        double logHR = operator.proposal();
+
+        if (logHR == Double.NEGATIVE_INFINITY)
+            return Double.NEGATIVE_INFINITY;
+
+        screened += 1;
+
+        double logLy = approximateLikelihood.calculateLogP();
+
+        double logAlpha1 = logHR + logLy - logLx;
+
+        if (Double.isNaN(logAlpha1) || logLy == Double.NEGATIVE_INFINITY
+                || (logAlpha1 < 0 && Math.log(Randomizer.nextDouble()) >= logAlpha1)) {
+            rejectedAtFirstStage += 1;
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        proposedLogL = logLy;
+        proposedValues = stateNodeValues();
+
+        return logLx - logLy;
+    }
+
+    /**
+     * @return the values of the state nodes L~ depends on, in a fixed order, or null if they cannot be compared
+     */
+    double[] stateNodeValues() {
+
+        if (approximationStateNodes == null) return null;
+
+        List<Double> values = new ArrayList<>();
+
+        for (StateNode stateNode : approximationStateNodes) {
+
+            if (stateNode instanceof TreeInterface) {
+                TreeInterface tree = (TreeInterface) stateNode;
+                for (int i=0; i<tree.getNodeCount(); i++) {
+                    Node node = tree.getNode(i);
+                    values.add(node.getHeight());
+                    values.add(node.isRoot() ? -1. : node.getParent().getNr());
+                }
+            } else {
+                Function function = (Function) stateNode;
+                values.add((double) function.getDimension());
+                for (int i=0; i<function.getDimension(); i++) values.add(function.getArrayValue(i));
+            }
+        }
+
+        double[] array = new double[values.size()];
+        for (int i=0; i<array.length; i++) array[i] = values.get(i);
+        return array;
+    }
+
+    /**
+     * @param distribution
+     * @return the state nodes the distribution depends on, directly or through other objects, or null if one of them
+     * is neither a Tree nor a parameter
+     */
+    static List<StateNode> stateNodesOf(BEASTInterface distribution) {
+
+        List<StateNode> stateNodes = new ArrayList<>();
+
+        Set<BEASTInterface> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<BEASTInterface> queue = new ArrayDeque<>();
+        queue.push(distribution);
+
+        while (!queue.isEmpty()) {
+
+            BEASTInterface object = queue.pop();
+
+            if (!visited.add(object)) continue;
+
+            if (object instanceof StateNode) {
+                // only plain trees are described by their node heights and topology alone (not e.g. coloured ones)
+                if (object.getClass() != Tree.class && !(object instanceof Function)) return null;
+                stateNodes.add((StateNode) object);
+                continue;
+            }
+
+            queue.addAll(object.listActiveBEASTObjects());
+        }
+
+        return stateNodes;
+    }
+
+    @Override
+    public List<StateNode> listStateNodes() {
+        return operator.listStateNodes();
+    }
+
+    @Override
+    public void accept() {
+        super.accept();
+        operator.accept();
+
+        currentLogL = proposedLogL;
+        currentValues = proposedValues;
+    }
+
+    @Override
+    public void reject(int reason) {
+        super.reject(reason);
+        operator.reject(reason);
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        operator.optimize(logAlpha);
+    }
+
+    @Override
+    public double getCoercableParameterValue() {
+        return operator.getCoercableParameterValue();
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        operator.setCoercableParameterValue(value);
+    }
+
+    /**
+     * @return number of proposals rejected by the approximate likelihood so far
+     */
+    public long getRejectedAtFirstStage() {
+        return rejectedAtFirstStage;
+    }
+
+    @Override
+    public String getPerformanceSuggestion() {
+
+        if (screened == 0) return operator.getPerformanceSuggestion();
+
+        return String.format("%.1f%% of the proposals were rejected by the approximate likelihood. ",
+                100.0*rejectedAtFirstStage/screened) + operator.getPerformanceSuggestion();
+    }
+
+}
@@ -0,0 +1,345 @@
+package bdmm.evolution.operators;
+
+import bdmm.evolution.speciation.PiecewiseBirthDeathMigrationDistribution;
+import beast.base.core.BEASTInterface;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Distribution;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a fixed number of random-walk Metropolis steps on one parameter within a single proposal, evaluating the
+ * likelihood of several future steps at once on copies of the likelihood.
+ *
+ * All random numbers of the steps (element, window offset and acceptance uniform of each step) are drawn before any
+ * step is taken, in the same order as a sequential run would draw them. Step j proposes current + offset_j whatever
+ * happened before it, so the candidates of the next steps are all known as long as they are rejected: they are
+ * evaluated concurrently, and after the first accepted one, the later ones are evaluated again from the new state.
+ * The copies all compute the same function of the state, as they take their tolerances from the likelihood and keep
+ * no results across evaluations (see copyReplacing), so the steps taken are the same for any number of threads.
+ *
+ * The likelihood of the current state is evaluated on the copies as well, and the priors on copies taking a detached
+ * copy of the parameter, so that the steps neither depend on the posterior nor change the state before they are
+ * taken. The proposal is accepted by the MCMC without comparing posteriors, so initAndValidate checks that the
+ * likelihood and priors are all the terms of a posterior (CompoundDistribution) depending on the parameter.
+ */
+@Description("Several random-walk Metropolis steps on a parameter per proposal, with the BDMM likelihood of successive steps " +
+        "evaluated speculatively in parallel on copies of the likelihood. The chain is the same as with threads=1. " +
+        "The proposal is always accepted by the MCMC (like a Gibbs operator), so the likelihood and 'prior' must " +
+        "together contain every term of the posterior that depends on the parameter, which is checked when the operator " +
+        "is set up.")
+public class SpeculativeRandomWalkOperator extends Operator {
+
+    public Input<RealParameter> parameterInput = new Input<>("parameter",
+            "Parameter the random walk is performed on.",
+            Input.Validate.REQUIRED);
+
+    public Input<PiecewiseBirthDeathMigrationDistribution> likelihoodInput = new Input<>("likelihood",
+            "BDMM likelihood of the posterior, taking the parameter directly as one of its inputs.",
+            Input.Validate.REQUIRED);
+
+    public Input<List<Distribution>> priorInput = new Input<>("prior",
+            "All other posterior terms depending on the parameter, each taking the parameter directly as one of its inputs.",
+            new ArrayList<>());
+
+    public Input<Double> windowSizeInput = new Input<>("windowSize",
+            "Size of the uniform window around the current value.", 0.1);
+
+    public Input<Integer> stepsInput = new Input<>("steps",
+            "Number of Metropolis steps per proposal.", 10);
+
+    public Input<Integer> threadsInput = new Input<>("threads",
+            "Number of steps evaluated concurrently (default: number of available processors).",
+            Runtime.getRuntime().availableProcessors());
+
+    RealParameter parameter;
+    PiecewiseBirthDeathMigrationDistribution likelihood;
+
+    PiecewiseBirthDeathMigrationDistribution[] copies;
+    RealParameter[] parameterCopies;
+
+    // priors evaluated on a copy of the parameter
+    List<Distribution> priorCopies;
+    RealParameter priorParameter;
+
+    ExecutorService executor;
+
+    @Override
+    public void initAndValidate() {
+
+        parameter = parameterInput.get();
+        likelihood = likelihoodInput.get();
+
+        checkPosteriorTerms();
+
+        int copyCount = Math.max(1, threadsInput.get());
+
+        copies = new PiecewiseBirthDeathMigrationDistribution[copyCount];
+        parameterCopies = new RealParameter[copyCount];
+
+        for (int c=0; c<copyCount; c++) {
+
+            RealParameter parameterCopy = new RealParameter(parameter.getValues());
+            parameterCopy.setLower(parameter.getLower());
+            parameterCopy.setUpper(parameter.getUpper());
+
+            Map<Object, Object> replacements = new IdentityHashMap<>();
+            replacements.put(parameter, parameterCopy);
+
+            PiecewiseBirthDeathMigrationDistribution copy = likelihood.copyReplacing(replacements);
+            copy.setID(likelihood.getID() + ".speculative" + c);
+
+            copies[c] = copy;
+            parameterCopies[c] = parameterCopy;
+        }
+
+        priorParameter = new RealParameter(parameter.getValues());
+        priorParameter.setLower(parameter.getLower());
+        priorParameter.setUpper(parameter.getUpper());
+
+        priorCopies = new ArrayList<>();
+        for (Distribution prior : priorInput.get()) {
+            Map<Object, Object> replacements = new IdentityHashMap<>();
+            replacements.put(parameter, priorParameter);
+            priorCopies.add(copyReplacing(prior, replacements));
+        }
+
+        if (copyCount > 1) {
+            executor = Executors.newFixedThreadPool(copyCount, runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @Override
+    public double proposal() {
+
+        int steps = stepsInput.get();
+        int dimension = parameter.getDimension();
+        double windowSize = windowSizeInput.get();
+
+        int[] elements = new int[steps];
+        double[] offsets = new double[steps];
+        double[] logU = new double[steps];
+
+        for (int j=0; j<steps; j++) {
+            elements[j] = Randomizer.nextInt(dimension);
+            offsets[j] = windowSize*(2*Randomizer.nextDouble() - 1);
+            logU[j] = Math.log(Randomizer.nextDouble());
+        }
+
+        double[] current = new double[dimension];
+        for (int i=0; i<dimension; i++) current[i] = parameter.getValue(i);
+
+        // evaluated on a copy like the candidates, so that the ratios only involve the copies
+        double logL = evaluate(new double[][]{current})[0];
+        double logPrior = logPrior(current);
+
+        int j = 0;
+        while (j < steps) {
+
+            int batch = Math.min(copies.length, steps - j);
+
+            double[][] candidates = new double[batch][];
+            for (int b=0; b<batch; b++) {
+
+                int element = elements[j + b];
+                double value = current[element] + offsets[j + b];
+
+                if (value < parameter.getLower() || value > parameter.getUpper()) continue;
+
+                candidates[b] = current.clone();
+                candidates[b][element] = value;
+            }
+
+            double[] candidateLogL = evaluate(candidates);
+
+            boolean accepted = false;
+
+            for (int b=0; b<batch && !accepted; b++) {
+
+                if (candidates[b] == null) continue;
+
+                double candidateLogPrior = logPrior(candidates[b]);
+                double logAlpha = candidateLogL[b] + candidateLogPrior - logL - logPrior;
+
+                if (logU[j + b] < logAlpha) {
+                    current = candidates[b];
+                    logL = candidateLogL[b];
+                    logPrior = candidateLogPrior;
+                    j += b + 1;
+                    accepted = true;
+                }
+            }
+
+            if (!accepted) j += batch;
+        }
+
+        for (int i=0; i<dimension; i++) parameter.setValue(i, current[i]);
+
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @param candidates parameter values, null for candidates that are rejected anyway
+     * @return log-likelihood of each candidate, evaluated on the copies
+     */
+    double[] evaluate(double[][] candidates) {
+
+        double[] logL = new double[candidates.length];
+
+        List<Future<Double>> results = new ArrayList<>();
+
+        for (int b=0; b<candidates.length; b++) {
+
+            if (candidates[b] == null) {
+                results.add(null);
+                continue;
+            }
+
+            for (int i=0; i<candidates[b].length; i++) parameterCopies[b].setValue(i, candidates[b][i]);
+
+            PiecewiseBirthDeathMigrationDistribution copy = copies[b];
+            if (executor == null) {
+                logL[b] = safeLogP(copy);
+                results.add(null);
+            } else
+                results.add(executor.submit(() -> safeLogP(copy)));
+        }
+
+        try {
+            for (int b=0; b<candidates.length; b++) {
+                if (results.get(b) != null) logL[b] = results.get(b).get();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Speculative evaluation was interrupted");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        return logL;
+    }
+
+    private static double safeLogP(PiecewiseBirthDeathMigrationDistribution copy) {
+
+        double logP = copy.calculateLogP();
+        return Double.isNaN(logP) ? Double.NEGATIVE_INFINITY : logP;
+    }
+
+    /**
+     * @param values
+     * @return sum of the 'prior' terms with the parameter set to values, evaluated on their copies
+     */
+    double logPrior(double[] values) {
+
+        if (priorCopies.isEmpty()) return 0.;
+
+        for (int i=0; i<values.length; i++) priorParameter.setValue(i, values[i]);
+
+        double logPrior = 0.;
+        for (Distribution prior : priorCopies) logPrior += prior.calculateLogP();
+
+        return logPrior;
+    }
+
+    /**
+     * Check that the likelihood and priors contain every posterior term depending on the parameter: every
+     * distribution depending on it, directly or through other calculation nodes, that is part of a
+     * CompoundDistribution (such as the posterior) has to be one of them.
+     */
+    void checkPosteriorTerms() {
+
+        Set<BEASTInterface> terms = Collections.newSetFromMap(new IdentityHashMap<>());
+        terms.add(likelihood);
+        terms.addAll(priorInput.get());
+
+        Set<BEASTInterface> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<BEASTInterface> queue = new ArrayDeque<>(parameter.getOutputs());
+
+        while (!queue.isEmpty()) {
+
+            BEASTInterface output = queue.pop();
+
+            if (!visited.add(output) || terms.contains(output) || !(output instanceof CalculationNode)) continue;
+
+            if (output instanceof Distribution && !(output instanceof CompoundDistribution)) {
+                for (BEASTInterface user : output.getOutputs()) {
+                    if (user instanceof CompoundDistribution)
+                        throw new RuntimeException("Error in speculative random walk setup: " + output.getID() + " depends on "
+                                + parameter.getID() + ", but is neither the likelihood nor one of the priors of the operator.");
+                }
+            }
+
+            queue.addAll(output.getOutputs());
+        }
+    }
+
+    /**
+     * Create a copy of a distribution with the same inputs, except for the replaced ones, as
+     * PiecewiseBirthDeathMigrationDistribution.copyReplacing does.
+     * @param distribution
+     * @param replacements input values (by identity) and the values to use instead in the copy
+     * @return the initialised copy
+     */
+    static Distribution copyReplacing(Distribution distribution, Map<Object, Object> replacements) {
+
+        Distribution copy;
+        try {
+            copy = distribution.getClass().getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Cannot copy " + distribution.getID() + ": " + e.getMessage());
+        }
+
+        int replaced = 0;
+
+        for (Input<?> input : copy.listInputs()) {
+
+            Object value = distribution.getInput(input.getName()).get();
+            if (value == null) continue;
+
+            if (value instanceof List) {
+                for (Object element : (List<?>) value) {
+                    if (replacements.containsKey(element)) {
+                        element = replacements.get(element);
+                        replaced++;
+                    }
+                    copy.setInputValue(input.getName(), element);
+                }
+                continue;
+            }
+
+            if (replacements.containsKey(value)) {
+                value = replacements.get(value);
+                replaced++;
+            }
+            copy.setInputValue(input.getName(), value);
+        }
+
+        if (replaced < replacements.size())
+            throw new RuntimeException("Error in speculative random walk setup: not all objects to be replaced are direct inputs of " + distribution.getID());
+
+        copy.initAndValidate();
+
+        return copy;
+    }
+
+}
@@ -10,7 +10,8 @@ import beast.base.inference.distribution.ParametricDistribution;
 import beast.base.util.Randomizer;
 import org.apache.commons.math.MathException;
 
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created by Denise Kühnert on 06.03.17.
@@ -33,7 +34,7 @@ public class BirthDeathMigrationClusterModelUncoloured extends BirthDeathMigrati
 	RealParameter quantiles;
 	private int clusterCount;
 	private Integer[] clusters;
-	private Integer[] clusterIndices;
+	private Map<Integer, Integer> clusterIndices;
 
 	private boolean recompute = true;
 
@@ -42,21 +43,21 @@ public class BirthDeathMigrationClusterModelUncoloured extends BirthDeathMigrati
 
 		super.initAndValidate();
 
+		if (smoothRatesInput.get())
+			throw new RuntimeException("Error in BDMM setup: smoothRates is not available for the cluster model (cluster rates scale the piecewise-constant birth rates).");
+
 		clusters = clusterNumbers.get().getValues();
 		clusterCount = clusters.length;
 
-		Integer max = 0;
-		for (int i = 0; i < clusters.length; ++i) {
-			max = Math.max(max, clusters[i]);
-		}
-
-		clusterIndices = new Integer[max]; // todo: stop wasting so much memory!!
-		Arrays.fill(clusterIndices,0);
+		clusterIndices = new HashMap<>();
 
 		for (int i = 0; i < clusters.length; ++i) {
-			clusterIndices[clusters[i]-1] = i;
+			clusterIndices.put(clusters[i], i);
 		}
 
+		if (!clusterIndices.containsKey(currentCluster.get()))
+			throw new RuntimeException("Error in BDMM setup: the current cluster " + currentCluster.get() + " is not one of the clusterNumbers.");
+
 		quantiles = quantileInput.get();
 		quantiles.setDimension(clusterCount);
 		Double[] initialQuantiles = new Double[clusterCount];
@@ -121,12 +122,15 @@ public class BirthDeathMigrationClusterModelUncoloured extends BirthDeathMigrati
 		updateAmongParameter(M, migRates, migChanges, migChangeTimes);
 
 		updateRho();
+		rho = unmergedRho;
 
         for (int i = 0; i < totalIntervals; i++)
-            birth[i]*=getRateForCluster(clusterIndices[currentCluster.get()-1]);
+            birth[i]*=getRateForCluster(clusterIndices.get(currentCluster.get()));
 
 		freq = frequencies.get().getValues();
 
+		mergeIdenticalIntervals();
+
 		setupIntegrators();
 
 		return 0.;
@@ -0,0 +1,211 @@
+package bdmm.evolution.speciation;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.evolution.tree.TreeInterface;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Likelihood of a forest of independent transmission clusters under one multi-type birth-death process.
+ *
+ * The forest evaluates 'tree' itself and keeps one BirthDeathMigrationModelUncoloured per further cluster tree. The
+ * clusters take the forest's parameters as inputs, so BEAST stores and restores them like any other calculation node.
+ * The cluster trees are evaluated by 'threads' tasks on the shared executor of the parallelized traversal, each task
+ * taking the next cluster not evaluated yet.
+ */
+
+@Description("Sum of the BirthDeathMigrationModelUncoloured likelihoods of many cluster trees sharing all parameters and the origin. " +
+		"The interval times, rates and the initial conditions for p at the tips of all clusters are computed once per evaluation, " +
+		"after which the cluster trees are evaluated in parallel on a fixed number of threads. Each cluster is conditioned on survival separately.")
+public class BirthDeathMigrationForestUncoloured extends BirthDeathMigrationModelUncoloured {
+
+	public Input<List<TreeInterface>> clusterTreesInput = new Input<>("clusterTree", "further cluster trees, sharing all parameters with 'tree'. " +
+			"Tip types are read from the trees with typeLabel, or from tiptypes covering the taxa of all clusters", new ArrayList<>());
+
+	public Input<Integer> threadsInput = new Input<>("threads", "number of threads the cluster trees are evaluated on (default: number of available processors)",
+			Runtime.getRuntime().availableProcessors());
+
+	BirthDeathMigrationModelUncoloured[] clusters;
+
+	int threads;
+
+	@Override
+	public void initAndValidate() {
+
+		super.initAndValidate();
+
+		if (origin.get() == null || originIsRootEdge.get())
+			throw new RuntimeException("Error in BDMM setup: the forest likelihood needs an origin shared by all clusters (and originIsRootEdge=false).");
+
+		if (tipTypeArray.get() != null && !clusterTreesInput.get().isEmpty())
+			throw new RuntimeException("Error in BDMM setup: tipTypeArray refers to the node numbers of a single tree, use typeLabel or tiptypes with several cluster trees.");
+
+		List<TreeInterface> trees = clusterTreesInput.get();
+
+		clusters = new BirthDeathMigrationModelUncoloured[trees.size()];
+
+		for (int i=0; i<clusters.length; i++) {
+
+			BirthDeathMigrationModelUncoloured cluster = new BirthDeathMigrationModelUncoloured();
+
+			for (Input<?> input : cluster.listInputs()) {
+
+				if (input.getName().equals("tree") || input.getName().equals("parallelize")) continue;
+
+				Object value = getInput(input.getName()).get();
+				if (value != null) cluster.setInputValue(input.getName(), value);
+			}
+
+			cluster.setInputValue("tree", trees.get(i));
+			cluster.setInputValue("parallelize", false); // the clusters themselves are evaluated in parallel
+			cluster.setID((getID() == null ? "forest" : getID()) + ".cluster" + (i+1));
+			cluster.initAndValidate();
+
+			clusters[i] = cluster;
+		}
+
+		// 'tree' is evaluated by the forest itself, alongside the clusters
+		threads = Math.min(threadsInput.get(), clusters.length + 1);
+		if (threads > 1) executorBootUp();
+	}
+
+	@Override
+	public double calculateTreeLogLikelihood(TreeInterface tree) {
+
+		forgetTipsOfCopy();
+
+		updateOrigin(tree.getRoot());
+
+		collectTimes(T);
+		setRho();
+
+		if ((orig < 0) || updateRates() < 0 ||  (times[totalIntervals-1] > T)) {
+			logP =  Double.NEGATIVE_INFINITY;
+			return logP;
+		}
+
+		// tip times of all trees, so that p is integrated only once over the union of them
+		int leafCount = tree.getLeafNodeCount();
+		for (BirthDeathMigrationModelUncoloured cluster : clusters) {
+
+			if (cluster.treeInput.get().getRoot().getHeight() > T) {
+				logP =  Double.NEGATIVE_INFINITY;
+				return logP;
+			}
+			leafCount += cluster.treeInput.get().getLeafNodeCount();
+		}
+
+		double[] leafTimes = new double[leafCount];
+		for (int i=0; i<tree.getLeafNodeCount(); i++)
+			leafTimes[i] = T - tree.getNode(i).getHeight();
+
+		int offset = tree.getLeafNodeCount();
+		for (BirthDeathMigrationModelUncoloured cluster : clusters) {
+
+			TreeInterface clusterTree = cluster.treeInput.get();
+			for (int i=0; i<clusterTree.getLeafNodeCount(); i++)
+				leafTimes[offset + i] = T - clusterTree.getNode(i).getHeight();
+			offset += clusterTree.getLeafNodeCount();
+		}
+
+		double[][] pAtLeaves;
+		try {
+			pAtLeaves = getAllInitialConditionsForP(leafTimes);
+		} catch (Exception e) {
+			if (e instanceof ConstraintViolatedException){throw e;}
+			logP =  Double.NEGATIVE_INFINITY;
+			return logP;
+		}
+
+		pInitialConditions = new double[tree.getLeafNodeCount() + 1][];
+		System.arraycopy(pAtLeaves, 0, pInitialConditions, 0, tree.getLeafNodeCount());
+		pInitialConditions[tree.getLeafNodeCount()] = pAtLeaves[leafCount];
+
+		offset = tree.getLeafNodeCount();
+		for (BirthDeathMigrationModelUncoloured cluster : clusters) {
+
+			int clusterLeafCount = cluster.treeInput.get().getLeafNodeCount();
+
+			cluster.pInitialConditions = new double[clusterLeafCount + 1][];
+			System.arraycopy(pAtLeaves, offset, cluster.pInitialConditions, 0, clusterLeafCount);
+			cluster.pInitialConditions[clusterLeafCount] = pAtLeaves[leafCount];
+			offset += clusterLeafCount;
+
+			cluster.useRatesOf(this);
+		}
+
+		// log-likelihood of 'tree' (index 0) and of each cluster, summed in this order whatever the number of threads
+		double[] treeLogPs = new double[clusters.length + 1];
+
+		if (threads <= 1) {
+
+			for (int i=0; i<treeLogPs.length; i++) treeLogPs[i] = calculateTreeLogLikelihoodOfTree(i);
+		}
+		else {
+
+			AtomicInteger next = new AtomicInteger();
+
+			List<Future<?>> tasks = new ArrayList<>();
+			for (int t=0; t<threads; t++) {
+				tasks.add(executor.submit(() -> {
+					for (int i = next.getAndIncrement(); i < treeLogPs.length; i = next.getAndIncrement())
+						treeLogPs[i] = calculateTreeLogLikelihoodOfTree(i);
+				}));
+			}
+
+			try {
+				for (Future<?> task : tasks) task.get();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Evaluation of the cluster trees was interrupted");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		double sum = 0;
+		for (double treeLogP : treeLogPs) sum += treeLogP;
+
+		logP = (Double.isNaN(sum) || Double.isInfinite(sum)) ? Double.NEGATIVE_INFINITY : sum;
+
+		return logP;
+	}
+
+	/**
+	 * @param i 0 for 'tree', i for the i-th cluster tree
+	 * @return log-likelihood of the tree given p at its leaves
+	 */
+	private double calculateTreeLogLikelihoodOfTree(int i) {
+
+		if (i == 0) return calculateTreeLogLikelihoodGivenP(treeInput.get());
+
+		BirthDeathMigrationModelUncoloured cluster = clusters[i-1];
+		return cluster.calculateTreeLogLikelihoodGivenP(cluster.treeInput.get());
+	}
+
+	/**
+	 * @return the likelihoods of the cluster trees, in the order of 'clusterTree' ('tree' is evaluated by the forest itself)
+	 */
+	public BirthDeathMigrationModelUncoloured[] getClusters() {
+		return clusters;
+	}
+
+	@Override
+	void forgetTipsOfCopy() {
+
+		super.forgetTipsOfCopy();
+		if (toleranceSource != null) {
+			for (BirthDeathMigrationModelUncoloured cluster : clusters) cluster.tipIndex.forget();
+		}
+	}
+
+	@Override
+	void discardCachedResults() {
+		super.discardCachedResults();
+		for (BirthDeathMigrationModelUncoloured cluster : clusters) cluster.discardCachedResults();
+	}
+}
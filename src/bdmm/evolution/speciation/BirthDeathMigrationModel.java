@@ -9,13 +9,16 @@ import beast.base.inference.util.InputUtil;
 import multitypetree.evolution.tree.MultiTypeNode;
 import multitypetree.evolution.tree.MultiTypeTree;
 
+import java.util.Arrays;
 import java.util.concurrent.*;
 
 import bdmm.core.util.Utils;
 import bdmm.evolution.tree.MultiTypeRootBranch;
 import bdmm.math.SmallNumber;
 import bdmm.math.p0ge_InitialConditions;
+import bdmm.math.p0LogGe_ODE;
 import bdmm.math.p0ge_ODE;
+import org.apache.commons.math3.ode.nonstiff.DormandPrince54Integrator;
 
 
 /**
@@ -33,15 +36,34 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 	public Input<MultiTypeRootBranch> originBranchInput =
 			new Input<>("originBranch", "MultiTypeRootBranch for origin coloring");
 
+	public Input<Boolean> propagatorCacheInput = new Input<>("propagatorCache", "integrate the growth factors of the ge equations once per " +
+			"branch segment and reuse them for all segments with the same end points until the parameters change, " +
+			"instead of integrating every segment (default false)", false);
+
+	public Input<Integer> propagatorCacheSizeInput = new Input<>("propagatorCacheSize", "maximal number of segment propagators kept (default 100000)", 100000);
+
 	MultiTypeRootBranch originBranch;
 	MultiTypeNode x;
 	Boolean print = false;
 
+	GePropagatorCache propagatorCache;
+
+	// p0 and ge at the top of the branch above each node, one row per node number, only read within an evaluation
+	PartialsArena partials;
+
+	// type changes of the branch above node nr at changeOffset[nr] to changeOffset[nr+1]-1, from the node towards
+	// its parent, and of the origin branch after those of the nodes
+	int[] changeOffset;
+	double[] changeTimes;
+	int[] changeTypes;
+
 	@Override
 	public void initAndValidate() {
 
 		if (birthAmongDemes && migrationMatrix.get()!=null) throw new RuntimeException("Error in BDMM setup: When using MultiTypeTrees there can be migration OR transmission among types, but not  both.");
 		super.initAndValidate();
+
+		if (propagatorCacheInput.get()) propagatorCache = new GePropagatorCache(propagatorCacheSizeInput.get());
 	}
 
 	@Override
@@ -74,7 +96,7 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 	 * @param isMigrationEvent
 	 * @return
 	 */
-	public static p0ge_InitialConditions getG(double t, p0ge_InitialConditions PG0, double t0, p0ge_ODE PG, Node node, boolean isMigrationEvent){ // PG0 contains initial condition for p0 (0..n-1) and for ge (n..2n-1)
+	public p0ge_InitialConditions getG(double t, p0ge_InitialConditions PG0, double t0, p0ge_ODE PG, Node node, boolean isMigrationEvent){ // PG0 contains initial condition for p0 (0..n-1) and for ge (n..2n-1)
 
 		if (node.isLeaf() && !isMigrationEvent){ //TODO understand why the !isMigrationEvent here and document it (or remove it) //bc otherwise pb with getP ?
 			System.arraycopy(pInitialConditions[node.getNr()], 0, PG0.conditionsOnP, 0, n);
@@ -83,6 +105,184 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 		return getG(t,  PG0,  t0, PG);
 	}
 
+	/**
+	 * With propagatorCache, the segment is propagated by applying the cached growth factors of the ge equations
+	 * instead of integrating them; the propagator is integrated once if the segment was not seen before.
+	 * @param t
+	 * @param PG0
+	 * @param t0
+	 * @param PG
+	 * @return
+	 */
+	@Override
+	public p0ge_InitialConditions getG(double t, p0ge_InitialConditions PG0, double t0, p0ge_ODE PG) {
+
+		if (propagatorCache == null || Math.abs(T-t) < globalPrecisionThreshold || Math.abs(t0-t) < globalPrecisionThreshold || T < t)
+			return super.getG(t, PG0, t0, PG);
+
+		GePropagatorCache.Propagator propagator = propagatorCache.get(t, t0);
+
+		if (propagator == null) {
+			try {
+				propagator = integratePropagator(t, PG0.conditionsOnP, t0, PG);
+			} catch (Exception e) {
+				throw new RuntimeException("couldn't calculate g");
+			}
+			propagatorCache.put(t, t0, propagator);
+		}
+		else if (!propagator.matches(PG0.conditionsOnP, propagatorTolerance)) {
+			// p0 reached at t0 differs from the one the propagator was computed with
+			return super.getG(t, PG0, t0, PG);
+		}
+
+		double[] pConditions = propagator.pFrom.clone();
+		SmallNumber[] gConditions = new SmallNumber[n];
+
+		for (int i=0; i<n; i++) {
+
+			double logFactor = propagator.logFactor[i];
+			SmallNumber ge = PG0.conditionsOnG[i];
+
+			if (logFactor == Double.NEGATIVE_INFINITY || ge.getMantissa() == 0) {
+				gConditions[i] = new SmallNumber();
+			} else {
+				// split exp(logFactor) into 2^k * exp(logFactor - k ln 2) to stay within the range of double
+				int k = (int) Math.floor(logFactor / LN2);
+				gConditions[i] = new SmallNumber(ge.getMantissa() * Math.exp(logFactor - k * LN2), ge.getExponent() + k);
+			}
+		}
+
+		return new p0ge_InitialConditions(pConditions, gConditions);
+	}
+
+	/**
+	 * Same as getG(t, PG0, t0, PG), for values kept in a row of a PartialsArena, which are propagated or integrated in place
+	 * @param t
+	 * @param arena
+	 * @param row holds the values at t0, and the values at t afterwards
+	 * @param t0
+	 * @param PG
+	 */
+	@Override
+	void getG(double t, PartialsArena arena, int row, double t0, p0ge_ODE PG) {
+
+		if (propagatorCache == null || Math.abs(T-t) < globalPrecisionThreshold || Math.abs(t0-t) < globalPrecisionThreshold || T < t) {
+			super.getG(t, arena, row, t0, PG);
+			return;
+		}
+
+		GePropagatorCache.Propagator propagator = propagatorCache.get(t, t0);
+
+		if (propagator == null) {
+
+			double[] pTo = new double[n];
+			for (int i=0; i<n; i++) pTo[i] = arena.getP(row, i);
+
+			try {
+				propagator = integratePropagator(t, pTo, t0, PG);
+			} catch (Exception e) {
+				throw new RuntimeException("couldn't calculate g");
+			}
+			propagatorCache.put(t, t0, propagator);
+		}
+		else if (!propagator.matches(arena, row, propagatorTolerance)) {
+			// p0 reached at t0 differs from the one the propagator was computed with
+			super.getG(t, arena, row, t0, PG);
+			return;
+		}
+
+		for (int i=0; i<n; i++) {
+
+			arena.setP(row, i, propagator.pFrom[i]);
+
+			double logFactor = propagator.logFactor[i];
+			double mantissa = arena.getGeMantissa(row, i);
+
+			if (logFactor == Double.NEGATIVE_INFINITY || mantissa == 0) {
+				arena.setGe(row, i, 0, 0);
+			} else {
+				// split exp(logFactor) into 2^k * exp(logFactor - k ln 2) to stay within the range of double
+				int k = (int) Math.floor(logFactor / LN2);
+				arena.setGe(row, i, mantissa * Math.exp(logFactor - k * LN2), arena.getGeExponent(row, i) + k);
+			}
+		}
+	}
+
+	@Override
+	void discardCachedResults() {
+		if (propagatorCache != null) propagatorCache.clear();
+	}
+
+	static final double LN2 = Math.log(2);
+
+	// relative agreement of p0 required to apply a cached propagator
+	static final double propagatorTolerance = 1e-6;
+
+	/**
+	 * Integrate p0 and the log growth factors of ge from t0 to t across the intervals, as getG does for p0 and ge.
+	 * @param t
+	 * @param pTo p0 at t0
+	 * @param t0
+	 * @param PG augmented equations
+	 * @return
+	 */
+	GePropagatorCache.Propagator integratePropagator(double t, double[] pTo, double t0, p0ge_ODE PG) {
+
+		p0LogGe_ODE logGe = new p0LogGe_ODE(PG);
+
+		double[] absoluteToleranceVector = new double[2*n];
+		double[] relativeToleranceVector = new double[2*n];
+		for (int i=0; i<n; i++) {
+			absoluteToleranceVector[i] = absTolerance;
+			// a relative error of relTolerance on ge (as in safeIntegrate) is an absolute error of relTolerance on log(ge)
+			absoluteToleranceVector[n+i] = relTolerance;
+			relativeToleranceVector[i] = relTolerance;
+			relativeToleranceVector[n+i] = relTolerance;
+		}
+		DormandPrince54Integrator integrator = new DormandPrince54Integrator(minstep, maxstep, absoluteToleranceVector, relativeToleranceVector);
+
+		double[] y = new double[2*n];
+		System.arraycopy(pTo, 0, y, 0, n);
+
+		double from = t;
+		double to = t0;
+
+		int indexFrom = Utils.index(from, times, times.length);
+		int index = Utils.index(to, times, times.length);
+
+		int steps = index - indexFrom;
+		if (Math.abs(from-times[indexFrom]) < globalPrecisionThreshold ) steps--;
+		if (index>0 && Math.abs(to-times[index-1]) < globalPrecisionThreshold ) {
+			steps--;
+			index--;
+		}
+		index--;
+
+		while (steps > 0) {
+
+			from = times[index];
+
+			if (Math.abs(from-to) >= globalPrecisionThreshold) integrator.integrate(logGe, to, y, from, y);
+
+			if (rhoChanges>0) {
+				for (int i=0; i<n; i++) {
+					double oneMinusRho = 1-rho[i*totalIntervals + index];
+					y[i] *= oneMinusRho;
+					y[n+i] += Math.log(oneMinusRho);
+				}
+			}
+
+			to = times[index];
+
+			steps--;
+			index--;
+		}
+
+		if (Math.abs(t-to) >= globalPrecisionThreshold) integrator.integrate(logGe, to, y, t, y);
+
+		return new GePropagatorCache.Propagator(pTo.clone(), Arrays.copyOfRange(y, 0, n), Arrays.copyOfRange(y, n, 2*n));
+	}
+
 	@Override
 	public double calculateTreeLogLikelihood(TreeInterface tree) {
 
@@ -117,12 +317,19 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 			return logP;
 		}
 
+		if (propagatorCache != null) propagatorCache.prepare(T, times, getIntervalParameters());
+
 		double[] noSampleExistsProp =  new double[n];
 
 		// update the threshold for parallelization
 		//TODO only do it if tree shape changed
 		updateParallelizationThreshold();
 
+		if (partials == null || partials.rows != tree.getNodeCount())
+			partials = new PartialsArena(tree.getNodeCount(), n, true);
+
+		flattenChanges(tree);
+
 		try{  // start calculation
 
 			pInitialConditions = getAllInitialConditionsForP(tree);
@@ -139,16 +346,16 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 				}
 			}
 
-			p0ge_InitialConditions pSN;
+			int rootRow;
 
 			//TODO remove these executorBootUp and shutdown if keeping the threadpool alive during the whole MCMC works
 			//if(isParallelizedCalculation) {executorBootUp();}
 
 			if (orig>0){
 				if (originBranch.getChangeCount()>0) {
-					pSN = calculateOriginLikelihood(originBranch.getChangeCount()-1, 0, T-originBranch.getChangeTime(originBranch.getChangeCount()-1) );
+					rootRow = calculateOriginLikelihood();
 				} else {
-					pSN = calculateSubtreeLikelihood(root, false, null, 0, orig , PG);
+					rootRow = calculateSubtreeLikelihood(root, 0, orig , PG);
 				}
 
 			} else {
@@ -156,33 +363,23 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 				if (root.getChild(1).getNr() > root.getChild(0).getNr())
 					childIndex = 1; // always start with the same child to avoid numerical differences
 
-				double t0 = T - root.getChild(childIndex).getHeight();
-				int childChangeCount = ((MultiTypeNode) root.getChild(childIndex)).getChangeCount();
-				if (childChangeCount > 0)
-					t0 = T - ((MultiTypeNode) root.getChild(childIndex)).getChangeTime(childChangeCount - 1);
-
-
-				pSN = calculateSubtreeLikelihood(root.getChild(childIndex), false, null, 0., t0, PG);
+				rootRow = calculateSubtreeLikelihood(root.getChild(childIndex), 0., branchTo(root.getChild(childIndex)), PG);
 
 				childIndex = Math.abs(childIndex - 1);
 
-				t0 = T - root.getChild(childIndex).getHeight();
-				childChangeCount = ((MultiTypeNode) root.getChild(childIndex)).getChangeCount(); // changeCounts[root.getChild(1).getNr()];
-				if (childChangeCount > 0)
-					t0 = T - ((MultiTypeNode) root.getChild(childIndex)).getChangeTime(childChangeCount - 1);
+				int row1 = calculateSubtreeLikelihood(root.getChild(childIndex), 0., branchTo(root.getChild(childIndex)), PG);
 
-				p0ge_InitialConditions p1SN;
-
-				p1SN = calculateSubtreeLikelihood(root.getChild(childIndex), false, null, 0., t0, PG);
-
-				for (int i=0; i<pSN.conditionsOnG.length; i++) pSN.conditionsOnG[i] = SmallNumber.multiply(pSN.conditionsOnG[i], p1SN.conditionsOnG[i]);
+				// the product is kept in the row of the first child, which was written in this evaluation
+				for (int i=0; i<n; i++)
+					partials.setGe(rootRow, i, partials.getGeMantissa(rootRow, i) * partials.getGeMantissa(row1, i),
+							partials.getGeExponent(rootRow, i) + partials.getGeExponent(row1, i));
 
 			}
 			if (conditionOnSurvival.get()) {
-				pSN.conditionsOnG[node_state] = pSN.conditionsOnG[node_state].scalarMultiply(1/(1-noSampleExistsProp[node_state]));    // condition on survival
+				partials.scaleGe(rootRow, node_state, 1/(1-noSampleExistsProp[node_state]));    // condition on survival
 			}
 
-			logP = Math.log(freq[node_state]) +  pSN.conditionsOnG[node_state].log();
+			logP = Math.log(freq[node_state]) +  partials.getGe(rootRow, node_state).log();
 
 		}catch(Exception e){
 			logP =  Double.NEGATIVE_INFINITY;
@@ -207,220 +404,308 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 	}
 
 	/**
-	 *
-	 * @param migIndex
-	 * @param from
-	 * @param to
-	 * @return
+	 * Copy the type changes of every branch, and of the origin branch, into changeTimes and changeTypes.
+	 * This is done at every evaluation, as the dirtiness of the tree only describes the current proposal, whereas
+	 * a likelihood that is not evaluated at every step (e.g. a copy) may have missed accepted changes.
+	 * The arrays only grow, so once they are large enough, nothing is allocated.
+	 * @param tree
 	 */
-	p0ge_InitialConditions calculateOriginLikelihood(Integer migIndex, double from, double to) {
+	void flattenChanges(TreeInterface tree) {
 
-		double[] pconditions = new double[n];
-		SmallNumber[] gconditions = new SmallNumber[n];
-		for (int i=0; i<n; i++) gconditions[i] = new SmallNumber();
+		int nodeCount = tree.getNodeCount();
 
-		p0ge_InitialConditions init = new p0ge_InitialConditions(pconditions, gconditions);
+		if (changeOffset == null || changeOffset.length != nodeCount + 2)
+			changeOffset = new int[nodeCount + 2];
 
-		int index = Utils.index(to, times, totalIntervals);
+		int total = 0;
+		for (int nr=0; nr<nodeCount; nr++) {
+			changeOffset[nr] = total;
+			total += ((MultiTypeNode) tree.getNode(nr)).getChangeCount();
+		}
 
-		int prevcol = originBranch.getChangeType(migIndex);
-		int col =  (migIndex > 0)?  originBranch.getChangeType(migIndex-1):  ((MultiTypeNode) tree.getRoot()).getNodeType();
+		// the origin branch comes after the branches of the nodes
+		changeOffset[nodeCount] = total;
+		if (originBranch != null) total += originBranch.getChangeCount();
+		changeOffset[nodeCount + 1] = total;
 
-		migIndex--;
+		if (changeTimes == null || changeTimes.length < total) {
+			changeTimes = new double[Math.max(total, 2*(changeTimes == null ? 0 : changeTimes.length))];
+			changeTypes = new int[changeTimes.length];
+		}
 
-		p0ge_InitialConditions g ;
+		for (int nr=0; nr<nodeCount; nr++) {
 
-		if (migIndex >= 0){
+			MultiTypeNode node = (MultiTypeNode) tree.getNode(nr);
+			int offset = changeOffset[nr];
 
-			g = calculateOriginLikelihood(migIndex, to, T - originBranch.getChangeTime(migIndex));
+			for (int k=0; k<changeOffset[nr+1]-offset; k++) {
+				changeTimes[offset + k] = node.getChangeTime(k);
+				changeTypes[offset + k] = node.getChangeType(k);
+			}
+		}
 
-			System.arraycopy(g.conditionsOnP, 0, pconditions, 0, n);
+		int offset = changeOffset[nodeCount];
+		for (int k=0; k<changeOffset[nodeCount+1]-offset; k++) {
+			changeTimes[offset + k] = originBranch.getChangeTime(k);
+			changeTypes[offset + k] = originBranch.getChangeType(k);
+		}
+	}
 
-			if (birthAmongDemes)
-				init.conditionsOnG[prevcol] = g.conditionsOnG[col].scalarMultiply(b_ij[totalIntervals * (prevcol * (n - 1) + (col < prevcol ? col : col - 1)) + index]);
-			else
-				init.conditionsOnG[prevcol] = g.conditionsOnG[col].scalarMultiply(M[totalIntervals * (prevcol * (n - 1) + (col < prevcol ? col : col - 1)) + index]);
+	/**
+	 * @param node
+	 * @return time of the oldest type change on the branch above node if there is one, else time of node
+	 */
+	double branchTo(Node node) {
 
+		int nr = node.getNr();
+		return (changeOffset[nr+1] > changeOffset[nr]) ? T - changeTimes[changeOffset[nr+1] - 1] : T - node.getHeight();
+	}
 
-			return getG(from,  init,  to, PG);
+	/**
+	 * Likelihood of the tree including the origin branch, whose type changes are processed
+	 * one segment after the other, from the root towards the origin, in the row of the root.
+	 * @return the row of partials holding the result
+	 */
+	int calculateOriginLikelihood() {
 
-		}
-		else {
-			g = calculateSubtreeLikelihood(tree.getRoot(), false, null, to, orig, PG);
+		MultiTypeNode root = (MultiTypeNode) tree.getRoot();
+
+		int first = changeOffset[tree.getNodeCount()];
+		int count = changeOffset[tree.getNodeCount() + 1] - first;
+
+		int row = calculateSubtreeLikelihood(root, T - changeTimes[first], orig, PG);
+
+		for (int k=0; k<count; k++) {
+
+			double to = T - changeTimes[first + k];
+			double from = (k+1 < count) ? T - changeTimes[first + k + 1] : 0;
+			int index = Utils.index(to, times, totalIntervals);
 
-			System.arraycopy(g.conditionsOnP, 0, pconditions, 0, n);
-			if (birthAmongDemes)
-				init.conditionsOnG[prevcol] = g.conditionsOnG[col].scalarMultiply(b_ij[totalIntervals * (prevcol * (n - 1) + (col < prevcol ? col : col - 1)) + index]);
-			else
-				init.conditionsOnG[prevcol] = g.conditionsOnG[col].scalarMultiply(M[totalIntervals * (prevcol * (n - 1) + (col < prevcol ? col : col - 1)) + index]);		// with ratechange in M
+			int prevcol = changeTypes[first + k];
+			int col = (k > 0) ? changeTypes[first + k - 1] : root.getNodeType();
+			int l = totalIntervals * (prevcol * (n - 1) + (col < prevcol ? col : col - 1)) + index;
 
-			return getG(from, init, to, PG, tree.getRoot(), false);
+			applyTypeChange(row, col, prevcol, birthAmongDemes ? b_ij[l] : M[l]);
+
+			getG(from, partials, row, to, PG);
 		}
+
+		return row;
 	}
 
-	p0ge_InitialConditions calculateSubtreeLikelihood(Node node, Boolean isMigrationEvent, Integer migrationIndex, double from, double to, p0ge_ODE PG) {
+	/**
+	 * Replace the ge values of a row by that of the type below a type change, multiplied by the rate of the change
+	 * and assigned to the type above it. The p values are kept.
+	 * @param row
+	 * @param typeBelow
+	 * @param typeAbove
+	 * @param rate rate of the change, null if there is none
+	 */
+	void applyTypeChange(int row, int typeBelow, int typeAbove, Double rate) {
 
-		double[] pconditions = new double[n];
-		SmallNumber[] gconditions = new SmallNumber[n];
-		for (int i=0; i<n; i++) gconditions[i] = new SmallNumber();
+		double mantissa = (rate == null) ? 0 : partials.getGeMantissa(row, typeBelow) * rate;
+		int exponent = partials.getGeExponent(row, typeBelow);
 
-		p0ge_InitialConditions init = new p0ge_InitialConditions(pconditions, gconditions);
+		for (int i=0; i<n; i++) partials.setGe(row, i, 0, 0);
+		partials.setGe(row, typeAbove, mantissa, exponent);
+	}
 
-		int nodestate = ((MultiTypeNode)node).getNodeType();
-		int index = Utils.index(to, times, totalIntervals);
+	/**
+	 * Compute the p0 and ge values at the top of the branch above node (at time from) into the row of node in partials
+	 * @param node
+	 * @param from
+	 * @param to time of the oldest type change on the branch above node if there is one, else time of node
+	 * @param PG
+	 * @return the row of partials holding the result, i.e. the number of node
+	 */
+	int calculateSubtreeLikelihood(Node node, double from, double to, p0ge_ODE PG) {
+
+		int nr = node.getNr();
+
+		if (changeOffset[nr+1] > changeOffset[nr])
+			return calculateBranchLikelihood((MultiTypeNode) node, from, PG);
+
+		return calculateNodeLikelihood(node, from, to, PG);
+	}
 
-		if (isMigrationEvent){ // migration event
+	/**
+	 * Likelihood of the subtree below node and of its branch, whose type changes are processed
+	 * one segment after the other, from node towards its parent, in the row of node.
+	 * @param node
+	 * @param from
+	 * @param PG
+	 * @return the row of partials holding the result
+	 */
+	int calculateBranchLikelihood(MultiTypeNode node, double from, p0ge_ODE PG) {
 
-			int prevcol = ((MultiTypeNode) node).getChangeType(migrationIndex);
-			int col =  (migrationIndex > 0)?  ((MultiTypeNode) node).getChangeType(migrationIndex-1):  ((MultiTypeNode) node).getNodeType();
-			double time ;
+		int first = changeOffset[node.getNr()];
+		int count = changeOffset[node.getNr() + 1] - first;
 
-			migrationIndex--;
+		int row = calculateNodeLikelihood(node, T - changeTimes[first], T - node.getHeight(), PG);
 
-			time = (migrationIndex >= 0)? ((MultiTypeNode) node).getChangeTime(migrationIndex) :node.getHeight();
-			p0ge_InitialConditions g = calculateSubtreeLikelihood(node, (migrationIndex >= 0), migrationIndex, to, T-time, PG);
+		for (int k=0; k<count; k++) {
 
-			System.arraycopy(g.conditionsOnP, 0, init.conditionsOnP, 0, n);
-			if (birthAmongDemes) // this might be a birth among demes where only the child with the different type got sampled
-				init.conditionsOnG[prevcol] = g.conditionsOnG[col].scalarMultiply(b_ij[totalIntervals * (prevcol * (n - 1) + (col < prevcol ? col : col - 1)) + index]);
-			if (M[0]!=null)     // or it really is a migration event
-				init.conditionsOnG[prevcol] = g.conditionsOnG[col].scalarMultiply(M[totalIntervals * (prevcol * (n - 1) + (col < prevcol ? col : col - 1)) + index]);
+			double segmentTo = T - changeTimes[first + k];
+			double segmentFrom = (k+1 < count) ? T - changeTimes[first + k + 1] : from;
+			int index = Utils.index(segmentTo, times, totalIntervals);
 
-			return getG(from, init, to, PG, node, true);
+			int prevcol = changeTypes[first + k];
+			int col = (k > 0) ? changeTypes[first + k - 1] : node.getNodeType();
+			int l = totalIntervals * (prevcol * (n - 1) + (col < prevcol ? col : col - 1)) + index;
+
+			// this might be a birth among demes where only the child with the different type got sampled, or it really is a migration event
+			Double rate = null;
+			if (birthAmongDemes) rate = b_ij[l];
+			if (M[0]!=null) rate = M[l];
+
+			applyTypeChange(row, col, prevcol, rate);
+
+			getG(segmentFrom, partials, row, segmentTo, PG);
 		}
 
-		else {
+		return row;
+	}
 
-			if (migrationIndex==null &&  ((MultiTypeNode)node).getChangeCount()>0){ // node has migration event(psi)
-				return calculateSubtreeLikelihood(node, true, ((MultiTypeNode)node).getChangeCount()-1, from, to, PG) ;
-			}
+	/**
+	 * Likelihood of the subtree below node and of the part of its branch below any type change
+	 * @param node
+	 * @param from
+	 * @param to time of node
+	 * @param PG
+	 * @return the row of partials holding the result, i.e. the number of node
+	 */
+	int calculateNodeLikelihood(Node node, double from, double to, p0ge_ODE PG) {
 
-			else{
+		int row = node.getNr();
 
-				if (node.isLeaf()){ // sampling event
+		// types that are not set below keep p0 = 0 and ge = 0
+		partials.clear(row);
 
-					if (!isRhoTip[node.getNr()]){
+		int nodestate = ((MultiTypeNode)node).getNodeType();
+		int index = Utils.index(to, times, totalIntervals);
 
-						init.conditionsOnG[nodestate] = SAModel
-								? new SmallNumber((r[nodestate * totalIntervals + index] + pInitialConditions[node.getNr()][nodestate]*(1-r[nodestate * totalIntervals + index]))
-								*psi[nodestate * totalIntervals + index])
+		if (node.isLeaf()){ // sampling event
 
-								: new SmallNumber(psi[nodestate * totalIntervals + index]);
+			if (!isRhoTip[node.getNr()]){
 
-					} else {
-						init.conditionsOnG[nodestate] = SAModel?
-								new SmallNumber((r[nodestate * totalIntervals + index] + pInitialConditions[node.getNr()][nodestate]/(1-rho[nodestate*totalIntervals+index])*(1-r[nodestate * totalIntervals + index]))
-										*rho[nodestate*totalIntervals+index])  :
-								new SmallNumber(rho[nodestate*totalIntervals+index]); // rho-sampled leaf in the past: ρ_i(τ)(r + (1 − r)p_i(τ+δ)) //the +δ is translated by dividing p_i with 1-ρ_i (otherwise there's one too many "*ρ_i" )
-					}
+				partials.setGe(row, nodestate, SAModel
+						? (r[nodestate * totalIntervals + index] + pInitialConditions[node.getNr()][nodestate]*(1-r[nodestate * totalIntervals + index]))
+						*getSamplingRate(nodestate, index, to)
 
-					if (print) System.out.println("Sampling at time " + to);
+						: getSamplingRate(nodestate, index, to));
 
-					return getG(from, init, to, PG, node, false);
-				}
+			} else {
+				partials.setGe(row, nodestate, SAModel?
+						(r[nodestate * totalIntervals + index] + pInitialConditions[node.getNr()][nodestate]/(1-rho[nodestate*totalIntervals+index])*(1-r[nodestate * totalIntervals + index]))
+								*rho[nodestate*totalIntervals+index]  :
+						rho[nodestate*totalIntervals+index]); // rho-sampled leaf in the past: ρ_i(τ)(r + (1 − r)p_i(τ+δ)) //the +δ is translated by dividing p_i with 1-ρ_i (otherwise there's one too many "*ρ_i" )
+			}
 
-				else if (node.getChildCount()==2){  // birth / infection event or sampled ancestor
+			if (print) System.out.println("Sampling at time " + to);
 
-					if (node.getChild(0).isDirectAncestor() || node.getChild(1).isDirectAncestor()) {   // found a sampled ancestor
+			for (int i=0; i<n; i++) partials.setP(row, i, pInitialConditions[node.getNr()][i]);
 
-						if (r==null)
-							throw new RuntimeException("Error: Sampled ancestor found, but removalprobability not specified!");
+			getG(from, partials, row, to, PG);
+			return row;
+		}
 
-						int childIndex = 0;
+		else if (node.getChildCount()==2){  // birth / infection event or sampled ancestor
 
-						if (node.getChild(childIndex).isDirectAncestor()) childIndex = 1;
+			if (node.getChild(0).isDirectAncestor() || node.getChild(1).isDirectAncestor()) {   // found a sampled ancestor
 
-						p0ge_InitialConditions g = calculateSubtreeLikelihood(node.getChild(childIndex), false, null, to, T - node.getChild(childIndex).getHeight(), PG);
+				if (r==null)
+					throw new RuntimeException("Error: Sampled ancestor found, but removalprobability not specified!");
 
-						int saNodeState = ((MultiTypeNode) node.getChild(childIndex ^ 1)).getNodeType(); // get state of direct ancestor, XOR operation gives 1 if childIndex is 0 and vice versa
+				int childIndex = 0;
 
-						if (!isRhoTip[node.getChild(childIndex ^ 1).getNr()]) {
+				if (node.getChild(childIndex).isDirectAncestor()) childIndex = 1;
 
-							init.conditionsOnP[saNodeState] = g.conditionsOnP[saNodeState];
-							init.conditionsOnG[saNodeState] = g.conditionsOnG[saNodeState].scalarMultiply(psi[saNodeState * totalIntervals + index]
-									* (1-r[saNodeState * totalIntervals + index]));
+				int g = calculateSubtreeLikelihood(node.getChild(childIndex), to, T - node.getChild(childIndex).getHeight(), PG);
 
-							//							System.out.println("SA but not rho sampled");
+				int saNodeState = ((MultiTypeNode) node.getChild(childIndex ^ 1)).getNodeType(); // get state of direct ancestor, XOR operation gives 1 if childIndex is 0 and vice versa
 
-						} else {
-							// TODO Change: can be dealt with with getAllPInitialConds
-							init.conditionsOnP[saNodeState] = g.conditionsOnP[saNodeState]*(1-rho[saNodeState*totalIntervals+index]) ;
-							init.conditionsOnG[saNodeState] = g.conditionsOnG[saNodeState].scalarMultiply(rho[saNodeState*totalIntervals+index]
-									* (1-r[saNodeState * totalIntervals + index]));
+				if (!isRhoTip[node.getChild(childIndex ^ 1).getNr()]) {
 
-						}
+					partials.setP(row, saNodeState, partials.getP(g, saNodeState));
+					partials.setGe(row, saNodeState, partials.getGeMantissa(g, saNodeState) * getSamplingRate(saNodeState, index, to)
+							* (1-r[saNodeState * totalIntervals + index]), partials.getGeExponent(g, saNodeState));
 
-					}
+					//							System.out.println("SA but not rho sampled");
 
-					else {   // birth / infection event
+				} else {
+					// TODO Change: can be dealt with with getAllPInitialConds
+					partials.setP(row, saNodeState, partials.getP(g, saNodeState)*(1-rho[saNodeState*totalIntervals+index]));
+					partials.setGe(row, saNodeState, partials.getGeMantissa(g, saNodeState) * rho[saNodeState*totalIntervals+index]
+							* (1-r[saNodeState * totalIntervals + index]), partials.getGeExponent(g, saNodeState));
+
+				}
+
+			}
 
-						int indexFirstChild = 0;
-						if (node.getChild(1).getNr() > node.getChild(0).getNr()) indexFirstChild = 1; // always start with the same child to avoid numerical differences
+			else {   // birth / infection event
 
-						int indexSecondChild = Math.abs(indexFirstChild-1);
+				int indexFirstChild = 0;
+				if (node.getChild(1).getNr() > node.getChild(0).getNr()) indexFirstChild = 1; // always start with the same child to avoid numerical differences
 
-						double t0 = T - node.getChild(indexFirstChild).getHeight();
-						int childChangeCount = ((MultiTypeNode)node.getChild(indexFirstChild)).getChangeCount();
-						if (childChangeCount > 0)
-							t0 = T - ((MultiTypeNode)node.getChild(indexFirstChild)).getChangeTime(childChangeCount-1);
+				int indexSecondChild = Math.abs(indexFirstChild-1);
 
+				double t0 = branchTo(node.getChild(indexFirstChild));
+				double t1 = branchTo(node.getChild(indexSecondChild));
 
-						double t1 = T - node.getChild(indexSecondChild).getHeight();
-						childChangeCount = ((MultiTypeNode)node.getChild(indexSecondChild)).getChangeCount();
-						if (childChangeCount > 0)
-							t1 = T - ((MultiTypeNode)node.getChild(indexSecondChild)).getChangeTime(childChangeCount-1);
+				int g0;
+				int g1;
 
-						p0ge_InitialConditions g0 = new p0ge_InitialConditions();
-						p0ge_InitialConditions g1 = new p0ge_InitialConditions();
+				// if the calculations are parallelized,
+				// evaluate if the next step in the traversal should be split between one new thread and the currrent thread and run in parallel,
+				// the split is made if the two subtrees of the current node are bigger than a set threshold.
+				if(isParallelizedCalculation
+						&& weightOfNodeSubTree[node.getChild(indexFirstChild).getNr()] >  parallelizationThreshold
+						&& weightOfNodeSubTree[node.getChild(indexSecondChild).getNr()] > parallelizationThreshold){
 
-						// if the calculations are parallelized,
-						// evaluate if the next step in the traversal should be split between one new thread and the currrent thread and run in parallel,
-						// the split is made if the two subtrees of the current node are bigger than a set threshold.
-						if(isParallelizedCalculation
-								&& weightOfNodeSubTree[node.getChild(indexFirstChild).getNr()] >  parallelizationThreshold
-								&& weightOfNodeSubTree[node.getChild(indexSecondChild).getNr()] > parallelizationThreshold){
+					try {
+						// start a new thread to take care of the second subtree
+						Future<Integer> secondChildTraversal = pool.submit(
+								new TraversalServiceColoured(node.getChild(indexSecondChild), to, t1));
 
-							try {
-								// start a new thread to take care of the second subtree
-								Future<p0ge_InitialConditions> secondChildTraversal = pool.submit(
-										new TraversalServiceColoured(node.getChild(indexSecondChild), false, null, to, t1));
+						g0 = calculateSubtreeLikelihood(node.getChild(indexFirstChild), to, t0, PG);
+						g1 = secondChildTraversal.get();
 
-								g0 = calculateSubtreeLikelihood(node.getChild(indexFirstChild), false, null, to, t0, PG);
-								g1 = secondChildTraversal.get();
+					} catch (Exception e) {
+						throw new RuntimeException("couldn't calculate the subtree likelihoods", e);
+					}
+				} else {
+					g0 = calculateSubtreeLikelihood(node.getChild(indexFirstChild), to, t0, PG);
+					g1 = calculateSubtreeLikelihood(node.getChild(indexSecondChild), to, t1, PG);
+				}
 
-							} catch (Exception e) {
-								e.printStackTrace();
-								//TODO deal with exceptions properly, maybe do the traversal serially if something failed.
-							}
-						} else {
-							g0 = calculateSubtreeLikelihood(node.getChild(indexFirstChild), false, null, to, t0, PG);
-							g1 = calculateSubtreeLikelihood(node.getChild(indexSecondChild), false, null, to, t1, PG);
-						}
+				for (int i=0; i<n; i++) partials.setP(row, i, partials.getP(g0, i));
 
-						System.arraycopy(g0.conditionsOnP, 0, init.conditionsOnP, 0, n);
+				if (((MultiTypeNode) node.getChild(0)).getFinalType() == nodestate && nodestate == ((MultiTypeNode) node.getChild(1)).getFinalType()) { // within type transmission event
 
-						if (((MultiTypeNode) node.getChild(0)).getFinalType() == nodestate && nodestate == ((MultiTypeNode) node.getChild(1)).getFinalType()) { // within type transmission event
+					partials.setGe(row, nodestate, partials.getGeMantissa(g0, nodestate) * partials.getGeMantissa(g1, nodestate) * getBirthRate(nodestate, index, to),
+							partials.getGeExponent(g0, nodestate) + partials.getGeExponent(g1, nodestate));
 
-							init.conditionsOnG[nodestate] = SmallNumber.multiply(g0.conditionsOnG[nodestate], g1.conditionsOnG[nodestate]).scalarMultiply(birth[nodestate * totalIntervals + index]);
+				} else { // among type transmission event
 
-						} else { // among type transmission event
+					if 	(((MultiTypeNode) node.getChild(0)).getFinalType() != nodestate && nodestate != ((MultiTypeNode) node.getChild(1)).getFinalType())
+						throw new RuntimeException("Error: Invalid tree (both children have typeChange event at parent node!");
 
-							if 	(((MultiTypeNode) node.getChild(0)).getFinalType() != nodestate && nodestate != ((MultiTypeNode) node.getChild(1)).getFinalType())
-								throw new RuntimeException("Error: Invalid tree (both children have typeChange event at parent node!");
+					int child = (((MultiTypeNode) node.getChild(0)).getFinalType() != nodestate) ? 0 : 1;
+					int childstate = ((MultiTypeNode)node.getChild(child)).getFinalType();
 
-							int child = (((MultiTypeNode) node.getChild(0)).getFinalType() != nodestate) ? 0 : 1;
-							int childstate = ((MultiTypeNode)node.getChild(child)).getFinalType();
+					int state0 = child==0? childstate : nodestate;
+					int state1 = child==1? childstate : nodestate;
 
-							init.conditionsOnG[nodestate] =
-									SmallNumber.multiply(g0.conditionsOnG[child==0? childstate : nodestate], g1.conditionsOnG[child==1? childstate : nodestate]).scalarMultiply(b_ij[totalIntervals * (childstate * (n - 1) + (nodestate < childstate ? nodestate : nodestate - 1)) + index]);
+					partials.setGe(row, nodestate, partials.getGeMantissa(g0, state0) * partials.getGeMantissa(g1, state1)
+									* b_ij[totalIntervals * (childstate * (n - 1) + (nodestate < childstate ? nodestate : nodestate - 1)) + index],
+							partials.getGeExponent(g0, state0) + partials.getGeExponent(g1, state1));
 
-						}
-					}
 				}
 			}
 		}
 
-		return getG(from, init, to, PG, node, false);
+		getG(from, partials, row, to, PG);
+		return row;
 	}
 
 
@@ -462,22 +747,17 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 		return true;
 	}
 
-	class TraversalServiceColoured extends TraversalService{
-
-		private Boolean isMigrationEvent;
-		private Integer migrationIndex;
+	class TraversalServiceColoured extends TraversalService<Integer> {
 
-		public TraversalServiceColoured(Node root, Boolean isMigrationEvent, Integer migrationIndex, double from, double to) {
+		public TraversalServiceColoured(Node root, double from, double to) {
 
 			super(root, from, to, true);
-			this.isMigrationEvent = isMigrationEvent;
-			this.migrationIndex = migrationIndex;
 		}
 
 		@Override
-		protected p0ge_InitialConditions calculateSubtreeLikelihoodInThread() {
+		protected Integer calculateSubtreeLikelihoodInThread() {
 
-			return calculateSubtreeLikelihood(rootSubtree, isMigrationEvent, migrationIndex, from, to, PG);
+			return calculateSubtreeLikelihood(rootSubtree, from, to, PG);
 		}
 
 	}
@@ -11,6 +11,7 @@ import beast.base.core.Description;
 import multitypetree.evolution.tree.MultiTypeNode;
 
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.concurrent.*;
 
 import bdmm.core.util.Utils;
@@ -37,12 +38,26 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 	public Input<Boolean> storeNodeTypes = new Input<>("storeNodeTypes", "store tip node types? this assumes that tip types cannot change (default false)", false);
 
-	private int[] nodeStates;
+	public Input<Boolean> intervalCheckpointsInput = new Input<>("intervalCheckpoints", "keep the integration state of every branch at each interval boundary, so that a parameter change " +
+			"confined to older intervals only re-integrates from the first affected boundary. Memory grows with nodes times intervals. Not used with smoothRates (default false)", false);
+
+	public Input<Boolean> compactCheckpointsInput = new Input<>("compactCheckpoints", "keep a single copy of the interval checkpoints instead of two, halving their memory for very large trees. " +
+			"The checkpoints are then discarded instead of restored when a proposal is rejected (default false)", false);
+
+	public Input<Boolean> compactPartialsInput = new Input<>("compactPartials", "keep a single copy of the p0 and ge values of every node instead of two, halving their memory for very large trees. " +
+			"They are only read within an evaluation, so the likelihood is the same, but the values of the last accepted state are not kept (default false)", false);
+
+	TipIndex tipIndex;
 
 	Boolean print = false;
 
 	double[] rootTypeProbs, storedRootTypeProbs;
 
+	IntervalCheckpoints intervalCheckpoints;
+
+	// p0 and ge at the top of the branch above each node, one row per node number
+	PartialsArena partials;
+
 	@Override
 	public void initAndValidate() {
 
@@ -50,37 +65,89 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 			throw new RuntimeException("Tip types need to be specified exactly once using either tiptypes OR typeLabel OR tipTypeArray.");
 
 
-		super.initAndValidate();
-
-		if (storeNodeTypes.get()) {
+		tipIndex = new TipIndex(treeInput.get().getLeafNodeCount());
 
-			nodeStates = new int[ntaxa];
+		super.initAndValidate();
 
-			for (Node node : tree.getExternalNodes()){
-				nodeStates[node.getNr()] = getNodeState(node, true);
-			}
-		}
+		updateTipTypes(tree);
 
 		rootTypeProbs = new double[n];
         storedRootTypeProbs = new double[n];
+
+		intervalCheckpoints = intervalCheckpointsInput.get() ? new IntervalCheckpoints(n, compactCheckpointsInput.get()) : null;
+
+		partials = new PartialsArena(treeInput.get().getNodeCount(), n, compactPartialsInput.get());
 	}
 
 	void computeRhoTips(){
 
-		double tipTime;
+		TreeInterface tree = treeInput.get();
+
+		updateTipTypes(tree);
+
+		if (tipIndex.rhoTipsChanged(tree, T, times, rho)) {
 
-		for (Node tip : treeInput.get().getExternalNodes()) {
+			double[] rhoTimes = TipIndex.sortedTimes(rhoSamplingChangeTimes);
 
-			tipTime = T-tip.getHeight();
-			isRhoTip[tip.getNr()] = false;
+			for (int nr=0; nr<tipIndex.rhoTip.length; nr++) {
 
-			for (Double time:rhoSamplingChangeTimes){
+				double tipTime = T-tree.getNode(nr).getHeight();
+				tipIndex.rhoTip[nr] = false;
 
-				// TODO: make a warning that rho sampling precision is with 1e-10. Maybe do a threshold to the type of dating associated with the data?
-				if (Math.abs(time-tipTime) <  globalPrecisionThreshold && rho[getNodeState(tip,false)*totalIntervals + Utils.index(time, times, totalIntervals)]>0) isRhoTip[tip.getNr()] = true;
+				// rho-sampling times within the precision threshold of the tip time lie around its insertion point
+				int i = Arrays.binarySearch(rhoTimes, tipTime);
+				if (i < 0) i = -i - 1;
+				while (i > 0 && rhoTimes[i-1] > tipTime - globalPrecisionThreshold) i--;
 
+				for (int j = i; j < rhoTimes.length && rhoTimes[j] < tipTime + globalPrecisionThreshold; j++) {
+
+					// TODO: make a warning that rho sampling precision is with 1e-10. Maybe do a threshold to the type of dating associated with the data?
+					if (Math.abs(rhoTimes[j]-tipTime) <  globalPrecisionThreshold && rho[tipIndex.types[nr]*totalIntervals + Utils.index(rhoTimes[j], times, totalIntervals)]>0) tipIndex.rhoTip[nr] = true;
+				}
 			}
 		}
+
+		System.arraycopy(tipIndex.rhoTip, 0, isRhoTip, 0, isRhoTip.length);
+	}
+
+	/**
+	 * A copy (see copyReplacing) is evaluated outside of the store/restore cycle of the MCMC, so the tree not being
+	 * dirty does not mean it is unchanged since the copy's last evaluation
+	 */
+	void forgetTipsOfCopy() {
+		if (toleranceSource != null) tipIndex.forget();
+	}
+
+	/**
+	 * Read the tip types again if they may have changed since they were last read
+	 * @param tree
+	 */
+	void updateTipTypes(TreeInterface tree) {
+
+		if (tipIndex.typesValid && storeNodeTypes.get()) return;
+
+		Object typesSource = tiptypes.get() != null ? tiptypes.get() : typeLabel.get() != null ? typeLabel.get() : tipTypeArray.get();
+
+		if (tipIndex.typesChanged(typesSource, tipTypeArray.get(), tree)) {
+
+			tipIndex.typesValid = false;
+			for (int nr=0; nr<tipIndex.types.length; nr++)
+				tipIndex.types[nr] = getNodeState(tree.getNode(nr), true);
+			tipIndex.typesValid = true;
+		}
+	}
+
+	/**
+	 * Find the interval each tip is sampled in, if the tip dates or the interval grid changed
+	 * @param tree
+	 */
+	void updateTipIntervals(TreeInterface tree) {
+
+		if (tipIndex.intervalIndicesChanged(tree, T, times)) {
+
+			for (int nr=0; nr<tipIndex.intervalIndex.length; nr++)
+				tipIndex.intervalIndex[nr] = Utils.index(T - tree.getNode(nr).getHeight(), times, totalIntervals);
+		}
 	}
 
 	/**
@@ -104,6 +171,8 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 	@Override
 	public double calculateTreeLogLikelihood(TreeInterface tree) {
 
+		forgetTipsOfCopy();
+
 		Node root = tree.getRoot();
 
 		if (origin.get()==null)
@@ -120,6 +189,30 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 			return logP;
 		}
 
+		try {
+			pInitialConditions = getAllInitialConditionsForP(tree);
+		} catch (Exception e) {
+			if (e instanceof ConstraintViolatedException){throw e;}
+			logP =  Double.NEGATIVE_INFINITY;
+			return logP;
+		}
+
+		return calculateTreeLogLikelihoodGivenP(tree);
+	}
+
+	/**
+	 * Likelihood of the tree once T, the interval times, the rates, the integrators and the initial conditions for p
+	 * at the leaves (pInitialConditions) are up to date.
+	 * @param tree
+	 * @return log-likelihood of the tree
+	 */
+	double calculateTreeLogLikelihoodGivenP(TreeInterface tree) {
+
+		Node root = tree.getRoot();
+
+		updateTipTypes(tree);
+		updateTipIntervals(tree);
+
 		// update the threshold for parallelization
 		//TODO only do it if tree shape changed
 		updateParallelizationThreshold();
@@ -131,8 +224,6 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 		try{  // start calculation
 
-			pInitialConditions = getAllInitialConditionsForP(tree);
-
 			if (conditionOnSurvival.get()) {
 
 				noSampleExistsProp = pInitialConditions[pInitialConditions.length-1];
@@ -148,24 +239,34 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 			}
 
-			p0ge_InitialConditions pSN;
+			int rootRow;
+
+			if (partials.rows != tree.getNodeCount())
+				partials = new PartialsArena(tree.getNodeCount(), n, compactPartialsInput.get());
+
+			if (intervalCheckpoints != null) {
+				boolean tipTypesChanged = tipTypeArray.get() != null && tipTypeArray.get().somethingIsDirty();
+				intervalCheckpoints.prepare(tree, T, times, getIntervalParameters(), !tipTypesChanged && smoothRates == null);
+			}
 
 			//if(isParallelizedCalculation) {executorBootUp();}
 
 			if ( orig > 0 ) {
-				pSN = calculateSubtreeLikelihood(root,0,orig, PG);}
+				rootRow = calculateSubtreeLikelihood(root,0,orig, PG);}
 			else {
 
 				int childIndex = 0;
 				if (root.getChild(1).getNr() > root.getChild(0).getNr()) childIndex = 1; // always start with the same child to avoid numerical differences
 
-				pSN = calculateSubtreeLikelihood(root.getChild(childIndex),0., T - root.getChild(childIndex).getHeight(), PG);
+				rootRow = calculateSubtreeLikelihood(root.getChild(childIndex),0., T - root.getChild(childIndex).getHeight(), PG);
 				childIndex = Math.abs(childIndex-1);
 
-				p0ge_InitialConditions p1SN;
-				p1SN = calculateSubtreeLikelihood(root.getChild(childIndex),0., T - root.getChild(childIndex).getHeight(), PG);
+				int row1 = calculateSubtreeLikelihood(root.getChild(childIndex),0., T - root.getChild(childIndex).getHeight(), PG);
 
-				for (int i =0; i<pSN.conditionsOnG.length; i++) pSN.conditionsOnG[i] = SmallNumber.multiply(pSN.conditionsOnG[i], p1SN.conditionsOnG[i]);
+				// the product is kept in the row of the first child, which was written in this evaluation
+				for (int i =0; i<n; i++)
+					partials.setGe(rootRow, i, partials.getGeMantissa(rootRow, i) * partials.getGeMantissa(row1, i),
+							partials.getGeExponent(rootRow, i) + partials.getGeExponent(row1, i));
 
 			}
 
@@ -173,7 +274,7 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 			for (int root_state=0; root_state<n; root_state++){
 
-                SmallNumber jointProb = pSN.conditionsOnG[root_state].scalarMultiply(freq[root_state]);
+                SmallNumber jointProb = partials.getGe(rootRow, root_state).scalarMultiply(freq[root_state]);
 				if (jointProb.getMantissa()>0 ) {
 				    rootTypeProbs[root_state] = jointProb.log();
                     PrSN = SmallNumber.add(PrSN, jointProb);
@@ -181,7 +282,7 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
                     rootTypeProbs[root_state] = Double.NEGATIVE_INFINITY;
                 }
 
-				if (print) System.out.print(pSN.conditionsOnP[root_state] + "\t" + pSN.conditionsOnG[root_state] + "\t");
+				if (print) System.out.print(partials.getP(rootRow, root_state) + "\t" + partials.getGe(rootRow, root_state) + "\t");
 			}
 
 			// Normalize root type probs:
@@ -196,6 +297,8 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 		}catch(Exception e){
 
+			if (intervalCheckpoints != null) intervalCheckpoints.invalidate();
+
 			if (e instanceof ConstraintViolatedException){throw e;}
 
 			logP =  Double.NEGATIVE_INFINITY;
@@ -218,45 +321,47 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 		return logP;
 	}
 
+	/**
+	 * @param node
+	 * @param init if true, the type is looked up again instead of being taken from the tip index
+	 * @return type of the node, -1 if unknown
+	 */
 	private int getNodeState(Node node, Boolean init){
 
-		try {
-
-			if (!storeNodeTypes.get() || init){
+		if (!init && tipIndex.typesValid) return tipIndex.types[node.getNr()];
 
-				int nodestate = -1;
+		try {
 
-				if (tiptypes.get() != null) {
+			int nodestate = -1;
 
-                    nodestate = (int) tiptypes.get().getValue((node.getID()));
+			if (tiptypes.get() != null) {
 
-                } else if (node instanceof MultiTypeNode) {
+				nodestate = (int) tiptypes.get().getValue((node.getID()));
 
-                       nodestate = ((MultiTypeNode) node).getNodeType();
+			} else if (node instanceof MultiTypeNode) {
 
-                } else if (typeLabel.get()!=null) {
+				nodestate = ((MultiTypeNode) node).getNodeType();
 
-                       Object d = node.getMetaData(typeLabel.get());
+			} else if (typeLabel.get()!=null) {
 
-                       if (d instanceof Integer) nodestate = (Integer) d;
-                       else if (d instanceof Double) nodestate = ((Double) d).intValue();
-                       else if (d instanceof int[]) nodestate = ((int[]) d)[0];
-                       else if (d instanceof String) nodestate = Integer.valueOf((String)d);
-                       else
-                           throw new RuntimeException("Error interpreting as type index: " + d);
+				Object d = node.getMetaData(typeLabel.get());
 
-                } else {
+				if (d instanceof Integer) nodestate = (Integer) d;
+				else if (d instanceof Double) nodestate = ((Double) d).intValue();
+				else if (d instanceof int[]) nodestate = ((int[]) d)[0];
+				else if (d instanceof String) nodestate = Integer.valueOf((String)d);
+				else
+					throw new RuntimeException("Error interpreting as type index: " + d);
 
-                    nodestate = (int) tipTypeArray.get().getArrayValue((node.getNr()));
-                }
+			} else {
 
-                if (nodestate < -1)
-                    throw new ConstraintViolatedException("State assignment failed.");
+				nodestate = (int) tipTypeArray.get().getArrayValue((node.getNr()));
+			}
 
-				return nodestate;
+			if (nodestate < -1)
+				throw new ConstraintViolatedException("State assignment failed.");
 
-			}
-			else return nodeStates[node.getNr()];
+			return nodestate;
 
 		}catch(Exception e){
 			throw new ConstraintViolatedException("Something went wrong with the assignment of types to the nodes (node ID="+node.getID()+"). Please check your XML file!");
@@ -272,22 +377,24 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 
 	/**
-	 *
+	 * Compute the p0 and ge values at the top of the branch above node (at time from) into the row of node in partials
 	 * @param node
 	 * @param from
 	 * @param to
 	 * @param PG
-	 * @return
+	 * @return the row of partials holding the result, i.e. the number of node
 	 */
-	p0ge_InitialConditions calculateSubtreeLikelihood(Node node, double from, double to, p0ge_ODE PG) {
+	int calculateSubtreeLikelihood(Node node, double from, double to, p0ge_ODE PG) {
+
+		int row = node.getNr();
 
-		double[] pconditions = new double[n];
-		SmallNumber[] gconditions = new SmallNumber[n];
-		for (int i=0; i<n; i++) gconditions[i] = new SmallNumber();
+		if (intervalCheckpoints != null && reuseSubtreeLikelihood(node, from, to, PG))
+			return row;
 
-		p0ge_InitialConditions init = new p0ge_InitialConditions(pconditions, gconditions);
+		// types that are not set below keep p0 = 0 and ge = 0
+		partials.clear(row);
 
-		int index = Utils.index(to,times, totalIntervals);
+		int index = node.isLeaf() ? tipIndex.intervalIndex[node.getNr()] : Utils.index(to,times, totalIntervals);
 
 		if (node.isLeaf()){ // sampling event
 
@@ -304,16 +411,16 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 				for (int i=0; i<n; i++) {
 
 					if (!isRhoTip[node.getNr()]) {
-						init.conditionsOnG[i] = SAModel?
-								new SmallNumber((r[i * totalIntervals + index] + pInitialConditions[node.getNr()][i]*(1-r[i * totalIntervals + index]))
-										*psi[i * totalIntervals + index]) // with SA: ψ_i(r + (1 − r)p_i(τ))
-								: new SmallNumber(psi[i * totalIntervals + index]);
+						partials.setGe(row, i, SAModel?
+								(r[i * totalIntervals + index] + pInitialConditions[node.getNr()][i]*(1-r[i * totalIntervals + index]))
+										*getSamplingRate(i, index, to) // with SA: ψ_i(r + (1 − r)p_i(τ))
+								: getSamplingRate(i, index, to));
 					}
 					else {
-						init.conditionsOnG[i] = SAModel ?
-								new SmallNumber((r[i * totalIntervals + index] + pInitialConditions[node.getNr()][i] / (1 - rho[i * totalIntervals + index]) * (1 - r[i * totalIntervals + index]))
-										* rho[i * totalIntervals + index]) :
-								new SmallNumber(rho[i * totalIntervals + index]); // rho-sampled leaf in the past: ρ_i(τ)(r + (1 − r)p_i(τ+δ)) //the +δ is translated by dividing p_i with 1-ρ_i (otherwise there's one too many "*ρ_i" )
+						partials.setGe(row, i, SAModel ?
+								(r[i * totalIntervals + index] + pInitialConditions[node.getNr()][i] / (1 - rho[i * totalIntervals + index]) * (1 - r[i * totalIntervals + index]))
+										* rho[i * totalIntervals + index] :
+								rho[i * totalIntervals + index]); // rho-sampled leaf in the past: ρ_i(τ)(r + (1 − r)p_i(τ+δ)) //the +δ is translated by dividing p_i with 1-ρ_i (otherwise there's one too many "*ρ_i" )
 					}
 				}
 			}
@@ -321,22 +428,23 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 				if (!isRhoTip[node.getNr()]) {
 
-					init.conditionsOnG[nodestate] = SAModel?
-							new SmallNumber((r[nodestate * totalIntervals + index] + pInitialConditions[node.getNr()][nodestate]*(1-r[nodestate * totalIntervals + index]))
-									*psi[nodestate * totalIntervals + index]) // with SA: ψ_i(r + (1 − r)p_i(τ))
-							: new SmallNumber(psi[nodestate * totalIntervals + index]);
+					partials.setGe(row, nodestate, SAModel?
+							(r[nodestate * totalIntervals + index] + pInitialConditions[node.getNr()][nodestate]*(1-r[nodestate * totalIntervals + index]))
+									*getSamplingRate(nodestate, index, to) // with SA: ψ_i(r + (1 − r)p_i(τ))
+							: getSamplingRate(nodestate, index, to));
 
 				}	else {
-					init.conditionsOnG[nodestate] = SAModel?
-							new SmallNumber((r[nodestate * totalIntervals + index] + pInitialConditions[node.getNr()][nodestate]/(1-rho[nodestate*totalIntervals+index])*(1-r[nodestate * totalIntervals + index]))
-									*rho[nodestate*totalIntervals+index])  :
-							new SmallNumber(rho[nodestate*totalIntervals+index]); // rho-sampled leaf in the past: ρ_i(τ)(r + (1 − r)p_i(τ+δ)) //the +δ is translated by dividing p_i with 1-ρ_i (otherwise there's one too many "*ρ_i" )
+					partials.setGe(row, nodestate, SAModel?
+							(r[nodestate * totalIntervals + index] + pInitialConditions[node.getNr()][nodestate]/(1-rho[nodestate*totalIntervals+index])*(1-r[nodestate * totalIntervals + index]))
+									*rho[nodestate*totalIntervals+index]  :
+							rho[nodestate*totalIntervals+index]); // rho-sampled leaf in the past: ρ_i(τ)(r + (1 − r)p_i(τ+δ)) //the +δ is translated by dividing p_i with 1-ρ_i (otherwise there's one too many "*ρ_i" )
 				}
 
 			}
 			if (print) System.out.println("Sampling at time " + (T-to));
 
-			return getG(from, init, to, PG, node);
+			integrateBranch(from, row, to, PG, node);
+			return row;
 		}
 
 
@@ -351,7 +459,7 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 				if (node.getChild(childIndex).isDirectAncestor()) childIndex = 1;
 
-				p0ge_InitialConditions g = calculateSubtreeLikelihood(node.getChild(childIndex), to, T - node.getChild(childIndex).getHeight(), PG);
+				int g = calculateSubtreeLikelihood(node.getChild(childIndex), to, T - node.getChild(childIndex).getHeight(), PG);
 
 				int saNodeState = getNodeState(node.getChild(childIndex ^ 1), false); // get state of direct ancestor, XOR operation gives 1 if childIndex is 0 and vice versa
 
@@ -360,15 +468,15 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 					for (int i = 0; i < n; i++) {
 						if (!isRhoTip[node.getChild(childIndex ^ 1).getNr()]) {
 
-							init.conditionsOnP[i] = g.conditionsOnP[i];
-							init.conditionsOnG[i] = g.conditionsOnG[i].scalarMultiply(psi[i * totalIntervals + index]
-									* (1 - r[i * totalIntervals + index]));
+							partials.setP(row, i, partials.getP(g, i));
+							partials.setGe(row, i, partials.getGeMantissa(g, i) * getSamplingRate(i, index, to)
+									* (1 - r[i * totalIntervals + index]), partials.getGeExponent(g, i));
 
 						} else {
 							// TODO COME BACK AND CHANGE (can be dealt with with getAllPInitialConds)
-							init.conditionsOnP[i] = g.conditionsOnP[i] * (1 - rho[i * totalIntervals + index]);
-							init.conditionsOnG[i] = g.conditionsOnG[i].scalarMultiply(rho[i * totalIntervals + index]
-									* (1 - r[i * totalIntervals + index]));
+							partials.setP(row, i, partials.getP(g, i) * (1 - rho[i * totalIntervals + index]));
+							partials.setGe(row, i, partials.getGeMantissa(g, i) * rho[i * totalIntervals + index]
+									* (1 - r[i * totalIntervals + index]), partials.getGeExponent(g, i));
 
 						}
 					}
@@ -376,17 +484,17 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 				else {
 					if (!isRhoTip[node.getChild(childIndex ^ 1).getNr()]) {
 
-						init.conditionsOnP[saNodeState] = g.conditionsOnP[saNodeState];
-						init.conditionsOnG[saNodeState] = g.conditionsOnG[saNodeState].scalarMultiply(psi[saNodeState * totalIntervals + index]
-								* (1 - r[saNodeState * totalIntervals + index]));
+						partials.setP(row, saNodeState, partials.getP(g, saNodeState));
+						partials.setGe(row, saNodeState, partials.getGeMantissa(g, saNodeState) * getSamplingRate(saNodeState, index, to)
+								* (1 - r[saNodeState * totalIntervals + index]), partials.getGeExponent(g, saNodeState));
 
 //					System.out.println("SA but not rho sampled");
 
 					} else {
 						// TODO COME BACK AND CHANGE (can be dealt with with getAllPInitialConds)
-						init.conditionsOnP[saNodeState] = g.conditionsOnP[saNodeState] * (1 - rho[saNodeState * totalIntervals + index]);
-						init.conditionsOnG[saNodeState] = g.conditionsOnG[saNodeState].scalarMultiply(rho[saNodeState * totalIntervals + index]
-								* (1 - r[saNodeState * totalIntervals + index]));
+						partials.setP(row, saNodeState, partials.getP(g, saNodeState) * (1 - rho[saNodeState * totalIntervals + index]));
+						partials.setGe(row, saNodeState, partials.getGeMantissa(g, saNodeState) * rho[saNodeState * totalIntervals + index]
+								* (1 - r[saNodeState * totalIntervals + index]), partials.getGeExponent(g, saNodeState));
 
 					}
 				}
@@ -401,8 +509,8 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 				int indexSecondChild = Math.abs(indexFirstChild-1);
 
 				//TODO refactor with more explicit names
-				p0ge_InitialConditions g0 = new p0ge_InitialConditions();
-				p0ge_InitialConditions g1 = new p0ge_InitialConditions();
+				int g0;
+				int g1;
 
 				// evaluate if the next step in the traversal should be split between one new thread and the currrent thread and run in parallel.
 
@@ -412,7 +520,7 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 					try {
 						// start a new thread to take care of the second subtree
-						Future<p0ge_InitialConditions> secondChildTraversal = pool.submit(
+						Future<Integer> secondChildTraversal = pool.submit(
 								new TraversalServiceUncoloured(node.getChild(indexSecondChild), to, T - node.getChild(indexSecondChild).getHeight()));
 
 						g0 = calculateSubtreeLikelihood(node.getChild(indexFirstChild), to, T - node.getChild(indexFirstChild).getHeight(), PG);
@@ -421,6 +529,7 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 					} catch (Exception e) {
 						e.printStackTrace();
 						//TODO deal with exceptions properly, maybe do the traversal serially if something failed.
+						throw new RuntimeException("couldn't calculate the subtree likelihoods", e);
 					}
 				} else {
 					g0 = calculateSubtreeLikelihood(node.getChild(indexFirstChild), to, T - node.getChild(indexFirstChild).getHeight(), PG);
@@ -435,24 +544,28 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 				for (int childstate = 0; childstate < n; childstate++) {
 
 					if (print) {
-						System.out.println("state " + childstate + "\t p0 = " + g0.conditionsOnP[childstate] + "\t p1 = " + g1.conditionsOnP[childstate]);
-						System.out.println("\t\t g0 = " + g0.conditionsOnG[childstate] + "\t g1 = " + g1.conditionsOnG[childstate]);
+						System.out.println("state " + childstate + "\t p0 = " + partials.getP(g0, childstate) + "\t p1 = " + partials.getP(g1, childstate));
+						System.out.println("\t\t g0 = " + partials.getGe(g0, childstate) + "\t g1 = " + partials.getGe(g1, childstate));
 					}
 
-					init.conditionsOnP[childstate] = g0.conditionsOnP[childstate];
-					init.conditionsOnG[childstate] = SmallNumber.multiply(g0.conditionsOnG[childstate], g1.conditionsOnG[childstate]).scalarMultiply(birth[childstate * totalIntervals + index]);
+					partials.setP(row, childstate, partials.getP(g0, childstate));
+					partials.setGe(row, childstate, partials.getGeMantissa(g0, childstate) * partials.getGeMantissa(g1, childstate) * getBirthRate(childstate, index, to),
+							partials.getGeExponent(g0, childstate) + partials.getGeExponent(g1, childstate));
 
 					if (birthAmongDemes) {
 						for (int j = 0; j < n; j++) {
 							if (childstate != j) {
-								init.conditionsOnG[childstate] = SmallNumber.add(init.conditionsOnG[childstate], SmallNumber.add(SmallNumber.multiply(g0.conditionsOnG[childstate], g1.conditionsOnG[j]) , SmallNumber.multiply(g0.conditionsOnG[j], g1.conditionsOnG[childstate]))
-										.scalarMultiply(0.5 * b_ij[totalIntervals * (childstate * (n - 1) + (j < childstate ? j : j - 1)) + index]));
+								double rate = 0.5 * b_ij[totalIntervals * (childstate * (n - 1) + (j < childstate ? j : j - 1)) + index];
+								partials.addGe(row, childstate, partials.getGeMantissa(g0, childstate) * partials.getGeMantissa(g1, j) * rate,
+										partials.getGeExponent(g0, childstate) + partials.getGeExponent(g1, j));
+								partials.addGe(row, childstate, partials.getGeMantissa(g0, j) * partials.getGeMantissa(g1, childstate) * rate,
+										partials.getGeExponent(g0, j) + partials.getGeExponent(g1, childstate));
 							}
 						}
 
 					}
 
-					if (Double.isInfinite(init.conditionsOnP[childstate])) {
+					if (Double.isInfinite(partials.getP(row, childstate))) {
 						throw new RuntimeException("infinite likelihood");
 					}
 				}
@@ -467,14 +580,86 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 		if (print){
 			System.out.print("p after subtree merge = ");
-			for (int i=0;i<n;i++) System.out.print(init.conditionsOnP[i] + "\t");
-			for (int i=0;i<n;i++) System.out.print(init.conditionsOnG[i] + "\t");
+			for (int i=0;i<n;i++) System.out.print(partials.getP(row, i) + "\t");
+			for (int i=0;i<n;i++) System.out.print(partials.getGe(row, i) + "\t");
 			System.out.println();
 		}
 
-		return getG(from, init, to, PG, node);
+		integrateBranch(from, row, to, PG, node);
+		return row;
+	}
+
+
+	/**
+	 * Integrate along the branch above node in place, keeping the boundary checkpoints if intervalCheckpoints is used
+	 * @param from
+	 * @param row row of partials holding the values at time to, and afterwards the values at time from
+	 * @param to
+	 * @param PG
+	 * @param node
+	 */
+	void integrateBranch(double from, int row, double to, p0ge_ODE PG, Node node) {
+
+		if (node.isLeaf()) {
+			for (int i=0; i<n; i++) partials.setP(row, i, pInitialConditions[node.getNr()][i]);
+		}
+
+		if (intervalCheckpoints == null) {
+			getG(from, partials, row, to, PG);
+			return;
+		}
+
+		p0ge_InitialConditions[] checkpoints = getThreadCheckpoints();
+		p0ge_InitialConditions result = getG(from, partials.get(row), to, PG, checkpoints);
+
+		partials.put(row, result);
+		intervalCheckpoints.put(node.getNr(), from, to, result, checkpoints, totalIntervals);
 	}
 
+	/**
+	 * Reuse the result of the last evaluation for a subtree that is unaffected by the current change,
+	 * or restart the integration along its branch from the first checkpoint that is unaffected.
+	 * @param node
+	 * @param from
+	 * @param to
+	 * @param PG
+	 * @return true if the subtree likelihood was written to the row of node in partials, false if it has to be recomputed
+	 */
+	boolean reuseSubtreeLikelihood(Node node, double from, double to, p0ge_ODE PG) {
+
+		int nodeNr = node.getNr();
+
+		if (!intervalCheckpoints.hasCleanResult(nodeNr, from, to, globalPrecisionThreshold))
+			return false;
+
+		if (from > intervalCheckpoints.tSafe - globalPrecisionThreshold) {
+			partials.put(nodeNr, intervalCheckpoints.getResult(nodeNr));
+			return true;
+		}
+
+		int restartIndex = intervalCheckpoints.firstValidCheckpoint(nodeNr);
+		if (restartIndex < 0)
+			return false;
+
+		p0ge_InitialConditions state = intervalCheckpoints.getCheckpoint(nodeNr, restartIndex);
+
+		if (rhoChanges > 0) {
+			for (int i = 0; i < n; i++) {
+				double oneMinusRho = 1 - rho[i * totalIntervals + restartIndex];
+				state.conditionsOnP[i] *= oneMinusRho;
+				state.conditionsOnG[i] = state.conditionsOnG[i].scalarMultiply(oneMinusRho);
+			}
+		}
+
+		p0ge_InitialConditions[] checkpoints = getThreadCheckpoints();
+		p0ge_InitialConditions result = getG(from, state, times[restartIndex], PG, checkpoints);
+
+		// checkpoints at and after the restart boundary remain valid
+		intervalCheckpoints.put(nodeNr, from, to, result, checkpoints, restartIndex);
+		partials.put(nodeNr, result);
+
+		return true;
+	}
 
 	// used to indicate that the state assignment went wrong
 	protected class ConstraintViolatedException extends RuntimeException {
@@ -486,6 +671,11 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 	}
 
+	@Override
+	void discardCachedResults() {
+		if (intervalCheckpoints != null) intervalCheckpoints.invalidate();
+	}
+
 	@Override
 	public void init(PrintStream out){
 
@@ -516,14 +706,14 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 		}
 	}
 
-	class TraversalServiceUncoloured extends TraversalService {
+	class TraversalServiceUncoloured extends TraversalService<Integer> {
 
 		public TraversalServiceUncoloured(Node root, double from, double to) {
 			super(root, from, to, false);
 		}
 
 		@Override
-		protected p0ge_InitialConditions calculateSubtreeLikelihoodInThread() {
+		protected Integer calculateSubtreeLikelihoodInThread() {
 			return calculateSubtreeLikelihood(rootSubtree, from, to, PG);
 		}
 
@@ -542,6 +732,10 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
     public void store() {
         super.store();
 
+        if (intervalCheckpoints != null) intervalCheckpoints.store();
+        partials.store();
+        tipIndex.store();
+
         for (int i=0; i<n; i++)
             storedRootTypeProbs[i] = rootTypeProbs[i];
     }
@@ -550,6 +744,10 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
     public void restore() {
         super.restore();
 
+        if (intervalCheckpoints != null) intervalCheckpoints.restore();
+        partials.restore();
+        tipIndex.restore();
+
         double[] tmp = storedRootTypeProbs;
         rootTypeProbs = storedRootTypeProbs;
         storedRootTypeProbs = tmp;
@@ -0,0 +1,135 @@
+package bdmm.evolution.speciation;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Propagators of the augmented (coloured) p0ge equations over branch segments, keyed on the segment end points.
+ *
+ * Along a coloured branch the ge equations do not couple the types, and p0 follows the same solution p0(t) on every
+ * branch, so the flow over a segment maps ge_i to ge_i * exp(logFactor_i) whatever ge is. A propagator therefore only
+ * depends on the end points of the segment and the parameters, and is reused by every segment (in this or later
+ * evaluations) with the same end points, until the parameters or the interval grid change.
+ */
+class GePropagatorCache {
+
+	static class Propagator {
+
+		// p0 at the start (time closer to the tips) and the end of the segment
+		final double[] pTo;
+		final double[] pFrom;
+
+		// log of the factor applied to ge_i over the segment, including rho-sampling at the boundaries crossed
+		final double[] logFactor;
+
+		Propagator(double[] pTo, double[] pFrom, double[] logFactor) {
+			this.pTo = pTo;
+			this.pFrom = pFrom;
+			this.logFactor = logFactor;
+		}
+
+		/**
+		 * @param p
+		 * @param tolerance
+		 * @return true if p agrees with the p0 this propagator was computed from
+		 */
+		boolean matches(double[] p, double tolerance) {
+
+			for (int i=0; i<p.length; i++) {
+				if (Math.abs(p[i] - pTo[i]) > tolerance * Math.max(1., Math.abs(pTo[i]))) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * @param arena
+		 * @param row
+		 * @param tolerance
+		 * @return true if the p0 values of the row agree with the p0 this propagator was computed from
+		 */
+		boolean matches(PartialsArena arena, int row, double tolerance) {
+
+			for (int i=0; i<pTo.length; i++) {
+				if (Math.abs(arena.getP(row, i) - pTo[i]) > tolerance * Math.max(1., Math.abs(pTo[i]))) return false;
+			}
+			return true;
+		}
+	}
+
+	static final class Segment {
+
+		final double from;
+		final double to;
+
+		Segment(double from, double to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Segment)) return false;
+			Segment other = (Segment) o;
+			return Double.compare(from, other.from) == 0 && Double.compare(to, other.to) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Double.hashCode(from) + Double.hashCode(to);
+		}
+	}
+
+	final int maxSize;
+
+	private final ConcurrentHashMap<Segment, Propagator> propagators = new ConcurrentHashMap<>();
+
+	// parameters and interval grid the propagators were computed with
+	private double T = Double.NaN;
+	private Double[] times;
+	private double[][] intervalParameters;
+
+	/**
+	 * @param maxSize number of propagators kept; the cache is emptied once it is reached
+	 */
+	GePropagatorCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Drop all propagators if they were computed for different parameters. To be called before each evaluation.
+	 * @param T
+	 * @param times
+	 * @param intervalParameters
+	 */
+	void prepare(double T, Double[] times, double[][] intervalParameters) {
+
+		if (T == this.T && Arrays.equals(times, this.times) && Arrays.deepEquals(intervalParameters, this.intervalParameters))
+			return;
+
+		propagators.clear();
+
+		this.T = T;
+		this.times = times.clone();
+		this.intervalParameters = intervalParameters;
+	}
+
+	void clear() {
+		propagators.clear();
+		T = Double.NaN;
+	}
+
+	Propagator get(double from, double to) {
+		return propagators.get(new Segment(from, to));
+	}
+
+	void put(double from, double to, Propagator propagator) {
+
+		if (propagators.size() >= maxSize) propagators.clear();
+
+		propagators.put(new Segment(from, to), propagator);
+	}
+
+	int size() {
+		return propagators.size();
+	}
+}
@@ -0,0 +1,283 @@
+package bdmm.evolution.speciation;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeInterface;
+
+import java.util.Arrays;
+
+import bdmm.math.p0ge_InitialConditions;
+
+/**
+ * Integration results of every branch from the last likelihood evaluation, together with the states reached at the
+ * interval boundaries crossed by each branch (checkpoints, taken before rho-sampling at the boundary is applied).
+ *
+ * Integration runs from the tips (time T) towards the origin (time 0), so a change of the rates of interval k leaves
+ * everything at times later than the end of interval k untouched: clean subtrees lying entirely after that time are
+ * reused as they are, and clean subtrees whose branch crosses it are restarted from the first unaffected checkpoint.
+ *
+ * A subtree is clean if the children and heights of all its nodes are those recorded at the last evaluation, rather
+ * than if the tree marks it as clean: the dirtiness of the tree only describes the current proposal, whereas a
+ * likelihood that is not evaluated at every step (e.g. a copy or an approximation) may have missed accepted changes.
+ *
+ * Results and checkpoints are kept in PartialsArenas rather than as objects.
+ */
+class IntervalCheckpoints {
+
+	final int n;
+	final boolean compact;
+
+	// one row per node, and one row per node and interval boundary (row nodeNr*boundaries + k)
+	PartialsArena results;
+	PartialsArena checkpoints;
+	int boundaries;
+
+	boolean[] hasResult;
+	double[] resultFrom;
+	double[] resultTo;
+	boolean[] hasCheckpoint;
+
+	boolean[] storedHasResult;
+	double[] storedResultFrom;
+	double[] storedResultTo;
+	boolean[] storedHasCheckpoint;
+
+	// parameters and interval grid the results were computed with
+	double T = Double.NaN;
+	Double[] times;
+	double[][] intervalParameters;
+
+	double storedT = Double.NaN;
+	Double[] storedTimes;
+	double[][] storedIntervalParameters;
+
+	// children (two per node, -1 if none) and height of every node at the last evaluation
+	int[] children;
+	double[] heights;
+
+	int[] storedChildren;
+	double[] storedHeights;
+
+	boolean[] subtreeClean;
+
+	// true if results of the last evaluation can be reused in the current one
+	boolean reusable;
+
+	// results and checkpoints at times >= tSafe are not affected by the current parameter change
+	double tSafe;
+	int firstValidCheckpoint;
+
+	/**
+	 * @param n number of types
+	 * @param compact keep a single copy of the results, which are then discarded instead of restored after a rejection
+	 */
+	IntervalCheckpoints(int n, boolean compact) {
+		this.n = n;
+		this.compact = compact;
+	}
+
+	/**
+	 * Compare the current parameters with those of the last evaluation and find the latest affected time.
+	 * @param tree
+	 * @param T
+	 * @param times
+	 * @param intervalParameters
+	 * @param allowReuse false if something not covered by the interval parameters has changed (e.g. tip types)
+	 */
+	void prepare(TreeInterface tree, double T, Double[] times, double[][] intervalParameters, boolean allowReuse) {
+
+		int nodeCount = tree.getNodeCount();
+
+		if (results == null || results.rows != nodeCount) {
+			results = new PartialsArena(nodeCount, n, compact);
+			hasResult = new boolean[nodeCount];
+			resultFrom = new double[nodeCount];
+			resultTo = new double[nodeCount];
+			storedHasResult = new boolean[nodeCount];
+			storedResultFrom = new double[nodeCount];
+			storedResultTo = new double[nodeCount];
+			subtreeClean = new boolean[nodeCount];
+			children = new int[2*nodeCount];
+			heights = new double[nodeCount];
+			storedChildren = new int[2*nodeCount];
+			storedHeights = new double[nodeCount];
+			Arrays.fill(heights, Double.NaN);
+			checkpoints = null;
+			allowReuse = false;
+		}
+
+		if (checkpoints == null || boundaries != times.length) {
+			boundaries = times.length;
+			checkpoints = new PartialsArena(nodeCount*boundaries, n, compact);
+			hasCheckpoint = new boolean[nodeCount*boundaries];
+			storedHasCheckpoint = new boolean[nodeCount*boundaries];
+			allowReuse = false;
+		}
+
+		reusable = allowReuse && T == this.T && Arrays.equals(times, this.times);
+
+		if (reusable) {
+
+			int k = times.length - 1;
+			while (k >= 0 && Arrays.equals(intervalParameters[k], this.intervalParameters[k])) k--;
+
+			if (k < 0) {
+				tSafe = Double.NEGATIVE_INFINITY;
+				firstValidCheckpoint = 0;
+			} else {
+				tSafe = times[k];
+				firstValidCheckpoint = k;
+			}
+
+		}
+
+		markCleanSubtrees(tree.getRoot());
+
+		this.T = T;
+		this.times = times;
+		this.intervalParameters = intervalParameters;
+	}
+
+	/**
+	 * Make sure nothing is reused in the next evaluation (e.g. after a failed evaluation left partial results)
+	 */
+	void invalidate() {
+		T = Double.NaN;
+	}
+
+	/**
+	 * Compare the children and heights of the nodes of a subtree with those of the last evaluation, and record the current ones
+	 * @param node
+	 * @return true if the subtree is the same as at the last evaluation
+	 */
+	private boolean markCleanSubtrees(Node node) {
+
+		int nodeNr = node.getNr();
+		int childCount = node.getChildCount();
+
+		boolean clean = heights[nodeNr] == node.getHeight();
+		heights[nodeNr] = node.getHeight();
+
+		for (int i = 0; i < 2; i++) {
+
+			int childNr = i < childCount ? node.getChild(i).getNr() : -1;
+
+			clean = clean && children[2*nodeNr + i] == childNr;
+			children[2*nodeNr + i] = childNr;
+		}
+
+		for (int i = 0; i < childCount; i++) {
+			clean = markCleanSubtrees(node.getChild(i)) && clean;
+		}
+
+		subtreeClean[nodeNr] = clean;
+		return clean;
+	}
+
+	/**
+	 * @param nodeNr
+	 * @param from
+	 * @param to
+	 * @param threshold
+	 * @return true if the subtree below this node and its branch are unchanged since the last evaluation
+	 */
+	boolean hasCleanResult(int nodeNr, double from, double to, double threshold) {
+
+		return reusable && subtreeClean[nodeNr] && hasResult[nodeNr]
+				&& Math.abs(resultFrom[nodeNr] - from) < threshold && Math.abs(resultTo[nodeNr] - to) < threshold;
+	}
+
+	/**
+	 * @param nodeNr
+	 * @return a copy of the result kept for the branch above this node
+	 */
+	p0ge_InitialConditions getResult(int nodeNr) {
+		return results.get(nodeNr);
+	}
+
+	/**
+	 * @param nodeNr
+	 * @return index of the earliest boundary (closest to the origin) at which a valid checkpoint of the branch exists, -1 if none
+	 */
+	int firstValidCheckpoint(int nodeNr) {
+
+		for (int i = firstValidCheckpoint; i < boundaries; i++) {
+			if (hasCheckpoint[nodeNr*boundaries + i]) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param nodeNr
+	 * @param boundary
+	 * @return a copy of the state reached by the branch above this node at the boundary
+	 */
+	p0ge_InitialConditions getCheckpoint(int nodeNr, int boundary) {
+		return checkpoints.get(nodeNr*boundaries + boundary);
+	}
+
+	/**
+	 * Keep the result of the branch above a node and the checkpoints it passed
+	 * @param nodeNr
+	 * @param from
+	 * @param to
+	 * @param result
+	 * @param nodeCheckpoints checkpoints by boundary index, null where the branch did not cross a boundary
+	 * @param keepFrom checkpoints at this boundary index and later are kept as they are
+	 */
+	void put(int nodeNr, double from, double to, p0ge_InitialConditions result, p0ge_InitialConditions[] nodeCheckpoints, int keepFrom) {
+
+		results.put(nodeNr, result);
+		hasResult[nodeNr] = true;
+		resultFrom[nodeNr] = from;
+		resultTo[nodeNr] = to;
+
+		for (int k=0; k<keepFrom; k++) {
+
+			int row = nodeNr*boundaries + k;
+
+			hasCheckpoint[row] = nodeCheckpoints[k] != null;
+			if (hasCheckpoint[row]) checkpoints.put(row, nodeCheckpoints[k]);
+		}
+	}
+
+	void store() {
+
+		if (results == null) return;
+
+		results.store();
+		checkpoints.store();
+
+		System.arraycopy(hasResult, 0, storedHasResult, 0, hasResult.length);
+		System.arraycopy(resultFrom, 0, storedResultFrom, 0, resultFrom.length);
+		System.arraycopy(resultTo, 0, storedResultTo, 0, resultTo.length);
+		System.arraycopy(hasCheckpoint, 0, storedHasCheckpoint, 0, hasCheckpoint.length);
+		System.arraycopy(children, 0, storedChildren, 0, children.length);
+		System.arraycopy(heights, 0, storedHeights, 0, heights.length);
+
+		storedT = T;
+		storedTimes = times;
+		storedIntervalParameters = intervalParameters;
+	}
+
+	void restore() {
+
+		if (results == null) return;
+
+		if (!results.restore() | !checkpoints.restore()) {
+			// a compact arena did not keep the stored results
+			invalidate();
+			return;
+		}
+
+		System.arraycopy(storedHasResult, 0, hasResult, 0, hasResult.length);
+		System.arraycopy(storedResultFrom, 0, resultFrom, 0, resultFrom.length);
+		System.arraycopy(storedResultTo, 0, resultTo, 0, resultTo.length);
+		System.arraycopy(storedHasCheckpoint, 0, hasCheckpoint, 0, hasCheckpoint.length);
+		System.arraycopy(storedChildren, 0, children, 0, children.length);
+		System.arraycopy(storedHeights, 0, heights, 0, heights.length);
+
+		T = storedT;
+		times = storedTimes;
+		intervalParameters = storedIntervalParameters;
+	}
+}
@@ -0,0 +1,230 @@
+package bdmm.evolution.speciation;
+
+import bdmm.math.SmallNumber;
+import bdmm.math.p0ge_InitialConditions;
+
+/**
+ * Contiguous storage for many sets of p0 and ge values (one row of n types each), e.g. one row per node.
+ * The ge values are kept as separate mantissa and exponent arrays, so no SmallNumber or p0ge_InitialConditions
+ * objects are held between evaluations. Rows can also be computed in place, in the extended-precision arithmetic
+ * of SmallNumber, without creating any object.
+ *
+ * Unless compact, every row exists twice: writing a row switches it to the copy that is not part of the stored state,
+ * so that restore() only has to switch back. A compact arena has a single copy and cannot be restored.
+ */
+class PartialsArena {
+
+	final int rows;
+	final int n;
+	final boolean compact;
+
+	private final double[][] p;
+	private final double[][] geMantissa;
+	private final int[][] geExponent;
+
+	// copy (0 or 1) currently holding each row
+	private final int[] current;
+	private final int[] stored;
+
+	PartialsArena(int rows, int n, boolean compact) {
+
+		this.rows = rows;
+		this.n = n;
+		this.compact = compact;
+
+		int copies = compact ? 1 : 2;
+
+		p = new double[copies][rows*n];
+		geMantissa = new double[copies][rows*n];
+		geExponent = new int[copies][rows*n];
+
+		current = new int[rows];
+		stored = new int[rows];
+	}
+
+	/**
+	 * Switch a row to the copy that is not part of the stored state, before it is written in place.
+	 * Rows must not be written without this, otherwise the stored values would be overwritten.
+	 * @param row
+	 */
+	void beginWrite(int row) {
+		if (!compact) current[row] = 1 - stored[row];
+	}
+
+	void put(int row, p0ge_InitialConditions conditions) {
+
+		beginWrite(row);
+
+		int copy = current[row];
+		int offset = row*n;
+
+		for (int i=0; i<n; i++) {
+			p[copy][offset + i] = conditions.conditionsOnP[i];
+			geMantissa[copy][offset + i] = conditions.conditionsOnG[i].getMantissa();
+			geExponent[copy][offset + i] = conditions.conditionsOnG[i].getExponent();
+		}
+	}
+
+	/**
+	 * Switch a row for writing and set all its p0 and ge values to zero
+	 * @param row
+	 */
+	void clear(int row) {
+
+		beginWrite(row);
+
+		int copy = current[row];
+		int offset = row*n;
+
+		for (int i=0; i<n; i++) {
+			p[copy][offset + i] = 0;
+			geMantissa[copy][offset + i] = 0;
+			geExponent[copy][offset + i] = 0;
+		}
+	}
+
+	/**
+	 * @param row
+	 * @return a new p0ge_InitialConditions holding the values of the row, which can be modified freely
+	 */
+	p0ge_InitialConditions get(int row) {
+
+		int copy = current[row];
+		int offset = row*n;
+
+		double[] pConditions = new double[n];
+		SmallNumber[] gConditions = new SmallNumber[n];
+
+		for (int i=0; i<n; i++) {
+			pConditions[i] = p[copy][offset + i];
+			gConditions[i] = new SmallNumber(geMantissa[copy][offset + i], geExponent[copy][offset + i]);
+		}
+
+		return new p0ge_InitialConditions(pConditions, gConditions);
+	}
+
+	double getP(int row, int i) {
+		return p[current[row]][row*n + i];
+	}
+
+	void setP(int row, int i, double value) {
+		p[current[row]][row*n + i] = value;
+	}
+
+	double getGeMantissa(int row, int i) {
+		return geMantissa[current[row]][row*n + i];
+	}
+
+	int getGeExponent(int row, int i) {
+		return geExponent[current[row]][row*n + i];
+	}
+
+	/**
+	 * Set ge_i of a row to mantissa*2^exponent, in the representation new SmallNumber(mantissa, exponent) would have
+	 * @param row
+	 * @param i
+	 * @param mantissa
+	 * @param exponent
+	 */
+	void setGe(int row, int i, double mantissa, int exponent) {
+
+		if (Double.isInfinite(mantissa))
+			throw new RuntimeException("Unauthorized number (Infinity) used for conversion in SmallNumber");
+
+		if (mantissa == 0) {
+			exponent = 0;
+		} else {
+			// as in SmallNumber.update()
+			int tempExp = Math.getExponent(mantissa);
+			if (Math.abs(tempExp) > 200) {
+				mantissa *= Math.pow(2, -tempExp);
+				exponent += tempExp;
+			}
+		}
+
+		int copy = current[row];
+		geMantissa[copy][row*n + i] = mantissa;
+		geExponent[copy][row*n + i] = exponent;
+	}
+
+	/**
+	 * Set ge_i of a row to the value of new SmallNumber(value)
+	 * @param row
+	 * @param i
+	 * @param value
+	 */
+	void setGe(int row, int i, double value) {
+		setGe(row, i, SmallNumber.mantissaOf(value), SmallNumber.exponentOf(value));
+	}
+
+	/**
+	 * Add mantissa*2^exponent to ge_i of a row, as SmallNumber.add does
+	 * @param row
+	 * @param i
+	 * @param mantissa
+	 * @param exponent
+	 */
+	void addGe(int row, int i, double mantissa, int exponent) {
+
+		// the summand in SmallNumber representation, as SmallNumber.update() would leave it
+		if (mantissa != 0) {
+			int tempExp = Math.getExponent(mantissa);
+			if (Math.abs(tempExp) > 200) {
+				mantissa *= Math.pow(2, -tempExp);
+				exponent += tempExp;
+			}
+		}
+
+		double m = getGeMantissa(row, i);
+		int e = getGeExponent(row, i);
+
+		if (m == 0 || ((exponent - e) > SmallNumber.approximationThreshold && mantissa != 0)) {
+			setGe(row, i, mantissa, exponent);
+		} else if (mantissa == 0 || (e - exponent) > SmallNumber.approximationThreshold) {
+			return;
+		} else if (e > exponent) {
+			setGe(row, i, m + mantissa * Math.pow(2, exponent - e), e);
+		} else {
+			setGe(row, i, mantissa + m * Math.pow(2, e - exponent), exponent);
+		}
+	}
+
+	/**
+	 * Multiply ge_i of a row by a double, as SmallNumber.scalarMultiply does
+	 * @param row
+	 * @param i
+	 * @param lambda
+	 */
+	void scaleGe(int row, int i, double lambda) {
+
+		if (Double.isInfinite(lambda))
+			throw new RuntimeException("Unauthorized number (Infinity) used for multiplication with a SmallNumber");
+
+		setGe(row, i, getGeMantissa(row, i) * lambda, getGeExponent(row, i));
+	}
+
+	/**
+	 * @param row
+	 * @param i
+	 * @return a new SmallNumber holding ge_i of the row
+	 */
+	SmallNumber getGe(int row, int i) {
+		return new SmallNumber(getGeMantissa(row, i), getGeExponent(row, i));
+	}
+
+	void store() {
+		if (!compact) System.arraycopy(current, 0, stored, 0, rows);
+	}
+
+	/**
+	 * @return false if the arena is compact, i.e. the stored values were not kept
+	 */
+	boolean restore() {
+
+		if (compact) return false;
+
+		System.arraycopy(stored, 0, current, 0, rows);
+
+		return true;
+	}
+}
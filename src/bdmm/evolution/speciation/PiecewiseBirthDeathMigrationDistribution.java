@@ -7,27 +7,36 @@ import beast.base.core.Citation;
 import beast.base.core.Description;
 import beast.base.core.Function;
 import beast.base.core.Input;
+import beast.base.core.Log;
 import beast.base.evolution.speciation.SpeciesTreeDistribution;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.TreeInterface;
 import beast.base.util.HeapSort;
+import org.apache.commons.math3.exception.MaxCountExceededException;
 import org.apache.commons.math3.ode.FirstOrderIntegrator;
 import org.apache.commons.math3.ode.nonstiff.ClassicalRungeKuttaIntegrator;
 import org.apache.commons.math3.ode.nonstiff.DormandPrince54Integrator;
 
 import bdmm.core.util.Utils;
+import bdmm.math.MonotoneCubicSpline;
 import bdmm.math.ScaledNumbers;
 import bdmm.math.SmallNumber;
 import bdmm.math.SmallNumberScaler;
+import bdmm.math.SmoothRates;
 import bdmm.math.p0_ODE;
 import bdmm.math.p0ge_InitialConditions;
 import bdmm.math.p0ge_ODE;
+import bdmm.treesimulator.PopHistorySimulator;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
@@ -74,6 +83,10 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	public Input<Double> absoluteTolerance =
 			new Input<>("absTolerance", "absolute tolerance for numerical integration", 1e-100 /*Double.MIN_VALUE*/);
 
+	public Input<Double> logLikelihoodAccuracyInput =
+			new Input<>("logLikelihoodAccuracy", "if given, relTolerance is calibrated at the first evaluation: the loosest relative tolerance is chosen " +
+					"for which the log-likelihood differs by less than this from an evaluation at a much tighter tolerance (e.g. 1e-3)");
+
 	// the interval times for the migration rates
 	public Input<RealParameter> migChangeTimesInput =
 			new Input<>("migChangeTimes", "The times t_i specifying when migration rate changes occur", (RealParameter) null);
@@ -195,6 +208,13 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	public Input<Boolean> useRKInput =
 			new Input<>("useRK", "Use fixed step size Runge-Kutta integrator with 1000 steps. Default false", false);
 
+	public Input<Boolean> smoothRatesInput =
+			new Input<>("smoothRates", "If true, birth/R0, death/becomeUninfectious and sampling rate/proportion values are read as values at the start of their intervals " +
+					"and interpolated by a monotone cubic spline in between, instead of being piecewise constant. Their change times then no longer interrupt the integration. Default false.", false);
+
+	public Input<Boolean> integrateByColumnsInput = new Input<>("integrateByColumns", "integrate every branch segment by columns in extended precision, " +
+			"instead of only the segments where scaling the ge values into the range of double fails (slower, for checking results; default false)", false);
+
 	public Input<Boolean> checkRho = new Input<>("checkRho", "check if rho is set if multiple tips are given at present (default true)", true);
 
 
@@ -206,14 +226,16 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 			" must have to start parallel calculations on the children. (default: 1/10). ", new Double(1/10));
 
 
-	public static boolean isParallelizedCalculation;
+	public boolean isParallelizedCalculation;
+
+	boolean integrateAllByColumns;
 
-	public static double minimalProportionForParallelization;
+	public double minimalProportionForParallelization;
 
 	//  TODO check if it's possible to have 1e-20 there
 	public final static double globalPrecisionThreshold = 1e-10;
 
-	static volatile double T = 0;
+	volatile double T = 0;
 	double orig;
 	int ntaxa;
 
@@ -221,16 +243,27 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	p0ge_ODE PG;
 
 	FirstOrderIntegrator pg_integrator;
-	public static Double minstep;
-	public static Double maxstep;
+	public Double minstep;
+	public Double maxstep;
+
+	// tolerances used by all integrations, from the inputs or calibrated
+	double relTolerance;
+	double absTolerance;
+	boolean tolerancesCalibrated;
+
+	// likelihood a copy takes its tolerances from, null if not a copy
+	PiecewiseBirthDeathMigrationDistribution toleranceSource;
 
 	// these four arrays are totalIntervals in length
 	protected double[] birth;
 	double[] death;
 	Double[] psi;
-	static  volatile Double[] rho;
+	volatile Double[] rho;
 	Double[] r;
 
+	// rho of the intervals before identical intervals are merged, as built by setRho and updateRho
+	Double[] unmergedRho;
+
 	/**
 	 * The number of change points in the birth rate, b_ij, death rate, sampling rate, rho, r
 	 */
@@ -239,7 +272,7 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	int b_ij_Changes;
 	int deathChanges;
 	int samplingChanges;
-	static int rhoChanges;
+	int rhoChanges;
 	int rChanges;
 
 
@@ -250,13 +283,13 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	 */
 	int rhoSamplingCount;
 	Boolean constantRho;
-	Boolean[] isRhoTip;
+	boolean[] isRhoTip;
 
 	/**
 	 * Total interval count
 	 */
-	static int totalIntervals;
-	static int n;  // number of states / locations
+	int totalIntervals;
+	int n;  // number of states / locations
 
 	protected List<Double> migChangeTimes = new ArrayList<>();
 	protected List<Double> birthRateChangeTimes = new ArrayList<>();
@@ -269,7 +302,7 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	Boolean contempData;
 	SortedSet<Double> timesSet = new TreeSet<>();
 
-	protected static volatile Double[] times = new Double[]{0.};
+	protected volatile Double[] times = new Double[]{0.};
 
 	protected Boolean transform;
 
@@ -287,7 +320,9 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 
 	Double[] freq;
 
-	static double[][] pInitialConditions;
+	double[][] pInitialConditions;
+
+	SmoothRates smoothRates;
 
 	protected BooleanParameter rateMatrixFlags;
 
@@ -307,6 +342,10 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 
 		tree = treeInput.get();
 
+		relTolerance = relativeTolerance.get();
+		absTolerance = absoluteTolerance.get();
+		tolerancesCalibrated = logLikelihoodAccuracyInput.get() == null;
+
 		identicalRatesForAllTypes = new Boolean[]{false, false, false, false, false, false};
 		if (identicalRatesForAllTypesInput.get()!=null)
 			identicalRatesForAllTypes = identicalRatesForAllTypesInput.get().getValues();
@@ -438,6 +477,9 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 
 		if (SAModel) rChanges = removalProbability.get().getDimension()/n -1;
 
+		if (smoothRatesInput.get() && (R0AmongDemes.get() != null || R0_base.get() != null))
+			throw new RuntimeException("Error in BDMM setup: smoothRates cannot be combined with R0AmongDemes or R0_base and lambda_ratio.");
+
 		if (m_rho.get()!=null) {
 			rho = m_rho.get().getValues();
 			rhoChanges = m_rho.get().getDimension()/n - 1;
@@ -470,6 +512,7 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 
 		isParallelizedCalculation = isParallelizedCalculationInput.get();
 		minimalProportionForParallelization = minimalProportionForParallelizationInput.get();
+		integrateAllByColumns = integrateByColumnsInput.get();
 
 		if(isParallelizedCalculation) executorBootUp();
 	}
@@ -482,7 +525,22 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	 * @param PG
 	 * @return
 	 */
-	public static p0ge_InitialConditions getG(double t, p0ge_InitialConditions PG0, double t0, p0ge_ODE PG){// PG0 contains initial condition for p0 (0..n-1) and for ge (n..2n-1)
+	public p0ge_InitialConditions getG(double t, p0ge_InitialConditions PG0, double t0, p0ge_ODE PG){// PG0 contains initial condition for p0 (0..n-1) and for ge (n..2n-1)
+
+		return getG(t, PG0, t0, PG, null);
+	}
+
+	/**
+	 *
+	 * @param t
+	 * @param PG0
+	 * @param t0
+	 * @param PG
+	 * @param checkpoints if not null, the state reached at each interval boundary times[i] crossed on the way from t0 to t
+	 *                    is stored in checkpoints[i] (before rho-sampling at that boundary is applied)
+	 * @return
+	 */
+	public p0ge_InitialConditions getG(double t, p0ge_InitialConditions PG0, double t0, p0ge_ODE PG, p0ge_InitialConditions[] checkpoints){
 
 		try {
 
@@ -505,18 +563,14 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 			}
 			index--;
 
-			// pgScaled contains the set of initial conditions scaled made to fit the requirements on the values 'double' can represent. It also contains the factor by which the numbers were multiplied
-			ScaledNumbers pgScaled = SmallNumberScaler.scale(PG0);
-
 			while (steps > 0){
 
 				from = times[index];
 
-				pgScaled = safeIntegrate(PG, to, pgScaled, from); // solve PG , store solution temporarily integrationResults
-
-				// 'unscale' values in integrationResults so as to retrieve accurate values after the integration.
-				PG0 = SmallNumberScaler.unscale(pgScaled.getEquation(), pgScaled.getScalingFactor());
+				PG0 = integrateSegment(PG, to, PG0, from);
 
+				// PG0 is a new object for every segment, it only has to be copied if rho-sampling changes it below
+				if (checkpoints != null) checkpoints[index] = (rhoChanges>0) ? PG0.copy() : PG0;
 
 				if (rhoChanges>0){
 					for (int i=0; i<n; i++){
@@ -530,15 +584,9 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 
 				steps--;
 				index--;
-
-				// 'rescale' the results of the last integration to prepare for the next integration step
-				pgScaled = SmallNumberScaler.scale(PG0);
 			}
 
-			pgScaled = safeIntegrate(PG, to, pgScaled, t); // solve PG , store solution temporarily integrationResults
-
-			// 'unscale' values in integrationResults so as to retrieve accurate values after the integration.
-			PG0 = SmallNumberScaler.unscale(pgScaled.getEquation(), pgScaled.getScalingFactor());
+			PG0 = integrateSegment(PG, to, PG0, t);
 
 		}catch(Exception e){
 			// e.printStackTrace(); // for debugging
@@ -549,9 +597,72 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 		return PG0;
 	}
 
+	/**
+	 * Same as getG(t, PG0, t0, PG), for values kept in a row of a PartialsArena, which are integrated in place
+	 * without creating any object (unless a segment has to be integrated by columns).
+	 * The row must have been switched with beginWrite before.
+	 * @param t
+	 * @param arena
+	 * @param row holds the values at t0, and the values at t afterwards
+	 * @param t0
+	 * @param PG
+	 */
+	void getG(double t, PartialsArena arena, int row, double t0, p0ge_ODE PG){
+
+		try {
+
+			if (Math.abs(T-t) < globalPrecisionThreshold|| Math.abs(t0-t) < globalPrecisionThreshold ||  T < t) {
+				return;
+			}
+
+			double from = t;
+			double to = t0;
+			double oneMinusRho;
+
+			int indexFrom = Utils.index(from, times, times.length);
+			int index = Utils.index(to, times, times.length);
+
+			int steps = index - indexFrom;
+			if (Math.abs(from-times[indexFrom]) < globalPrecisionThreshold ) steps--;
+			if (index>0 && Math.abs(to-times[index-1]) < globalPrecisionThreshold ) {
+				steps--;
+				index--;
+			}
+			index--;
+
+			while (steps > 0){
+
+				from = times[index];
+
+				integrateSegment(PG, to, arena, row, from);
+
+				if (rhoChanges>0){
+					for (int i=0; i<n; i++){
+						oneMinusRho = 1-rho[i*totalIntervals + index];
+						arena.setP(row, i, arena.getP(row, i) * oneMinusRho);
+						arena.scaleGe(row, i, oneMinusRho);
+					}
+				}
+
+				to = times[index];
+
+				steps--;
+				index--;
+			}
+
+			integrateSegment(PG, to, arena, row, t);
+
+		}catch(Exception e){
+			// e.printStackTrace(); // for debugging
+
+			throw new RuntimeException("couldn't calculate g");
+		}
+	}
+
 	void setRho(){
 
-		isRhoTip = new Boolean[ treeInput.get().getLeafNodeCount()];
+		if (isRhoTip == null || isRhoTip.length != treeInput.get().getLeafNodeCount())
+			isRhoTip = new boolean[ treeInput.get().getLeafNodeCount()];
 		Arrays.fill(isRhoTip,false);
 
 
@@ -604,10 +715,199 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 			Arrays.fill(rho, 0.);
 		}
 
+		unmergedRho = rho;
 	}
 
 	abstract void computeRhoTips();
 
+	// inputs not given to copies: the copies are not parallelized, take their tolerances from the original, and keep no
+	// results from one evaluation to the next, so that a copy gives the same likelihood as any other copy for a state
+	static final Set<String> inputsNotCopied = new HashSet<>(Arrays.asList("parallelize", "logLikelihoodAccuracy",
+			"intervalCheckpoints", "compactCheckpoints", "propagatorCache"));
+
+	/**
+	 * Create an independent likelihood of the same class with the same inputs, except for the replaced ones,
+	 * e.g. to evaluate it for other values of some parameters on another thread.
+	 * The copy is not parallelized, keeps no results across evaluations (interval checkpoints, propagators), and
+	 * uses the tolerances of this likelihood, which are calibrated at the first evaluation of any copy if needed,
+	 * so that all copies give the same likelihood for the same state.
+	 * @param replacements input values (by identity) and the values to use instead in the copy
+	 * @return the initialised copy
+	 */
+	public PiecewiseBirthDeathMigrationDistribution copyReplacing(Map<Object, Object> replacements) {
+
+		PiecewiseBirthDeathMigrationDistribution copy;
+		try {
+			copy = getClass().getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException("Cannot copy " + getID() + ": " + e.getMessage());
+		}
+
+		int replaced = 0;
+
+		for (Input<?> input : copy.listInputs()) {
+
+			if (inputsNotCopied.contains(input.getName())) continue;
+
+			Object value = getInput(input.getName()).get();
+			if (value != null && replacements.containsKey(value)) {
+				value = replacements.get(value);
+				replaced++;
+			}
+			if (value != null) copy.setInputValue(input.getName(), value);
+		}
+
+		if (replaced < replacements.size())
+			throw new RuntimeException("Error in BDMM setup: not all objects to be replaced are direct inputs of " + getID());
+
+		copy.setInputValue(isParallelizedCalculationInput.getName(), false);
+		copy.initAndValidate();
+		copy.toleranceSource = this;
+
+		return copy;
+	}
+
+	/**
+	 * Simulator of the population described by the current parameter values, from the start of the population to
+	 * the present, e.g. to simulate trees for checking inferences made with this model.
+	 * Needs an origin that is not only the root edge, and piecewise-constant rates without birth among demes.
+	 * The rates are computed on a copy, so that the state of this distribution, e.g. within an MCMC step, is left as it is.
+	 * @return the simulator, with its end time set to the origin
+	 */
+	public PopHistorySimulator newPopHistorySimulator() {
+
+		if (origin.get() == null || originIsRootEdge.get())
+			throw new RuntimeException("Error in BDMM setup: simulating the population needs an origin that is not only the root edge.");
+		if (birthAmongDemes)
+			throw new RuntimeException("Error in BDMM setup: simulating the population is not possible with birth among demes.");
+		if (smoothRatesInput.get())
+			throw new RuntimeException("Error in BDMM setup: simulating the population is not possible with smoothRates.");
+
+		return copyReplacing(new IdentityHashMap<>()).popHistorySimulator();
+	}
+
+	/**
+	 * @return the simulator of the population with the current parameter values, see newPopHistorySimulator
+	 */
+	private PopHistorySimulator popHistorySimulator() {
+
+		T = origin.get().getValue();
+		collectTimes(T);
+		updateRates();
+
+		// intervals of positive length, with their start times forwards from the start of the population
+		List<Integer> intervals = new ArrayList<>();
+		List<Double> intervalStarts = new ArrayList<>();
+		double start = 0;
+		for (int k = 0; k < totalIntervals; k++) {
+			if (times[k] <= start) continue;
+			intervals.add(k);
+			intervalStarts.add(start);
+			start = times[k];
+		}
+
+		int count = intervals.size();
+		int among = n*(n-1);
+
+		double[] intervalTimes = new double[count];
+		double[] birthRates = new double[n*count];
+		double[] deathRates = new double[n*count];
+		double[] samplingRates = new double[n*count];
+		double[] removalProbs = new double[SAModel ? n*count : 1];
+		double[] migrationRates = new double[among*count];
+		Arrays.fill(removalProbs, 1.);
+
+		List<Integer> rhoIntervals = new ArrayList<>();
+
+		for (int l = 0; l < count; l++) {
+
+			int k = intervals.get(l);
+			intervalTimes[l] = intervalStarts.get(l);
+
+			boolean rhoSampling = false;
+			for (int i = 0; i < n; i++) {
+				birthRates[i*count + l] = birth[i*totalIntervals + k];
+				deathRates[i*count + l] = death[i*totalIntervals + k];
+				samplingRates[i*count + l] = psi[i*totalIntervals + k];
+				if (SAModel) removalProbs[i*count + l] = r[i*totalIntervals + k];
+				if (rho != null && rho[i*totalIntervals + k] != null && rho[i*totalIntervals + k] > 0) rhoSampling = true;
+			}
+			for (int ij = 0; ij < among; ij++)
+				migrationRates[ij*count + l] = M[ij*totalIntervals + k] != null ? M[ij*totalIntervals + k] : 0.;
+
+			if (rhoSampling) rhoIntervals.add(l);
+		}
+
+		double[] frequencies = new double[n];
+		for (int i = 0; i < n; i++) frequencies[i] = freq[i];
+
+		PopHistorySimulator simulator = new PopHistorySimulator(n, intervalTimes, birthRates, deathRates, samplingRates,
+				migrationRates, frequencies, SAModel, removalProbs);
+		simulator.setEndTime(T);
+
+		// rho-sampling happens at the end of the intervals
+		if (!rhoIntervals.isEmpty()) {
+
+			int rhoCount = rhoIntervals.size();
+			double[] rhoTimes = new double[rhoCount];
+			double[] rhoProbs = new double[n*rhoCount];
+
+			for (int s = 0; s < rhoCount; s++) {
+				int k = intervals.get(rhoIntervals.get(s));
+				rhoTimes[s] = times[k];
+				for (int i = 0; i < n; i++) {
+					Double value = rho[i*totalIntervals + k];
+					rhoProbs[i*rhoCount + s] = value != null ? value : 0.;
+				}
+			}
+
+			simulator.setRhoSampling(rhoTimes, rhoProbs);
+		}
+
+		return simulator;
+	}
+
+	/**
+	 * Take over the origin, interval times, rates and rho of another distribution with the same number of types
+	 * instead of recomputing them, then bind this distribution's own integrators to them and set up its rho tips.
+	 * The arrays are shared, not copied, so they must not be modified while this distribution is in use.
+	 * @param source
+	 */
+	void useRatesOf(PiecewiseBirthDeathMigrationDistribution source) {
+
+		T = source.T;
+		orig = T - treeInput.get().getRoot().getHeight();
+
+		times = source.times;
+		totalIntervals = source.totalIntervals;
+		rhoSamplingChangeTimes = source.rhoSamplingChangeTimes;
+		contempData = source.contempData;
+
+		birth = source.birth;
+		death = source.death;
+		psi = source.psi;
+		rho = source.rho;
+		unmergedRho = source.unmergedRho;
+		rhoChanges = source.rhoChanges;
+		r = source.r;
+		M = source.M;
+		b_ij = source.b_ij;
+		freq = source.freq;
+		smoothRates = source.smoothRates;
+
+		minstep = source.minstep;
+		maxstep = source.maxstep;
+
+		relTolerance = source.relTolerance;
+		absTolerance = source.absTolerance;
+		integrateAllByColumns = source.integrateAllByColumns;
+
+		rebindIntegrators();
+
+		Arrays.fill(isRhoTip, m_rho.get() != null && contempData);
+		if (m_rho.get() != null && !contempData) computeRhoTips();
+	}
+
 	/**
 	 * Perform an initial traversal of the tree to get the 'weights' (sum of all its edges lengths) of all sub-trees
 	 * Useful for performing parallelized calculations on the tree.
@@ -693,20 +993,24 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 			timesSet.add(time);
 		}
 
-		for (Double time : birthRateChangeTimes) {
-			timesSet.add(time);
-		}
-
 		for (Double time : b_ijChangeTimes) {
 			timesSet.add(time);
 		}
 
-		for (Double time : deathRateChangeTimes) {
-			timesSet.add(time);
-		}
+		// smooth rates are evaluated inside the ODEs, so their change times are not integration boundaries
+		if (!smoothRatesInput.get()) {
 
-		for (Double time : samplingRateChangeTimes) {
-			timesSet.add(time);
+			for (Double time : birthRateChangeTimes) {
+				timesSet.add(time);
+			}
+
+			for (Double time : deathRateChangeTimes) {
+				timesSet.add(time);
+			}
+
+			for (Double time : samplingRateChangeTimes) {
+				timesSet.add(time);
+			}
 		}
 
 		for (Double time : rhoSamplingChangeTimes) {
@@ -852,6 +1156,8 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 						rhoSamplingChangeTimes.contains(times[i%totalIntervals]) ? rhos[rhos.length > n ? (rhoChanges+1)*state+index(times[i%totalIntervals], rhoSamplingChangeTimes) : state] : 0.
 						: rhos[0];
 			}
+
+			unmergedRho = rho;
 		}
 	}
 
@@ -1024,13 +1330,318 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 
 		p0ge_ODE.globalPrecisionThreshold = globalPrecisionThreshold;
 
+		P.smoothRates = smoothRates;
+		PG.smoothRates = smoothRates;
+
 		if (!useRKInput.get()) {
-			pg_integrator = new DormandPrince54Integrator(minstep, maxstep, absoluteTolerance.get(), relativeTolerance.get());
-			PG.p_integrator = new DormandPrince54Integrator(minstep, maxstep, absoluteTolerance.get(), relativeTolerance.get());
+			pg_integrator = new DormandPrince54Integrator(minstep, maxstep, absTolerance, relTolerance);
+			PG.p_integrator = new DormandPrince54Integrator(minstep, maxstep, absTolerance, relTolerance);
 		} else {
 			pg_integrator = new ClassicalRungeKuttaIntegrator(T / 1000);
 			PG.p_integrator = new ClassicalRungeKuttaIntegrator(T / 1000);
 		}
+
+		integratorsT = T;
+		integratorsRelTolerance = relTolerance;
+		integratorsAbsTolerance = absTolerance;
+	}
+
+	// origin and tolerances the current integrators were built for
+	double integratorsT, integratorsRelTolerance, integratorsAbsTolerance;
+
+	/**
+	 * Bind the existing ODEs to the current rates and interval times instead of building new ODEs and integrators,
+	 * which is only done the first time and when the tolerances (or, for the Runge-Kutta step size, the origin) changed.
+	 */
+	void rebindIntegrators() {
+
+		if (P == null || relTolerance != integratorsRelTolerance || absTolerance != integratorsAbsTolerance
+				|| (useRKInput.get() && T != integratorsT)) {
+			setupIntegrators();
+			return;
+		}
+
+		P.updateRates(birth, ((birthAmongDemes) ? b_ij : null), death, psi, M, totalIntervals, times);
+		PG.updateRates(birth, ((birthAmongDemes) ? b_ij : null), death, psi, M, totalIntervals, T, times, P, this instanceof BirthDeathMigrationModel);
+
+		P.smoothRates = smoothRates;
+		PG.smoothRates = smoothRates;
+	}
+
+	@Override
+	public double calculateLogP() {
+
+		if (toleranceSource != null) useTolerancesOf(toleranceSource);
+		else if (!tolerancesCalibrated) calibrateTolerances();
+
+		return super.calculateLogP();
+	}
+
+	/**
+	 * Use the tolerances of another likelihood, calibrating them first if needed
+	 * @param source
+	 */
+	void useTolerancesOf(PiecewiseBirthDeathMigrationDistribution source) {
+
+		// copies may be evaluated concurrently
+		synchronized (source) {
+			if (!source.tolerancesCalibrated) source.calibrateTolerances();
+		}
+
+		relTolerance = source.relTolerance;
+		absTolerance = source.absTolerance;
+	}
+
+	// relative tolerances tried by calibrateTolerances(), from the reference to the loosest
+	static final double[] calibrationTolerances = {1e-12, 1e-10, 1e-9, 1e-8, 1e-7, 1e-6, 1e-5, 1e-4, 1e-3};
+
+	/**
+	 * Pilot evaluations at the current state with increasingly loose relative tolerances. The loosest tolerance whose
+	 * log-likelihood is within logLikelihoodAccuracy of the one at the tightest tolerance (and for which all
+	 * tighter ones are as well) is used from then on.
+	 */
+	void calibrateTolerances() {
+
+		tolerancesCalibrated = true;
+
+		double accuracy = logLikelihoodAccuracyInput.get();
+		double chosen = relativeTolerance.get();
+
+		relTolerance = calibrationTolerances[0];
+		discardCachedResults();
+		double reference = calculateTreeLogLikelihood(treeInput.get());
+
+		if (Double.isInfinite(reference) || Double.isNaN(reference)) {
+			Log.warning.println("BDMM: tolerance calibration skipped, the likelihood of the initial state is " + reference
+					+ ". Using relTolerance=" + chosen);
+		} else {
+
+			chosen = calibrationTolerances[0];
+
+			for (int i=1; i<calibrationTolerances.length; i++) {
+
+				relTolerance = calibrationTolerances[i];
+				discardCachedResults();
+				double logL = calculateTreeLogLikelihood(treeInput.get());
+
+				if (!(Math.abs(logL - reference) < accuracy)) break;
+
+				chosen = calibrationTolerances[i];
+			}
+
+			Log.info.println("BDMM: calibrated tolerances for a log-likelihood accuracy of " + accuracy
+					+ ": relTolerance=" + chosen + ", absTolerance=" + absTolerance);
+		}
+
+		relTolerance = chosen;
+		discardCachedResults();
+	}
+
+	/**
+	 * Forget results kept from earlier evaluations, which are only valid for the tolerances they were computed with
+	 */
+	void discardCachedResults() {
+	}
+
+	// number of times a segment that could not be integrated by columns is halved before giving up
+	static final int maxColumnSplitDepth = 8;
+
+	/**
+	 * Integrate PG between to and from within one interval. The ge values are scaled into the range of double and
+	 * integrated together (the common case); the segment is only integrated again by columns if this is found to be
+	 * unsafe, i.e. if scaling would set the smallest ge values to zero, or if the integration fails, underflows or
+	 * returns values that are not finite. With integrateByColumns, every segment is integrated by columns.
+	 * @param PG
+	 * @param to
+	 * @param PG0 values at time to
+	 * @param from
+	 * @return values at time from
+	 */
+	p0ge_InitialConditions integrateSegment(p0ge_ODE PG, double to, p0ge_InitialConditions PG0, double from) {
+
+		if (!integrateAllByColumns && SmallNumberScaler.fitsInDouble(PG0.conditionsOnG)) {
+
+			try {
+				IntegrationWorkspace workspace = getWorkspace(PG0.conditionsOnP.length);
+
+				// pgScaled contains the set of initial conditions scaled made to fit the requirements on the values 'double' can represent. It also contains the factor by which the numbers were multiplied
+				ScaledNumbers pgScaled = workspace.scaled;
+				SmallNumberScaler.scale(PG0, pgScaled, workspace.mantissas, workspace.exponents);
+				safeIntegrate(PG, to, pgScaled, from);
+
+				// 'unscale' values in integrationResults so as to retrieve accurate values after the integration.
+				p0ge_InitialConditions result = SmallNumberScaler.unscale(pgScaled.getEquation(), pgScaled.getScalingFactor());
+
+				if (isFinite(result) && !underflowed(PG0, result)) return result;
+
+			} catch (MaxCountExceededException e) {
+				// the evaluation budget is exhausted, integrating again would not help
+				throw e;
+			} catch (RuntimeException e) {
+				// integrated again below
+			}
+		}
+
+		return integrateByColumns(PG, to, PG0, from, 0);
+	}
+
+	/**
+	 * Integrate PG between to and from without putting all ge values into the range of one double.
+	 * Given p0, the ge equations are linear in ge, so the result is the sum over j of ge_j(to) times the solution
+	 * started from the j-th unit vector. Each of those is integrated on its own, and the sum is formed in SmallNumber
+	 * arithmetic, so that no ge value is lost however far apart their orders of magnitude are.
+	 * If a column still cannot be integrated, the segment is halved.
+	 * @param PG
+	 * @param to
+	 * @param PG0 values at time to
+	 * @param from
+	 * @param depth number of times the segment has been halved
+	 * @return values at time from
+	 */
+	p0ge_InitialConditions integrateByColumns(p0ge_ODE PG, double to, p0ge_InitialConditions PG0, double from, int depth) {
+
+		int n = PG0.conditionsOnP.length;
+
+		double[] pConditions = null;
+		SmallNumber[] geConditions = new SmallNumber[n];
+		for (int i=0; i<n; i++) geConditions[i] = new SmallNumber();
+
+		try {
+
+			for (int j=0; j<n; j++) {
+
+				// p0 is needed even if all ge are zero
+				if (PG0.conditionsOnG[j].getMantissa() == 0 && (pConditions != null || j < n-1)) continue;
+
+				// the j-th unit vector is its own scaled form (scaling factor 0)
+				ScaledNumbers column = getWorkspace(n).scaled;
+				double[] equation = column.getEquation();
+				System.arraycopy(PG0.conditionsOnP, 0, equation, 0, n);
+				for (int i=0; i<n; i++) equation[i+n] = (i == j) ? 1. : 0.;
+				column.setScalingFactor(0);
+
+				safeIntegrate(PG, to, column, from);
+				p0ge_InitialConditions columnResult = SmallNumberScaler.unscale(column.getEquation(), column.getScalingFactor());
+
+				if (!isFinite(columnResult))
+					throw new ArithmeticException("ge column not finite");
+
+				pConditions = columnResult.conditionsOnP;
+
+				for (int i=0; i<n; i++)
+					geConditions[i] = SmallNumber.add(geConditions[i], SmallNumber.multiply(PG0.conditionsOnG[j], columnResult.conditionsOnG[i]));
+			}
+
+		} catch (RuntimeException e) {
+
+			if (e instanceof MaxCountExceededException || depth >= maxColumnSplitDepth || Math.abs(to-from) < 2*globalPrecisionThreshold) throw e;
+
+			double middle = from + (to-from)/2;
+			return integrateByColumns(PG, middle, integrateByColumns(PG, to, PG0, middle, depth+1), from, depth+1);
+		}
+
+		return new p0ge_InitialConditions(pConditions, geConditions);
+	}
+
+	/**
+	 * Same as integrateSegment(PG, to, PG0, from), for values kept in a row of a PartialsArena, which are overwritten
+	 * with the values at time from. The row is only read into p0ge_InitialConditions if the segment has to be
+	 * integrated by columns.
+	 * @param PG
+	 * @param to
+	 * @param arena
+	 * @param row
+	 * @param from
+	 */
+	void integrateSegment(p0ge_ODE PG, double to, PartialsArena arena, int row, double from) {
+
+		int n = arena.n;
+		IntegrationWorkspace workspace = getWorkspace(n);
+		double[] mantissas = workspace.mantissas;
+		int[] exponents = workspace.exponents;
+
+		boolean nonZeroBefore = false;
+		for (int i=0; i<n; i++) {
+			mantissas[i] = arena.getGeMantissa(row, i);
+			exponents[i] = arena.getGeExponent(row, i);
+			nonZeroBefore |= mantissas[i] != 0;
+		}
+
+		if (!integrateAllByColumns && SmallNumberScaler.fitsInDouble(mantissas, exponents, n)) {
+
+			try {
+				ScaledNumbers pgScaled = workspace.scaled;
+				double[] equation = pgScaled.getEquation();
+
+				for (int i=0; i<n; i++) equation[i] = arena.getP(row, i);
+				SmallNumberScaler.scale(pgScaled, mantissas, exponents);
+
+				safeIntegrate(PG, to, pgScaled, from);
+
+				if (isFinite(equation) && !(nonZeroBefore && geIsZero(equation))) {
+
+					// 'unscale' the values into the row, as SmallNumberScaler.unscale does
+					int factor = pgScaled.getScalingFactor();
+					for (int i=0; i<n; i++) {
+						arena.setP(row, i, equation[i]);
+						arena.setGe(row, i, SmallNumber.mantissaOf(equation[i+n]), SmallNumber.exponentOf(equation[i+n]) - factor);
+					}
+					return;
+				}
+
+			} catch (MaxCountExceededException e) {
+				// the evaluation budget is exhausted, integrating again would not help
+				throw e;
+			} catch (RuntimeException e) {
+				// integrated again below
+			}
+		}
+
+		arena.put(row, integrateByColumns(PG, to, arena.get(row), from, 0));
+	}
+
+	private static boolean isFinite(double[] equation) {
+
+		for (double value : equation) {
+			if (!Double.isFinite(value)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if all ge values (second half of the equation) are zero
+	 */
+	private static boolean geIsZero(double[] equation) {
+
+		for (int i=equation.length/2; i<equation.length; i++) {
+			if (equation[i] != 0) return false;
+		}
+		return true;
+	}
+
+	private static boolean isFinite(p0ge_InitialConditions conditions) {
+
+		for (int i=0; i<conditions.conditionsOnP.length; i++) {
+			if (!Double.isFinite(conditions.conditionsOnP[i]) || !Double.isFinite(conditions.conditionsOnG[i].getMantissa()))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if all ge values dropped to zero although some were not zero before
+	 */
+	private static boolean underflowed(p0ge_InitialConditions before, p0ge_InitialConditions after) {
+
+		boolean nonZeroBefore = false;
+		for (SmallNumber ge : before.conditionsOnG) nonZeroBefore |= ge.getMantissa() != 0;
+
+		if (!nonZeroBefore) return false;
+
+		for (SmallNumber ge : after.conditionsOnG) {
+			if (ge.getMantissa() != 0) return false;
+		}
+		return true;
 	}
 
 	/**
@@ -1040,11 +1651,11 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	 * if the interval is (arbitrarily) judged to be too big to give reliable results
 	 * @param PG
 	 * @param to
-	 * @param pgScaled
+	 * @param pgScaled initial conditions, overwritten with the values at time from
 	 * @param from
-	 * @return
+	 * @return pgScaled
 	 */
-	public static ScaledNumbers safeIntegrate(p0ge_ODE PG, double to, ScaledNumbers pgScaled, double from){
+	public ScaledNumbers safeIntegrate(p0ge_ODE PG, double to, ScaledNumbers pgScaled, double from){
 
 		// if the integration interval is too small, nothing is done (to prevent infinite looping)
 		if(Math.abs(from-to) < globalPrecisionThreshold /*(T * 1e-20)*/) return pgScaled;
@@ -1055,17 +1666,22 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 			pgScaled = safeIntegrate(PG, from + (to-from)/2, pgScaled, from);
 		} else {
 
+			double[] equation = pgScaled.getEquation();
+			int n = equation.length/2; // dimension of the ODE system
+
+			// tolerance vectors, buffers and integrator are reused by every step of the calling thread
+			IntegrationWorkspace workspace = getWorkspace(n);
+
 			//setup of the relativeTolerance and absoluteTolerance input of the adaptive integrator
-			//TODO set these two as class fields
-			double relativeToleranceConstant = 1e-7;
-			double absoluteToleranceConstant = 1e-100;
-			double[] absoluteToleranceVector = new double [2*n];
-			double[] relativeToleranceVector = new double [2*n];
+			double relativeToleranceConstant = relTolerance;
+			double absoluteToleranceConstant = absTolerance;
+			double[] absoluteToleranceVector = workspace.absoluteToleranceVector;
+			double[] relativeToleranceVector = workspace.relativeToleranceVector;
 
 			for(int i = 0; i<n; i++) {
 				absoluteToleranceVector[i] = absoluteToleranceConstant;
-				if(pgScaled.getEquation()[i+n] > 0) { // adapt absoluteTolerance to the values stored in pgScaled
-					absoluteToleranceVector[i+n] = Math.max(1e-310, pgScaled.getEquation()[i+n]*absoluteToleranceConstant);
+				if(equation[i+n] > 0) { // adapt absoluteTolerance to the values stored in pgScaled
+					absoluteToleranceVector[i+n] = Math.max(1e-310, equation[i+n]*absoluteToleranceConstant);
 				} else {
 					absoluteToleranceVector[i+n] = absoluteToleranceConstant;
 				}
@@ -1073,22 +1689,17 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 				relativeToleranceVector[i+n] = relativeToleranceConstant;
 			}
 
-			double[] integrationResults = new double[pgScaled.getEquation().length];
-			int a = pgScaled.getScalingFactor(); // store scaling factor
-			int n = pgScaled.getEquation().length/2; // dimension of the ODE system
+			// one integrator per thread, given the tolerances of this step
+			if (workspace.integrator == null)
+				workspace.integrator = new DormandPrince54Integrator(minstep, maxstep, absoluteToleranceVector, relativeToleranceVector);
+			else
+				workspace.integrator.setStepSizeControl(minstep, maxstep, absoluteToleranceVector, relativeToleranceVector);
 
+			// the integrator copies the initial conditions before it starts, so the results can be written over them
+			workspace.integrator.integrate(PG, to, equation, from, equation); // perform the integration step
 
-			FirstOrderIntegrator integrator = new DormandPrince54Integrator(minstep, maxstep, absoluteToleranceVector, relativeToleranceVector);
-			integrator.integrate(PG, to, pgScaled.getEquation(), from, integrationResults); // perform the integration step
-
-			double[] pConditions = new double[n];
-			SmallNumber[] geConditions = new SmallNumber[n];
-			for (int i = 0; i < n; i++) {
-				pConditions[i] = integrationResults[i];
-				geConditions[i] = new SmallNumber(integrationResults[i+n]);
-			}
-			pgScaled = SmallNumberScaler.scale(new p0ge_InitialConditions(pConditions, geConditions));
-			pgScaled.augmentFactor(a);
+			// scale the ge values again, the factor adds to the one of the initial conditions
+			SmallNumberScaler.rescale(pgScaled, workspace.mantissas, workspace.exponents);
 		}
 
 		return pgScaled;
@@ -1103,11 +1714,25 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 
 		int leafCount = tree.getLeafNodeCount();
 		double[] leafHeights = new double[leafCount];
-		int[] indicesSortedByLeafHeight  =new int[leafCount];
 
 		for (int i=0; i<leafCount; i++){ // get all leaf heights
 			leafHeights[i] = T - tree.getNode(i).getHeight();
 			// System.out.println(nodeHeight[i]);
+		}
+
+		return getAllInitialConditionsForP(leafHeights);
+	}
+
+	/**
+	 * @param leafHeights forward times of the leaves (the array is left unchanged)
+	 * @return p at every leaf time, in the order of leafHeights, followed by p at time 0
+	 */
+	public double[][] getAllInitialConditionsForP(double[] leafHeights){
+
+		int leafCount = leafHeights.length;
+		int[] indicesSortedByLeafHeight  =new int[leafCount];
+
+		for (int i=0; i<leafCount; i++){
 			indicesSortedByLeafHeight[i] = i;
 		}
 
@@ -1194,13 +1819,230 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 
 		updateRho();
 
+		// the rho array of the previous update may have been merged to fewer intervals
+		rho = unmergedRho;
+
 		freq = frequencies.get().getValues();
 
+		mergeIdenticalIntervals();
+
+		smoothRates = smoothRatesInput.get() ? buildSmoothRates() : null;
+
 		setupIntegrators();
 
 		return 0.;
 	}
 
+	/**
+	 * @return for each interval, the rates of all types (and pairs of types) in that interval
+	 * together with the rho-sampling probabilities at its end
+	 */
+	double[][] getIntervalParameters() {
+
+		int among = n*(n-1);
+		double[][] parameters = new double[totalIntervals][5*n + 2*among];
+
+		for (int k = 0; k < totalIntervals; k++) {
+
+			double[] values = parameters[k];
+			int v = 0;
+
+			for (int i = 0; i < n; i++) {
+				values[v++] = birth[i * totalIntervals + k];
+				values[v++] = death[i * totalIntervals + k];
+				values[v++] = psi[i * totalIntervals + k];
+				values[v++] = SAModel ? r[i * totalIntervals + k] : 0.;
+				values[v++] = rho[i * totalIntervals + k];
+			}
+
+			for (int ij = 0; ij < among; ij++) {
+				values[v++] = birthAmongDemes ? b_ij[ij * totalIntervals + k] : 0.;
+				values[v++] = M[ij * totalIntervals + k] != null ? M[ij * totalIntervals + k] : 0.;
+			}
+		}
+
+		return parameters;
+	}
+
+	/**
+	 * Canonicalize the interval grid: drop every boundary at which no rho-sampling takes place and across which
+	 * none of the rates change, so that the integration is only interrupted where the dynamics really change.
+	 * Has to be called once all rate arrays (and rho) are up to date for the current times. The merged arrays are new
+	 * arrays, so that unmergedRho is kept for the next update.
+	 */
+	void mergeIdenticalIntervals() {
+
+		boolean[] keep = new boolean[totalIntervals];
+		int kept = 0;
+
+		for (int k = 0; k < totalIntervals; k++) {
+			// the last boundary (the present) is always kept
+			keep[k] = (k == totalIntervals - 1) || !isMergeableWithNextInterval(k);
+			if (keep[k]) kept++;
+		}
+
+		if (kept == totalIntervals) return;
+
+		Double[] mergedTimes = new Double[kept];
+		for (int k = 0, l = 0; k < totalIntervals; k++) {
+			if (keep[k]) mergedTimes[l++] = times[k];
+		}
+
+		birth = mergeIntervals(birth, n, keep, kept);
+		death = mergeIntervals(death, n, keep, kept);
+		psi = mergeIntervals(psi, n, keep, kept);
+		rho = mergeIntervals(rho, n, keep, kept);
+		if (SAModel) r = mergeIntervals(r, n, keep, kept);
+		b_ij = mergeIntervals(b_ij, n*(n-1), keep, kept);
+		M = mergeIntervals(M, n*(n-1), keep, kept);
+
+		times = mergedTimes;
+		totalIntervals = kept;
+	}
+
+	/**
+	 * @param k
+	 * @return true if no rho-sampling happens at the end of interval k and all rates of interval k and k+1 are equal
+	 */
+	boolean isMergeableWithNextInterval(int k) {
+
+		int here, next;
+
+		for (int i = 0; i < n; i++) {
+
+			here = i * totalIntervals + k;
+			next = here + 1;
+
+			if (rho[here] != 0.) return false;
+
+			if (birth[here] != birth[next] || death[here] != death[next] || !psi[here].equals(psi[next]))
+				return false;
+
+			if (SAModel && !r[here].equals(r[next])) return false;
+		}
+
+		for (int ij = 0; ij < n*(n-1); ij++) {
+
+			here = ij * totalIntervals + k;
+			next = here + 1;
+
+			if (birthAmongDemes && !b_ij[here].equals(b_ij[next])) return false;
+			if (M[here] != null && !M[here].equals(M[next])) return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Remove the interval columns that are not kept from an array ordered by row (type or pair of types) and interval
+	 */
+	double[] mergeIntervals(double[] values, int rows, boolean[] keep, int kept) {
+
+		double[] merged = new double[rows * kept];
+
+		for (int i = 0; i < rows; i++) {
+			for (int k = 0, l = 0; k < totalIntervals; k++) {
+				if (keep[k]) merged[i * kept + l++] = values[i * totalIntervals + k];
+			}
+		}
+
+		return merged;
+	}
+
+	Double[] mergeIntervals(Double[] values, int rows, boolean[] keep, int kept) {
+
+		Double[] merged = new Double[rows * kept];
+
+		for (int i = 0; i < rows; i++) {
+			for (int k = 0, l = 0; k < totalIntervals; k++) {
+				if (keep[k]) merged[i * kept + l++] = values[i * totalIntervals + k];
+			}
+		}
+
+		return merged;
+	}
+
+	/**
+	 * Build one spline per type for each of birth/R0, death/becomeUninfectious and sampling rate/proportion,
+	 * with knots at the start of each of their intervals.
+	 * @return
+	 */
+	SmoothRates buildSmoothRates() {
+
+		MonotoneCubicSpline[] first = new MonotoneCubicSpline[n];
+		MonotoneCubicSpline[] second = new MonotoneCubicSpline[n];
+		MonotoneCubicSpline[] third = new MonotoneCubicSpline[n];
+
+		double[] firstValues = transform ? R0.get().getDoubleValues() : birthRate.get().getDoubleValues();
+		double[] secondValues = transform ? becomeUninfectiousRate.get().getDoubleValues() : deathRate.get().getDoubleValues();
+		double[] thirdValues = transform ? samplingProportion.get().getDoubleValues() : samplingRate.get().getDoubleValues();
+
+		for (int i=0; i<n; i++) {
+			first[i] = typeSpline(firstValues, birthChanges, birthRateChangeTimes, identicalRatesForAllTypes[0], i);
+			second[i] = typeSpline(secondValues, deathChanges, deathRateChangeTimes, identicalRatesForAllTypes[1], i);
+			third[i] = typeSpline(thirdValues, samplingChanges, samplingRateChangeTimes, identicalRatesForAllTypes[2], i);
+		}
+
+		return new SmoothRates(first, second, third, transform, (transform && SAModel) ? r : null, totalIntervals);
+	}
+
+	/**
+	 * @param values parameter values, ordered by type and time as for the piecewise-constant rates
+	 * @param nrChanges number of changes of the parameter
+	 * @param changeTimes end times of the parameter intervals
+	 * @param identical true if all types share the same values
+	 * @param state
+	 * @return spline through the values of the given type
+	 */
+	MonotoneCubicSpline typeSpline(double[] values, int nrChanges, List<Double> changeTimes, boolean identical, int state) {
+
+		int offset;
+		int count;
+
+		if (identical) {
+			offset = 0;
+			count = nrChanges + 1;
+		} else if (values.length > n) {
+			offset = (nrChanges + 1) * state;
+			count = nrChanges + 1;
+		} else {
+			offset = state;
+			count = 1;
+		}
+
+		count = Math.min(count, changeTimes.size());
+
+		double[] knots = new double[count];
+		double[] knotValues = new double[count];
+
+		for (int k=0; k<count; k++) {
+			knots[k] = (k == 0) ? 0. : changeTimes.get(k-1);
+			knotValues[k] = values[offset + k];
+		}
+
+		return new MonotoneCubicSpline(knots, knotValues);
+	}
+
+	/**
+	 * @param state
+	 * @param index index of the time interval t lies in
+	 * @param t forward time
+	 * @return birth rate of the given type at time t
+	 */
+	double getBirthRate(int state, int index, double t) {
+		return (smoothRates != null) ? smoothRates.getBirthRate(state, index, t) : birth[state * totalIntervals + index];
+	}
+
+	/**
+	 * @param state
+	 * @param index index of the time interval t lies in
+	 * @param t forward time
+	 * @return sampling rate of the given type at time t
+	 */
+	double getSamplingRate(int state, int index, double t) {
+		return (smoothRates != null) ? smoothRates.getSamplingRate(state, index, t) : psi[state * totalIntervals + index];
+	}
+
 	public void transformParameters(){
 
 		transformWithinParameters();
@@ -1284,41 +2126,109 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 		return true;
 	}
 
-	abstract class TraversalService implements Callable<p0ge_InitialConditions> {
+	/**
+	 * Traversal of a subtree on a worker thread
+	 * @param <R> result of the subtree, as returned by calculateSubtreeLikelihood
+	 */
+	abstract class TraversalService<R> implements Callable<R> {
 
 		protected Node rootSubtree;
 		protected double from;
 		protected double to;
+		protected boolean augmented;
 		protected p0ge_ODE PG;
-		protected FirstOrderIntegrator pg_integrator;
 
 		public TraversalService(Node root, double from, double to, boolean augmented) {
 			this.rootSubtree = root;
 			this.from = from;
 			this.to = to;
-			this.setupODEs(augmented);
+			this.augmented = augmented;
 		}
 
-		private void setupODEs(boolean augmented){  // set up ODE's and integrators
+		abstract protected R calculateSubtreeLikelihoodInThread();
 
-			//TODO set minstep and maxstep to be PiecewiseBDDistr fields
-			if (minstep == null) minstep = T*1e-100;
-			if (maxstep == null) maxstep = T/10;
+		@Override
+		public R call() throws Exception {
+			// the ODE is taken from the worker thread, not set up for each task
+			PG = getThreadODE(augmented);
+			// traverse the tree in a potentially-parallelized way
+			return calculateSubtreeLikelihoodInThread();
+		}
+	}
 
-			PG = new p0ge_ODE(birth, ((birthAmongDemes) ? b_ij : null), death,psi,M, n, totalIntervals, T, times, P, maxEvaluations.get(), augmented);
+	/**
+	 * ODE system and integrator confined to a single thread and reused by every integration that thread performs
+	 */
+	static class IntegrationWorkspace {
+		p0ge_ODE PG;
+		DormandPrince54Integrator integrator;
+
+		// buffers of the integration steps, for n types
+		int n = -1;
+		double[] absoluteToleranceVector;
+		double[] relativeToleranceVector;
+		double[] mantissas;
+		int[] exponents;
+		ScaledNumbers scaled;
+
+		// checkpoints of the branch being integrated
+		p0ge_InitialConditions[] checkpoints;
+	}
 
-			p0ge_ODE.globalPrecisionThreshold = globalPrecisionThreshold;
+	private final ThreadLocal<IntegrationWorkspace> workspaces = ThreadLocal.withInitial(IntegrationWorkspace::new);
 
-			pg_integrator = new DormandPrince54Integrator(minstep, maxstep, absoluteTolerance.get(), relativeTolerance.get());
-		}
+	/**
+	 * @param n number of types
+	 * @return the workspace of the calling thread, with buffers for n types
+	 */
+	IntegrationWorkspace getWorkspace(int n) {
 
-		abstract protected p0ge_InitialConditions calculateSubtreeLikelihoodInThread();
+		IntegrationWorkspace workspace = workspaces.get();
 
-		@Override
-		public p0ge_InitialConditions call() throws Exception {
-			// traverse the tree in a potentially-parallelized way
-			return calculateSubtreeLikelihoodInThread();
+		if (workspace.n != n) {
+			workspace.n = n;
+			workspace.absoluteToleranceVector = new double[2*n];
+			workspace.relativeToleranceVector = new double[2*n];
+			workspace.mantissas = new double[n];
+			workspace.exponents = new int[n];
+			workspace.scaled = new ScaledNumbers(0, new double[2*n]);
 		}
+
+		return workspace;
+	}
+
+	/**
+	 * The array is only valid until the next call on the same thread, so the checkpoints have to be stored before.
+	 * @return an array of the calling thread for the checkpoints of one branch, by boundary index, all null
+	 */
+	p0ge_InitialConditions[] getThreadCheckpoints() {
+
+		IntegrationWorkspace workspace = workspaces.get();
+
+		if (workspace.checkpoints == null || workspace.checkpoints.length != totalIntervals)
+			workspace.checkpoints = new p0ge_InitialConditions[totalIntervals];
+		else
+			Arrays.fill(workspace.checkpoints, null);
+
+		return workspace.checkpoints;
+	}
+
+	/**
+	 * @param augmented
+	 * @return the ODE system of the calling thread, bound to the current rates
+	 */
+	p0ge_ODE getThreadODE(boolean augmented) {
+
+		IntegrationWorkspace workspace = workspaces.get();
+
+		if (workspace.PG == null)
+			workspace.PG = new p0ge_ODE(birth, ((birthAmongDemes) ? b_ij : null), death,psi,M, n, totalIntervals, T, times, P, maxEvaluations.get(), augmented);
+		else
+			workspace.PG.updateRates(birth, ((birthAmongDemes) ? b_ij : null), death,psi,M, totalIntervals, T, times, P, augmented);
+
+		workspace.PG.smoothRates = smoothRates;
+
+		return workspace.PG;
 	}
 
 }
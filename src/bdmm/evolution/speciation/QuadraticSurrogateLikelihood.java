@@ -0,0 +1,286 @@
+package bdmm.evolution.speciation;
+
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.QRDecomposition;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.linear.SingularMatrixException;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Surrogate of a BDMM log-likelihood over its rate parameters, for a fixed (or rarely changing) tree.
+ *
+ * The surrogate is a quadratic without cross terms in the (log-transformed) parameters, fitted by least squares to the
+ * most recent exact evaluations. The fit is only changed by adapt(), which a DelayedAcceptanceOperator calls at the
+ * current state before each proposal, and only for the first adaptationCalls of these calls: exact evaluations are
+ * then made, and added to the fit, while there are too few of them, outside the range of parameter values covered so
+ * far, every exactEvery calls, and after the tree has changed. calculateLogP() never changes the fit, so that it is a
+ * fixed function of the state between two calls of adapt(), and from the end of the adaptation on.
+ * It gives the quadratic within the range of parameter values covered by the fit, and the exact likelihood outside
+ * of it, or if no fit is available. Once the fit is fixed, it no longer follows changes of the tree, so the operators
+ * it screens should only change the parameters.
+ * The exact likelihood is evaluated on a copy (see PiecewiseBirthDeathMigrationDistribution.copyReplacing), as adapt()
+ * and calculateLogP() are called within proposals, outside of the store/restore cycle of the MCMC.
+ */
+@Description("Quadratic surrogate of a BirthDeathMigrationModel(Uncoloured) log-likelihood over its rate parameters, fitted online " +
+		"from exact evaluations during the first adaptationCalls proposals and fixed from then on. Meant as approximateLikelihood " +
+		"of a DelayedAcceptanceOperator; the likelihood given here is evaluated on a copy, so it may be the one of the posterior.")
+public class QuadraticSurrogateLikelihood extends Distribution {
+
+	public Input<PiecewiseBirthDeathMigrationDistribution> likelihoodInput = new Input<>("likelihood", "exact likelihood the surrogate is fitted to", Input.Validate.REQUIRED);
+
+	public Input<List<Function>> parametersInput = new Input<>("parameter", "parameters the surrogate is a function of", new ArrayList<>());
+
+	public Input<Boolean> logTransformInput = new Input<>("logTransform", "fit in the logarithm of the (positive) parameters (default true)", true);
+
+	public Input<Integer> maxPointsInput = new Input<>("maxPoints", "number of most recent exact evaluations the surrogate is fitted to (default 200)", 200);
+
+	public Input<Integer> exactEveryInput = new Input<>("exactEvery", "while adapting, add an exact evaluation at least every this many calls of adapt (default 20)", 20);
+
+	public Input<Integer> adaptationCallsInput = new Input<>("adaptationCalls", "number of calls of adapt (i.e. of proposals screened) during which " +
+			"the fit is updated; it is fixed from then on, and states sampled before should be discarded as burn-in (default 10000)", 10000);
+
+	PiecewiseBirthDeathMigrationDistribution likelihood;
+
+	int dimension;
+
+	// ring buffer of exact evaluations
+	double[][] points;
+	double[] values;
+	int pointCount, nextPoint;
+
+	// fitted coefficients: constant, linear and quadratic terms in the parameters centered on 'center'
+	double[] coefficients;
+	double[] center;
+	double[] lower, upper;
+
+	int callsSinceExact;
+	long adaptations;
+
+	// node heights and parents of the tree the points were evaluated on
+	double[] treeHeights;
+	int[] treeParents;
+
+	@Override
+	public void initAndValidate() {
+
+		likelihood = likelihoodInput.get().copyReplacing(new IdentityHashMap<>());
+
+		if (parametersInput.get().isEmpty())
+			throw new RuntimeException("Error in surrogate setup: at least one parameter is needed.");
+
+		dimension = 0;
+		for (Function parameter : parametersInput.get()) dimension += parameter.getDimension();
+
+		points = new double[maxPointsInput.get()][dimension];
+		values = new double[maxPointsInput.get()];
+
+		if (maxPointsInput.get() < 2*(1 + 2*dimension))
+			throw new RuntimeException("Error in surrogate setup: maxPoints must be at least " + 2*(1 + 2*dimension) + " for " + dimension + " parameter dimensions.");
+	}
+
+	/**
+	 * The quadratic at the current state if it is covered by the fit, the exact likelihood otherwise.
+	 * Does not change the fit.
+	 */
+	@Override
+	public double calculateLogP() {
+
+		double[] x = currentPoint();
+
+		if (coefficients == null || !covered(x)) {
+			logP = likelihood.calculateLogP();
+			return logP;
+		}
+
+		logP = predict(x);
+		return logP;
+	}
+
+	/**
+	 * Update the fit at the current state, unless the adaptation is over. To be called between proposals only, so
+	 * that the surrogate is the same function of the state at the start and at the end of a proposal.
+	 */
+	public void adapt() {
+
+		if (adaptations >= adaptationCallsInput.get()) return;
+		adaptations++;
+
+		if (treeChanged()) clear();
+
+		callsSinceExact++;
+
+		double[] x = currentPoint();
+
+		if (coefficients == null || callsSinceExact >= exactEveryInput.get() || !covered(x)) {
+
+			double exact = likelihood.calculateLogP();
+
+			callsSinceExact = 0;
+
+			if (!Double.isInfinite(exact) && !Double.isNaN(exact)) {
+				addPoint(x, exact);
+				fit();
+			}
+		}
+	}
+
+	/**
+	 * @return true once the fit is fixed
+	 */
+	public boolean isAdapted() {
+		return adaptations >= adaptationCallsInput.get();
+	}
+
+	/**
+	 * Forget all exact evaluations
+	 */
+	public void clear() {
+		pointCount = 0;
+		nextPoint = 0;
+		coefficients = null;
+	}
+
+	double[] currentPoint() {
+
+		double[] x = new double[dimension];
+
+		int i = 0;
+		for (Function parameter : parametersInput.get()) {
+			for (int j=0; j<parameter.getDimension(); j++) {
+				double value = parameter.getArrayValue(j);
+				x[i++] = logTransformInput.get() ? Math.log(value) : value;
+			}
+		}
+		return x;
+	}
+
+	void addPoint(double[] x, double value) {
+
+		System.arraycopy(x, 0, points[nextPoint], 0, dimension);
+		values[nextPoint] = value;
+
+		nextPoint = (nextPoint + 1) % points.length;
+		pointCount = Math.min(pointCount + 1, points.length);
+	}
+
+	/**
+	 * Least-squares fit of the quadratic, only once there are twice as many points as coefficients
+	 */
+	void fit() {
+
+		int terms = 1 + 2*dimension;
+
+		if (pointCount < 2*terms) {
+			coefficients = null;
+			return;
+		}
+
+		center = new double[dimension];
+		lower = new double[dimension];
+		upper = new double[dimension];
+
+		for (int d=0; d<dimension; d++) {
+			lower[d] = Double.POSITIVE_INFINITY;
+			upper[d] = Double.NEGATIVE_INFINITY;
+			for (int p=0; p<pointCount; p++) {
+				center[d] += points[p][d]/pointCount;
+				lower[d] = Math.min(lower[d], points[p][d]);
+				upper[d] = Math.max(upper[d], points[p][d]);
+			}
+		}
+
+		Array2DRowRealMatrix design = new Array2DRowRealMatrix(pointCount, terms);
+		ArrayRealVector response = new ArrayRealVector(values, 0, pointCount);
+
+		for (int p=0; p<pointCount; p++) {
+			design.setEntry(p, 0, 1.);
+			for (int d=0; d<dimension; d++) {
+				double z = points[p][d] - center[d];
+				design.setEntry(p, 1 + d, z);
+				design.setEntry(p, 1 + dimension + d, z*z);
+			}
+		}
+
+		try {
+			RealVector solution = new QRDecomposition(design).getSolver().solve(response);
+			coefficients = solution.toArray();
+		} catch (SingularMatrixException e) {
+			// e.g. a parameter that did not change, exact evaluations continue until the points span all dimensions
+			coefficients = null;
+		}
+	}
+
+	double predict(double[] x) {
+
+		double value = coefficients[0];
+		for (int d=0; d<dimension; d++) {
+			double z = x[d] - center[d];
+			value += coefficients[1 + d]*z + coefficients[1 + dimension + d]*z*z;
+		}
+		return value;
+	}
+
+	/**
+	 * @param x
+	 * @return true if x lies within the range of the points in every dimension
+	 */
+	boolean covered(double[] x) {
+
+		for (int d=0; d<dimension; d++) {
+			if (x[d] < lower[d] || x[d] > upper[d]) return false;
+		}
+		return true;
+	}
+
+	boolean treeChanged() {
+
+		TreeInterface tree = likelihood.treeInput.get();
+		int nodeCount = tree.getNodeCount();
+
+		boolean changed = false;
+
+		if (treeHeights == null || treeHeights.length != nodeCount) {
+			treeHeights = new double[nodeCount];
+			treeParents = new int[nodeCount];
+			changed = true;
+		}
+
+		for (int i=0; i<nodeCount; i++) {
+
+			double height = tree.getNode(i).getHeight();
+			int parent = tree.getNode(i).isRoot() ? -1 : tree.getNode(i).getParent().getNr();
+
+			if (height != treeHeights[i] || parent != treeParents[i]) {
+				treeHeights[i] = height;
+				treeParents[i] = parent;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	@Override
+	public List<String> getArguments() {
+		return null;
+	}
+
+	@Override
+	public List<String> getConditions() {
+		return null;
+	}
+
+	@Override
+	public void sample(State state, Random random) {
+	}
+}
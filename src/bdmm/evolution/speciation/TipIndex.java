@@ -0,0 +1,176 @@
+package bdmm.evolution.speciation;
+
+import beast.base.evolution.tree.TraitSet;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.parameter.IntegerParameter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Per-tip quantities that only change with the tip types, the tip dates or the interval grid: the type of every tip,
+ * whether it is rho-sampled, and the index of the interval it is sampled in. All arrays are indexed by node number.
+ *
+ * Each group remembers the values it was computed from and is only recomputed when one of them differs. The tips are
+ * only scanned for changed heights (or types) while the tree (or tipTypeArray) is being changed, and once more after
+ * a restore that discarded such a change. A likelihood evaluated outside of that cycle has to forget() them first.
+ */
+class TipIndex {
+
+	// type of each tip, -1 if unknown
+	int[] types;
+	boolean typesValid;
+
+	// trait set, type label or tip type array the types were last read from
+	private Object typesSource;
+
+	boolean[] rhoTip;
+	private boolean rhoTipHeightsKnown;
+	private double[] rhoTipHeights;
+	private double rhoTipT = Double.NaN;
+	private Double[] rhoTipTimes;
+	private Double[] rhoTipRho;
+
+	int[] intervalIndex;
+	private boolean intervalHeightsKnown;
+	private double[] intervalHeights;
+	private double intervalT = Double.NaN;
+	private Double[] intervalTimes;
+
+	// whether the tree or the tip types were being changed since the last store
+	private boolean treeChanging, typesChanging;
+
+	TipIndex(int leafCount) {
+
+		types = new int[leafCount];
+		rhoTip = new boolean[leafCount];
+		rhoTipHeights = new double[leafCount];
+		intervalIndex = new int[leafCount];
+		intervalHeights = new double[leafCount];
+	}
+
+	/**
+	 * @param typesSource trait set, type label or tip type array the types are read from
+	 * @param tipTypeArray tip types given as parameter, null if the types are read from traits or tree metadata
+	 * @param tree
+	 * @return true if the types have to be (re)read
+	 */
+	boolean typesChanged(Object typesSource, IntegerParameter tipTypeArray, TreeInterface tree) {
+
+		boolean changing = tipTypeArray != null ? tipTypeArray.somethingIsDirty()
+				: !(typesSource instanceof TraitSet) && tree.somethingIsDirty(); // types stored in the tree
+		typesChanging |= changing;
+
+		boolean changed = !typesValid || changing || !Objects.equals(typesSource, this.typesSource);
+		this.typesSource = typesSource;
+
+		// the rho-tip flags depend on the types
+		if (changed) rhoTipT = Double.NaN;
+
+		return changed;
+	}
+
+	/**
+	 * @return true if the rho-tip flags have to be recomputed for these values (which are then remembered)
+	 */
+	boolean rhoTipsChanged(TreeInterface tree, double T, Double[] times, Double[] rho) {
+
+		boolean changed = T != rhoTipT || !Arrays.equals(times, rhoTipTimes) || !Arrays.equals(rho, rhoTipRho);
+
+		if (!rhoTipHeightsKnown || treeChanging(tree)) {
+			changed = heightsChanged(tree, rhoTipHeights) || changed;
+			rhoTipHeightsKnown = true;
+		}
+
+		if (changed) {
+			rhoTipT = T;
+			rhoTipTimes = times.clone();
+			rhoTipRho = rho.clone();
+		}
+		return changed;
+	}
+
+	/**
+	 * @return true if the interval indices have to be recomputed for these values (which are then remembered)
+	 */
+	boolean intervalIndicesChanged(TreeInterface tree, double T, Double[] times) {
+
+		boolean changed = T != intervalT || !Arrays.equals(times, intervalTimes);
+
+		if (!intervalHeightsKnown || treeChanging(tree)) {
+			changed = heightsChanged(tree, intervalHeights) || changed;
+			intervalHeightsKnown = true;
+		}
+
+		if (changed) {
+			intervalT = T;
+			intervalTimes = times.clone();
+		}
+		return changed;
+	}
+
+	private boolean treeChanging(TreeInterface tree) {
+
+		boolean changing = tree.somethingIsDirty();
+		treeChanging |= changing;
+		return changing;
+	}
+
+	void store() {
+		treeChanging = false;
+		typesChanging = false;
+	}
+
+	/**
+	 * The tree or the tip types may have been restored to other values than the ones last seen
+	 */
+	void restore() {
+
+		if (treeChanging) {
+			rhoTipHeightsKnown = false;
+			intervalHeightsKnown = false;
+		}
+		if (typesChanging) typesValid = false;
+
+		treeChanging = false;
+		typesChanging = false;
+	}
+
+	/**
+	 * The tree or the tip types may have changed without being seen while they were changing, e.g. by a likelihood
+	 * that is only evaluated now and then: scan the tips again at the next evaluation
+	 */
+	void forget() {
+
+		rhoTipHeightsKnown = false;
+		intervalHeightsKnown = false;
+		typesValid = false;
+	}
+
+	private static boolean heightsChanged(TreeInterface tree, double[] heights) {
+
+		boolean changed = false;
+
+		for (int i=0; i<heights.length; i++) {
+			double height = tree.getNode(i).getHeight();
+			if (height != heights[i]) {
+				heights[i] = height;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @param rhoSamplingTimes
+	 * @return the rho-sampling times in ascending order, for binary search
+	 */
+	static double[] sortedTimes(List<Double> rhoSamplingTimes) {
+
+		double[] sorted = new double[rhoSamplingTimes.size()];
+		for (int i=0; i<sorted.length; i++) sorted[i] = rhoSamplingTimes.get(i);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+}
@@ -0,0 +1,98 @@
+package bdmm.math;
+
+import beast.base.core.Description;
+
+import java.util.Arrays;
+
+@Description("Monotone piecewise cubic Hermite interpolant (Fritsch-Carlson) through a small set of knots. " +
+		"The interpolant never overshoots the knot values, so positive rates stay positive. " +
+		"Outside the knot range the value of the nearest knot is returned.")
+public class MonotoneCubicSpline {
+
+	// knot positions (strictly increasing) and values
+	double[] x;
+	double[] y;
+
+	// derivatives of the interpolant at the knots
+	double[] m;
+
+	public MonotoneCubicSpline(double[] x, double[] y) {
+
+		if (x.length != y.length || x.length == 0)
+			throw new RuntimeException("Incorrect initialization: spline needs as many knot values as knot positions (and at least one knot)");
+
+		for (int i=1; i<x.length; i++) {
+			if (!(x[i] > x[i-1]))
+				throw new RuntimeException("Incorrect initialization: spline knot positions must be strictly increasing");
+		}
+
+		this.x = x;
+		this.y = y;
+		this.m = new double[x.length];
+
+		if (x.length > 1) computeSlopes();
+	}
+
+	/**
+	 * Fritsch-Carlson slopes: start from the three-point estimates and limit them
+	 * so that the interpolant is monotone on every interval between two knots.
+	 */
+	private void computeSlopes() {
+
+		int k = x.length;
+		double[] delta = new double[k-1];
+
+		for (int i=0; i<k-1; i++)
+			delta[i] = (y[i+1] - y[i]) / (x[i+1] - x[i]);
+
+		m[0] = delta[0];
+		m[k-1] = delta[k-2];
+		for (int i=1; i<k-1; i++)
+			m[i] = (delta[i-1]*delta[i] <= 0) ? 0. : (delta[i-1] + delta[i]) / 2;
+
+		for (int i=0; i<k-1; i++) {
+
+			if (delta[i] == 0) {
+				m[i] = 0.;
+				m[i+1] = 0.;
+				continue;
+			}
+
+			double alpha = m[i] / delta[i];
+			double beta = m[i+1] / delta[i];
+			double tau = alpha*alpha + beta*beta;
+
+			if (tau > 9) {
+				tau = 3 / Math.sqrt(tau);
+				m[i] = tau * alpha * delta[i];
+				m[i+1] = tau * beta * delta[i];
+			}
+		}
+	}
+
+	public double value(double t) {
+
+		int k = x.length;
+
+		if (k == 1 || t <= x[0]) return y[0];
+		if (t >= x[k-1]) return y[k-1];
+
+		int i = Arrays.binarySearch(x, t);
+		if (i >= 0) return y[i];
+		i = -i - 2; // x[i] < t < x[i+1]
+
+		double h = x[i+1] - x[i];
+		double s = (t - x[i]) / h;
+		double s2 = s*s;
+		double s3 = s2*s;
+
+		return (2*s3 - 3*s2 + 1) * y[i]
+				+ (s3 - 2*s2 + s) * h * m[i]
+				+ (-2*s3 + 3*s2) * y[i+1]
+				+ (s3 - s2) * h * m[i+1];
+	}
+
+	public int getKnotCount() {
+		return x.length;
+	}
+}
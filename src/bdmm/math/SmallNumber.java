@@ -45,38 +45,45 @@ public class SmallNumber {
 	 * @param num
 	 */
 	public SmallNumber(double num){
+		this.mantissa = mantissaOf(num);
+		this.exponent = exponentOf(num);
+	}
+
+	/**
+	 * @param num
+	 * @return the mantissa of new SmallNumber(num), without creating the object
+	 */
+	public static double mantissaOf(double num){
 		if (Double.isInfinite(num))
 			throw new RuntimeException("Unauthorized number (Infinity) used for conversion into SmallNumber");
-		if (num == 0){
-			this.mantissa = 0;
-			this.exponent = 0;
-		} else {
-			int numExponent = Math.getExponent(num);
+		if (num == 0)
+			return 0;
 
+		int numExponent = Math.getExponent(num);
 
-			if(numExponent > 0) {
-				// instead of doing nothing in case of positive exponent, we decide to scale it as well
-				this.mantissa = num *Math.pow(2, -numExponent);
-				this.exponent = numExponent;
-			} else {
-				
-				// similar approach as in method SmallNumberScaler.multiplyByPowerOfTwo()
-				if(-numExponent>180)
-					this.mantissa = num *Math.pow(2, -numExponent);
-				else {
-					int temporaryExponent = numExponent;
-					while(-temporaryExponent>30) {
-						num = num*(1<<30);
-						temporaryExponent+=30;
-					}
-					num = num*(1<<(-temporaryExponent));
-					this.mantissa = num;
-				}
-				
-				this.exponent = numExponent;
+		if(numExponent > 0) {
+			// instead of doing nothing in case of positive exponent, we decide to scale it as well
+			return num *Math.pow(2, -numExponent);
+		}
 
-			}
-		}		
+		// similar approach as in method SmallNumberScaler.multiplyByPowerOfTwo()
+		if(-numExponent>180)
+			return num *Math.pow(2, -numExponent);
+
+		int temporaryExponent = numExponent;
+		while(-temporaryExponent>30) {
+			num = num*(1<<30);
+			temporaryExponent+=30;
+		}
+		return num*(1<<(-temporaryExponent));
+	}
+
+	/**
+	 * @param num
+	 * @return the exponent of new SmallNumber(num), without creating the object
+	 */
+	public static int exponentOf(double num){
+		return (num == 0) ? 0 : Math.getExponent(num);
 	}
 
 	/**
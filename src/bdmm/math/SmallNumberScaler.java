@@ -37,44 +37,112 @@ public class SmallNumberScaler {
 			throw new RuntimeException("Incorrect input (null) in method scale");
 
 		int n = conditions.getConditionsOnP().length;
-		SmallNumber[] geConditions = conditions.getConditionsOnG();
 
-		// scalingFactors will store the scaling factor chosen for the ge equations in the array 'geConditions'.
-		int scalingFactor = 0;
-		double[] scaledEquation = new double[2*n];
+		ScaledNumbers scaled = new ScaledNumbers(0, new double[2*n]);
+		scale(conditions, scaled, new double[n], new int[n]);
+
+		return scaled;
+	}
+
+	/**
+	 * Same as scale(conditions), without creating any object.
+	 * @param conditions
+	 * @param scaled receives the scaling factor and the scaled values, its equation must be of length 2n
+	 * @param mantissas buffer of length n at least
+	 * @param exponents buffer of length n at least
+	 */
+	public static void scale(p0ge_InitialConditions conditions, ScaledNumbers scaled, double[] mantissas, int[] exponents) {
+
+		int n = conditions.getConditionsOnP().length;
+		SmallNumber[] geConditions = conditions.getConditionsOnG();
+		double[] scaledEquation = scaled.getEquation();
 
 		// the first half of 'scaledEquations' contains the initial conditions for p equations, no scaling process is needed there
-		for (int i=0; i<n; i++){
-			scaledEquation[i] = conditions.getConditionsOnP()[i];
+		System.arraycopy(conditions.getConditionsOnP(), 0, scaledEquation, 0, n);
+
+		for (int i=0; i<geConditions.length; i++) {
+			mantissas[i] = geConditions[i].getMantissa();
+			exponents[i] = geConditions[i].getExponent();
+		}
+
+		scaled.setScalingFactor(scaleGe(mantissas, exponents, geConditions.length, scaledEquation));
+	}
+
+	/**
+	 * Same as scale(conditions, scaled, mantissas, exponents), for ge values given as mantissas and exponents.
+	 * The p values (first half of the equation of scaled) are left as they are.
+	 * @param scaled receives the scaling factor and the scaled ge values, its equation must be of length 2n
+	 * @param mantissas mantissas of the n ge values, overwritten
+	 * @param exponents exponents of the n ge values, overwritten
+	 */
+	public static void scale(ScaledNumbers scaled, double[] mantissas, int[] exponents) {
+
+		double[] scaledEquation = scaled.getEquation();
+
+		scaled.setScalingFactor(scaleGe(mantissas, exponents, scaledEquation.length/2, scaledEquation));
+	}
+
+	/**
+	 * Scale the ge values (second half of the equation) of scaled again in place, as scale() would after converting
+	 * them to SmallNumbers, and add the new scaling factor to the one already in scaled.
+	 * @param scaled
+	 * @param mantissas buffer of length n at least
+	 * @param exponents buffer of length n at least
+	 */
+	public static void rescale(ScaledNumbers scaled, double[] mantissas, int[] exponents) {
+
+		double[] equation = scaled.getEquation();
+		int n = equation.length/2;
+
+		for (int i=0; i<n; i++) {
+			mantissas[i] = SmallNumber.mantissaOf(equation[i+n]);
+			exponents[i] = SmallNumber.exponentOf(equation[i+n]);
 		}
 
-		if (geConditions.length > 0) {
+		scaled.augmentFactor(scaleGe(mantissas, exponents, n, equation));
+	}
+
+	/**
+	 * Store the ge values given by mantissas and exponents into the second half of scaledEquation, increased by
+	 * the scaling factor chosen for them.
+	 * @param mantissas
+	 * @param exponents
+	 * @param n number of ge values
+	 * @param scaledEquation
+	 * @return the scaling factor
+	 */
+	private static int scaleGe(double[] mantissas, int[] exponents, int n, double[] scaledEquation) {
 
-			// initialization of minExponent and maxExponent with geConditions[idx] =0 would cause issues with further determination of the scale factor. So, we go look at the first value that is not zero, if it exists.
+		// scalingFactors will store the scaling factor chosen for the ge equations
+		int scalingFactor = 0;
+
+		if (n > 0) {
+
+			// initialization of minExponent and maxExponent with a zero value would cause issues with further determination of the scale factor. So, we go look at the first value that is not zero, if it exists.
 			int idx = 0;
 			while(idx < (n-1)){
-				if (geConditions[idx].getMantissa()==0) idx++;
+				if (mantissas[idx]==0) idx++;
 				else break;
 			}
-			int maxExponent = geConditions[idx].getExponent();
-			int minExponent = geConditions[idx].getExponent();
+			int maxExponent = exponents[idx];
+			int minExponent = exponents[idx];
 
 			// look for the highest and lowest orders of magnitude for values in 'equation'
 			if (n > idx){
 				for (int i=idx; i< n; i++) {
 
 					// only non-zero numbers are taken into account
-					if (geConditions[i].getMantissa()!=0) {
-						if (geConditions[i].getExponent() > maxExponent) {
-							maxExponent = geConditions[i].getExponent();
-						} else if (geConditions[i].getExponent() < minExponent) {
-							minExponent = geConditions[i].getExponent();
+					if (mantissas[i]!=0) {
+						if (exponents[i] > maxExponent) {
+							maxExponent = exponents[i];
+						} else if (exponents[i] < minExponent) {
+							minExponent = exponents[i];
 						}
 					}
 				}
 			}
 
-			// if the range of values in the initial conditions - 'geConditions' - does not exceed the size of the window of values authorized by 'double' type,
+			// if the range of values in the initial conditions does not exceed the size of the window of values authorized by 'double' type,
 			// a scale factor is chosen and all input values will see their order of magnitude increased by this factor.
 			if ((maxExponent - minExponent)< safeGapMinMaxDouble) {
 
@@ -88,8 +156,8 @@ public class SmallNumberScaler {
 				// finally, store in scaledEquation the corresponding numbers, increased by scalingFactor orders of magnitude.
 				// scaledEquation[] is of type double[]
 				for (int i=0; i<n;i++)
-					scaledEquation[i+n] = multiplyByPowerOfTwo(geConditions[i].getMantissa(), geConditions[i].getExponent() + scalingFactor);
-				
+					scaledEquation[i+n] = multiplyByPowerOfTwo(mantissas[i], exponents[i] + scalingFactor);
+
 
 
 				// else, then it is impossible to fit all values from the array in the window allowed for 'double' type.
@@ -97,34 +165,36 @@ public class SmallNumberScaler {
 				// NOTE: The implementation below is computationally expensive and naive. However, this part deals with an extreme case, that would hardly ever occur.
 				// Keeping it naive and expensive allows for simplification of the much more frequent case (above).
 			} else {
-				// work on a copy of geConditions[]
-				SmallNumber[] eqcopy = new SmallNumber[n];
+				// work on a copy of the values
+				double[] mantissaCopy = new double[n];
+				int[] exponentCopy = new int[n];
+
+				System.arraycopy(mantissas, 0, mantissaCopy, 0, n);
+				System.arraycopy(exponents, 0, exponentCopy, 0, n);
 
-				for (int i = 0; i< n; i++ ){
-					eqcopy[i] = geConditions[i];
-				}
 				while ((maxExponent - minExponent) >= safeGapMinMaxDouble) {
 
 					// set smallest values to zero
 					for (int i=0; i< n; i++) {
-						if (eqcopy[i].getExponent() == minExponent) {
-							eqcopy[i] = new SmallNumber(0);
+						if (exponentCopy[i] == minExponent) {
+							mantissaCopy[i] = 0;
+							exponentCopy[i] = 0;
 						}
 					}
 
 					// re-initialize the value of minExponent
 					idx = 0;
-					while(eqcopy[idx].getMantissa()==0 && (idx < n)){
+					while(mantissaCopy[idx]==0 && (idx < n)){
 						idx++;
 					}
-					minExponent = eqcopy[idx].getExponent();
+					minExponent = exponentCopy[idx];
 
 					for (int i=idx; i< n; i++) {
 
 						// only non-zero numbers are taken into account
-						if (eqcopy[i].getMantissa()!=0) {
-							if (eqcopy[i].getExponent() < minExponent) {
-								minExponent = eqcopy[i].getExponent();
+						if (mantissaCopy[i]!=0) {
+							if (exponentCopy[i] < minExponent) {
+								minExponent = exponentCopy[i];
 							}
 						}
 					}
@@ -137,12 +207,60 @@ public class SmallNumberScaler {
 				// finally, store in scaledEquation the corresponding numbers, increased by scalingFactor orders of magnitude.
 				// scaledEquation[] is of type double[]
 				for (int i=0; i<n;i++)
-					scaledEquation[i+n] = multiplyByPowerOfTwo(eqcopy[i].getMantissa(), eqcopy[i].getExponent() + scalingFactor);
-				
+					scaledEquation[i+n] = multiplyByPowerOfTwo(mantissaCopy[i], exponentCopy[i] + scalingFactor);
+
 			}
 		}
 
-		return new ScaledNumbers(scalingFactor, scaledEquation);
+		return scalingFactor;
+	}
+
+	/**
+	 * @param numbers
+	 * @return true if scale() can represent all the numbers as doubles, i.e. without setting the smallest ones to zero
+	 */
+	public static boolean fitsInDouble(SmallNumber[] numbers) {
+
+		boolean found = false;
+		int maxExponent = 0;
+		int minExponent = 0;
+
+		for (SmallNumber number : numbers) {
+
+			// only non-zero numbers are taken into account
+			if (number.getMantissa() == 0) continue;
+
+			if (!found || number.getExponent() > maxExponent) maxExponent = number.getExponent();
+			if (!found || number.getExponent() < minExponent) minExponent = number.getExponent();
+			found = true;
+		}
+
+		return (maxExponent - minExponent) < safeGapMinMaxDouble;
+	}
+
+	/**
+	 * Same as fitsInDouble(SmallNumber[]), for numbers given as mantissas and exponents
+	 * @param mantissas
+	 * @param exponents
+	 * @param n number of values
+	 * @return
+	 */
+	public static boolean fitsInDouble(double[] mantissas, int[] exponents, int n) {
+
+		boolean found = false;
+		int maxExponent = 0;
+		int minExponent = 0;
+
+		for (int i=0; i<n; i++) {
+
+			if (mantissas[i] == 0) continue;
+
+			if (!found || exponents[i] > maxExponent) maxExponent = exponents[i];
+			if (!found || exponents[i] < minExponent) minExponent = exponents[i];
+			found = true;
+		}
+
+		return (maxExponent - minExponent) < safeGapMinMaxDouble;
 	}
 
 	/**
@@ -0,0 +1,91 @@
+package bdmm.math;
+
+import beast.base.core.Description;
+
+@Description("Continuous-time birth, death and sampling rates of every type, given by one monotone spline per type " +
+		"and per parameter. With 'transform' the splines describe R0, becomeUninfectiousRate and samplingProportion, " +
+		"and the rates are obtained from them at each time point.")
+public class SmoothRates {
+
+	MonotoneCubicSpline[] first;  // birth rate or R0
+	MonotoneCubicSpline[] second; // death rate or becomeUninfectiousRate
+	MonotoneCubicSpline[] third;  // sampling rate or samplingProportion
+
+	boolean transform;
+
+	// piecewise-constant removal probabilities (only used when transforming with sampled ancestors)
+	Double[] r;
+	int intervals;
+
+	int dimension;
+
+	public SmoothRates(MonotoneCubicSpline[] first, MonotoneCubicSpline[] second, MonotoneCubicSpline[] third,
+					   boolean transform, Double[] r, int intervals) {
+
+		this.first = first;
+		this.second = second;
+		this.third = third;
+		this.transform = transform;
+		this.r = r;
+		this.intervals = intervals;
+		this.dimension = first.length;
+	}
+
+	/**
+	 * Fill b, d and s with the birth, death and sampling rates of all types at time t
+	 * @param t forward time
+	 * @param index index of the (piecewise-constant) time interval t lies in
+	 * @param b
+	 * @param d
+	 * @param s
+	 */
+	public void getRates(double t, int index, double[] b, double[] d, double[] s) {
+
+		for (int i=0; i<dimension; i++) {
+
+			if (!transform) {
+				b[i] = first[i].value(t);
+				d[i] = second[i].value(t);
+				s[i] = third[i].value(t);
+			}
+			else {
+				double becomeUninfectious = second[i].value(t);
+				double proportion = third[i].value(t);
+
+				b[i] = first[i].value(t) * becomeUninfectious;
+
+				if (r == null) {
+					s[i] = proportion * becomeUninfectious;
+					d[i] = becomeUninfectious - s[i];
+				} else {
+					double removal = r[i*intervals + index];
+					s[i] = proportion * becomeUninfectious / (1 + (removal-1)*proportion);
+					d[i] = becomeUninfectious - s[i]*removal;
+				}
+			}
+		}
+	}
+
+	public double getBirthRate(int state, int index, double t) {
+
+		double birth = first[state].value(t);
+		return transform ? birth * second[state].value(t) : birth;
+	}
+
+	public double getSamplingRate(int state, int index, double t) {
+
+		if (!transform) return third[state].value(t);
+
+		double becomeUninfectious = second[state].value(t);
+		double proportion = third[state].value(t);
+
+		if (r == null) return proportion * becomeUninfectious;
+
+		double removal = r[state*intervals + index];
+		return proportion * becomeUninfectious / (1 + (removal-1)*proportion);
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+}
@@ -0,0 +1,42 @@
+package bdmm.math;
+
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+
+/**
+ * p0 equations together with the logarithm of the growth factor of each ge equation, for the augmented
+ * (coloured) system. There the ge equations have no coupling between types, ge_i' = c_i(t, p) ge_i, so that
+ * ge_i(t) = ge_i(t0) exp(L_i(t)) with L_i' = c_i(t, p) and L_i(t0) = 0.
+ * The derivatives are taken from an augmented p0ge_ODE evaluated at ge = 1.
+ */
+public class p0LogGe_ODE implements FirstOrderDifferentialEquations {
+
+	p0ge_ODE PG;
+	int dimension;
+
+	double[] y1, yDot1;
+
+	public p0LogGe_ODE(p0ge_ODE PG) {
+
+		if (!PG.augmented)
+			throw new RuntimeException("Incorrect initialization: ge growth factors only exist for the augmented (coloured) system");
+
+		this.PG = PG;
+		this.dimension = PG.dimension;
+		this.y1 = new double[2*dimension];
+		this.yDot1 = new double[2*dimension];
+	}
+
+	public int getDimension() {
+		return 2*dimension;
+	}
+
+	public void computeDerivatives(double t, double[] y, double[] yDot) {
+
+		System.arraycopy(y, 0, y1, 0, dimension);
+		for (int i=0; i<dimension; i++) y1[dimension+i] = 1.;
+
+		PG.computeDerivatives(t, y1, yDot1);
+
+		System.arraycopy(yDot1, 0, yDot, 0, 2*dimension);
+	}
+}
@@ -27,6 +27,10 @@ public class p0_ODE implements FirstOrderDifferentialEquations {
 	Double[] times;
 	int index;
 
+	// if set, birth, death and sampling rates are evaluated continuously instead of taken from b, d and s
+	public SmoothRates smoothRates;
+	double[] bt, dt, st;
+
 	public p0_ODE(double[] b, Double[] b_ij, double[] d, Double[] s, Double[] M, int dimension , int intervals, Double[] times) {
 
 		this.b = b;
@@ -41,14 +45,17 @@ public class p0_ODE implements FirstOrderDifferentialEquations {
 
 	}
 
-	// updateRates is not used here because a new p0_ODE is created each time PiecewiseBirthDeathMigrationDistribution.updateRates() is called (called through setUpIntegrators())
-	public void updateRates(double[] b, Double[] b_ij, double[] d, Double[] s, Double[] M, Double[] times){
+	/**
+	 * Rebind to new rates and interval times, so that one instance can be reused across likelihood evaluations
+	 */
+	public void updateRates(double[] b, Double[] b_ij, double[] d, Double[] s, Double[] M, int intervals, Double[] times){
 
 		this.b = b;
 		this.b_ij = b_ij;
 		this.d = d;
 		this.s = s;
 		this.M = M;
+		this.intervals = intervals;
 		this.times = times;
 
 	}
@@ -61,12 +68,32 @@ public class p0_ODE implements FirstOrderDifferentialEquations {
 
 		index = Utils.index(t, times, intervals); //finds the indexTimeInterval of the time interval t lies in
 		int k, l;
+		double bk, dk, sk;
+
+		if (smoothRates != null) {
+			if (bt == null) {
+				bt = new double[dimension];
+				dt = new double[dimension];
+				st = new double[dimension];
+			}
+			smoothRates.getRates(t, index, bt, dt, st);
+		}
 
 		for (int i = 0; i<dimension; i++){
 
 			k = i*intervals + index;
 
-			yDot[i] = + (b[k]+d[k]+s[k])*y[i] - d[k] - b[k]*y[i]*y[i] ;
+			if (smoothRates != null) {
+				bk = bt[i];
+				dk = dt[i];
+				sk = st[i];
+			} else {
+				bk = b[k];
+				dk = d[k];
+				sk = s[k];
+			}
+
+			yDot[i] = + (bk+dk+sk)*y[i] - dk - bk*y[i]*y[i] ;
 
 			for (int j=0; j<dimension; j++){
 
@@ -28,6 +28,13 @@ public class p0ge_InitialConditions {
 		conditionsOnG = new SmallNumber[] {new SmallNumber()};
 	}
 	
+	/**
+	 * @return a copy that can be modified without affecting this instance (SmallNumbers are not modified in place, so they are shared)
+	 */
+	public p0ge_InitialConditions copy() {
+		return new p0ge_InitialConditions(conditionsOnP.clone(), conditionsOnG.clone());
+	}
+
 	public double[] getConditionsOnP(){
 		return this.conditionsOnP;
 	}
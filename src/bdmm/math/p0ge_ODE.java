@@ -41,6 +41,10 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 	Double[] times;
 	int index;
 
+	// if set, birth, death and sampling rates are evaluated continuously instead of taken from b, d and s
+	public SmoothRates smoothRates;
+	double[] bt, dt, st;
+
 	int maxEvals;
 	public int maxEvalsUsed;
 	public static double globalPrecisionThreshold;
@@ -68,6 +72,26 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 
 	}
 
+	/**
+	 * Rebind to new rates and interval times, so that one instance can be reused across likelihood evaluations
+	 */
+	public void updateRates(double[] b, Double[] b_ij, double[] d, Double[] s, Double[] M, int intervals, double T, Double[] times, p0_ODE P, Boolean augmented){
+
+		this.b = b;
+		this.b_ij = b_ij;
+		this.d = d;
+		this.s = s;
+		this.M = M;
+		this.intervals = intervals;
+
+		this.T = T;
+		this.times = times;
+		this.P = P;
+
+		this.augmented = augmented;
+		this.birthAmongDemes = b_ij!=null;
+	}
+
 	public int getDimension() {
 		return 2*this.dimension;
 	}
@@ -78,6 +102,16 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 		index = Utils.index(t, times, intervals);
 
 		int k, l;
+		double bk, dk, sk;
+
+		if (smoothRates != null) {
+			if (bt == null) {
+				bt = new double[dimension];
+				dt = new double[dimension];
+				st = new double[dimension];
+			}
+			smoothRates.getRates(t, index, bt, dt, st);
+		}
 
 		for (int i=0; i<dimension; i++){
 
@@ -85,9 +119,19 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 
 			k = i*intervals + index;
 
-			gDot[i] = + (b[k]+d[k]+s[k]
-					- b[k] * g[i]) * g[i]
-					- d[k] ;
+			if (smoothRates != null) {
+				bk = bt[i];
+				dk = dt[i];
+				sk = st[i];
+			} else {
+				bk = b[k];
+				dk = d[k];
+				sk = s[k];
+			}
+
+			gDot[i] = + (bk+dk+sk
+					- bk * g[i]) * g[i]
+					- dk ;
 
 			for (int j=0; j<dimension; j++){
 
@@ -112,8 +156,8 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 			/*  ge equations: (dim .. 2*dim-1) */
 
 
-			gDot[dimension+i] = + (b[k]+d[k]+s[k]
-					- 2*b[k]*g[i])*g[dimension+i];
+			gDot[dimension+i] = + (bk+dk+sk
+					- 2*bk*g[i])*g[dimension+i];
 
 
 			for (int j=0; j<dimension; j++){
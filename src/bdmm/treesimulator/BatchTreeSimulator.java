@@ -0,0 +1,131 @@
+package bdmm.treesimulator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Simulates replicates (e.g. trees) in parallel and reproducibly.
+ *
+ * Each replicate draws all its random numbers from its own SplittableRandom stream, split in replicate order from a
+ * generator seeded once, and is simulated with a PopHistorySimulator of the thread it runs on. The results are
+ * therefore the same for a given seed whatever the number of threads.
+ */
+public class BatchTreeSimulator {
+
+    final Supplier<PopHistorySimulator> simulatorFactory;
+    final int threads;
+
+    // replicates are handed to the threads in chunks of this many, in order
+    static final int chunkSize = 64;
+
+    // number of chunks per thread simulated ahead of the consumer of the replicates
+    static final int chunksAheadPerThread = 2;
+
+    /**
+     * @param simulatorFactory creates identically configured simulators, one per thread
+     * @param threads
+     */
+    public BatchTreeSimulator(Supplier<PopHistorySimulator> simulatorFactory, int threads) {
+        this.simulatorFactory = simulatorFactory;
+        this.threads = Math.max(1, threads);
+    }
+
+    public BatchTreeSimulator(Supplier<PopHistorySimulator> simulatorFactory) {
+        this(simulatorFactory, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param replicates number of replicates
+     * @param seed
+     * @param replicate simulates one replicate with a simulator whose generator has been set to the replicate's stream,
+     *                  e.g. simulator -> simulator.buildTipTypedTreeFromStructuredPopHistory(simulator.SimulatePopHistory(100), false)
+     * @param <T>
+     * @return the replicates, in order
+     */
+    public <T> List<T> simulate(int replicates, long seed, Function<PopHistorySimulator, T> replicate) {
+        List<T> results = new ArrayList<>(replicates);
+        simulate(replicates, seed, replicate, results::add);
+        return results;
+    }
+
+    /**
+     * Simulate replicates and hand each of them to a consumer, e.g. a TreeWriter, without keeping them. Only a few
+     * chunks of replicates per thread are simulated ahead of the consumer, so that memory does not grow with the
+     * number of replicates.
+     * @param replicates number of replicates
+     * @param seed
+     * @param replicate simulates one replicate, see simulate(int, long, Function)
+     * @param consumer called with the replicates in order, on the calling thread
+     * @param <T>
+     */
+    public <T> void simulate(int replicates, long seed, Function<PopHistorySimulator, T> replicate, Consumer<? super T> consumer) {
+
+        SplittableRandom root = new SplittableRandom(seed);
+        ThreadLocal<PopHistorySimulator> simulators = ThreadLocal.withInitial(simulatorFactory);
+
+        if (threads == 1) {
+            for (int from = 0; from < replicates; from += chunkSize)
+                simulateChunk(streams(root, from, replicates), simulators, replicate).forEach(consumer);
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            Deque<Future<List<T>>> chunks = new ArrayDeque<>();
+            int from = 0;
+
+            while (from < replicates || !chunks.isEmpty()) {
+                // the streams are split on this thread, in replicate order
+                while (from < replicates && chunks.size() < chunksAheadPerThread * threads) {
+                    SplittableRandom[] streams = streams(root, from, replicates);
+                    chunks.add(executor.submit(() -> simulateChunk(streams, simulators, replicate)));
+                    from += streams.length;
+                }
+
+                chunks.poll().get().forEach(consumer);
+            }
+
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Batch simulation was interrupted");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static SplittableRandom[] streams(SplittableRandom root, int from, int replicates) {
+        SplittableRandom[] streams = new SplittableRandom[Math.min(chunkSize, replicates - from)];
+        for (int r = 0; r < streams.length; r++) streams[r] = root.split();
+        return streams;
+    }
+
+    private static <T> List<T> simulateChunk(SplittableRandom[] streams, ThreadLocal<PopHistorySimulator> simulators,
+                                             Function<PopHistorySimulator, T> replicate) {
+
+        PopHistorySimulator simulator = simulators.get();
+        List<T> results = new ArrayList<>(streams.length);
+
+        for (SplittableRandom stream : streams) {
+            simulator.setRandom(stream);
+            results.add(replicate.apply(simulator));
+        }
+
+        return results;
+    }
+}
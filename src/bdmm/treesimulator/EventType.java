@@ -17,4 +17,19 @@ public class EventType {
         this.demeAffected = demeAffected;
         this.demeTarget = demeTarget;
     }
+
+    public Event getEvent() {
+        return typeOfEvent;
+    }
+
+    public int getDemeAffected() {
+        return demeAffected;
+    }
+
+    /**
+     * @return the deme a migration leads to
+     */
+    public int getDemeTarget() {
+        return demeTarget;
+    }
 }
@@ -1,13 +1,34 @@
 package bdmm.treesimulator;
 
+import beast.base.util.Randomizer;
+
 import java.util.*;
 
+/**
+ * Event log of a simulated population. Each event is kept as its time and a single int packing the event type
+ * and the demes involved; population sizes are not stored per event but reconstructed by replaying the events
+ * (forwards or backwards) from the closest of the snapshots taken every checkpointInterval events.
+ */
 public class PopHistory {
 
     final int numberOfDemes;
-    Vector<Double> timingOfEvents;
-    Vector<EventType> eventsWithType;
-    Vector<int[]> popSizesThroughTime;
+
+    double[] timingOfEvents;
+    int[] packedEvents;
+    int eventCount = 0;
+
+    // events simulated after the last sample and discarded by truncateAfterLastSample
+    int truncatedEventCount = 0;
+
+    // population sizes before the first event, and after every checkpointInterval events
+    List<int[]> checkpoints = new ArrayList<>();
+    static final int checkpointInterval = 1 << 16;
+
+    int[] currentPopSize;
+
+    // population sizes after event cursorIndex (-1 for before the first event), for reading the history
+    int[] cursorPopSize;
+    int cursorIndex;
 
     int currentTotalPopSize = 1; // start with one individual by default
     int numberOfSamplesTaken = 0;
@@ -16,67 +37,104 @@ public class PopHistory {
 
     boolean verbose = false;
 
+    static final Event[] eventTypes = Event.values();
+    static final int demeBits = 14;
+    static final int demeMask = (1 << demeBits) - 1;
+
     public PopHistory() {
         numberOfDemes = 1;
-        timingOfEvents = new Vector(defaultVectorSize);
-        eventsWithType = new Vector<>(defaultVectorSize);
-        popSizesThroughTime = new Vector<>(defaultVectorSize);
-
-        popSizesThroughTime.add(new int[]{1});
+        initLog(defaultVectorSize, new int[]{1});
     }
 
     public PopHistory(int endConditionOnNumberOfTips) {
         numberOfDemes = 1;
-        timingOfEvents = new Vector(endConditionOnNumberOfTips * 3);
-        eventsWithType = new Vector<>(endConditionOnNumberOfTips * 3);
-        popSizesThroughTime = new Vector<>(endConditionOnNumberOfTips * 3);
-
-        popSizesThroughTime.add(new int[]{1});
+        initLog(endConditionOnNumberOfTips * 3, new int[]{1});
     }
 
     public PopHistory(int endConditionOnNumberOfTips, int numOfDemes, double[] frequencies) {
+        this(endConditionOnNumberOfTips, numOfDemes, frequencies, new SplittableRandom(Randomizer.nextLong()));
+    }
+
+    /**
+     * @param endConditionOnNumberOfTips
+     * @param numOfDemes
+     * @param frequencies probabilities of the deme of the first individual
+     * @param random generator the deme of the first individual is drawn with
+     */
+    public PopHistory(int endConditionOnNumberOfTips, int numOfDemes, double[] frequencies, SplittableRandom random) {
         numberOfDemes = numOfDemes;
-        timingOfEvents = new Vector(endConditionOnNumberOfTips * 3);
-        eventsWithType = new Vector<>(endConditionOnNumberOfTips * 3);
-        popSizesThroughTime = new Vector(endConditionOnNumberOfTips * 3);
+
+        if (numberOfDemes > demeMask)
+            throw new RuntimeException("PopHistory supports at most " + demeMask + " demes.");
 
         int[] initialPop = new int[numberOfDemes];
 
         int ancestorType = 0;
-        double randomValue = Math.random();
+        double randomValue = random.nextDouble();
         // draw the type of the first individual in the population
         while(randomValue > frequencies[ancestorType]) {
             randomValue -= frequencies[ancestorType];
             ancestorType ++;
         }
 
-        for (int i = 0; i < numberOfDemes-1; i++) {
-            initialPop[i] = 0;
-        }
         initialPop[ancestorType] = 1;
-        popSizesThroughTime.add(initialPop);
+        initLog(endConditionOnNumberOfTips * 3, initialPop);
+    }
+
+    /**
+     * @param endConditionOnNumberOfTips
+     * @param numOfDemes
+     * @param ancestorType deme of the first individual
+     */
+    public PopHistory(int endConditionOnNumberOfTips, int numOfDemes, int ancestorType) {
+        numberOfDemes = numOfDemes;
+
+        if (numberOfDemes > demeMask)
+            throw new RuntimeException("PopHistory supports at most " + demeMask + " demes.");
+
+        int[] initialPop = new int[numberOfDemes];
+        initialPop[ancestorType] = 1;
+        initLog(endConditionOnNumberOfTips * 3, initialPop);
+    }
+
+    private void initLog(int capacity, int[] initialPop) {
+        timingOfEvents = new double[Math.max(capacity, 16)];
+        packedEvents = new int[Math.max(capacity, 16)];
+
+        checkpoints.add(initialPop.clone());
+        currentPopSize = initialPop;
     }
 
     public void addEvent(EventType event, double elapsedTime) {
-        timingOfEvents.add(elapsedTime);
-        eventsWithType.add(event);
+        addEvent(event.typeOfEvent, event.demeAffected, event.demeTarget, elapsedTime);
+    }
+
+    public void addEvent(Event event, int demeAffected, int demeTarget, double elapsedTime) {
+
+        if (eventCount == packedEvents.length) {
+            int capacity = eventCount + (eventCount >> 1);
+            timingOfEvents = Arrays.copyOf(timingOfEvents, capacity);
+            packedEvents = Arrays.copyOf(packedEvents, capacity);
+        }
 
-        updatePopSize(event);
+        timingOfEvents[eventCount] = elapsedTime;
+        packedEvents[eventCount] = event.ordinal() | (demeAffected << 4) | (demeTarget << (4 + demeBits));
+        eventCount++;
+
+        updatePopSize(event, demeAffected, demeTarget);
+
+        if (eventCount % checkpointInterval == 0) checkpoints.add(currentPopSize.clone());
     }
 
-    public void updatePopSize(EventType event) {
-        int[] popSize = popSizesThroughTime.lastElement().clone();
-        switch(event.typeOfEvent) {
+    void updatePopSize(Event event, int demeAffected, int demeTarget) {
+        switch(event) {
             case BIRTH:
-                popSize[event.demeAffected] += 1;
                 currentTotalPopSize += 1;
                 break;
             case DEATH:
-                popSize[event.demeAffected] -= 1;
                 currentTotalPopSize -= 1;
                 break;
             case SAMPLING: // assume prob of removal upon sampling to be 1
-                popSize[event.demeAffected] -= 1;
                 currentTotalPopSize -= 1;
                 numberOfSamplesTaken += 1;
                 if(verbose) {
@@ -90,28 +148,128 @@ public class PopHistory {
                 }
                 break;
             case MIGRATION:
-                popSize[event.demeAffected] -= 1;
-                popSize[event.demeTarget] += 1;
                 if(verbose) {
-                    System.out.println("Migration event. From deme " + event.demeAffected + "to deme "+ event.demeTarget + "Total pop sampled: " + numberOfSamplesTaken);
+                    System.out.println("Migration event. From deme " + demeAffected + "to deme "+ demeTarget + "Total pop sampled: " + numberOfSamplesTaken);
                 }
                 break;
             default:
-                throw new RuntimeException("Event type not implemented yet: " + event.typeOfEvent);
+                throw new RuntimeException("Event type not implemented yet: " + event);
         }
-        popSizesThroughTime.add(popSize);
+        applyEvent(currentPopSize, packedEvents[eventCount - 1], 1);
 
         if(verbose) {
             System.out.println("Total pop size: " + currentTotalPopSize);
         }
     }
 
+    /**
+     * Apply (sign 1) or undo (sign -1) the change of the population sizes caused by an event
+     */
+    private static void applyEvent(int[] popSize, int packedEvent, int sign) {
+
+        int demeAffected = (packedEvent >>> 4) & demeMask;
+
+        switch(eventTypes[packedEvent & 0xF]) {
+            case BIRTH:
+                popSize[demeAffected] += sign;
+                break;
+            case DEATH:
+            case SAMPLING:
+                popSize[demeAffected] -= sign;
+                break;
+            case SAMPLINGWITHOUTREMOVAL:
+                break;
+            case MIGRATION:
+                popSize[demeAffected] -= sign;
+                popSize[(packedEvent >>> (4 + demeBits)) & demeMask] += sign;
+                break;
+        }
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return number of events simulated, including those discarded after the last sample
+     */
+    public int getSimulatedEventCount() {
+        return eventCount + truncatedEventCount;
+    }
+
+    public double getEventTime(int eventIndex) {
+        return timingOfEvents[eventIndex];
+    }
+
+    public Event getEvent(int eventIndex) {
+        return eventTypes[packedEvents[eventIndex] & 0xF];
+    }
+
+    public int getDemeAffected(int eventIndex) {
+        return (packedEvents[eventIndex] >>> 4) & demeMask;
+    }
+
+    /**
+     * @param eventIndex
+     * @return the deme a migration event leads to
+     */
+    public int getDemeTarget(int eventIndex) {
+        return (packedEvents[eventIndex] >>> (4 + demeBits)) & demeMask;
+    }
+
+    /**
+     * Population size of a deme just after an event. Reading the events in order (in either direction) costs
+     * constant time per event.
+     * @param eventIndex index of the event, -1 for the initial population
+     * @param deme
+     * @return
+     */
+    public int getPopSizeAfterEvent(int eventIndex, int deme) {
+
+        if (cursorPopSize == null || Math.abs(eventIndex - cursorIndex) > checkpointInterval) {
+            int checkpoint = (eventIndex + 1) / checkpointInterval;
+            cursorPopSize = checkpoints.get(checkpoint).clone();
+            cursorIndex = checkpoint * checkpointInterval - 1;
+        }
+
+        while (cursorIndex < eventIndex) applyEvent(cursorPopSize, packedEvents[++cursorIndex], 1);
+        while (cursorIndex > eventIndex) applyEvent(cursorPopSize, packedEvents[cursorIndex--], -1);
+
+        return cursorPopSize[deme];
+    }
+
+    /**
+     * Discard the events after the last sampling event, which do not affect the sampled tree
+     */
+    public void truncateAfterLastSample() {
+
+        int newEventCount = eventCount;
+        while (newEventCount > 0 && getEvent(newEventCount - 1) != Event.SAMPLING
+                && getEvent(newEventCount - 1) != Event.SAMPLINGWITHOUTREMOVAL)
+            newEventCount--;
+
+        if (newEventCount == eventCount) return;
+
+        currentTotalPopSize = 0;
+        for (int i = 0; i < numberOfDemes; i++) {
+            currentPopSize[i] = getPopSizeAfterEvent(newEventCount - 1, i);
+            currentTotalPopSize += currentPopSize[i];
+        }
+
+        while (checkpoints.size() > 1 && (checkpoints.size() - 1) * checkpointInterval > newEventCount)
+            checkpoints.remove(checkpoints.size() - 1);
+
+        truncatedEventCount += eventCount - newEventCount;
+        eventCount = newEventCount;
+        cursorPopSize = null;
+    }
+
     public int getCurrentTotalPopSize(){
         return currentTotalPopSize;
     }
 
     public int[] getCurrentPopSize(){
-        return popSizesThroughTime.lastElement();
+        return currentPopSize;
     }
 
     public int getNumberOfSamplesTaken(){
@@ -119,16 +277,14 @@ public class PopHistory {
     }
 
     public String toString() {
-        String globalRes = "";
+        StringBuilder globalRes = new StringBuilder();
         for (int i = 0; i < numberOfDemes; i++) {
-            String result = "Pop size through time for deme " + i + "\n";
-            for(int[] sizes: popSizesThroughTime){
-                result += sizes[i];
-                result +=  " ";
+            globalRes.append("Pop size through time for deme ").append(i).append("\n");
+            for (int e = -1; e < eventCount; e++) {
+                globalRes.append(getPopSizeAfterEvent(e, i)).append(" ");
             }
-            globalRes += result;
         }
 
-        return globalRes;
+        return globalRes.toString();
     }
 }
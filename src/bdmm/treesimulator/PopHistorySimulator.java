@@ -5,8 +5,12 @@ import beast.base.evolution.tree.Tree;
 import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 import multitypetree.evolution.tree.MultiTypeTree;
+import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomDataGenerator;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
 
 import static beast.base.util.Binomial.choose2;
 
@@ -14,7 +18,7 @@ public class PopHistorySimulator {
 
     final int numberOfDemes;
 
-    // not allowing for rate changes
+    // rates of the current interval
     final double[] birthRate;
     final double[] deathRate;
     final double[] psiSamplingRate;
@@ -24,391 +28,816 @@ public class PopHistorySimulator {
     boolean sampledAncestors;
     final double[] removalProbs;
 
+    // start times of the intervals of piecewise-constant rates, and the rates in each of them:
+    // per deme at [deme*intervalCount + k], migration from i to j at [(i*(numberOfDemes-1) + (j<i ? j : j-1))*intervalCount + k]
+    final double[] intervalTimes;
+    final int intervalCount;
+    final double[] birthRateSchedule;
+    final double[] deathRateSchedule;
+    final double[] psiSamplingRateSchedule;
+    final double[] migrationRateSchedule;
+    final double[] removalProbsSchedule;
+    int currentInterval;
+
+    // rho-sampling times, and sampling probability of each deme at each of them at [deme*rhoSamplingTimes.length + r]
+    double[] rhoSamplingTimes = new double[0];
+    double[] rhoSamplingProbs = new double[0];
+    int nextRhoSampling;
+
+    // time at which the simulation stops (the present), infinite to stop at a number of samples instead
+    double endTime = Double.POSITIVE_INFINITY;
+
     boolean verbose = false;
 
-    //TODO clean up the duplicated code
+    // per-deme cumulative per-capita rates of the event channels, and their totals
+    double[][] cumulativeChannelRates;
+    double[] perCapitaRate;
 
-    public PopHistorySimulator(double birthRate, double deathRate, double psiSamplingRate) {
-        this.birthRate = new double[]{birthRate};
-        this.deathRate = new double[]{deathRate};
-        this.psiSamplingRate = new double[]{psiSamplingRate};
-        this.migrationRate = new double[]{};
+    // propensity of each deme (per-capita rate times population size) for the history being simulated
+    final PropensityTree propensities;
+    PopHistory trackedPopHistory;
+    int trackedEventCount;
+
+    // tau-leaping of births, deaths and migrations once the total population reaches tauLeapingThreshold (0: never),
+    // and as long as every deme with events has at least tauLeapingThreshold individuals
+    int tauLeapingThreshold = 0;
+    double tauLeapingEpsilon = 0.03;
+
+    // a leap is only taken if at least this many events are expected during it, otherwise one exact step is made
+    static final double minEventsPerLeap = 10;
+
+    RandomDataGenerator poissonGenerator;
 
-        this.frequencies = new double[]{1};
-        this.sampledAncestors = false;
-        this.removalProbs = new double[]{0};
-        this.numberOfDemes = 1;
+    // source of all random numbers of the simulation and of the tree reconstruction, seeded from BEAST's Randomizer by default
+    SplittableRandom random = new SplittableRandom(Randomizer.nextLong());
+
+    // simulation conditioned on leaving a sample, created at the first simulation for the current end time and rho-sampling
+    boolean conditionOnSurvival = false;
+    SurvivalConditionedSimulation survivalConditioning;
+
+    // histories and events simulated, and those discarded for not reaching the number of samples
+    long simulatedHistories = 0;
+    long rejectedHistories = 0;
+    long simulatedEvents = 0;
+    long rejectedEvents = 0;
+
+    public PopHistorySimulator(double birthRate, double deathRate, double psiSamplingRate) {
+        this(1, new double[]{0}, new double[]{birthRate}, new double[]{deathRate}, new double[]{psiSamplingRate},
+                new double[]{}, new double[]{1}, false, new double[]{1});
     }
 
     public PopHistorySimulator(int numberOfDemes,
                                double[] birthRate, double[] deathRate, double[] psiSamplingRate, double[] migrationRate,
                                double[] frequencies, boolean sampledAncestors, double[] removalProbs) {
+        this(numberOfDemes, new double[]{0}, birthRate, deathRate, psiSamplingRate, migrationRate,
+                frequencies, sampledAncestors, removalProbs);
+    }
+
+    /**
+     * Simulator with piecewise-constant rates. Rates given per deme (or per pair of demes for migration) are the same
+     * in all intervals, otherwise they are given for each interval, in the order used by
+     * PiecewiseBirthDeathMigrationDistribution: all intervals of the first deme, then of the second, etc.
+     * @param numberOfDemes
+     * @param intervalTimes start times of the intervals, forwards in time from the start of the population, the first being 0
+     * @param birthRate
+     * @param deathRate
+     * @param psiSamplingRate
+     * @param migrationRate migration rates between different demes, flattened without the diagonal
+     * @param frequencies probabilities of the deme of the first individual
+     * @param sampledAncestors whether sampled individuals can stay in the population
+     * @param removalProbs probabilities that sampled individuals are removed from the population
+     */
+    public PopHistorySimulator(int numberOfDemes, double[] intervalTimes,
+                               double[] birthRate, double[] deathRate, double[] psiSamplingRate, double[] migrationRate,
+                               double[] frequencies, boolean sampledAncestors, double[] removalProbs) {
         this.numberOfDemes = numberOfDemes;
         this.frequencies = frequencies;
 
-        this.birthRate = birthRate;
-        this.deathRate = deathRate;
-        this.psiSamplingRate = psiSamplingRate;
-        this.migrationRate = migrationRate;
+        if (intervalTimes.length == 0 || intervalTimes[0] != 0)
+            throw new RuntimeException("The first interval time of the simulation should be zero.");
+        for (int k = 1; k < intervalTimes.length; k++)
+            if (intervalTimes[k] <= intervalTimes[k - 1])
+                throw new RuntimeException("Interval times of the simulation should be increasing.");
+
+        this.intervalTimes = intervalTimes;
+        this.intervalCount = intervalTimes.length;
+
+        int pairs = numberOfDemes * (numberOfDemes - 1);
+        this.birthRateSchedule = schedule(birthRate, numberOfDemes, "birth rate");
+        this.deathRateSchedule = schedule(deathRate, numberOfDemes, "death rate");
+        this.psiSamplingRateSchedule = schedule(psiSamplingRate, numberOfDemes, "sampling rate");
+        this.migrationRateSchedule = pairs > 0 ? schedule(migrationRate, pairs, "migration rate") : new double[0];
+
         this.sampledAncestors = sampledAncestors;
-        if(this.sampledAncestors) this.removalProbs = removalProbs;
-        else this.removalProbs = new double[numberOfDemes];
+        if(this.sampledAncestors) this.removalProbsSchedule = schedule(removalProbs, numberOfDemes, "removal probability");
+        else this.removalProbsSchedule = schedule(new double[]{1}, 1, "removal probability"); // all samples are removed
+
+        this.birthRate = new double[numberOfDemes];
+        this.deathRate = new double[numberOfDemes];
+        this.psiSamplingRate = new double[numberOfDemes];
+        this.migrationRate = new double[pairs];
+        this.removalProbs = new double[numberOfDemes];
+
+        propensities = new PropensityTree(numberOfDemes);
+        setInterval(0);
     }
 
-    public PopHistory SimulatePopHistory(int endCondition) {
+    /**
+     * @param values values per block (deme or pair of demes), the same in all intervals, or for each interval
+     * @param blocks
+     * @param name
+     * @return the values for each block and interval, at [block*intervalCount + k]
+     */
+    private double[] schedule(double[] values, int blocks, String name) {
+        if (values.length == blocks * intervalCount) return values.clone();
+
+        if (values.length == blocks || values.length == 1) {
+            double[] result = new double[blocks * intervalCount];
+            for (int b = 0; b < blocks; b++)
+                for (int k = 0; k < intervalCount; k++)
+                    result[b * intervalCount + k] = values[values.length == 1 ? 0 : b];
+            return result;
+        }
 
-        PopHistory simulatedPopHistory;
+        throw new RuntimeException("The simulation " + name + " should have " + blocks + " or " + blocks * intervalCount
+                + " values (" + blocks + " per interval), not " + values.length + ".");
+    }
 
-        do {
-            simulatedPopHistory = new PopHistory(endCondition, numberOfDemes, frequencies);
+    /**
+     * Sample each individual present at the given times with the given probability (rho-sampling)
+     * @param times increasing times, forwards from the start of the population
+     * @param probabilities sampling probabilities, the same for all demes and times, per deme, or per deme and time
+     *                      (all times of the first deme, then of the second, etc.)
+     */
+    public void setRhoSampling(double[] times, double[] probabilities) {
+        for (int r = 0; r < times.length; r++)
+            if (times[r] <= 0 || (r > 0 && times[r] <= times[r - 1]))
+                throw new RuntimeException("Rho-sampling times should be positive and increasing.");
+
+        double[] rhoProbs = new double[numberOfDemes * times.length];
+        for (int i = 0; i < numberOfDemes; i++) {
+            for (int r = 0; r < times.length; r++) {
+                if (probabilities.length == numberOfDemes * times.length)
+                    rhoProbs[i * times.length + r] = probabilities[i * times.length + r];
+                else if (probabilities.length == numberOfDemes)
+                    rhoProbs[i * times.length + r] = probabilities[i];
+                else if (probabilities.length == 1)
+                    rhoProbs[i * times.length + r] = probabilities[0];
+                else
+                    throw new RuntimeException("There should be 1, " + numberOfDemes + " or " + numberOfDemes * times.length
+                            + " rho-sampling probabilities, not " + probabilities.length + ".");
+            }
+        }
 
-            double elapsedTime = 0;
+        rhoSamplingTimes = times.clone();
+        rhoSamplingProbs = rhoProbs;
+        survivalConditioning = null;
+    }
 
-            while (simulatedPopHistory.getCurrentTotalPopSize() > 0
-                    && simulatedPopHistory.getNumberOfSamplesTaken() < endCondition) {
+    /**
+     * Stop the simulation at a fixed time (the present) instead of at a number of samples. The number of samples
+     * given to SimulatePopHistory is then the minimal number of samples of the simulated history.
+     * @param endTime time forwards from the start of the population, infinite to stop at the number of samples
+     */
+    public void setEndTime(double endTime) {
+        this.endTime = endTime;
+        survivalConditioning = null;
+    }
 
-                elapsedTime += getTimeUntilNextEvent(simulatedPopHistory);
-                EventType nextEvent = getTypeOfNextEvent(simulatedPopHistory);
+    /**
+     * Simulate histories conditioned on leaving at least one sample by the end time, instead of discarding those
+     * without samples. Each individual is then marked as having sampled descendants or not, and evolves with rates
+     * weighted by the probabilities p0 of leaving no sample (see SurvivalConditionedSimulation). Histories with fewer
+     * samples than asked for are still discarded. Tau-leaping is not used in this mode.
+     * @param conditionOnSurvival
+     */
+    public void setConditionOnSurvival(boolean conditionOnSurvival) {
+        this.conditionOnSurvival = conditionOnSurvival;
+    }
 
-                if (verbose) System.out.println("Elapsed time: " + elapsedTime);
+    /**
+     * Make the rates of interval k the current ones
+     */
+    void setInterval(int k) {
+        currentInterval = k;
 
-                simulatedPopHistory.addEvent(nextEvent, elapsedTime);
-            }
+        for (int i = 0; i < numberOfDemes; i++) {
+            birthRate[i] = birthRateSchedule[i * intervalCount + k];
+            deathRate[i] = deathRateSchedule[i * intervalCount + k];
+            psiSamplingRate[i] = psiSamplingRateSchedule[i * intervalCount + k];
+            removalProbs[i] = removalProbsSchedule[(sampledAncestors ? i : 0) * intervalCount + k];
+        }
+        for (int a = 0; a < migrationRate.length; a++)
+            migrationRate[a] = migrationRateSchedule[a * intervalCount + k];
 
-            if (verbose) System.out.println("Total number of samples taken during this run: " + simulatedPopHistory.getNumberOfSamplesTaken());
+        initChannelRates();
 
-        } while(simulatedPopHistory.getNumberOfSamplesTaken() < endCondition); // repeat if sampling condition not reached
+        // the propensities of all demes are recomputed at the next draw
+        trackedPopHistory = null;
+    }
 
-        return simulatedPopHistory;
+    /**
+     * @param time
+     * @return the first time after the given one at which rates change, rho-sampling happens, or the simulation ends
+     */
+    double getNextBoundary(double time) {
+        double next = endTime;
+        if (currentInterval + 1 < intervalCount) next = Math.min(next, intervalTimes[currentInterval + 1]);
+        if (nextRhoSampling < rhoSamplingTimes.length) next = Math.min(next, rhoSamplingTimes[nextRhoSampling]);
+        return next;
     }
 
-    public double getTimeUntilNextEvent(PopHistory simPopHistory){
-        double aggregatedRate = this.getAggregatedRate(simPopHistory.getCurrentPopSize());
-        return - Math.log(1 - Math.random())/aggregatedRate; // draw timeUntilNextEvent from exponential distr
+    /**
+     * Apply the rate changes and rho-sampling events happening at the given time
+     * @param simPopHistory
+     * @param time
+     * @return false if the simulation ends at this time
+     */
+    boolean crossBoundary(PopHistory simPopHistory, double time) {
+        int interval = currentInterval;
+        while (interval + 1 < intervalCount && intervalTimes[interval + 1] <= time) interval++;
+        if (interval != currentInterval) setInterval(interval);
+
+        while (nextRhoSampling < rhoSamplingTimes.length && rhoSamplingTimes[nextRhoSampling] <= time) {
+            rhoSample(simPopHistory, nextRhoSampling, time);
+            nextRhoSampling++;
+        }
+
+        return time < endTime;
     }
 
-    public EventType getTypeOfNextEvent(PopHistory simPopHistory){
-        double rand = Math.random();
-        double aggregatedRate = 0;
-        double totalAggregatedRate = getAggregatedRate(simPopHistory.getCurrentPopSize());
+    /**
+     * Sample each individual with the rho-sampling probability of its deme. Sampled individuals are removed with the
+     * removal probability of their deme; those staying in the population are added to the history after the removed
+     * ones, so that they only become sampled ancestors of lineages sampled later.
+     */
+    void rhoSample(PopHistory simPopHistory, int rhoIndex, double time) {
+        RandomDataGenerator poissonGenerator = getPoissonGenerator();
 
         int[] popSize = simPopHistory.getCurrentPopSize();
+        int[] kept = new int[numberOfDemes];
 
         for (int i = 0; i < numberOfDemes; i++) {
-            aggregatedRate += birthRate[i]*popSize[i]/totalAggregatedRate;
+            double rho = rhoSamplingProbs[i * rhoSamplingTimes.length + rhoIndex];
+            if (rho <= 0 || popSize[i] == 0) continue;
 
-            if(rand < aggregatedRate)
-                return new EventType(Event.BIRTH, i);
+            int sampled = rho >= 1 ? popSize[i] : poissonGenerator.nextBinomial(popSize[i], rho);
+            double removalProb = removalProbs[i];
+            int removed = !sampledAncestors || removalProb >= 1 ? sampled
+                    : removalProb <= 0 ? 0 : poissonGenerator.nextBinomial(sampled, removalProb);
 
-            aggregatedRate += deathRate[i]*popSize[i]/totalAggregatedRate;
+            kept[i] = sampled - removed;
+            for (int s = 0; s < removed; s++) simPopHistory.addEvent(Event.SAMPLING, i, 0, time);
+        }
 
-            if(rand < aggregatedRate)
-                return new EventType(Event.DEATH, i);
+        for (int i = 0; i < numberOfDemes; i++)
+            for (int s = 0; s < kept[i]; s++) simPopHistory.addEvent(Event.SAMPLINGWITHOUTREMOVAL, i, 0, time);
+    }
 
-            aggregatedRate += psiSamplingRate[i]*popSize[i]/totalAggregatedRate;
+    public PopHistory SimulatePopHistory(int endCondition) {
 
-            if(rand < aggregatedRate) {
-                if(sampledAncestors) {
-                    double rand2 = Math.random();
-                    if (rand2 < removalProbs[i])
-                        return new EventType(Event.SAMPLINGWITHOUTREMOVAL, i);
-                }
-                return new EventType(Event.SAMPLING, i);
+        if (conditionOnSurvival && endTime == Double.POSITIVE_INFINITY)
+            throw new RuntimeException("Conditioning the simulation on survival requires an end time.");
+
+        PopHistory simulatedPopHistory;
+
+        do {
+            if (conditionOnSurvival) {
+                if (survivalConditioning == null) survivalConditioning = new SurvivalConditionedSimulation(this);
+                simulatedPopHistory = survivalConditioning.simulate(endCondition, random);
+            } else {
+                simulatedPopHistory = simulateOnce(endCondition);
             }
-            for (int j = 0; j < numberOfDemes; j++) {
-                if(i != j){
-                    int arrayOffset = j>i? i*(numberOfDemes -1) + j-1 : i*(numberOfDemes -1) + j;
-                    aggregatedRate += migrationRate[arrayOffset] * popSize[i]/totalAggregatedRate;
-                    if(rand < aggregatedRate)
-                        return new EventType(Event.MIGRATION, i, j);
+
+            simulatedHistories++;
+            simulatedEvents += simulatedPopHistory.getSimulatedEventCount();
+            if (simulatedPopHistory.getNumberOfSamplesTaken() < endCondition) {
+                rejectedHistories++;
+                rejectedEvents += simulatedPopHistory.getSimulatedEventCount();
+            }
+
+        } while(simulatedPopHistory.getNumberOfSamplesTaken() < endCondition); // repeat if sampling condition not reached
+
+        return simulatedPopHistory;
+    }
+
+    /**
+     * Simulate one history, which may not reach the number of samples
+     */
+    private PopHistory simulateOnce(int endCondition) {
+
+        PopHistory simulatedPopHistory = new PopHistory(endCondition, numberOfDemes, frequencies, random);
+
+        setInterval(0);
+        nextRhoSampling = 0;
+
+        double elapsedTime = 0;
+
+        while (simulatedPopHistory.getCurrentTotalPopSize() > 0
+                && (endTime < Double.POSITIVE_INFINITY || simulatedPopHistory.getNumberOfSamplesTaken() < endCondition)) {
+
+            double nextBoundary = getNextBoundary(elapsedTime);
+
+            if (tauLeapingThreshold > 0 && simulatedPopHistory.getCurrentTotalPopSize() >= tauLeapingThreshold) {
+                double leapEnd = leap(simulatedPopHistory, elapsedTime, nextBoundary);
+                if (leapEnd > elapsedTime) {
+                    elapsedTime = leapEnd;
+                    if (elapsedTime >= nextBoundary && !crossBoundary(simulatedPopHistory, elapsedTime)) break;
+                    continue;
                 }
             }
 
+            double timeUntilNextEvent = getTimeUntilNextEvent(simulatedPopHistory);
+
+            if (elapsedTime + timeUntilNextEvent >= nextBoundary) {
+                // rates are constant until the boundary only, the waiting time is drawn again from there
+                if (nextBoundary == Double.POSITIVE_INFINITY)
+                    throw new RuntimeException("No more events can happen in the simulated population.");
+
+                elapsedTime = nextBoundary;
+                if (!crossBoundary(simulatedPopHistory, elapsedTime)) break;
+                continue;
+            }
+
+            elapsedTime += timeUntilNextEvent;
+            EventType nextEvent = getTypeOfNextEvent(simulatedPopHistory);
+
+            if (verbose) System.out.println("Elapsed time: " + elapsedTime);
+
+            simulatedPopHistory.addEvent(nextEvent, elapsedTime);
         }
 
-        throw new RuntimeException("A problem occurred when looking for the type of the next event.");
+        if (verbose) System.out.println("Total number of samples taken during this run: " + simulatedPopHistory.getNumberOfSamplesTaken());
+
+        // the tree only depends on the history up to the last sample
+        if (endTime < Double.POSITIVE_INFINITY) simulatedPopHistory.truncateAfterLastSample();
+
+        return simulatedPopHistory;
     }
 
-    public double getAggregatedRate(int[] popSize){
-        double aggregatedRate = 0;
+    /**
+     * @return fraction of the simulated histories that were discarded for not reaching the number of samples
+     */
+    public double getRejectionRate() {
+        return simulatedHistories == 0 ? 0 : (double) rejectedHistories / simulatedHistories;
+    }
+
+    /**
+     * @return fraction of the simulated events that were part of discarded histories
+     */
+    public double getRejectedEventFraction() {
+        return simulatedEvents == 0 ? 0 : (double) rejectedEvents / simulatedEvents;
+    }
+
+    public long getSimulatedHistoryCount() {
+        return simulatedHistories;
+    }
+
+    public long getRejectedHistoryCount() {
+        return rejectedHistories;
+    }
+
+    public void resetRejectionCounts() {
+        simulatedHistories = rejectedHistories = simulatedEvents = rejectedEvents = 0;
+    }
+
+    RandomDataGenerator getPoissonGenerator() {
+        if (poissonGenerator == null)
+            poissonGenerator = new RandomDataGenerator(new MersenneTwister(random.nextLong()));
+        return poissonGenerator;
+    }
+
+    /**
+     * Draw all further random numbers from the given generator, e.g. one stream per replicate of a batch
+     * @param random
+     */
+    public void setRandom(SplittableRandom random) {
+        this.random = random;
+        poissonGenerator = null;
+    }
+
+    public SplittableRandom getRandom() {
+        return random;
+    }
+
+    /**
+     * Simulate the births, deaths and migrations of large populations in tau-leaping batches instead of one event at
+     * a time. Sampling events stay exact. This is an approximation, whose accuracy is set by epsilon.
+     * @param threshold population size from which leaps are taken, 0 to always simulate exactly. Each leap needs the
+     *                  total population and every deme in which births, deaths or migrations can happen to be that large.
+     * @param epsilon bound on the expected relative change of the population size of a deme during a leap
+     */
+    public void setTauLeaping(int threshold, double epsilon) {
+        tauLeapingThreshold = threshold;
+        tauLeapingEpsilon = epsilon;
+    }
+
+    /**
+     * Leap (Cao, Gillespie & Petzold 2006) over the births, deaths and migrations happening before the next sampling
+     * event or within the step size allowed by tauLeapingEpsilon, whichever comes first. Population sizes are held
+     * fixed during the leap: the number of events in each channel is Poisson distributed, and the events are added
+     * to the history one by one, in random order, at uniformly distributed times within the leap. If the leap ends
+     * at the next sampling event, that event is simulated exactly.
+     * No leap is taken while a deme with events is smaller than tauLeapingThreshold (its reactions are critical, as
+     * in Cao, Gillespie & Petzold 2006), and the numbers of events are drawn again over a shorter leap if a deme could
+     * run empty before the last of its events, so that no event is added in an empty deme whatever their order.
+     * @param simPopHistory
+     * @param startTime
+     * @param maxEndTime time the leap may not go beyond, at which rates change
+     * @return the time at the end of the leap, or startTime if too few events are expected for a leap to pay off
+     */
+    double leap(PopHistory simPopHistory, double startTime, double maxEndTime) {
+
+        // updated in place as the events of the leap are added
+        int[] popSize = simPopHistory.getCurrentPopSize();
+
+        double tau = Double.POSITIVE_INFINITY;
+        double leapedRate = 0;
+        double samplingRate = 0;
+
         for (int i = 0; i < numberOfDemes; i++) {
-            aggregatedRate += (birthRate[i] + deathRate[i] + psiSamplingRate[i]) * popSize[i];
+            double outRate = perCapitaRate[i] - cumulativeChannelRates[i][2];
+
+            // critical deme: one exact step instead
+            if ((birthRate[i] + deathRate[i] + outRate) * popSize[i] > 0 && popSize[i] < tauLeapingThreshold)
+                return startTime;
+
+            double inFlow = 0;
             for (int j = 0; j < numberOfDemes; j++) {
-                if(i != j) {
-                    int arrayOffset = j>i? i*(numberOfDemes -1) + j-1 : i*(numberOfDemes -1) + j;
-                    aggregatedRate += migrationRate[arrayOffset] * popSize[i];
-                }
+                if (j != i)
+                    inFlow += migrationRate[j*(numberOfDemes -1) + (i > j ? i-1 : i)] * popSize[j];
             }
-        }
-        return aggregatedRate;
-    }
 
-    public Tree buildTreeFromPopHistory(PopHistory simulatedPopHistory) {
+            double mean = (birthRate[i] - deathRate[i] - outRate) * popSize[i] + inFlow;
+            double variance = (birthRate[i] + deathRate[i] + outRate) * popSize[i] + inFlow;
+            double bound = Math.max(tauLeapingEpsilon * popSize[i], 1);
 
-        if(numberOfDemes > 1) {
-            throw new RuntimeException("Multitype simulation impossible wiht this method.");
+            if (mean != 0) tau = Math.min(tau, bound/Math.abs(mean));
+            if (variance > 0) tau = Math.min(tau, bound*bound/variance);
+
+            leapedRate += (birthRate[i] + deathRate[i] + outRate) * popSize[i];
+            samplingRate += psiSamplingRate[i] * popSize[i];
         }
 
-        ArrayList<Node> availableNodes = new ArrayList<>();
+        tau = Math.min(tau, maxEndTime - startTime);
 
-        ArrayList<ArrayList<Node>> availableNodesPerType = new ArrayList<>();
+        if (tau * leapedRate < minEventsPerLeap) return startTime;
 
-        // check that simulation is consistent with what is expected
-        EventType lastEvent =  simulatedPopHistory.eventsWithType.lastElement();
-        if(lastEvent.typeOfEvent != Event.SAMPLING) throw new RuntimeException("Last event should be a sampling event. Something went wrong with the population simulation.");
+        // the time of the next sampling event, drawn with the population sizes at the start of the leap
+        double timeToSampling = samplingRate > 0 ? - Math.log(1 - random.nextDouble())/samplingRate : Double.POSITIVE_INFINITY;
 
-        int currentEventIndex = simulatedPopHistory.eventsWithType.size() -1; // start with the last event recorded
+        RandomDataGenerator poissonGenerator = getPoissonGenerator();
 
-        int totalNumberOfLeaves = simulatedPopHistory.getNumberOfSamplesTaken();
-        int leafID = 0; // start with leafID at 0
-        int internalNodeID = totalNumberOfLeaves;
+        // per deme: births, deaths, then migrations to each other deme
+        int channels = 2 + numberOfDemes - 1;
+        long[] counts = new long[numberOfDemes * channels];
+        long totalCount;
+        boolean samplingInLeap;
 
-        double heightOffset = simulatedPopHistory.timingOfEvents.get(currentEventIndex);
+        while (true) {
+            samplingInLeap = timeToSampling <= tau;
+            double leapLength = samplingInLeap ? timeToSampling : tau;
 
-        while(currentEventIndex > -1) {
-            EventType currentEvent = simulatedPopHistory.eventsWithType.remove(currentEventIndex);
-            double eventHeight = simulatedPopHistory.timingOfEvents.get(currentEventIndex);
+            totalCount = 0;
+            boolean negative = false;
 
-            switch(currentEvent.typeOfEvent) {
-                case SAMPLING:
-                    Node leaf = new Node();
-                    leaf.setNr(leafID);
-                    // attempt
-                    leaf.setHeight(heightOffset - eventHeight);
-                    availableNodes.add(leaf);
-                    leafID ++;
-                    break;
+            for (int i = 0; i < numberOfDemes; i++) {
+                long removed = 0;
+                for (int c = 0; c < channels; c++) {
+                    double rate = c < 2
+                            ? (c == 0 ? birthRate[i] : deathRate[i])
+                            : migrationRate[i*(numberOfDemes -1) + c - 2];
 
-                case DEATH:
-                    break;
+                    double expected = rate * popSize[i] * leapLength;
+                    long count = expected > 0 ? poissonGenerator.nextPoisson(expected) : 0;
 
-                case BIRTH:
-                    boolean coalescence = false;
-                    if (availableNodes.size() > 1) { // if more than one lineage in the stack, allow for potential coalescence
-                        coalescence = isCoalescenceEvent(availableNodes.size(),
-                                simulatedPopHistory.popSizesThroughTime.get(currentEventIndex + 1)[0]);
-                    }
+                    counts[i*channels + c] = count;
+                    totalCount += count;
+                    if (c > 0) removed += count;
+                }
+                // the deme must not run out of individuals, in whatever order the events happen: it may only become
+                // empty if it has no births, whose events could otherwise come after the last individual is removed
+                if (removed > popSize[i] || (removed == popSize[i] && counts[i*channels] > 0)) negative = true;
+            }
 
-                    if (coalescence) {
-                        // draw coalescing lineages randomly
-                        int firstLineage = Randomizer.nextInt(availableNodes.size());
-                        int secondLineage = Randomizer.nextInt(availableNodes.size() - 1);
-                        if (secondLineage == firstLineage) secondLineage = availableNodes.size() - 1; // mimick sampling without replacement
+            if (!negative && totalCount <= Integer.MAX_VALUE) {
+                tau = leapLength;
+                break;
+            }
 
-                        availableNodes = coalesceLineages(availableNodes, firstLineage, secondLineage, internalNodeID, heightOffset - eventHeight);
-                        internalNodeID ++;
-                    }
-                    break;
+            // the leap is too long: halve it. The sampling event then lies beyond it, and is drawn again after it.
+            tau = leapLength / 2;
+            timeToSampling = Double.POSITIVE_INFINITY;
+        }
 
-                default:
-                    throw new RuntimeException("Not implemented yet.");
-            }
+        // events of the leap in random order
+        int[] events = new int[(int) totalCount];
+        int e = 0;
+        for (int k = 0; k < counts.length; k++) {
+            for (long n = 0; n < counts[k]; n++) events[e++] = k;
+        }
+        for (int k = events.length - 1; k > 0; k--) {
+            int other = random.nextInt(k + 1);
+            int tmp = events[k];
+            events[k] = events[other];
+            events[other] = tmp;
+        }
 
-            currentEventIndex --;
+        // sorted uniform times within the leap, from normalised exponential spacings
+        double[] spacings = new double[events.length + 1];
+        double spacingSum = 0;
+        for (int k = 0; k < spacings.length; k++) {
+            spacings[k] = - Math.log(1 - random.nextDouble());
+            spacingSum += spacings[k];
         }
 
+        double eventTime = startTime;
+        for (int k = 0; k < events.length; k++) {
+            eventTime += tau * spacings[k] / spacingSum;
 
-        if(availableNodes.size() != 1)
-            throw new RuntimeException("There should be exactly one lineage left.");
+            int deme = events[k] / channels;
+            int channel = events[k] % channels;
 
-        // for debugging
-        Tree tree = new Tree(availableNodes.get(0));
+            if (channel == 0)
+                simPopHistory.addEvent(Event.BIRTH, deme, 0, eventTime);
+            else if (channel == 1)
+                simPopHistory.addEvent(Event.DEATH, deme, 0, eventTime);
+            else
+                simPopHistory.addEvent(Event.MIGRATION, deme, channel - 2 < deme ? channel - 2 : channel - 1, eventTime);
+        }
 
-        return new Tree(availableNodes.get(0));
-    }
+        double endTime = startTime + tau;
 
-    public MultiTypeNode buildMTTTreeFromStructuredPopHistory(PopHistory simulatedPopHistory) {
+        if (samplingInLeap) {
+            // exact sampling event at the end of the leap, in a deme drawn with the population sizes reached by then
+            samplingRate = 0;
+            for (int i = 0; i < numberOfDemes; i++) samplingRate += psiSamplingRate[i] * popSize[i];
 
-        ArrayList<ArrayList<MultiTypeNode>> availableNodesPerType = new ArrayList<>();
+            if (samplingRate == 0) return endTime;
+
+            double rand = random.nextDouble() * samplingRate;
+            int deme = -1;
+            for (int i = 0; i < numberOfDemes; i++) {
+                double weight = psiSamplingRate[i] * popSize[i];
+                if (weight <= 0) continue;
+                deme = i;
+                if (rand < weight) break;
+                rand -= weight;
+            }
+
+            Event sampling = Event.SAMPLING;
+            if (sampledAncestors && random.nextDouble() >= removalProbs[deme])
+                sampling = Event.SAMPLINGWITHOUTREMOVAL;
+
+            simPopHistory.addEvent(sampling, deme, 0, endTime);
+        }
+
+        return endTime;
+    }
+
+    /**
+     * Precompute, for each deme, the cumulative per-capita rates of its event channels: birth, death, sampling,
+     * then migration to each other deme in increasing order.
+     */
+    private void initChannelRates() {
+        cumulativeChannelRates = new double[numberOfDemes][];
+        perCapitaRate = new double[numberOfDemes];
 
         for (int i = 0; i < numberOfDemes; i++) {
-            availableNodesPerType.add(new ArrayList<>());
+            double[] cumulative = new double[3 + numberOfDemes - 1];
+            cumulative[0] = birthRate[i];
+            cumulative[1] = cumulative[0] + deathRate[i];
+            cumulative[2] = cumulative[1] + psiSamplingRate[i];
+            for (int k = 0; k < numberOfDemes - 1; k++)
+                cumulative[3 + k] = cumulative[2 + k] + migrationRate[i*(numberOfDemes -1) + k];
+
+            cumulativeChannelRates[i] = cumulative;
+            perCapitaRate[i] = cumulative[cumulative.length - 1];
+        }
+    }
+
+    /**
+     * Bring the per-deme propensities up to date with the population sizes of simPopHistory, replaying only
+     * the demes affected by the events added since the last call.
+     */
+    private void updatePropensities(PopHistory simPopHistory) {
+        int eventCount = simPopHistory.getEventCount();
+        int[] popSize = simPopHistory.getCurrentPopSize();
+
+        if (simPopHistory != trackedPopHistory || eventCount < trackedEventCount
+                || eventCount - trackedEventCount > numberOfDemes) {
+            // recomputed from scratch, so that the partial sums do not depend on earlier histories
+            for (int i = 0; i < numberOfDemes; i++)
+                propensities.weights[i] = perCapitaRate[i] * popSize[i];
+            propensities.rebuild();
+
+            trackedPopHistory = simPopHistory;
+        } else {
+            for (int e = trackedEventCount; e < eventCount; e++) {
+                int demeAffected = simPopHistory.getDemeAffected(e);
+                propensities.set(demeAffected, perCapitaRate[demeAffected] * popSize[demeAffected]);
+
+                if (simPopHistory.getEvent(e) == Event.MIGRATION) {
+                    int demeTarget = simPopHistory.getDemeTarget(e);
+                    propensities.set(demeTarget, perCapitaRate[demeTarget] * popSize[demeTarget]);
+                }
+            }
         }
 
-        // check that simulation is consistent with what is expected
-        EventType lastEvent =  simulatedPopHistory.eventsWithType.lastElement();
-        if(lastEvent.typeOfEvent != Event.SAMPLING && lastEvent.typeOfEvent != Event.SAMPLINGWITHOUTREMOVAL) throw new RuntimeException("Last event should be a sampling event. Something went wrong with the population simulation.");
+        trackedEventCount = eventCount;
+    }
 
-        int currentEventIndex = simulatedPopHistory.eventsWithType.size() -1; // start with the last event recorded
+    public double getTimeUntilNextEvent(PopHistory simPopHistory){
+        updatePropensities(simPopHistory);
+        double aggregatedRate = propensities.getTotal();
+        return - Math.log(1 - random.nextDouble())/aggregatedRate; // draw timeUntilNextEvent from exponential distr
+    }
 
-        int totalNumberOfLeaves = simulatedPopHistory.getNumberOfSamplesTaken();
-        int leafID = 0; // start with leafID at 0
-        int internalNodeID = totalNumberOfLeaves;
+    public EventType getTypeOfNextEvent(PopHistory simPopHistory){
+        double rand = random.nextDouble();
+
+        updatePropensities(simPopHistory);
+
+        // draw the deme in which the event happens, then the channel within that deme
+        int deme = propensities.find(rand * propensities.getTotal());
+        if (deme < 0) {
+            // rounding in the partial sums, recompute them and draw again with the same random number
+            propensities.rebuild();
+            deme = propensities.find(rand * propensities.getTotal());
+            if (deme < 0)
+                throw new RuntimeException("A problem occurred when looking for the type of the next event.");
+        }
 
-        double heightOffset = simulatedPopHistory.timingOfEvents.get(currentEventIndex);
+        double[] cumulative = cumulativeChannelRates[deme];
+        double perCapitaValue = propensities.remainder / simPopHistory.getCurrentPopSize()[deme];
 
-        while(currentEventIndex > -1) {
-            EventType currentEvent = simulatedPopHistory.eventsWithType.remove(currentEventIndex);
-            double eventHeight = simulatedPopHistory.timingOfEvents.get(currentEventIndex);
-            int availableLineagesForThisDeme = availableNodesPerType.get(currentEvent.demeAffected).size();
-            MultiTypeNode leaf;
+        int lo = 0, hi = cumulative.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] > perCapitaValue) hi = mid;
+            else lo = mid + 1;
+        }
+        // skip back over channels with a zero rate, which rounding could only have pushed us into at the end
+        while (lo > 0 && cumulative[lo] == cumulative[lo - 1]) lo--;
+
+        switch (lo) {
+            case 0:
+                return new EventType(Event.BIRTH, deme);
+            case 1:
+                return new EventType(Event.DEATH, deme);
+            case 2:
+                if(sampledAncestors) {
+                    double rand2 = random.nextDouble();
+                    if (rand2 >= removalProbs[deme]) // the sampled individual is not removed
+                        return new EventType(Event.SAMPLINGWITHOUTREMOVAL, deme);
+                }
+                return new EventType(Event.SAMPLING, deme);
+            default:
+                int k = lo - 3;
+                return new EventType(Event.MIGRATION, deme, k < deme ? k : k + 1);
+        }
+    }
 
+    public double getAggregatedRate(int[] popSize){
+        double aggregatedRate = 0;
+        for (int i = 0; i < numberOfDemes; i++)
+            aggregatedRate += perCapitaRate[i] * popSize[i];
+        return aggregatedRate;
+    }
 
-            switch(currentEvent.typeOfEvent) {
-                case SAMPLING:
-                    leaf = new MultiTypeNode();
-                    leaf.setNr(leafID);
-                    leaf.setNodeType(currentEvent.demeAffected);
-                    leaf.setHeight(heightOffset - eventHeight);
-                    availableNodesPerType.get(currentEvent.demeAffected).add(leaf);
-                    leafID ++;
-                    break;
+    /**
+     * Creates the nodes of a tree reconstructed from a population history, see reconstructTree
+     */
+    private interface NodeFactory<N extends Node> {
 
-                case SAMPLINGWITHOUTREMOVAL:
-                    boolean saEvent = isSampledAncestorEvent(
-                            availableNodesPerType.get(currentEvent.demeAffected).size(),
-                            simulatedPopHistory.popSizesThroughTime.get(currentEventIndex + 1)[currentEvent.demeAffected]);
-                    if (saEvent) { // sampled ancestor
-                        // draw descendant lineage
-                        int uniqueDescendant = Randomizer.nextInt(availableLineagesForThisDeme);
-                        availableNodesPerType.set(currentEvent.demeAffected,
-                                buildSampledAncestor(availableNodesPerType.get(currentEvent.demeAffected), uniqueDescendant, internalNodeID, leafID,
-                                        heightOffset - eventHeight, currentEvent.demeAffected));
-                        internalNodeID ++;
-                        leafID ++;
-                    }
-                    else { // classic sampling //TODO clean up duplication with case: SAMPLING
-                        leaf = new MultiTypeNode();
-                        leaf.setNr(leafID);
-                        leaf.setNodeType(currentEvent.demeAffected);
-                        leaf.setHeight(heightOffset - eventHeight);
-                        availableNodesPerType.get(currentEvent.demeAffected).add(leaf);
-                        leafID ++;
-                    }
-                    break;
+        N newLeaf(int nr, int deme, double height);
 
-                case DEATH:
-                    break;
+        N newInternalNode(int nr, int deme, double height);
 
-                case BIRTH:
-                    boolean coalescence = false;
-                    if (availableLineagesForThisDeme > 1) { // if more than one lineage in the stack of this deme, allow for potential coalescence
-                        coalescence = isCoalescenceEvent(availableLineagesForThisDeme,
-                                simulatedPopHistory.popSizesThroughTime.get(currentEventIndex + 1)[currentEvent.demeAffected]);
-                    }
+        /**
+         * Record that the lineage above the node was in originDeme before the given height
+         */
+        void migrate(N node, int originDeme, double height);
+    }
 
-                    if (coalescence) {
-                        // draw coalescing lineages randomly
-                        int firstLineage = Randomizer.nextInt(availableLineagesForThisDeme);
-                        int secondLineage = Randomizer.nextInt(availableLineagesForThisDeme - 1);
-                        if (secondLineage == firstLineage) secondLineage = availableLineagesForThisDeme - 1; // mimick sampling without replacement
+    private static final NodeFactory<Node> untypedNodes = new NodeFactory<Node>() {
+        public Node newLeaf(int nr, int deme, double height) {
+            return newInternalNode(nr, deme, height);
+        }
 
-                        availableNodesPerType.set(currentEvent.demeAffected, coalesceLineages(availableNodesPerType.get(currentEvent.demeAffected),
-                                firstLineage, secondLineage, internalNodeID, heightOffset - eventHeight, currentEvent.demeAffected));
-                        internalNodeID ++;
-                    }
-                    break;
+        public Node newInternalNode(int nr, int deme, double height) {
+            Node node = new Node();
+            node.setNr(nr);
+            node.setHeight(height);
+            return node;
+        }
 
-                case MIGRATION:
-                    int originDemeIndex = currentEvent.demeAffected;
-                    int demeSize = simulatedPopHistory.popSizesThroughTime.get(currentEventIndex + 1)[currentEvent.demeTarget];
-                    int numLineagesAvailable = availableNodesPerType.get(currentEvent.demeTarget).size();
-                    if(isMigrationEvent(numLineagesAvailable, demeSize)) {
-                        migrateLineage(availableNodesPerType.get(currentEvent.demeTarget),
-                                availableNodesPerType.get(currentEvent.demeAffected),
-                                originDemeIndex, heightOffset - eventHeight);
-                    }
-                    break;
+        public void migrate(Node node, int originDeme, double height) { }
+    };
+
+    /**
+     * Nodes of tip-typed trees, whose leaves carry their type (-1 in untyped trees) as metadata
+     */
+    private static NodeFactory<Node> tipTypedNodes(boolean isUntypedTree) {
+        return new NodeFactory<Node>() {
+            public Node newLeaf(int nr, int deme, double height) {
+                Node leaf = untypedNodes.newLeaf(nr, deme, height);
+                int type = isUntypedTree ? -1 : deme;
+                leaf.setMetaData("type", type);
+                leaf.metaDataString = "type=" + type;
+                return leaf;
+            }
 
-                default:
-                    throw new RuntimeException("Not implemented yet.");
+            public Node newInternalNode(int nr, int deme, double height) {
+                return untypedNodes.newInternalNode(nr, deme, height);
             }
 
-            currentEventIndex --;
+            public void migrate(Node node, int originDeme, double height) { }
+        };
+    }
+
+    private static final NodeFactory<MultiTypeNode> multiTypeNodes = new NodeFactory<MultiTypeNode>() {
+        public MultiTypeNode newLeaf(int nr, int deme, double height) {
+            return newInternalNode(nr, deme, height);
         }
 
-        int lineagesLeft = 0;
-        int ancestorDeme = 0;
-        for (int i = 0; i < numberOfDemes; i++) {
-            lineagesLeft += availableNodesPerType.get(i).size();
-            if(availableNodesPerType.get(i).size() > 0)
-                ancestorDeme = i; // keep track of the ancestor lineage
+        public MultiTypeNode newInternalNode(int nr, int deme, double height) {
+            MultiTypeNode node = new MultiTypeNode();
+            node.setNr(nr);
+            node.setHeight(height);
+            node.setNodeType(deme);
+            return node;
         }
 
+        public void migrate(MultiTypeNode node, int originDeme, double height) {
+            node.addChange(originDeme, height);
+        }
+    };
 
-        if(lineagesLeft != 1)
-            throw new RuntimeException("There should be exactly one lineage left.");
+    public Tree buildTreeFromPopHistory(PopHistory simulatedPopHistory) {
 
-        // for debugging
-        //MultiTypeTree tree = new MultiTypeTree(availableNodesPerType.get(ancestorDeme).get(0));
+        if(numberOfDemes > 1) {
+            throw new RuntimeException("Multitype simulation impossible wiht this method.");
+        }
 
-        return availableNodesPerType.get(ancestorDeme).get(0);
+        return new Tree(reconstructTree(simulatedPopHistory, untypedNodes));
+    }
+
+    public MultiTypeNode buildMTTTreeFromStructuredPopHistory(PopHistory simulatedPopHistory) {
+        return reconstructTree(simulatedPopHistory, multiTypeNodes);
     }
 
     public Node buildTipTypedTreeFromStructuredPopHistory(PopHistory simulatedPopHistory, boolean isUntypedTree) {
+        return reconstructTree(simulatedPopHistory, tipTypedNodes(isUntypedTree));
+    }
 
-        ArrayList<ArrayList<Node>> availableNodesPerType = new ArrayList<>();
+    /**
+     * Reconstruct the tree of the sampled individuals by reading the history backwards from its last event, keeping
+     * the lineages of each deme in an unordered pool. Each event costs constant time, and the history is not modified.
+     * @param simulatedPopHistory
+     * @param nodes creates the nodes of the tree
+     * @return the root of the tree
+     */
+    private <N extends Node> N reconstructTree(PopHistory simulatedPopHistory, NodeFactory<N> nodes) {
+
+        List<ArrayList<N>> lineagesPerType = new ArrayList<>();
 
         for (int i = 0; i < numberOfDemes; i++) {
-            availableNodesPerType.add(new ArrayList<>());
+            lineagesPerType.add(new ArrayList<>());
         }
 
         // check that simulation is consistent with what is expected
-        EventType lastEvent =  simulatedPopHistory.eventsWithType.lastElement();
-        if(lastEvent.typeOfEvent != Event.SAMPLING && lastEvent.typeOfEvent != Event.SAMPLINGWITHOUTREMOVAL) throw new RuntimeException("Last event should be a sampling event. Something went wrong with the population simulation.");
-
-        int currentEventIndex = simulatedPopHistory.eventsWithType.size() -1; // start with the last event recorded
+        Event lastEvent =  simulatedPopHistory.getEvent(simulatedPopHistory.getEventCount() - 1);
+        if(lastEvent != Event.SAMPLING && lastEvent != Event.SAMPLINGWITHOUTREMOVAL) throw new RuntimeException("Last event should be a sampling event. Something went wrong with the population simulation.");
 
         int totalNumberOfLeaves = simulatedPopHistory.getNumberOfSamplesTaken();
         int leafID = 0; // start with leafID at 0
         int internalNodeID = totalNumberOfLeaves;
 
-        double heightOffset = simulatedPopHistory.timingOfEvents.get(currentEventIndex);
+        double heightOffset = simulatedPopHistory.getEventTime(simulatedPopHistory.getEventCount() - 1);
 
-        while(currentEventIndex > -1) {
-            EventType currentEvent = simulatedPopHistory.eventsWithType.remove(currentEventIndex);
-            double eventHeight = simulatedPopHistory.timingOfEvents.get(currentEventIndex);
-            int availableLineagesForThisDeme = availableNodesPerType.get(currentEvent.demeAffected).size();
-            Node leaf;
+        for (int currentEventIndex = simulatedPopHistory.getEventCount() - 1; currentEventIndex > -1; currentEventIndex--) {
+            int demeAffected = simulatedPopHistory.getDemeAffected(currentEventIndex);
+            double height = heightOffset - simulatedPopHistory.getEventTime(currentEventIndex);
+            ArrayList<N> lineages = lineagesPerType.get(demeAffected);
+            int availableLineagesForThisDeme = lineages.size();
 
-            switch(currentEvent.typeOfEvent) {
+            switch(simulatedPopHistory.getEvent(currentEventIndex)) {
                 case SAMPLING:
-                    leaf = new Node();
-                    leaf.setNr(leafID);
-
-                    if (isUntypedTree) {
-                        leaf.setMetaData("type", -1);
-                        leaf.metaDataString = "type=-1";
-                    }
-                    else {
-                        leaf.setMetaData("type", currentEvent.demeAffected);
-                        leaf.metaDataString = "type=" + currentEvent.demeAffected;
-                    }
-                    //leaf.setNodeType(currentEvent.demeAffected);
-                    leaf.setHeight(heightOffset - eventHeight);
-                    availableNodesPerType.get(currentEvent.demeAffected).add(leaf);
-                    leafID ++;
+                    lineages.add(nodes.newLeaf(leafID++, demeAffected, height));
                     break;
 
                 case SAMPLINGWITHOUTREMOVAL:
-                    boolean saEvent = isSampledAncestorEvent(
-                            availableNodesPerType.get(currentEvent.demeAffected).size(),
-                            simulatedPopHistory.popSizesThroughTime.get(currentEventIndex + 1)[currentEvent.demeAffected]);
+                    boolean saEvent = isSampledAncestorEvent(availableLineagesForThisDeme,
+                            simulatedPopHistory.getPopSizeAfterEvent(currentEventIndex, demeAffected));
                     if (saEvent) { // sampled ancestor
                         // draw descendant lineage
-                        int uniqueDescendant = Randomizer.nextInt(availableLineagesForThisDeme);
-                        availableNodesPerType.set(currentEvent.demeAffected,
-                                buildSampledAncestor(availableNodesPerType.get(currentEvent.demeAffected), uniqueDescendant, internalNodeID, leafID,
-                                        heightOffset - eventHeight, currentEvent.demeAffected, isUntypedTree));
-                        internalNodeID ++;
-                        leafID ++;
+                        N uniqueChild = removeLineage(lineages, random.nextInt(availableLineagesForThisDeme));
+                        N collapsedChild = nodes.newLeaf(leafID++, demeAffected, height);
+                        lineages.add(join(nodes.newInternalNode(internalNodeID++, demeAffected, height), uniqueChild, collapsedChild));
                     }
                     else { // classic sampling
-                        leaf = new Node();
-                        leaf.setNr(leafID);
-
-                        if (isUntypedTree) {
-                            leaf.setMetaData("type", -1);
-                            leaf.metaDataString = "type=-1";
-                        }
-                        else {
-                            leaf.setMetaData("type", currentEvent.demeAffected);
-                            leaf.metaDataString = "type=" + currentEvent.demeAffected;
-                        }
-                        //leaf.setNodeType(currentEvent.demeAffected);
-                        leaf.setHeight(heightOffset - eventHeight);
-                        availableNodesPerType.get(currentEvent.demeAffected).add(leaf);
-                        leafID ++;
+                        lineages.add(nodes.newLeaf(leafID++, demeAffected, height));
                     }
                     break;
 
@@ -417,206 +846,97 @@ public class PopHistorySimulator {
 
                 case BIRTH:
                     boolean coalescence = false;
-                    if (availableLineagesForThisDeme > 1) { // if more than one lineage in the stack of this deme, allow for potential coalescence
+                    if (availableLineagesForThisDeme > 1) { // if more than one lineage in the pool of this deme, allow for potential coalescence
                         coalescence = isCoalescenceEvent(availableLineagesForThisDeme,
-                                simulatedPopHistory.popSizesThroughTime.get(currentEventIndex + 1)[currentEvent.demeAffected]);
+                                simulatedPopHistory.getPopSizeAfterEvent(currentEventIndex, demeAffected));
                     }
 
                     if (coalescence) {
                         // draw coalescing lineages randomly
-                        int firstLineage = Randomizer.nextInt(availableLineagesForThisDeme);
-                        int secondLineage = Randomizer.nextInt(availableLineagesForThisDeme - 1);
+                        int firstLineage = random.nextInt(availableLineagesForThisDeme);
+                        int secondLineage = random.nextInt(availableLineagesForThisDeme - 1);
                         if (secondLineage == firstLineage) secondLineage = availableLineagesForThisDeme - 1; // mimick sampling without replacement
 
-                        availableNodesPerType.set(currentEvent.demeAffected, coalesceLineages(availableNodesPerType.get(currentEvent.demeAffected),
-                                firstLineage, secondLineage, internalNodeID, heightOffset - eventHeight));
-                        internalNodeID ++;
+                        // remove the lineage with the highest index first, the other one is not moved by it
+                        N firstChild, secondChild;
+                        if (firstLineage > secondLineage) {
+                            firstChild = removeLineage(lineages, firstLineage);
+                            secondChild = removeLineage(lineages, secondLineage);
+                        } else {
+                            secondChild = removeLineage(lineages, secondLineage);
+                            firstChild = removeLineage(lineages, firstLineage);
+                        }
+
+                        lineages.add(join(nodes.newInternalNode(internalNodeID++, demeAffected, height), firstChild, secondChild));
                     }
                     break;
 
                 case MIGRATION:
-                    int originDemeIndex = currentEvent.demeAffected;
-                    int demeSize = simulatedPopHistory.popSizesThroughTime.get(currentEventIndex + 1)[currentEvent.demeTarget];
-                    int numLineagesAvailable = availableNodesPerType.get(currentEvent.demeTarget).size();
-                    if(isMigrationEvent(numLineagesAvailable, demeSize)) {
-                        migrateLineage(availableNodesPerType.get(currentEvent.demeTarget),
-                                availableNodesPerType.get(currentEvent.demeAffected),
-                                originDemeIndex);
+                    // we are reconstructing the tree backward in time, so lineages move from the target deme to the deme of origin
+                    int demeTarget = simulatedPopHistory.getDemeTarget(currentEventIndex);
+                    ArrayList<N> targetLineages = lineagesPerType.get(demeTarget);
+                    int demeSize = simulatedPopHistory.getPopSizeAfterEvent(currentEventIndex, demeTarget);
+                    if(isMigrationEvent(targetLineages.size(), demeSize)) {
+                        N migratingNode = removeLineage(targetLineages, random.nextInt(targetLineages.size()));
+                        nodes.migrate(migratingNode, demeAffected, height);
+                        lineages.add(migratingNode);
                     }
                     break;
 
                 default:
                     throw new RuntimeException("Not implemented yet.");
             }
-
-            currentEventIndex --;
         }
 
         int lineagesLeft = 0;
         int ancestorDeme = 0;
         for (int i = 0; i < numberOfDemes; i++) {
-            lineagesLeft += availableNodesPerType.get(i).size();
-            if(availableNodesPerType.get(i).size() > 0)
+            lineagesLeft += lineagesPerType.get(i).size();
+            if(lineagesPerType.get(i).size() > 0)
                 ancestorDeme = i; // keep track of the ancestor lineage
         }
 
-
         if(lineagesLeft != 1)
             throw new RuntimeException("There should be exactly one lineage left.");
 
-        // for debugging
-        //Tree tree = new Tree(availableNodesPerType.get(ancestorDeme).get(0));
-
-        return availableNodesPerType.get(ancestorDeme).get(0);
-    }
-
-    public boolean isCoalescenceEvent(int numberOfLineages, int popSize){
-        double rand = Math.random();
-        return (rand < choose2(numberOfLineages)/choose2(popSize)); // coalescent event or not
-    }
-
-    public boolean isSampledAncestorEvent(int numberOfLineages, int popSize) {
-        double rand = Math.random();
-        return (rand < numberOfLineages * 1.0 / popSize);
+        return lineagesPerType.get(ancestorDeme).get(0);
     }
 
-    public boolean isMigrationEvent(int numberOfLineages, int popSize){
-        double rand = Math.random();
-        return (rand < numberOfLineages*1.0/popSize);
+    /**
+     * Remove a lineage from an unordered pool in constant time, by moving the last lineage to its place
+     */
+    private static <N> N removeLineage(ArrayList<N> lineages, int index) {
+        N lineage = lineages.get(index);
+        N last = lineages.remove(lineages.size() - 1);
+        if (index < lineages.size()) lineages.set(index, last);
+        return lineage;
     }
 
-    public ArrayList<Node> coalesceLineages(ArrayList<Node> availableNodes, int firstLineageIndex, int secondLineageIndex, int newNodeID, double newNodeHeight) {
-
-        Node newNode = new Node();
-        newNode.setNr(newNodeID);
-        // attempt
-        newNode.setHeight(newNodeHeight);
-
-        Node firstChild;
-        Node secondChild;
-
-        // remove the element with the highest index first to avoid problems with renumbering between the two 'remove'
-        if(firstLineageIndex > secondLineageIndex) {
-            firstChild = availableNodes.remove(firstLineageIndex);
-            secondChild = availableNodes.remove(secondLineageIndex);
-        }
-        else {
-            secondChild = availableNodes.remove(secondLineageIndex);
-            firstChild = availableNodes.remove(firstLineageIndex);
-        }
-
+    private static <N extends Node> N join(N newNode, N firstChild, N secondChild) {
         firstChild.setParent(newNode);
         secondChild.setParent(newNode);
 
         newNode.setChild(0, firstChild);
         newNode.setChild(1, secondChild);
 
-        availableNodes.add(newNode);
-
-        return availableNodes;
+        return newNode;
     }
 
-    public ArrayList<MultiTypeNode> coalesceLineages(ArrayList<MultiTypeNode> availableNodes, int firstLineageIndex, int secondLineageIndex, int newNodeID, double newNodeHeight, int demeAffected) {
-
-        MultiTypeNode newNode = new MultiTypeNode();
-        newNode.setNr(newNodeID);
-        newNode.setHeight(newNodeHeight);
-        newNode.setNodeType(demeAffected);
-
-        MultiTypeNode firstChild;
-        MultiTypeNode secondChild;
-
-        // remove the element with the highest index first to avoid problems with renumbering between the two 'remove'
-        if(firstLineageIndex > secondLineageIndex) {
-            firstChild = availableNodes.remove(firstLineageIndex);
-            secondChild = availableNodes.remove(secondLineageIndex);
-        } else {
-            secondChild = availableNodes.remove(secondLineageIndex);
-            firstChild = availableNodes.remove(firstLineageIndex);
-        }
-
-        firstChild.setParent(newNode);
-        secondChild.setParent(newNode);
-
-        newNode.setChild(0, firstChild);
-        newNode.setChild(1, secondChild);
-
-        availableNodes.add(newNode);
-
-        return availableNodes;
-    }
-
-    public ArrayList<Node> buildSampledAncestor(ArrayList<Node> availableNodes, int descendantLineage, int newNodeID, int leafID, double newNodeHeight, int demeAffected, boolean isUntypedTree){
-
-        Node newNode = new Node();
-        newNode.setNr(newNodeID);
-        newNode.setHeight(newNodeHeight);
-
-        Node collapsedChild = new Node();
-        collapsedChild.setNr(leafID);
-        collapsedChild.setHeight(newNodeHeight);
-
-        if (isUntypedTree) {
-            collapsedChild.setMetaData("type", -1);
-            collapsedChild.metaDataString = "type=-1";
-        }
-        else {
-            collapsedChild.setMetaData("type", demeAffected);
-             collapsedChild.metaDataString = "type=" + demeAffected;
-        }
-
-        Node uniqueChild = availableNodes.remove(descendantLineage);
-        uniqueChild.setParent(newNode);
-        collapsedChild.setParent(newNode);
-
-        newNode.setChild(0, uniqueChild);
-        newNode.setChild(1, collapsedChild);
-
-        availableNodes.add(newNode);
-
-        return availableNodes;
-    }
-
-    public ArrayList<MultiTypeNode> buildSampledAncestor(ArrayList<MultiTypeNode> availableNodes, int descendantLineage, int newNodeID, int leafID, double newNodeHeight, int demeAffected){
-
-        MultiTypeNode newNode = new MultiTypeNode();
-        newNode.setNr(newNodeID);
-        newNode.setHeight(newNodeHeight);
-        newNode.setNodeType(demeAffected);
-
-        MultiTypeNode collapsedChild = new MultiTypeNode();
-        collapsedChild.setNr(leafID);
-        collapsedChild.setHeight(newNodeHeight);
-        collapsedChild.setNodeType(demeAffected);
-
-        MultiTypeNode uniqueChild = availableNodes.remove(descendantLineage);
-        uniqueChild.setParent(newNode);
-        collapsedChild.setParent(newNode);
-
-        newNode.setChild(0, uniqueChild);
-        newNode.setChild(1, collapsedChild);
-
-        availableNodes.add(newNode);
-
-        return availableNodes;
+    public boolean isCoalescenceEvent(int numberOfLineages, int popSize){
+        double rand = random.nextDouble();
+        return (rand < choose2(numberOfLineages)/choose2(popSize)); // coalescent event or not
     }
 
-    public void migrateLineage(ArrayList<MultiTypeNode> targetDeme, ArrayList<MultiTypeNode> originDeme, int originDemeInd ,double timeOfMigration) {
-        int migratingLineage = Randomizer.nextInt(targetDeme.size()); // we are reconstructing the tree backward in time, so we start from the affected (target) deme to the deme of origin
-
-        MultiTypeNode migratingNode = targetDeme.remove(migratingLineage);
-        migratingNode.addChange(originDemeInd, timeOfMigration);
-
-        originDeme.add(migratingNode);
+    public boolean isSampledAncestorEvent(int numberOfLineages, int popSize) {
+        double rand = random.nextDouble();
+        return (rand < numberOfLineages * 1.0 / popSize);
     }
 
-    public void migrateLineage(ArrayList<Node> targetDeme, ArrayList<Node> originDeme, int originDemeInd) {
-        int migratingLineage = Randomizer.nextInt(targetDeme.size()); // we are reconstructing the tree backward in time, so we start from the affected (target) deme to the deme of origin
-        Node migratingNode = targetDeme.remove(migratingLineage);
-        originDeme.add(migratingNode);
+    public boolean isMigrationEvent(int numberOfLineages, int popSize){
+        double rand = random.nextDouble();
+        return (rand < numberOfLineages*1.0/popSize);
     }
 
-
     public static void main(String[] args) {
 //        double birthRate = 1.2;
 //        double deathRate = 1.1;
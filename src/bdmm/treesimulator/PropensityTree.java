@@ -0,0 +1,109 @@
+package bdmm.treesimulator;
+
+/**
+ * Fenwick (binary indexed) tree over non-negative weights, for drawing an index with probability proportional
+ * to its weight. Updating one weight and drawing an index both take O(log n).
+ */
+public class PropensityTree {
+
+    final int size;
+
+    final double[] weights;
+    final double[] tree;
+
+    // highest power of two not larger than size, where the descent in find() starts
+    final int topBit;
+
+    // the partial sums are recomputed from the weights after this many updates, so that rounding errors do not build up
+    static final int rebuildInterval = 1 << 16;
+    int updatesSinceRebuild = 0;
+
+    double total = 0;
+
+    // part of the argument of the last call to find() that fell within the weight of the index found
+    double remainder;
+
+    public PropensityTree(int size) {
+        this.size = size;
+        weights = new double[size];
+        tree = new double[size + 1];
+
+        int bit = 1;
+        while (bit << 1 <= size) bit <<= 1;
+        topBit = bit;
+    }
+
+    public void set(int index, double weight) {
+
+        double delta = weight - weights[index];
+        if (delta == 0) return;
+
+        weights[index] = weight;
+
+        if (++updatesSinceRebuild >= rebuildInterval) {
+            rebuild();
+            return;
+        }
+
+        for (int i = index + 1; i <= size; i += i & -i)
+            tree[i] += delta;
+
+        total += delta;
+    }
+
+    public void rebuild() {
+
+        total = 0;
+        for (int i = 1; i <= size; i++) {
+            tree[i] = weights[i - 1];
+            total += weights[i - 1];
+        }
+
+        for (int i = 1; i <= size; i++) {
+            int parent = i + (i & -i);
+            if (parent <= size) tree[parent] += tree[i];
+        }
+
+        updatesSinceRebuild = 0;
+    }
+
+    public double getTotal() {
+        return total;
+    }
+
+    public double getWeight(int index) {
+        return weights[index];
+    }
+
+    /**
+     * @return the part of the argument of the last call to find() that fell within the weight of the index found
+     */
+    public double getRemainder() {
+        return remainder;
+    }
+
+    /**
+     * @param u value in [0, total)
+     * @return the first index at which the cumulative weight exceeds u, or -1 if rounding put u beyond the last
+     * positive weight. The part of u falling within the weight of that index is left in remainder.
+     */
+    public int find(double u) {
+
+        int position = 0;
+        for (int bit = topBit; bit > 0; bit >>= 1) {
+            int next = position + bit;
+            if (next <= size && tree[next] <= u) {
+                position = next;
+                u -= tree[next];
+            }
+        }
+
+        // position is now the number of leading indices whose weights sum to at most u
+        while (position < size && weights[position] <= 0) position++;
+
+        if (position == size || u >= weights[position]) return -1;
+
+        remainder = u;
+        return position;
+    }
+}
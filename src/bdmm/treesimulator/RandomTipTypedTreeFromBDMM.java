@@ -1,6 +1,7 @@
 package bdmm.treesimulator;
 
 import beast.base.core.Input;
+import beast.base.core.Log;
 import beast.base.inference.StateNode;
 import beast.base.inference.StateNodeInitialiser;
 import beast.base.inference.parameter.RealParameter;
@@ -13,8 +14,8 @@ import java.util.List;
 
 /**
  * Generate random coloured tree from multitype birth death model
- * Caveat: non-constant parameters are not allowed (piecewise constant not implemented)
- * Also: rho-sampling is not implemented
+ * Rates can be piecewise constant through time (intervalTimes), and individuals can be rho-sampled at given times.
+ * The simulation stops once numberOfLeaves individuals have been sampled or, if an origin is given, at the origin.
  *
  * author: Jeremie Scire
  */
@@ -33,6 +34,10 @@ public class RandomTipTypedTreeFromBDMM extends Tree implements StateNodeInitial
             new Input<>("migrationMatrix", "Flattened migration matrix, can be asymmetric, diagonal entries omitted");
     public Input<Integer> numberOfLeavesInput =
             new Input<>("numberOfLeaves", "The number of leaves of the simulated tree. Default is a random number between 4 and 500.");
+    public Input<RealParameter> rhoSamplingProbabilityInput =
+            new Input<>("rhoSamplingProbability", "Rho-sampling probability for each type, or for each type and rho-sampling time.");
+    public Input<RealParameter> rhoSamplingTimeInput =
+            new Input<>("rhoSamplingTime", "Times (forwards from the start of the population) of rho-sampling. Default: the origin.");
     public Input<RealParameter> removalProbabilityInput =
             new Input<>("removalProbability", "The removal probability   for each type");
 
@@ -43,7 +48,31 @@ public class RandomTipTypedTreeFromBDMM extends Tree implements StateNodeInitial
             new Input<>("isUntypedTree", "Are the tips of the tree not typed (type=-1). Default = false", false);
 
     public Input<String> outputFileNameInput = new Input<>(
-            "outputFileName", "Optional name of file to write simulated tree to.");
+            "outputFileName", "Optional name of file to write simulated tree to, in Nexus if it ends with .nex or .nexus " +
+            "and otherwise in Newick, gzipped if it ends with .gz.");
+
+    public Input<RealParameter> intervalTimesInput = new Input<>("intervalTimes",
+            "Start times (forwards from the start of the population, the first being 0) of the intervals in which rates " +
+                    "are constant. Rates and removal probabilities are then given per type and interval, in the order " +
+                    "used by the BDMM likelihood. Default: constant rates.");
+    public Input<RealParameter> originInput = new Input<>("origin",
+            "Time from the start of the population to the present, at which the simulation stops. numberOfLeaves is " +
+                    "then the minimal number of leaves. Default: stop once numberOfLeaves individuals are sampled.");
+
+    public Input<Boolean> directSimulationInput = new Input<>("directSimulation",
+            "Simulate the sampled tree directly, conditioned on having at least numberOfLeaves leaves, with a cost " +
+                    "proportional to its size instead of simulating the whole population. Needs an origin. Default false.", false);
+
+    public Input<Boolean> conditionOnSurvivalInput = new Input<>("conditionOnSurvival",
+            "Simulate the population conditioned on leaving at least one sample, instead of discarding the populations " +
+                    "without samples. Needs an origin. Default false.", false);
+
+    public Input<Integer> tauLeapingThresholdInput = new Input<>("tauLeapingThreshold",
+            "Population size from which births, deaths and migrations are simulated approximately in tau-leaping " +
+                    "batches, sampling events staying exact. Leaps need the total population and every deme with events " +
+                    "to be that large. Default 0: exact simulation throughout.", 0);
+    public Input<Double> tauLeapingEpsilonInput = new Input<>("tauLeapingEpsilon",
+            "Bound on the expected relative change of the size of a deme during a tau-leaping batch. Default 0.03.", 0.03);
 
 
     static int maxTreeSize = 500;
@@ -72,22 +101,55 @@ public class RandomTipTypedTreeFromBDMM extends Tree implements StateNodeInitial
 
         if(numberOfLeavesInput.get() != null) {
             leavesInTree = numberOfLeavesInput.get();
+        } else if (originInput.get() != null) {
+            leavesInTree = 1;
         } else {
             leavesInTree = 4 + Randomizer.nextInt(maxTreeSize - 4); // draw random number of leaves
         }
 
         // this construction in the next few lines is not very clean, but I leave it for now
-        PopHistorySimulator simulator = new PopHistorySimulator(numberOfDemes, birthRate, deathRate, samplingRate, migrationRate, frequencies,
-                sampledAncestors, removalProbs);
-        PopHistory simulatedPopHistory = simulator.SimulatePopHistory(leavesInTree);
+        double[] intervalTimes = intervalTimesInput.get() != null ? intervalTimesInput.get().getDoubleValues() : new double[]{0};
 
+        PopHistorySimulator simulator = new PopHistorySimulator(numberOfDemes, intervalTimes, birthRate, deathRate, samplingRate, migrationRate, frequencies,
+                sampledAncestors, removalProbs);
+        if (originInput.get() != null) simulator.setEndTime(originInput.get().getValue());
+        if (rhoSamplingProbabilityInput.get() != null) {
+            double[] rhoSamplingTimes;
+            if (rhoSamplingTimeInput.get() != null)
+                rhoSamplingTimes = rhoSamplingTimeInput.get().getDoubleValues();
+            else if (originInput.get() != null)
+                rhoSamplingTimes = new double[]{originInput.get().getValue()};
+            else
+                throw new RuntimeException("Rho-sampling needs either rhoSamplingTime or origin.");
+
+            simulator.setRhoSampling(rhoSamplingTimes, rhoSamplingProbabilityInput.get().getDoubleValues());
+        }
+        simulator.setTauLeaping(tauLeapingThresholdInput.get(), tauLeapingEpsilonInput.get());
+        simulator.setConditionOnSurvival(conditionOnSurvivalInput.get());
         boolean isUntypedTree = false;
         if(isUntypedTreeInput.get() != null) {
             if(isUntypedTreeInput.get()) isUntypedTree = true;
         }
 
-        Node rootNode = simulator.buildTipTypedTreeFromStructuredPopHistory(simulatedPopHistory, isUntypedTree);
+        Node rootNode;
+        if (directSimulationInput.get()) {
+            SampledTreeSimulator directSimulator = new SampledTreeSimulator(simulator);
+            rootNode = directSimulator.toTipTypedTree(directSimulator.simulate(leavesInTree), isUntypedTree);
+        } else {
+            PopHistory simulatedPopHistory = simulator.SimulatePopHistory(leavesInTree);
+            rootNode = simulator.buildTipTypedTreeFromStructuredPopHistory(simulatedPopHistory, isUntypedTree);
+
+            Log.info.println("BDMM tree simulation: " + simulator.getRejectedHistoryCount() + " of "
+                    + simulator.getSimulatedHistoryCount() + " simulated populations rejected ("
+                    + String.format("%.1f", 100 * simulator.getRejectedEventFraction()) + "% of the simulated events).");
+        }
         setRoot(rootNode);
+
+        if (outputFileNameInput.get() != null) {
+            try (TreeWriter writer = new TreeWriter(outputFileNameInput.get())) {
+                writer.write(rootNode);
+            }
+        }
         initArrays();
 
         super.initAndValidate();
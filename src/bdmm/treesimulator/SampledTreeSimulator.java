@@ -0,0 +1,518 @@
+package bdmm.treesimulator;
+
+import bdmm.math.p0_ODE;
+import beast.base.evolution.tree.Node;
+import multitypetree.evolution.tree.MultiTypeNode;
+import org.apache.commons.math3.ode.FirstOrderIntegrator;
+import org.apache.commons.math3.ode.nonstiff.DormandPrince54Integrator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Simulates the sampled (reconstructed) tree of a multi-type birth-death process directly, without simulating the
+ * unsampled part of the population, so that the cost is proportional to the number of sampled tips.
+ *
+ * The probabilities p0_i(t) that an individual of type i at time t has no sampled descendant are computed with the
+ * p0_ODE of the likelihood, on a grid from the present back to the start of the population. Lineages of the sampled
+ * tree are then simulated forwards in time, conditioned on having sampled descendants (q_i = 1 - p0_i):
+ * a lineage of type i branches at rate b_i q_i, migrates to j at rate m_ij q_j/q_i, and is sampled at rate psi_i/q_i.
+ * A sampled individual that is not removed becomes a sampled ancestor with probability q_i, and a tip otherwise.
+ * At a rho-sampling time, a lineage is sampled with probability rho_i/q_i just before that time.
+ * The first individual is drawn conditioned on the tree having at least one tip.
+ *
+ * Rates, rho-sampling and removal probabilities are those of a PopHistorySimulator with an end time (the present).
+ */
+public class SampledTreeSimulator {
+
+    final int numberOfDemes;
+    final PopHistorySimulator parameters;
+    final double presentTime;
+
+    // grid of times from 0 to presentTime, including all rate-change and rho-sampling times
+    double[] grid;
+
+    // p0 of each deme at each grid point, just before and just after the time of the grid point, at [point*numberOfDemes + deme]
+    double[] p0Before, p0After;
+
+    // rho-sampling probability of each deme at each grid point (0 if none), at [point*numberOfDemes + deme]
+    double[] rhoAtPoint;
+
+    // interval of the rates in each grid cell
+    int[] cellInterval;
+
+    // cumulative hazard of the next event of a lineage of each deme, at [point*numberOfDemes + deme]
+    double[] cumulativeHazard;
+
+    // grid points at which lineages stop: rho-sampling times and the present
+    int[] stopPoints;
+
+    /**
+     * Node of the simulated tree, in forward time, before conversion to a BEAST tree
+     */
+    static class SampledNode {
+        double time;
+        int type;
+        SampledNode[] children = new SampledNode[0];
+
+        // migrations on the branch above this node, in forward time: times and the types before them
+        double[] changeTimes = new double[0];
+        int[] changeTypesBefore = new int[0];
+    }
+
+    /**
+     * Lineage waiting to be simulated: it starts at startTime in type, as child childIndex of parent
+     */
+    static class PendingLineage {
+        SampledNode parent;
+        int childIndex;
+        double startTime;
+        int type;
+
+        PendingLineage(SampledNode parent, int childIndex, double startTime, int type) {
+            this.parent = parent;
+            this.childIndex = childIndex;
+            this.startTime = startTime;
+            this.type = type;
+        }
+    }
+
+    static final int defaultGridSize = 4096;
+
+    public SampledTreeSimulator(PopHistorySimulator parameters) {
+        this(parameters, defaultGridSize);
+    }
+
+    /**
+     * @param parameters rates, rho-sampling and the end time of the population simulation
+     * @param gridSize number of time steps on which p0 is tabulated
+     */
+    public SampledTreeSimulator(PopHistorySimulator parameters, int gridSize) {
+
+        this.parameters = parameters;
+        this.numberOfDemes = parameters.numberOfDemes;
+        this.presentTime = parameters.endTime;
+
+        if (!(presentTime < Double.POSITIVE_INFINITY))
+            throw new RuntimeException("Direct simulation of the sampled tree needs the time of the present (origin).");
+
+        buildGrid(gridSize);
+        computeP0();
+        computeHazards();
+    }
+
+    private void buildGrid(int gridSize) {
+
+        List<Double> times = new ArrayList<>();
+        for (int k = 0; k <= gridSize; k++) times.add(presentTime * k / gridSize);
+        for (double t : parameters.intervalTimes) if (t < presentTime) times.add(t);
+        for (double t : parameters.rhoSamplingTimes) if (t <= presentTime) times.add(t);
+
+        grid = times.stream().mapToDouble(Double::doubleValue).sorted().distinct().toArray();
+        grid[grid.length - 1] = presentTime;
+
+        int points = grid.length;
+        rhoAtPoint = new double[points * numberOfDemes];
+
+        double[] rhoTimes = parameters.rhoSamplingTimes;
+        List<Integer> stops = new ArrayList<>();
+        for (int r = 0; r < rhoTimes.length; r++) {
+            if (rhoTimes[r] > presentTime) continue;
+            int point = Arrays.binarySearch(grid, rhoTimes[r]);
+            for (int i = 0; i < numberOfDemes; i++)
+                rhoAtPoint[point * numberOfDemes + i] = parameters.rhoSamplingProbs[i * rhoTimes.length + r];
+            if (point < points - 1) stops.add(point);
+        }
+        stops.add(points - 1);
+        stopPoints = stops.stream().mapToInt(Integer::intValue).toArray();
+
+        cellInterval = new int[points - 1];
+        for (int k = 0; k < points - 1; k++) {
+            double middle = (grid[k] + grid[k + 1]) / 2;
+            int interval = 0;
+            while (interval + 1 < parameters.intervalCount && parameters.intervalTimes[interval + 1] <= middle) interval++;
+            cellInterval[k] = interval;
+        }
+    }
+
+    /**
+     * Integrate p0 from the present back to 0 with the p0_ODE of the likelihood
+     */
+    private void computeP0() {
+
+        int n = numberOfDemes;
+        int intervals = parameters.intervalCount;
+        int points = grid.length;
+
+        // p0_ODE takes the end times of the intervals
+        Double[] intervalEnds = new Double[intervals];
+        for (int k = 0; k < intervals; k++)
+            intervalEnds[k] = k + 1 < intervals ? parameters.intervalTimes[k + 1] : presentTime;
+
+        Double[] psi = Arrays.stream(parameters.psiSamplingRateSchedule).boxed().toArray(Double[]::new);
+        Double[] migration = n > 1
+                ? Arrays.stream(parameters.migrationRateSchedule).boxed().toArray(Double[]::new)
+                : new Double[]{null};
+
+        p0_ODE P = new p0_ODE(parameters.birthRateSchedule, null, parameters.deathRateSchedule, psi, migration,
+                n, intervals, intervalEnds);
+        FirstOrderIntegrator integrator = new DormandPrince54Integrator(presentTime * 1e-12, presentTime, 1e-12, 1e-10);
+
+        p0Before = new double[points * n];
+        p0After = new double[points * n];
+
+        double[] y = new double[n];
+        Arrays.fill(y, 1.);
+
+        for (int k = points - 1; k >= 0; k--) {
+
+            if (k < points - 1)
+                integrator.integrate(P, grid[k + 1], y, grid[k], y);
+
+            for (int i = 0; i < n; i++) {
+                p0After[k * n + i] = y[i];
+                y[i] *= 1 - rhoAtPoint[k * n + i];
+                p0Before[k * n + i] = y[i];
+            }
+        }
+    }
+
+    /**
+     * @return probability that a lineage of the deme has sampled descendants, linearly interpolated within cell k
+     */
+    double q(int cell, int deme, double t) {
+        double w = (t - grid[cell]) / (grid[cell + 1] - grid[cell]);
+        double p0 = (1 - w) * p0After[cell * numberOfDemes + deme] + w * p0Before[(cell + 1) * numberOfDemes + deme];
+        return Math.max(1 - p0, Double.MIN_NORMAL);
+    }
+
+    /**
+     * @return total rate of the branching, migration and sampling events of a conditioned lineage
+     */
+    private double hazard(int cell, int deme, double t) {
+        int k = cellInterval[cell];
+        int intervals = parameters.intervalCount;
+
+        double qi = q(cell, deme, t);
+        double rate = parameters.birthRateSchedule[deme * intervals + k] * qi
+                + parameters.psiSamplingRateSchedule[deme * intervals + k] / qi;
+
+        for (int j = 0; j < numberOfDemes; j++) {
+            if (j != deme)
+                rate += parameters.migrationRateSchedule[(deme * (numberOfDemes - 1) + (j < deme ? j : j - 1)) * intervals + k]
+                        * q(cell, j, t) / qi;
+        }
+        return rate;
+    }
+
+    /**
+     * Cumulative hazards on the grid, with the hazard of each cell evaluated at its middle
+     */
+    private void computeHazards() {
+
+        int n = numberOfDemes;
+        cumulativeHazard = new double[grid.length * n];
+
+        for (int k = 0; k < grid.length - 1; k++) {
+            double middle = (grid[k] + grid[k + 1]) / 2;
+            for (int i = 0; i < n; i++)
+                cumulativeHazard[(k + 1) * n + i] = cumulativeHazard[k * n + i] + (grid[k + 1] - grid[k]) * hazard(k, i, middle);
+        }
+    }
+
+    /**
+     * @return the cell containing t, the last cell for t at the present
+     */
+    private int cellOf(double t) {
+        int point = Arrays.binarySearch(grid, t);
+        if (point < 0) point = -point - 2;
+        return Math.min(point, grid.length - 2);
+    }
+
+    private double cumulativeHazardAt(int deme, double t) {
+        int cell = cellOf(t);
+        double slope = (cumulativeHazard[(cell + 1) * numberOfDemes + deme] - cumulativeHazard[cell * numberOfDemes + deme])
+                / (grid[cell + 1] - grid[cell]);
+        return cumulativeHazard[cell * numberOfDemes + deme] + slope * (t - grid[cell]);
+    }
+
+    /**
+     * @param minimumTips
+     * @return the root of a simulated sampled tree with at least minimumTips tips, drawn with the random number
+     * generator of the PopHistorySimulator the parameters come from
+     */
+    public SampledNode simulate(int minimumTips) {
+        return simulate(minimumTips, parameters.random);
+    }
+
+    /**
+     * The tabulated p0 and hazards are only read, so that trees can be simulated concurrently with different generators.
+     * @param minimumTips
+     * @param random
+     * @return the root of a simulated sampled tree with at least minimumTips tips, drawn by rejection
+     */
+    public SampledNode simulate(int minimumTips, SplittableRandom random) {
+
+        while (true) {
+            int[] tips = new int[1];
+            SampledNode root = simulateOnce(tips, random);
+            if (tips[0] >= Math.max(minimumTips, 1)) return root;
+        }
+    }
+
+    private SampledNode simulateOnce(int[] tips, SplittableRandom random) {
+
+        // type of the first individual, conditioned on the tree having at least one tip
+        double[] weights = new double[numberOfDemes];
+        double total = 0;
+        for (int i = 0; i < numberOfDemes; i++) {
+            weights[i] = parameters.frequencies[i] * (1 - p0Before[i]);
+            total += weights[i];
+        }
+        if (!(total > 0))
+            throw new RuntimeException("The simulated population cannot leave any sample before the present.");
+
+        double u = random.nextDouble() * total;
+        int firstType = 0;
+        while (firstType < numberOfDemes - 1 && u >= weights[firstType]) u -= weights[firstType++];
+
+        SampledNode[] root = new SampledNode[1];
+        Deque<PendingLineage> pending = new ArrayDeque<>();
+        pending.push(new PendingLineage(null, 0, 0, firstType));
+
+        while (!pending.isEmpty()) {
+            PendingLineage lineage = pending.pop();
+            SampledNode node = simulateLineage(lineage, pending, tips, random);
+
+            if (lineage.parent == null) {
+                // migrations before the first node are not part of the tree
+                node.changeTimes = new double[0];
+                node.changeTypesBefore = new int[0];
+                root[0] = node;
+            }
+            else lineage.parent.children[lineage.childIndex] = node;
+        }
+
+        return root[0];
+    }
+
+    /**
+     * Follow a conditioned lineage until it branches or ends in a tip, adding the lineages it gives rise to
+     * @return the node ending the lineage
+     */
+    private SampledNode simulateLineage(PendingLineage lineage, Deque<PendingLineage> pending, int[] tips,
+                                        SplittableRandom random) {
+
+        int n = numberOfDemes;
+        int intervals = parameters.intervalCount;
+
+        double t = lineage.startTime;
+        int type = lineage.type;
+
+        List<Double> changeTimes = new ArrayList<>();
+        List<Integer> changeTypes = new ArrayList<>();
+
+        while (true) {
+
+            // next time at which the lineage stops: a rho-sampling time or the present
+            int stop = 0;
+            while (grid[stopPoints[stop]] <= t && stop < stopPoints.length - 1) stop++;
+            int stopPoint = stopPoints[stop];
+
+            double target = cumulativeHazardAt(type, t) + -Math.log(1 - random.nextDouble());
+
+            if (target >= cumulativeHazard[stopPoint * n + type] || t >= presentTime) {
+
+                t = grid[stopPoint];
+                double rho = rhoAtPoint[stopPoint * n + type];
+                double qAfter = 1 - p0After[stopPoint * n + type];
+                double qBefore = 1 - p0Before[stopPoint * n + type];
+
+                // reaching the present without a rho-sampling there only happens through the discretisation of the hazard
+                boolean sampled = stopPoint == grid.length - 1 || random.nextDouble() * qBefore < rho;
+
+                if (!sampled) continue;
+
+                if (stopPoint < grid.length - 1 && parameters.sampledAncestors
+                        && random.nextDouble() >= parameters.removalProbsSchedule[type * intervals + cellInterval[stopPoint]]
+                        && random.nextDouble() < qAfter)
+                    return sampledAncestor(t, type, changeTimes, changeTypes, pending, tips);
+
+                return tip(t, type, changeTimes, changeTypes, tips);
+            }
+
+            // time of the event, inverting the piecewise-linear cumulative hazard
+            int cell = cellOf(t);
+            while (cell < stopPoint - 1 && cumulativeHazard[(cell + 1) * n + type] < target) cell++;
+            double slope = (cumulativeHazard[(cell + 1) * n + type] - cumulativeHazard[cell * n + type]) / (grid[cell + 1] - grid[cell]);
+            if (slope > 0)
+                t = Math.min(Math.max(t, grid[cell] + (target - cumulativeHazard[cell * n + type]) / slope), grid[cell + 1]);
+            else
+                t = Math.max(t, grid[cell]);
+
+            // type of the event
+            int k = cellInterval[cell];
+            double qi = q(cell, type, t);
+            double birth = parameters.birthRateSchedule[type * intervals + k] * qi;
+            double sampling = parameters.psiSamplingRateSchedule[type * intervals + k] / qi;
+
+            double u = random.nextDouble() * hazard(cell, type, t);
+
+            if (u < birth) {
+                SampledNode node = node(t, type, changeTimes, changeTypes, 2);
+                pending.push(new PendingLineage(node, 1, t, type));
+                pending.push(new PendingLineage(node, 0, t, type));
+                return node;
+            }
+            u -= birth;
+
+            if (u < sampling) {
+                if (parameters.sampledAncestors
+                        && random.nextDouble() >= parameters.removalProbsSchedule[type * intervals + k]
+                        && random.nextDouble() < qi)
+                    return sampledAncestor(t, type, changeTimes, changeTypes, pending, tips);
+
+                return tip(t, type, changeTimes, changeTypes, tips);
+            }
+            u -= sampling;
+
+            // migration, the last migration target taking any rounding left over
+            int targetType = -1;
+            for (int j = 0; j < n; j++) {
+                if (j == type) continue;
+                targetType = j;
+                double migration = parameters.migrationRateSchedule[(type * (n - 1) + (j < type ? j : j - 1)) * intervals + k]
+                        * q(cell, j, t) / qi;
+                if (u < migration) break;
+                u -= migration;
+            }
+
+            if (targetType < 0) continue;
+
+            changeTimes.add(t);
+            changeTypes.add(type);
+            type = targetType;
+        }
+    }
+
+    private SampledNode node(double t, int type, List<Double> changeTimes, List<Integer> changeTypes, int childCount) {
+        SampledNode node = new SampledNode();
+        node.time = t;
+        node.type = type;
+        node.children = new SampledNode[childCount];
+        node.changeTimes = changeTimes.stream().mapToDouble(Double::doubleValue).toArray();
+        node.changeTypesBefore = changeTypes.stream().mapToInt(Integer::intValue).toArray();
+        return node;
+    }
+
+    private SampledNode tip(double t, int type, List<Double> changeTimes, List<Integer> changeTypes, int[] tips) {
+        tips[0]++;
+        return node(t, type, changeTimes, changeTypes, 0);
+    }
+
+    /**
+     * Sampled ancestor: a node with the continuing lineage as first child and a tip at the same time as second child
+     */
+    private SampledNode sampledAncestor(double t, int type, List<Double> changeTimes, List<Integer> changeTypes,
+                                        Deque<PendingLineage> pending, int[] tips) {
+        SampledNode node = node(t, type, changeTimes, changeTypes, 2);
+        node.children[1] = tip(t, type, new ArrayList<>(), new ArrayList<>(), tips);
+        pending.push(new PendingLineage(node, 0, t, type));
+        return node;
+    }
+
+    /**
+     * @param root
+     * @return the time of the last tip, at height 0 in the BEAST tree
+     */
+    private static double lastTipTime(SampledNode root) {
+        double last = 0;
+        Deque<SampledNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            SampledNode node = stack.pop();
+            if (node.children.length == 0) last = Math.max(last, node.time);
+            for (SampledNode child : node.children) stack.push(child);
+        }
+        return last;
+    }
+
+    /**
+     * @param root
+     * @param isUntypedTree
+     * @return the tree with the types of the tips as "type" metadata (-1 for untyped trees), as built from population histories
+     */
+    public Node toTipTypedTree(SampledNode root, boolean isUntypedTree) {
+        int[] numbers = {0, countTips(root)};
+        return toNode(root, lastTipTime(root), isUntypedTree, numbers);
+    }
+
+    private Node toNode(SampledNode sampledNode, double heightOffset, boolean isUntypedTree, int[] numbers) {
+        Node node = new Node();
+        node.setHeight(heightOffset - sampledNode.time);
+
+        if (sampledNode.children.length == 0) {
+            node.setNr(numbers[0]++);
+            int type = isUntypedTree ? -1 : sampledNode.type;
+            node.setMetaData("type", type);
+            node.metaDataString = "type=" + type;
+            return node;
+        }
+
+        for (int c = 0; c < sampledNode.children.length; c++) {
+            Node child = toNode(sampledNode.children[c], heightOffset, isUntypedTree, numbers);
+            child.setParent(node);
+            node.setChild(c, child);
+        }
+        node.setNr(numbers[1]++);
+        return node;
+    }
+
+    /**
+     * @param root
+     * @return the tree with its full type mapping
+     */
+    public MultiTypeNode toMultiTypeTree(SampledNode root) {
+        int[] numbers = {0, countTips(root)};
+        return toMultiTypeNode(root, lastTipTime(root), numbers);
+    }
+
+    private MultiTypeNode toMultiTypeNode(SampledNode sampledNode, double heightOffset, int[] numbers) {
+        MultiTypeNode node = new MultiTypeNode();
+        node.setHeight(heightOffset - sampledNode.time);
+        node.setNodeType(sampledNode.type);
+
+        // type changes going up the branch, from the most recent one
+        for (int c = sampledNode.changeTimes.length - 1; c >= 0; c--)
+            node.addChange(sampledNode.changeTypesBefore[c], heightOffset - sampledNode.changeTimes[c]);
+
+        if (sampledNode.children.length == 0) {
+            node.setNr(numbers[0]++);
+            return node;
+        }
+
+        for (int c = 0; c < sampledNode.children.length; c++) {
+            MultiTypeNode child = toMultiTypeNode(sampledNode.children[c], heightOffset, numbers);
+            child.setParent(node);
+            node.setChild(c, child);
+        }
+        node.setNr(numbers[1]++);
+        return node;
+    }
+
+    private static int countTips(SampledNode root) {
+        int tips = 0;
+        Deque<SampledNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            SampledNode node = stack.pop();
+            if (node.children.length == 0) tips++;
+            for (SampledNode child : node.children) stack.push(child);
+        }
+        return tips;
+    }
+}
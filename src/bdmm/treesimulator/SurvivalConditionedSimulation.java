@@ -0,0 +1,318 @@
+package bdmm.treesimulator;
+
+import org.apache.commons.math3.random.RandomDataGenerator;
+
+import java.util.SplittableRandom;
+
+/**
+ * Forward simulation of a population history conditioned on leaving at least one sample by the present, without
+ * rejection.
+ *
+ * Each individual is marked as observed (it has sampled descendants, or is itself sampled) or unobserved. With
+ * p0_i(t) the probability that an individual of type i at time t leaves no sample and q_i = 1 - p0_i, the marked
+ * process conditioned on the first individual being observed has the rates (Doob h-transform):
+ * - observed: birth of an observed child b_i q_i, of an unobserved child 2 b_i p0_i, no death,
+ *   sampling psi_i/q_i (a sampled individual that is not removed stays observed with probability q_i),
+ *   migration to j m_ij q_j/q_i;
+ * - unobserved: birth b_i p0_i, death d_i/p0_i, no sampling, migration to j m_ij p0_j/p0_i.
+ * At a rho-sampling time, an observed individual is sampled with probability rho_i/q_i just before that time.
+ * The events are logged as usual, without the marks, so that the history is distributed as an unconditioned one
+ * given at least one sample. Once no observed individual is left, no further sample can happen and the simulation
+ * stops.
+ *
+ * p0 is taken from a SampledTreeSimulator, on its grid.
+ */
+class SurvivalConditionedSimulation {
+
+    final PopHistorySimulator parameters;
+    final SampledTreeSimulator p0Table;
+    final int numberOfDemes;
+    final int intervals;
+
+    // hazard per individual in the middle of each grid cell, observed and unobserved, at [cell*numberOfDemes + deme]
+    double[] observedHazard, unobservedHazard;
+
+    SurvivalConditionedSimulation(PopHistorySimulator parameters) {
+        this.parameters = parameters;
+        this.p0Table = new SampledTreeSimulator(parameters);
+        this.numberOfDemes = parameters.numberOfDemes;
+        this.intervals = parameters.intervalCount;
+
+        int cells = p0Table.grid.length - 1;
+        observedHazard = new double[cells * numberOfDemes];
+        unobservedHazard = new double[cells * numberOfDemes];
+
+        double[] rates = new double[channels()];
+        for (int cell = 0; cell < cells; cell++) {
+            double middle = (p0Table.grid[cell] + p0Table.grid[cell + 1]) / 2;
+            for (int i = 0; i < numberOfDemes; i++) {
+                observedHazard[cell * numberOfDemes + i] = rates(cell, i, true, middle, rates);
+                unobservedHazard[cell * numberOfDemes + i] = rates(cell, i, false, middle, rates);
+            }
+        }
+    }
+
+    /**
+     * @return number of event channels per individual: 4 for observed individuals (birth of an observed child,
+     * birth of an unobserved child, sampling, death for unobserved ones), then migration to each other deme
+     */
+    private int channels() {
+        return 4 + numberOfDemes - 1;
+    }
+
+    private double p0(int cell, int deme, double t) {
+        return Math.max(1 - p0Table.q(cell, deme, t), Double.MIN_NORMAL);
+    }
+
+    /**
+     * @param rates filled with the rate of each channel, see channels()
+     * @return the total rate of an individual of the deme
+     */
+    private double rates(int cell, int deme, boolean observed, double t, double[] rates) {
+        int k = p0Table.cellInterval[cell];
+        int n = numberOfDemes;
+
+        double birth = parameters.birthRateSchedule[deme * intervals + k];
+        double q = p0Table.q(cell, deme, t);
+        double p = p0(cell, deme, t);
+
+        if (observed) {
+            rates[0] = birth * q;
+            rates[1] = 2 * birth * p;
+            rates[2] = parameters.psiSamplingRateSchedule[deme * intervals + k] / q;
+            rates[3] = 0;
+        } else {
+            rates[0] = 0;
+            rates[1] = birth * p;
+            rates[2] = 0;
+            rates[3] = parameters.deathRateSchedule[deme * intervals + k] / p;
+        }
+
+        double total = rates[0] + rates[1] + rates[2] + rates[3];
+
+        for (int j = 0; j < n; j++) {
+            if (j == deme) continue;
+            int c = 4 + (j < deme ? j : j - 1);
+            double m = parameters.migrationRateSchedule[(deme * (n - 1) + c - 4) * intervals + k];
+            rates[c] = observed ? m * p0Table.q(cell, j, t) / q : m * p0(cell, j, t) / p;
+            total += rates[c];
+        }
+        return total;
+    }
+
+    /**
+     * @param endCondition used to size the history
+     * @param random
+     * @return a history with at least one sample, truncated after its last sample
+     */
+    PopHistory simulate(int endCondition, SplittableRandom random) {
+
+        int n = numberOfDemes;
+        double[] grid = p0Table.grid;
+        RandomDataGenerator binomialGenerator = parameters.getPoissonGenerator();
+
+        // type of the first individual, conditioned on it being observed
+        double[] weights = new double[n];
+        double totalWeight = 0;
+        for (int i = 0; i < n; i++) {
+            weights[i] = parameters.frequencies[i] * (1 - p0Table.p0Before[i]);
+            totalWeight += weights[i];
+        }
+        if (!(totalWeight > 0))
+            throw new RuntimeException("The simulated population cannot leave any sample before the present.");
+
+        double u = random.nextDouble() * totalWeight;
+        int firstType = 0;
+        while (firstType < n - 1 && u >= weights[firstType]) u -= weights[firstType++];
+
+        PopHistory history = new PopHistory(endCondition, n, firstType);
+
+        int[] observed = new int[n];
+        int[] unobserved = new int[n];
+        observed[firstType] = 1;
+        int totalObserved = 1;
+
+        double[] rates = new double[channels()];
+
+        double t = 0;
+        int cell = 0;
+        int stop = 0;
+
+        // hazards of the observed individuals of each deme at [deme], of the unobserved ones at [numberOfDemes + deme]
+        PropensityTree propensities = new PropensityTree(2 * n);
+        reweigh(propensities, cell, observed, unobserved);
+
+        while (totalObserved > 0) {
+
+            int stopPoint = p0Table.stopPoints[stop];
+
+            // time of the next event: the hazards are constant within grid cells
+            double exponential = -Math.log(1 - random.nextDouble());
+            boolean event = false;
+
+            while (cell < stopPoint) {
+                double rate = propensities.getTotal();
+
+                double cellEnd = grid[cell + 1];
+                if (rate * (cellEnd - t) > exponential) {
+                    t += exponential / rate;
+                    event = true;
+                    break;
+                }
+                exponential -= rate * (cellEnd - t);
+                t = cellEnd;
+                cell++;
+                if (cell < stopPoint) reweigh(propensities, cell, observed, unobserved);
+            }
+
+            if (!event) {
+                // rho-sampling time or the present
+                t = grid[stopPoint];
+                rhoSample(history, stopPoint, observed, unobserved, t, binomialGenerator);
+
+                totalObserved = 0;
+                for (int i = 0; i < n; i++) totalObserved += observed[i];
+
+                if (stop == p0Table.stopPoints.length - 1) break;
+                stop++;
+                if (cell < grid.length - 1) reweigh(propensities, cell, observed, unobserved);
+                continue;
+            }
+
+            // the deme and mark of the individual, then the channel of the event with the rates at its time
+            u = random.nextDouble();
+            int index = propensities.find(u * propensities.getTotal());
+            if (index < 0) {
+                // rounding in the partial sums, recompute them and draw again with the same random number
+                propensities.rebuild();
+                index = propensities.find(u * propensities.getTotal());
+                if (index < 0)
+                    throw new RuntimeException("A problem occurred when looking for the type of the next event.");
+            }
+
+            int deme = index % n;
+            boolean isObserved = index < n;
+
+            // the remainder is uniform within the weight of the index found
+            u = propensities.getRemainder() / propensities.getWeight(index) * rates(cell, deme, isObserved, t, rates);
+            int channel = -1;
+            for (int c = 0; c < rates.length; c++) {
+                if (rates[c] <= 0) continue;
+                channel = c;
+                if (u < rates[c]) break;
+                u -= rates[c];
+            }
+
+            if (channel < 0) continue;
+
+            int k = p0Table.cellInterval[cell];
+
+            switch (channel) {
+                case 0: // birth of an observed child
+                    history.addEvent(Event.BIRTH, deme, 0, t);
+                    observed[deme]++;
+                    totalObserved++;
+                    break;
+
+                case 1: // birth of an unobserved child
+                    history.addEvent(Event.BIRTH, deme, 0, t);
+                    unobserved[deme]++;
+                    break;
+
+                case 2: // sampling of an observed individual
+                    if (parameters.sampledAncestors
+                            && random.nextDouble() >= parameters.removalProbsSchedule[deme * intervals + k]) {
+                        history.addEvent(Event.SAMPLINGWITHOUTREMOVAL, deme, 0, t);
+                        if (random.nextDouble() >= p0Table.q(cell, deme, t)) {
+                            observed[deme]--;
+                            unobserved[deme]++;
+                            totalObserved--;
+                        }
+                    } else {
+                        history.addEvent(Event.SAMPLING, deme, 0, t);
+                        observed[deme]--;
+                        totalObserved--;
+                    }
+                    break;
+
+                case 3: // death of an unobserved individual
+                    history.addEvent(Event.DEATH, deme, 0, t);
+                    unobserved[deme]--;
+                    break;
+
+                default:
+                    int target = channel - 4 < deme ? channel - 4 : channel - 3;
+                    history.addEvent(Event.MIGRATION, deme, target, t);
+                    if (isObserved) {
+                        observed[deme]--;
+                        observed[target]++;
+                    } else {
+                        unobserved[deme]--;
+                        unobserved[target]++;
+                    }
+                    propensities.set(target, observed[target] * observedHazard[cell * n + target]);
+                    propensities.set(n + target, unobserved[target] * unobservedHazard[cell * n + target]);
+            }
+
+            propensities.set(deme, observed[deme] * observedHazard[cell * n + deme]);
+            propensities.set(n + deme, unobserved[deme] * unobservedHazard[cell * n + deme]);
+        }
+
+        history.truncateAfterLastSample();
+        return history;
+    }
+
+    /**
+     * Set the hazards of all demes to those of the grid cell, for the current numbers of individuals.
+     */
+    private void reweigh(PropensityTree propensities, int cell, int[] observed, int[] unobserved) {
+        int n = numberOfDemes;
+        for (int i = 0; i < n; i++) {
+            propensities.weights[i] = observed[i] * observedHazard[cell * n + i];
+            propensities.weights[n + i] = unobserved[i] * unobservedHazard[cell * n + i];
+        }
+        propensities.rebuild();
+    }
+
+    /**
+     * Rho-sampling of the observed individuals. Removed samples are logged before the ones staying in the population.
+     */
+    private void rhoSample(PopHistory history, int point, int[] observed, int[] unobserved, double t,
+                           RandomDataGenerator binomialGenerator) {
+
+        int n = numberOfDemes;
+        boolean atPresent = point == p0Table.grid.length - 1;
+        int interval = p0Table.cellInterval[Math.min(point, p0Table.cellInterval.length - 1)];
+
+        int[] kept = new int[n];
+        int[] keptUnobserved = new int[n];
+
+        for (int i = 0; i < n; i++) {
+            double rho = p0Table.rhoAtPoint[point * n + i];
+            double qBefore = 1 - p0Table.p0Before[point * n + i];
+            double qAfter = 1 - p0Table.p0After[point * n + i];
+
+            // observed individuals reaching the present are all sampled (without rho-sampling there, only through the discretisation of p0)
+            int sampled;
+            if (atPresent || rho >= qBefore) sampled = observed[i];
+            else if (rho <= 0 || observed[i] == 0) sampled = 0;
+            else sampled = binomialGenerator.nextBinomial(observed[i], rho / qBefore);
+
+            if (sampled == 0) continue;
+
+            double removalProb = parameters.removalProbsSchedule[(parameters.sampledAncestors ? i : 0) * intervals + interval];
+            int removed = !parameters.sampledAncestors || removalProb >= 1 ? sampled
+                    : removalProb <= 0 ? 0 : binomialGenerator.nextBinomial(sampled, removalProb);
+
+            kept[i] = sampled - removed;
+            keptUnobserved[i] = kept[i] == 0 || qAfter >= 1 ? 0 : binomialGenerator.nextBinomial(kept[i], 1 - qAfter);
+
+            for (int s = 0; s < removed; s++) history.addEvent(Event.SAMPLING, i, 0, t);
+            observed[i] -= removed + keptUnobserved[i];
+            unobserved[i] += keptUnobserved[i];
+        }
+
+        for (int i = 0; i < n; i++)
+            for (int s = 0; s < kept[i]; s++) history.addEvent(Event.SAMPLINGWITHOUTREMOVAL, i, 0, t);
+    }
+}
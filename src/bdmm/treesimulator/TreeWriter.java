@@ -0,0 +1,259 @@
+package bdmm.treesimulator;
+
+import beast.base.evolution.tree.Node;
+import multitypetree.evolution.tree.MultiTypeNode;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes simulated trees one at a time to a buffered Newick or Nexus file, optionally gzipped, so that batches of any
+ * size can be written without keeping the trees.
+ *
+ * Trees are written as TipTypedTreeLogger logs them (see Node.toSortedNewick): leaves are labelled by their number
+ * plus one, the children of each node are ordered by the smallest leaf number below them rounded down to an even
+ * number, keeping their order on ties, and types are given as [&type="..."] annotations. Leaves of tip-typed trees are
+ * annotated with their "type" metadata. Multi-type trees are written flattened, each type change being a node with a
+ * single child, and all their nodes are annotated. In Nexus files, each tree is written as "tree STATE_i = ...;".
+ * Unlike the files of TipTypedTreeLogger, Nexus files have no Taxa block and no Translate table: simulated leaves have
+ * no taxon names, and the trees of a batch have different numbers of leaves, so leaves are only identified by their
+ * labels.
+ *
+ * The trees are traversed without recursion, so that trees of any depth can be written.
+ */
+public class TreeWriter implements Closeable {
+
+    public enum Format { NEWICK, NEXUS }
+
+    final Writer out;
+    final Format format;
+    final String typeLabel;
+    final boolean typeAnnotations;
+
+    long treesWritten = 0;
+
+    /**
+     * @param fileName written in Nexus if it ends with .nex or .nexus (before an optional .gz), otherwise in Newick,
+     *                 and gzipped if it ends with .gz
+     */
+    public TreeWriter(String fileName) {
+        this(fileName, formatOf(fileName), fileName.endsWith(".gz"), true);
+    }
+
+    /**
+     * @param fileName
+     * @param format
+     * @param gzip
+     * @param typeAnnotations whether to write the types of the nodes
+     */
+    public TreeWriter(String fileName, Format format, boolean gzip, boolean typeAnnotations) {
+        this(open(fileName), format, gzip, typeAnnotations, "type");
+    }
+
+    /**
+     * @param stream closed with the writer
+     * @param format
+     * @param gzip
+     * @param typeAnnotations whether to write the types of the nodes
+     * @param typeLabel name of the type annotations
+     */
+    public TreeWriter(OutputStream stream, Format format, boolean gzip, boolean typeAnnotations, String typeLabel) {
+        this.format = format;
+        this.typeAnnotations = typeAnnotations;
+        this.typeLabel = typeLabel;
+
+        try {
+            if (gzip) stream = new GZIPOutputStream(stream, 1 << 16);
+            out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16);
+
+            if (format == Format.NEXUS) out.write("#NEXUS\n\nBegin trees;\n");
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write trees: " + e.getMessage());
+        }
+    }
+
+    private static Format formatOf(String fileName) {
+        String name = fileName.endsWith(".gz") ? fileName.substring(0, fileName.length() - 3) : fileName;
+        return name.endsWith(".nex") || name.endsWith(".nexus") ? Format.NEXUS : Format.NEWICK;
+    }
+
+    private static OutputStream open(String fileName) {
+        try {
+            return new FileOutputStream(fileName);
+        } catch (FileNotFoundException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Write a tree, and let it be garbage-collected
+     * @param root
+     */
+    public void write(Node root) {
+        try {
+            if (format == Format.NEXUS) out.write("tree STATE_" + treesWritten + " = ");
+            writeNewick(root);
+            out.write(";\n");
+            treesWritten++;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write trees: " + e.getMessage());
+        }
+    }
+
+    public long getTreesWritten() {
+        return treesWritten;
+    }
+
+    // entries of the traversal stack that are not nodes
+    private static final class Close {
+        final Node node;
+
+        Close(Node node) {
+            this.node = node;
+        }
+    }
+
+    private static final String separator = ",";
+
+    private void writeNewick(Node root) throws IOException {
+
+        int[] minLeafNr = minLeafNumbers(root);
+
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(root);
+
+        while (!stack.isEmpty()) {
+            Object entry = stack.pop();
+
+            if (entry == separator) {
+                out.write(',');
+            } else if (entry instanceof Close) {
+                Node node = ((Close) entry).node;
+                out.write(')');
+                writeLabelAndBranch(node);
+            } else {
+                Node node = (Node) entry;
+
+                // single-child nodes of the type changes above the node
+                int changes = node instanceof MultiTypeNode ? ((MultiTypeNode) node).getChangeCount() : 0;
+                for (int c = 0; c < changes; c++) out.write('(');
+
+                if (node.isLeaf()) {
+                    writeLabelAndBranch(node);
+                    continue;
+                }
+
+                Node first = node.getChild(0);
+                Node second = node.getChildCount() > 1 ? node.getChild(1) : null;
+                if (second != null && minLeafNr[second.getNr()] / 2 < minLeafNr[first.getNr()] / 2) {
+                    Node swap = first;
+                    first = second;
+                    second = swap;
+                }
+
+                out.write('(');
+                stack.push(new Close(node));
+                if (second != null) {
+                    stack.push(second);
+                    stack.push(separator);
+                }
+                stack.push(first);
+            }
+        }
+    }
+
+    /**
+     * Write the label, type and branch length of a node that has just been written, then close the single-child nodes
+     * of its type changes
+     */
+    private void writeLabelAndBranch(Node node) throws IOException {
+
+        if (node.isLeaf()) out.write(Integer.toString(node.getNr() + 1));
+
+        if (node instanceof MultiTypeNode) {
+            MultiTypeNode typedNode = (MultiTypeNode) node;
+            int changes = typedNode.getChangeCount();
+
+            // type changes above the root end at the last of them
+            double parentHeight = !node.isRoot() ? node.getParent().getHeight()
+                    : changes > 0 ? typedNode.getChangeTime(changes - 1) : node.getHeight();
+
+            writeType(typedNode.getNodeType());
+            writeLength((changes > 0 ? typedNode.getChangeTime(0) : parentHeight) - node.getHeight());
+
+            for (int c = 0; c < changes; c++) {
+                out.write(')');
+                writeType(typedNode.getChangeType(c));
+                writeLength((c + 1 < changes ? typedNode.getChangeTime(c + 1) : parentHeight) - typedNode.getChangeTime(c));
+            }
+        } else {
+            if (node.isLeaf() && node.getMetaData("type") != null) writeType(node.getMetaData("type"));
+            writeLength(node.isRoot() ? 0 : node.getParent().getHeight() - node.getHeight());
+        }
+    }
+
+    private void writeType(Object type) throws IOException {
+        if (typeAnnotations) out.write("[&" + typeLabel + "=\"" + type + "\"]");
+    }
+
+    private void writeLength(double length) throws IOException {
+        out.write(':');
+        out.write(Double.toString(length));
+    }
+
+    /**
+     * @return smallest leaf number in the clade of each node, by node number
+     */
+    private static int[] minLeafNumbers(Node root) {
+
+        int maxNr = 0;
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            maxNr = Math.max(maxNr, node.getNr());
+            for (int i = 0; i < node.getChildCount(); i++) stack.push(node.getChild(i));
+        }
+
+        int[] minLeafNr = new int[maxNr + 1];
+
+        // post-order: a node is pushed back after its children, with its children's values computed first
+        Deque<Node> pending = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        pending.push(root);
+        expanded.push(false);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            if (node.isLeaf()) {
+                expanded.pop();
+                minLeafNr[node.getNr()] = node.getNr();
+            } else if (!expanded.pop()) {
+                pending.push(node);
+                expanded.push(true);
+                for (int i = 0; i < node.getChildCount(); i++) {
+                    pending.push(node.getChild(i));
+                    expanded.push(false);
+                }
+            } else {
+                int min = Integer.MAX_VALUE;
+                for (int i = 0; i < node.getChildCount(); i++) min = Math.min(min, minLeafNr[node.getChild(i).getNr()]);
+                minLeafNr[node.getNr()] = min;
+            }
+        }
+
+        return minLeafNr;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (format == Format.NEXUS) out.write("End;\n");
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write trees: " + e.getMessage());
+        }
+    }
+}
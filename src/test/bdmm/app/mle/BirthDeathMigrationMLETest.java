@@ -0,0 +1,122 @@
+package test.bdmm.app.mle;
+
+import bdmm.app.mle.BirthDeathMigrationMLE;
+import bdmm.evolution.speciation.BirthDeathMigrationModelUncoloured;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+public class BirthDeathMigrationMLETest extends TestCase {
+
+	/**
+	 * The estimate of R0 is the maximum of the likelihood on a fine grid, and the likelihood at the ends of its
+	 * profile interval is 1.92 below the maximum
+	 * Uncoloured tree, 1 state, R0 estimated, 2 threads
+	 * @throws Exception
+	 */
+	@Test
+	public void testKnownMaximum() throws Exception {
+
+		RealParameter R0 = new RealParameter();
+		R0.initByName("value", "1.5", "lower", 0.1, "upper", 10.);
+		R0.setID("R0");
+
+		BirthDeathMigrationModelUncoloured bdm = likelihood(R0);
+
+		// maximum on a grid of step 0.005
+		double gridMax = Double.NEGATIVE_INFINITY, gridArgMax = Double.NaN;
+		for (int i=0; i<=900; i++) {
+			double value = 0.5 + 0.005*i;
+			double logL = logL(bdm, R0, value);
+			if (logL > gridMax) {
+				gridMax = logL;
+				gridArgMax = value;
+			}
+		}
+		assertTrue(gridArgMax > 0.5 && gridArgMax < 5.);
+
+		R0.setValue(1.5);
+
+		File file = File.createTempFile("bdmmMLE", ".txt");
+		file.deleteOnExit();
+
+		BirthDeathMigrationMLE mle = new BirthDeathMigrationMLE();
+		mle.setInputValue("likelihood", bdm);
+		mle.setInputValue("parameter", R0);
+		mle.setInputValue("threads", 2);
+		mle.setInputValue("outFile", file.getPath());
+		mle.initAndValidate();
+		mle.run();
+
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		double maxLogL = Double.parseDouble(lines.get(0).split("\t")[1]);
+		String[] estimate = lines.get(2).split("\t");
+
+		assertEquals("R0", estimate[0]);
+		double R0hat = Double.parseDouble(estimate[1]);
+		double lower = Double.parseDouble(estimate[2]);
+		double upper = Double.parseDouble(estimate[3]);
+
+		assertEquals(gridArgMax, R0hat, 0.01);
+		assertTrue(maxLogL >= gridMax - 1e-6);
+		assertEquals(R0hat, R0.getValue(), 0.);
+
+		assertTrue(lower < R0hat && R0hat < upper);
+		assertEquals(maxLogL - 1.92, logL(bdm, R0, lower), 0.01);
+		assertEquals(maxLogL - 1.92, logL(bdm, R0, upper), 0.01);
+	}
+
+	/**
+	 * A starting value of zero cannot be log-transformed, which is found when setting up the estimation
+	 * @throws Exception
+	 */
+	@Test
+	public void testNonPositiveStartWithLogTransform() throws Exception {
+
+		RealParameter R0 = new RealParameter("0.");
+		R0.setID("R0");
+
+		BirthDeathMigrationMLE mle = new BirthDeathMigrationMLE();
+		mle.setInputValue("likelihood", likelihood(new RealParameter("1.5")));
+		mle.setInputValue("parameter", R0);
+
+		try {
+			mle.initAndValidate();
+			fail("R0 = 0 cannot be log-transformed");
+		} catch (RuntimeException e) {
+			// expected
+		}
+	}
+
+	private double logL(BirthDeathMigrationModelUncoloured bdm, RealParameter R0, double value) {
+
+		R0.setValue(value);
+		return bdm.calculateLogP();
+	}
+
+	private BirthDeathMigrationModelUncoloured likelihood(RealParameter R0) {
+
+		BirthDeathMigrationModelUncoloured bdm =  new BirthDeathMigrationModelUncoloured();
+
+		bdm.setInputValue("tree", new TreeParser("((3:1.5,4:0.5):1,(1:2,2:1):3);", false));
+		bdm.setInputValue("tipTypeArray", "0 0 0 0");
+		bdm.setInputValue("origin", "6.");
+		bdm.setInputValue("stateNumber", "1");
+		bdm.setInputValue("migrationMatrix", "0.");
+		bdm.setInputValue("frequencies", "1");
+		bdm.setInputValue("R0", R0);
+		bdm.setInputValue("becomeUninfectiousRate", new RealParameter("1.5"));
+		bdm.setInputValue("samplingProportion", new RealParameter("0.3"));
+		bdm.setInputValue("conditionOnSurvival", true);
+		bdm.setInputValue("parallelize", false);
+		bdm.initAndValidate();
+
+		return bdm;
+	}
+}
@@ -0,0 +1,111 @@
+package test.bdmm.app.sbc;
+
+import bdmm.app.sbc.BirthDeathMigrationSBC;
+import bdmm.evolution.speciation.BirthDeathMigrationModelUncoloured;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.distribution.Uniform;
+import beast.base.inference.parameter.RealParameter;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class BirthDeathMigrationSBCTest extends TestCase {
+
+	/**
+	 * The ranks are between 0 and the number of posterior samples, and the output with 3 threads is the same as with
+	 * 1 thread
+	 * 1 state, uniform prior on R0, 20 replicates
+	 * @throws Exception
+	 */
+	@Test
+	public void testSameRanksForAnyNumberOfThreads() throws Exception {
+
+		String output1 = run(1, true);
+		String output3 = run(3, true);
+
+		assertEquals(output1, output3);
+
+		String[] lines = output1.split("\n");
+		assertEquals("replicate\tleaves\tacceptance\tR0\tR0.rank", lines[0]);
+
+		for (int r = 0; r < 20; r++) {
+			String[] fields = lines[r + 1].split("\t");
+			assertEquals(Integer.toString(r), fields[0]);
+
+			double truth = Double.parseDouble(fields[3]);
+			assertTrue(truth >= 0.8 && truth <= 1.5);
+
+			int rank = Integer.parseInt(fields[4]);
+			assertTrue(rank >= 0 && rank <= 19);
+		}
+
+		// followed by the summary
+		assertEquals("", lines[21]);
+	}
+
+	/**
+	 * A likelihood that does not condition on survival is rejected, as the simulated trees are
+	 * @throws Exception
+	 */
+	@Test
+	public void testConditionOnSurvivalRequired() throws Exception {
+
+		try {
+			run(1, false);
+			fail("A likelihood not conditioned on survival should be rejected.");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains("conditionOnSurvival"));
+		}
+	}
+
+	private String run(int threads, boolean conditionOnSurvival) throws Exception {
+
+		File file = File.createTempFile("bdmmSBC", ".log");
+		file.deleteOnExit();
+
+		RealParameter R0 = new RealParameter();
+		R0.initByName("value", "1.2", "lower", 0.5, "upper", 3.);
+		R0.setID("R0");
+
+		Uniform prior = new Uniform();
+		prior.initByName("lower", 0.8, "upper", 1.5);
+
+		BirthDeathMigrationSBC sbc = new BirthDeathMigrationSBC();
+		sbc.setInputValue("likelihood", likelihood(R0, conditionOnSurvival));
+		sbc.setInputValue("parameter", R0);
+		sbc.setInputValue("distr", prior);
+		sbc.setInputValue("replicates", 20);
+		sbc.setInputValue("burnin", 200);
+		sbc.setInputValue("chainLength", 1000);
+		sbc.setInputValue("posteriorSamples", 19);
+		sbc.setInputValue("seed", 42L);
+		sbc.setInputValue("threads", threads);
+		sbc.setInputValue("outFile", file.getPath());
+		sbc.initAndValidate();
+		sbc.run();
+
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+	private BirthDeathMigrationModelUncoloured likelihood(RealParameter R0, boolean conditionOnSurvival) {
+
+		BirthDeathMigrationModelUncoloured bdm =  new BirthDeathMigrationModelUncoloured();
+
+		bdm.setInputValue("tree", new TreeParser("((1[&state=0]:1.5,2[&state=0]:0.5)[&state=0]:1,3[&state=0]:2)[&state=0]:0.;", false));
+		bdm.setInputValue("typeLabel", "state");
+		bdm.setInputValue("origin", "3.");
+		bdm.setInputValue("stateNumber", "1");
+		bdm.setInputValue("migrationMatrix", "0.");
+		bdm.setInputValue("frequencies", "1");
+		bdm.setInputValue("R0", R0);
+		bdm.setInputValue("becomeUninfectiousRate", new RealParameter("1.5"));
+		bdm.setInputValue("samplingProportion", new RealParameter("0.3"));
+		bdm.setInputValue("conditionOnSurvival", conditionOnSurvival);
+		bdm.initAndValidate();
+
+		return bdm;
+	}
+}
@@ -0,0 +1,67 @@
+package test.bdmm.app.sim;
+
+import bdmm.app.sim.BirthDeathMigrationTreeSimulation;
+import bdmm.evolution.speciation.BirthDeathMigrationModelUncoloured;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class BirthDeathMigrationTreeSimulationTest extends TestCase {
+
+	/**
+	 * The Newick file of a batch of trees simulated with 4 threads is the same as with 1 thread
+	 * 2 states, migration, 2 intervals
+	 * @throws Exception
+	 */
+	@Test
+	public void testSameTreesForAnyNumberOfThreads() throws Exception {
+
+		String trees1 = simulate(1);
+		String trees4 = simulate(4);
+
+		assertEquals(200, trees1.split("\n").length);
+		assertEquals(trees1, trees4);
+	}
+
+	private String simulate(int threads) throws Exception {
+
+		File file = File.createTempFile("bdmmTrees", ".tree");
+		file.deleteOnExit();
+
+		BirthDeathMigrationTreeSimulation simulation = new BirthDeathMigrationTreeSimulation();
+		simulation.setInputValue("likelihood", likelihood());
+		simulation.setInputValue("replicates", 200);
+		simulation.setInputValue("seed", 42L);
+		simulation.setInputValue("threads", threads);
+		simulation.setInputValue("outFile", file.getPath());
+		simulation.initAndValidate();
+		simulation.run();
+
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+	private BirthDeathMigrationModelUncoloured likelihood() {
+
+		BirthDeathMigrationModelUncoloured bdm =  new BirthDeathMigrationModelUncoloured();
+
+		bdm.setInputValue("tree", new TreeParser("((1[&state=0]:1.5,2[&state=1]:0.5)[&state=0]:1,3[&state=0]:2)[&state=0]:0.;", false));
+		bdm.setInputValue("typeLabel", "state");
+		bdm.setInputValue("origin", "5.");
+		bdm.setInputValue("stateNumber", "2");
+		bdm.setInputValue("migrationMatrix", ".1 .2");
+		bdm.setInputValue("frequencies", ".5 .5");
+		bdm.setInputValue("R0", new RealParameter("1.5 1.2 1.3 1.4"));
+		bdm.setInputValue("becomeUninfectiousRate", new RealParameter("1.5 1.5 1.2 1.2"));
+		bdm.setInputValue("samplingProportion", new RealParameter("0.3 0.3 0.2 0.2"));
+		bdm.setInputValue("intervalTimes", "0. 3.");
+		bdm.setInputValue("conditionOnSurvival", true);
+		bdm.initAndValidate();
+
+		return bdm;
+	}
+}
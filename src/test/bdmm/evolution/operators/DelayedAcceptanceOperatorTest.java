@@ -0,0 +1,186 @@
+package test.bdmm.evolution.operators;
+
+import bdmm.evolution.operators.DelayedAcceptanceOperator;
+import bdmm.evolution.speciation.BirthDeathMigrationModelUncoloured;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Distribution;
+import beast.base.inference.Logger;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.distribution.Prior;
+import beast.base.inference.distribution.Uniform;
+import beast.base.inference.operator.RealRandomWalkOperator;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DelayedAcceptanceOperatorTest extends TestCase {
+
+	/**
+	 * With a flat approximate likelihood on [1, 2], exactly the proposals leaving [1, 2] are rejected at the first
+	 * stage, and the chain stays within it
+	 * Uncoloured tree, 1 state, uniform prior on R0 over [0.5, 3]
+	 * @throws Exception
+	 */
+	@Test
+	public void testFirstStageRejections() throws Exception {
+
+		Randomizer.setSeed(127);
+
+		RealParameter R0 = R0();
+		RecordingRandomWalkOperator randomWalk = new RecordingRandomWalkOperator();
+		randomWalk.initByName("parameter", R0, "windowSize", 0.5, "weight", 1.);
+
+		DelayedAcceptanceOperator operator = new DelayedAcceptanceOperator();
+		operator.initByName("operator", randomWalk, "approximateLikelihood", prior(R0, 1., 2.), "weight", 1.);
+
+		List<Double> trace = run(R0, operator, 5000, 1);
+
+		long outside = 0;
+		for (double value : randomWalk.proposed) {
+			if (value < 1. || value > 2.) outside++;
+		}
+
+		assertTrue(outside > 100);
+		assertEquals(outside, operator.getRejectedAtFirstStage());
+
+		for (double value : trace) assertTrue(value >= 1. && value <= 2.);
+	}
+
+	/**
+	 * Screening the random walk with the likelihood at a loose tolerance gives the posterior mean of R0 of the plain
+	 * random walk, up to the Monte Carlo error
+	 * Uncoloured tree, 1 state, uniform prior on R0
+	 * @throws Exception
+	 */
+	@Test
+	public void testAgainstRandomWalk() throws Exception {
+
+		Randomizer.setSeed(127);
+		RealParameter R0 = R0();
+		RealRandomWalkOperator randomWalk = new RealRandomWalkOperator();
+		randomWalk.initByName("parameter", R0, "windowSize", 0.5, "weight", 1.);
+		double meanRandomWalk = mean(run(R0, randomWalk, 50000, 10));
+
+		Randomizer.setSeed(127);
+		R0 = R0();
+		randomWalk = new RealRandomWalkOperator();
+		randomWalk.initByName("parameter", R0, "windowSize", 0.5, "weight", 1.);
+
+		BirthDeathMigrationModelUncoloured approximation = likelihood(R0);
+		approximation.setInputValue("relTolerance", 1e-3);
+		approximation.initAndValidate();
+
+		DelayedAcceptanceOperator operator = new DelayedAcceptanceOperator();
+		operator.initByName("operator", randomWalk, "approximateLikelihood", approximation, "weight", 1.);
+		double meanDelayed = mean(run(R0, operator, 50000, 10));
+
+		assertEquals(meanRandomWalk, meanDelayed, 0.1);
+	}
+
+	/**
+	 * @param R0
+	 * @param operator
+	 * @param chainLength
+	 * @param logEvery
+	 * @return R0 at every logEvery-th step of a chain of the operator alone, on the posterior of R0 given a tree
+	 * @throws Exception
+	 */
+	private List<Double> run(RealParameter R0, Operator operator, long chainLength, int logEvery) throws Exception {
+
+		CompoundDistribution posterior = new CompoundDistribution();
+		posterior.initByName("distribution", prior(R0, 0.5, 3.), "distribution", likelihood(R0));
+
+		State state = new State();
+		state.initByName("stateNode", R0);
+		state.setStateFileName(tempFile("delayed", ".state").getPath());
+
+		SpeculativeRandomWalkOperatorTest.TraceLogger trace = new SpeculativeRandomWalkOperatorTest.TraceLogger(R0);
+		Logger logger = new Logger();
+		logger.initByName("fileName", tempFile("delayed", ".log").getPath(), "logEvery", logEvery, "log", trace);
+
+		MCMC mcmc = new MCMC();
+		mcmc.initByName("chainLength", chainLength, "state", state, "distribution", posterior, "operator", operator, "logger", logger);
+		mcmc.run();
+
+		return trace.values;
+	}
+
+	private double mean(List<Double> values) {
+
+		double sum = 0;
+		for (double value : values) sum += value;
+		return sum / values.size();
+	}
+
+	private RealParameter R0() {
+
+		RealParameter R0 = new RealParameter();
+		R0.initByName("value", "1.5", "lower", 0.5, "upper", 3.);
+		R0.setID("R0");
+		return R0;
+	}
+
+	private BirthDeathMigrationModelUncoloured likelihood(RealParameter R0) {
+
+		BirthDeathMigrationModelUncoloured bdm =  new BirthDeathMigrationModelUncoloured();
+
+		bdm.setInputValue("tree", new TreeParser("((3:1.5,4:0.5):1,(1:2,2:1):3);", false));
+		bdm.setInputValue("tipTypeArray", "0 0 0 0");
+		bdm.setInputValue("origin", "6.");
+		bdm.setInputValue("stateNumber", "1");
+		bdm.setInputValue("migrationMatrix", "0.");
+		bdm.setInputValue("frequencies", "1");
+		bdm.setInputValue("R0", R0);
+		bdm.setInputValue("becomeUninfectiousRate", new RealParameter("1.5"));
+		bdm.setInputValue("samplingProportion", new RealParameter("0.3"));
+		bdm.setInputValue("conditionOnSurvival", true);
+		bdm.setInputValue("parallelize", false);
+		bdm.initAndValidate();
+
+		return bdm;
+	}
+
+	private Distribution prior(RealParameter R0, double lower, double upper) {
+
+		Uniform uniform = new Uniform();
+		uniform.initByName("lower", lower, "upper", upper);
+
+		Prior prior = new Prior();
+		prior.initByName("x", R0, "distr", uniform);
+
+		return prior;
+	}
+
+	private File tempFile(String prefix, String suffix) throws Exception {
+
+		// the logger only writes to files that do not exist yet
+		File file = File.createTempFile(prefix, suffix);
+		file.delete();
+		file.deleteOnExit();
+		return file;
+	}
+
+	/**
+	 * Random walk remembering the values it proposed within the bounds of the parameter
+	 */
+	public static class RecordingRandomWalkOperator extends RealRandomWalkOperator {
+
+		List<Double> proposed = new ArrayList<>();
+
+		@Override
+		public double proposal() {
+
+			double logHR = super.proposal();
+			if (logHR != Double.NEGATIVE_INFINITY) proposed.add(parameterInput.get().getValue());
+			return logHR;
+		}
+	}
+}
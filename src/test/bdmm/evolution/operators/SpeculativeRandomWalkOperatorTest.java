@@ -0,0 +1,214 @@
+package test.bdmm.evolution.operators;
+
+import bdmm.evolution.operators.SpeculativeRandomWalkOperator;
+import bdmm.evolution.speciation.BirthDeathMigrationModelUncoloured;
+import beast.base.core.BEASTObject;
+import beast.base.core.Loggable;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Logger;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.distribution.Prior;
+import beast.base.inference.distribution.Uniform;
+import beast.base.inference.operator.RealRandomWalkOperator;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SpeculativeRandomWalkOperatorTest extends TestCase {
+
+	/**
+	 * A chain of the speculative operator (10 steps per proposal on 2 threads) gives the posterior mean of R0 of a
+	 * chain of RealRandomWalkOperator with the same window and the same number of steps, up to the Monte Carlo error
+	 * Uncoloured tree, 1 state, uniform prior on R0
+	 * @throws Exception
+	 */
+	@Test
+	public void testAgainstRandomWalk() throws Exception {
+
+		Randomizer.setSeed(127);
+		double meanRandomWalk = mean(traceR0(false, 1, false));
+
+		Randomizer.setSeed(127);
+		double meanSpeculative = mean(traceR0(true, 2, false));
+
+		assertEquals(meanRandomWalk, meanSpeculative, 0.1);
+	}
+
+	/**
+	 * The chain of the speculative operator is the same for 1 and 4 threads with the same seed, also with a calibrated
+	 * tolerance and interval checkpoints on the likelihood, which the copies must not use differently
+	 * Uncoloured tree, 1 state, uniform prior on R0
+	 * @throws Exception
+	 */
+	@Test
+	public void testSameChainForAnyNumberOfThreads() throws Exception {
+
+		Randomizer.setSeed(127);
+		List<Double> trace1 = traceR0(true, 1, true);
+
+		Randomizer.setSeed(127);
+		List<Double> trace4 = traceR0(true, 4, true);
+
+		assertTrue(trace1.size() >= 500);
+		assertEquals(trace1, trace4);
+	}
+
+	/**
+	 * A posterior term depending on the parameter that is not given to the operator is found when setting it up
+	 * @throws Exception
+	 */
+	@Test
+	public void testMissingPrior() throws Exception {
+
+		RealParameter R0 = new RealParameter("1.5");
+		BirthDeathMigrationModelUncoloured bdm = likelihood(R0);
+		Prior prior = prior(R0);
+
+		CompoundDistribution posterior = new CompoundDistribution();
+		posterior.initByName("distribution", prior, "distribution", bdm);
+
+		SpeculativeRandomWalkOperator operator = new SpeculativeRandomWalkOperator();
+		operator.setInputValue("parameter", R0);
+		operator.setInputValue("likelihood", bdm);
+		operator.setInputValue("weight", 1.);
+
+		try {
+			operator.initAndValidate();
+			fail("the prior on R0 is missing");
+		} catch (RuntimeException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * @param speculative run the speculative operator, else RealRandomWalkOperator
+	 * @param threads
+	 * @param calibrated calibrate the tolerance of the likelihood and keep interval checkpoints
+	 * @return R0 at every step of the speculative operator (5000 proposals) or every 10th of the random walk (50000)
+	 * @throws Exception
+	 */
+	private List<Double> traceR0(boolean speculative, int threads, boolean calibrated) throws Exception {
+
+		RealParameter R0 = new RealParameter();
+		R0.initByName("value", "1.5", "lower", 0.5, "upper", 3.);
+		R0.setID("R0");
+
+		BirthDeathMigrationModelUncoloured bdm = likelihood(R0);
+		if (calibrated) {
+			bdm.setInputValue("logLikelihoodAccuracy", 1e-3);
+			bdm.setInputValue("intervalCheckpoints", true);
+			bdm.initAndValidate();
+		}
+		Prior prior = prior(R0);
+
+		CompoundDistribution posterior = new CompoundDistribution();
+		posterior.initByName("distribution", prior, "distribution", bdm);
+
+		Operator operator;
+		if (speculative) {
+			operator = new SpeculativeRandomWalkOperator();
+			operator.initByName("parameter", R0, "likelihood", bdm, "prior", prior, "windowSize", 0.5, "steps", 10, "threads", threads, "weight", 1.);
+		} else {
+			operator = new RealRandomWalkOperator();
+			operator.initByName("parameter", R0, "windowSize", 0.5, "weight", 1.);
+		}
+
+		State state = new State();
+		state.initByName("stateNode", R0);
+		state.setStateFileName(tempFile("speculative", ".state").getPath());
+
+		TraceLogger trace = new TraceLogger(R0);
+		Logger logger = new Logger();
+		logger.initByName("fileName", tempFile("speculative", ".log").getPath(), "logEvery", speculative ? 1 : 10, "log", trace);
+
+		MCMC mcmc = new MCMC();
+		mcmc.initByName("chainLength", speculative ? (calibrated ? 500L : 5000L) : 50000L, "state", state, "distribution", posterior,
+				"operator", operator, "logger", logger);
+		mcmc.run();
+
+		return trace.values;
+	}
+
+	private double mean(List<Double> values) {
+
+		double sum = 0;
+		for (double value : values) sum += value;
+		return sum / values.size();
+	}
+
+	private BirthDeathMigrationModelUncoloured likelihood(RealParameter R0) {
+
+		BirthDeathMigrationModelUncoloured bdm =  new BirthDeathMigrationModelUncoloured();
+
+		bdm.setInputValue("tree", new TreeParser("((3:1.5,4:0.5):1,(1:2,2:1):3);", false));
+		bdm.setInputValue("tipTypeArray", "0 0 0 0");
+		bdm.setInputValue("origin", "6.");
+		bdm.setInputValue("stateNumber", "1");
+		bdm.setInputValue("migrationMatrix", "0.");
+		bdm.setInputValue("frequencies", "1");
+		bdm.setInputValue("R0", R0);
+		bdm.setInputValue("becomeUninfectiousRate", new RealParameter("1.5"));
+		bdm.setInputValue("samplingProportion", new RealParameter("0.3"));
+		bdm.setInputValue("conditionOnSurvival", true);
+		bdm.setInputValue("parallelize", false);
+		bdm.initAndValidate();
+
+		return bdm;
+	}
+
+	private Prior prior(RealParameter R0) {
+
+		Uniform uniform = new Uniform();
+		uniform.initByName("lower", 0.5, "upper", 3.);
+
+		Prior prior = new Prior();
+		prior.initByName("x", R0, "distr", uniform);
+
+		return prior;
+	}
+
+	private File tempFile(String prefix, String suffix) throws Exception {
+
+		// the logger only writes to files that do not exist yet
+		File file = File.createTempFile(prefix, suffix);
+		file.delete();
+		file.deleteOnExit();
+		return file;
+	}
+
+	public static class TraceLogger extends BEASTObject implements Loggable {
+
+		RealParameter parameter;
+		List<Double> values = new ArrayList<>();
+
+		TraceLogger(RealParameter parameter) {
+			this.parameter = parameter;
+		}
+
+		@Override
+		public void initAndValidate() {
+		}
+
+		@Override
+		public void init(PrintStream out) {
+		}
+
+		@Override
+		public void log(long sample, PrintStream out) {
+			values.add(parameter.getValue());
+		}
+
+		@Override
+		public void close(PrintStream out) {
+		}
+	}
+}
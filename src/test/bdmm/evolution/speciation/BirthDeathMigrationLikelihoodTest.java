@@ -13,9 +13,11 @@ import java.util.Arrays;
 
 import org.junit.Test;
 
+import bdmm.evolution.speciation.BirthDeathMigrationForestUncoloured;
 import bdmm.evolution.speciation.BirthDeathMigrationModel;
 import bdmm.evolution.speciation.BirthDeathMigrationModelUncoloured;
 import bdmm.evolution.tree.MultiTypeRootBranch;
+import bdmm.math.MonotoneCubicSpline;
 import beast.base.evolution.alignment.Taxon;
 import beast.base.evolution.alignment.TaxonSet;
 
@@ -877,6 +879,311 @@ public class BirthDeathMigrationLikelihoodTest extends TestCase {
 		assertEquals(-18.574104140202046, logL2bis, 1e-5); // Reference BDSKY (version 1.3.3)
 	}
 
+	/**
+	 * 1-dim test with smoothly interpolated rates
+	 * Uncoloured tree
+	 * Identical knot values must reproduce the constant-rate reference from BDSKY,
+	 * different knot values must give a different (finite) likelihood
+	 * @throws Exception
+	 */
+	@Test
+	public void testLikelihoodSmoothRates1dim() throws Exception {
+
+		ArrayList<Taxon> taxa = new ArrayList<Taxon>();
+
+		for (int i=1; i<=4; i++){
+			taxa.add(new Taxon(""+i));
+		}
+
+		Tree tree = new TreeParser();
+		tree.setInputValue("taxonset", new TaxonSet(taxa));
+		tree.setInputValue("adjustTipHeights", "false");
+		tree.setInputValue("IsLabelledNewick", "true");
+		tree.setInputValue("newick", "((3 : 1.5, 4 : 0.5) : 1 , (1 : 2, 2 : 1) : 3);");
+		tree.initAndValidate();
+
+		TraitSet trait = new TraitSet();
+		trait.setInputValue("taxa", new TaxonSet(taxa));
+		trait.setInputValue("value", "1=0,2=0,3=0,4=0");
+		trait.setInputValue("traitname", "tiptypes");
+		trait.initAndValidate();
+
+		BirthDeathMigrationModelUncoloured bdm =  new BirthDeathMigrationModelUncoloured();
+
+		bdm.setInputValue("tree", tree);
+		bdm.setInputValue("tiptypes", trait);
+		bdm.setInputValue("origin", "6.");
+		bdm.setInputValue("stateNumber", "1");
+		bdm.setInputValue("migrationMatrix", "0.");
+		bdm.setInputValue("frequencies", "1");
+		bdm.setInputValue("R0", new RealParameter("1.3333333334 1.3333333334 1.3333333334"));
+		bdm.setInputValue("becomeUninfectiousRate", new RealParameter("1.5 1.5 1.5"));
+		bdm.setInputValue("samplingProportion", new RealParameter("0.33333333333 0.33333333333 0.33333333333"));
+		bdm.setInputValue("intervalTimes", "0. 2. 4.");
+		bdm.setInputValue("smoothRates", true);
+		bdm.setInputValue("conditionOnSurvival", false);
+
+		bdm.initAndValidate();
+
+		assertEquals(-19.019796073623493, bdm.calculateLogP(), 1e-5);   // Reference BDSKY (version 1.3.3), constant rates
+
+		bdm.setInputValue("R0", new RealParameter("1.0 1.3333333334 2.0"));
+		bdm.initAndValidate();
+		double logLSmooth = bdm.calculateLogP();
+
+		// reference: piecewise-constant rates on fine grids, R0 taken from the same spline in the middle of each interval.
+		// The grid likelihood converges linearly in the interval width, so the two grids are extrapolated to zero width.
+		MonotoneCubicSpline R0Spline = new MonotoneCubicSpline(new double[] {0., 2., 4.}, new double[] {1.0, 1.3333333334, 2.0});
+		double[] logLGrid = new double[2];
+		for (int g=0; g<2; g++) {
+
+			int gridSize = 300 * (g + 1);
+			StringBuilder gridTimes = new StringBuilder(), gridR0 = new StringBuilder(), gridDelta = new StringBuilder(), gridS = new StringBuilder();
+			for (int k=0; k<gridSize; k++) {
+				gridTimes.append(k * 6. / gridSize).append(" ");
+				gridR0.append(R0Spline.value((k + 0.5) * 6. / gridSize)).append(" ");
+				gridDelta.append("1.5 ");
+				gridS.append("0.33333333333 ");
+			}
+
+			BirthDeathMigrationModelUncoloured bdmGrid =  new BirthDeathMigrationModelUncoloured();
+
+			bdmGrid.setInputValue("tree", tree);
+			bdmGrid.setInputValue("tiptypes", trait);
+			bdmGrid.setInputValue("origin", "6.");
+			bdmGrid.setInputValue("stateNumber", "1");
+			bdmGrid.setInputValue("migrationMatrix", "0.");
+			bdmGrid.setInputValue("frequencies", "1");
+			bdmGrid.setInputValue("R0", new RealParameter(gridR0.toString().trim()));
+			bdmGrid.setInputValue("becomeUninfectiousRate", new RealParameter(gridDelta.toString().trim()));
+			bdmGrid.setInputValue("samplingProportion", new RealParameter(gridS.toString().trim()));
+			bdmGrid.setInputValue("intervalTimes", gridTimes.toString().trim());
+			bdmGrid.setInputValue("conditionOnSurvival", false);
+			bdmGrid.setInputValue("relTolerance", 1e-10); // the integration error adds up over the many intervals
+
+			bdmGrid.initAndValidate();
+			logLGrid[g] = bdmGrid.calculateLogP();
+		}
+		double logLExtrapolated = 2 * logLGrid[1] - logLGrid[0];
+
+		System.out.println("Birth-death result (smooth rates): " + logLSmooth + ", (extrapolated piecewise-constant grids): " + logLExtrapolated + "\t- Test LikelihoodSmoothRates1dim");
+
+		assertEquals(logLExtrapolated, logLSmooth, 1e-4);
+	}
+
+	/**
+	 * Interval checkpoints: after a change of the rates of a single interval, the partially recomputed
+	 * likelihood has to agree with a full calculation up to the integration tolerance (the reused branches are
+	 * integrated in pieces, so the adaptive step sizes differ)
+	 * Uncoloured tree, 1 state, 3 intervals
+	 * @throws Exception
+	 */
+	@Test
+	public void testLikelihoodIntervalCheckpoints() throws Exception {
+
+		String[] R0Values = {"1.2 1.5 1.3", "1.1 1.5 1.3", "1.1 1.5 1.4", "1.1 1.6 1.4"};
+
+		Tree tree = new TreeParser("((3:1.5,4:0.5):1,(1:2,2:1):3);", false);
+		BirthDeathMigrationModelUncoloured bdmCheckpoints = intervalModel(tree, R0Values[0], true);
+		bdmCheckpoints.calculateLogP();
+
+		for (int i=1; i<R0Values.length; i++) {
+
+			tree.setEverythingDirty(false);
+			bdmCheckpoints.setInputValue("R0", new RealParameter(R0Values[i]));
+
+			double logL = bdmCheckpoints.calculateLogP();
+			double logLFull = intervalModel(new TreeParser("((3:1.5,4:0.5):1,(1:2,2:1):3);", false), R0Values[i], false).calculateLogP();
+
+			assertEquals(logLFull, logL, 1e-5);
+		}
+	}
+
+	/**
+	 * Interval checkpoints kept across a rejected proposal: after restore, the results of the stored
+	 * state are reused (or recomputed if the checkpoints are compact, also with compact per-node partials)
+	 * @throws Exception
+	 */
+	@Test
+	public void testLikelihoodIntervalCheckpointsRestore() throws Exception {
+
+		double logLFull = intervalModel(new TreeParser("((3:1.5,4:0.5):1,(1:2,2:1):3);", false), "1.2 1.5 1.3", false).calculateLogP();
+
+		for (boolean compact : new boolean[]{false, true}) {
+
+			Tree tree = new TreeParser("((3:1.5,4:0.5):1,(1:2,2:1):3);", false);
+			BirthDeathMigrationModelUncoloured bdm = intervalModel(tree, "1.2 1.5 1.3", true);
+			bdm.setInputValue("compactCheckpoints", compact);
+			bdm.setInputValue("compactPartials", compact);
+			bdm.initAndValidate();
+			bdm.calculateLogP();
+
+			tree.setEverythingDirty(false);
+			bdm.store();
+			bdm.setInputValue("R0", new RealParameter("1.2 1.5 1.6"));
+			bdm.calculateLogP();
+			bdm.restore();
+
+			bdm.setInputValue("R0", new RealParameter("1.2 1.5 1.3"));
+			assertEquals(logLFull, bdm.calculateLogP(), 1e-10);
+		}
+	}
+
+	/**
+	 * Tolerances calibrated for a log-likelihood accuracy of 1e-3 (with interval checkpoints, which must not be reused across
+	 * the pilot evaluations) give the log-likelihood of the default tolerances within that accuracy
+	 * @throws Exception
+	 */
+	@Test
+	public void testToleranceCalibration() throws Exception {
+
+		double logLDefault = intervalModel(new TreeParser("((3:1.5,4:0.5):1,(1:2,2:1):3);", false), "1.2 1.5 1.3", false).calculateLogP();
+
+		BirthDeathMigrationModelUncoloured bdm = intervalModel(new TreeParser("((3:1.5,4:0.5):1,(1:2,2:1):3);", false), "1.2 1.5 1.3", true);
+		bdm.setInputValue("logLikelihoodAccuracy", 1e-3);
+		bdm.initAndValidate();
+
+		assertEquals(logLDefault, bdm.calculateLogP(), 1e-3);
+	}
+
+	private BirthDeathMigrationModelUncoloured intervalModel(Tree tree, String R0, boolean intervalCheckpoints) {
+
+		BirthDeathMigrationModelUncoloured bdm =  new BirthDeathMigrationModelUncoloured();
+
+		bdm.setInputValue("tree", tree);
+		bdm.setInputValue("tipTypeArray", "0 0 0 0");
+		bdm.setInputValue("origin", "6.");
+		bdm.setInputValue("stateNumber", "1");
+		bdm.setInputValue("migrationMatrix", "0.");
+		bdm.setInputValue("frequencies", "1");
+		bdm.setInputValue("R0", new RealParameter(R0));
+		bdm.setInputValue("becomeUninfectiousRate", new RealParameter("1.5 1.5 1.5"));
+		bdm.setInputValue("samplingProportion", new RealParameter("0.3 0.3 0.3"));
+		bdm.setInputValue("intervalTimes", "0. 2. 4.");
+		bdm.setInputValue("intervalCheckpoints", intervalCheckpoints);
+		bdm.setInputValue("conditionOnSurvival", true);
+		bdm.initAndValidate();
+
+		return bdm;
+	}
+
+	/**
+	 * Forest of two clusters sharing all parameters and the origin:
+	 * the forest likelihood is the sum of the likelihoods of the single clusters (up to the integration
+	 * tolerance, as the extinction probabilities are integrated over the tip times of all clusters at once)
+	 * Uncoloured trees, 2 states
+	 * @throws Exception
+	 */
+	@Test
+	public void testForestLikelihood() throws Exception {
+
+		String[] newicks = {"((1[&state=0]:1.5,2[&state=1]:0.5)[&state=0]:1,3[&state=0]:2)[&state=0]:0.;",
+				"((1[&state=1]:2,2[&state=1]:1)[&state=1]:0.5,3[&state=0]:0.8)[&state=1]:0.;"};
+
+		double logLSum = 0;
+		for (String newick : newicks) {
+
+			BirthDeathMigrationModelUncoloured bdm =  new BirthDeathMigrationModelUncoloured();
+			bdm.setInputValue("tree", new TreeParser(newick, false));
+			logLSum += forestModel(bdm).calculateLogP();
+		}
+
+		BirthDeathMigrationForestUncoloured forest = new BirthDeathMigrationForestUncoloured();
+		forest.setInputValue("tree", new TreeParser(newicks[0], false));
+		forest.setInputValue("clusterTree", new TreeParser(newicks[1], false));
+		forest.setInputValue("threads", 2);
+
+		assertEquals(logLSum, forestModel(forest).calculateLogP(), 1e-6);
+	}
+
+	private BirthDeathMigrationModelUncoloured forestModel(BirthDeathMigrationModelUncoloured bdm) {
+
+		bdm.setInputValue("typeLabel", "state");
+		bdm.setInputValue("origin", "5.");
+		bdm.setInputValue("stateNumber", "2");
+		bdm.setInputValue("migrationMatrix", ".1 .2");
+		bdm.setInputValue("frequencies", ".5 .5");
+		bdm.setInputValue("R0", new RealParameter("1.5 1.2 1.3 1.4"));
+		bdm.setInputValue("becomeUninfectiousRate", new RealParameter("1.5 1.5 1.2 1.2"));
+		bdm.setInputValue("samplingProportion", new RealParameter("0.3 0.3 0.2 0.2"));
+		bdm.setInputValue("intervalTimes", "0. 3.");
+		bdm.setInputValue("conditionOnSurvival", true);
+		bdm.initAndValidate();
+
+		return bdm;
+	}
+
+	/**
+	 * Propagator cache: the likelihood with the cached growth factors of the ge equations agrees with the one
+	 * integrating every segment up to the integration tolerance, also after a parameter change (which has to
+	 * invalidate the cached propagators)
+	 * Coloured tree, 2 states, migration, rate changes and rho-sampling
+	 * @throws Exception
+	 */
+	@Test
+	public void testLikelihoodPropagatorCache() throws Exception {
+
+		String[] R0Values = {"1.5 1.3 1.4 1.2", "1.5 1.1 1.4 1.2", "1.6 1.1 1.3 1.2"};
+
+		BirthDeathMigrationModel bdmCache = migrationRhoModel(R0Values[0]);
+		bdmCache.setInputValue("propagatorCache", true);
+		bdmCache.initAndValidate();
+
+		for (String R0 : R0Values) {
+
+			bdmCache.setInputValue("R0", new RealParameter(R0));
+
+			double logLDirect = migrationRhoModel(R0).calculateLogP();
+
+			assertEquals(logLDirect, bdmCache.calculateLogP(), 1e-5);
+		}
+	}
+
+	/**
+	 * Integration by columns: integrating every segment by columns in extended precision gives the likelihood
+	 * of integrating the scaled ge values together, up to the integration tolerance
+	 * Coloured tree, 2 states, migration, rate changes and rho-sampling
+	 * @throws Exception
+	 */
+	@Test
+	public void testLikelihoodIntegrateByColumns() throws Exception {
+
+		double logLScaled = migrationRhoModel("1.5 1.3 1.4 1.2").calculateLogP();
+
+		BirthDeathMigrationModel bdmColumns = migrationRhoModel("1.5 1.3 1.4 1.2");
+		bdmColumns.setInputValue("integrateByColumns", true);
+		bdmColumns.initAndValidate();
+
+		assertEquals(logLScaled, bdmColumns.calculateLogP(), 1e-5);
+	}
+
+	private BirthDeathMigrationModel migrationRhoModel(String R0) {
+
+		MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+		mtTree.initByName(
+				"adjustTipHeights", false,
+				"value", "(1[&state=1]:29.5, (2[&state=1]:29.0, (3[&state=0]:27.0)[&state=1]:2.0)[&state=1]:0.5)[&state=1]:0.0;",
+				"typeLabel", "state");
+
+		BirthDeathMigrationModel bdm =  new BirthDeathMigrationModel();
+
+		bdm.setInputValue("tree", mtTree);
+		bdm.setInputValue("origin", "36.");
+		bdm.setInputValue("stateNumber", "2");
+		bdm.setInputValue("migrationMatrix", "0.3 0.4");
+		bdm.setInputValue("frequencies", "0.6 0.4");
+		bdm.setInputValue("R0", new RealParameter(R0));
+		bdm.setInputValue("becomeUninfectiousRate", new RealParameter("1.5 1.3 1.6 1.4"));
+		bdm.setInputValue("samplingProportion", new RealParameter("0. 0."));
+		bdm.setInputValue("birthRateChangeTimes", new RealParameter("0. 20."));
+		bdm.setInputValue("deathRateChangeTimes", new RealParameter("0. 20."));
+		bdm.setInputValue("rho", new RealParameter("0.01 0.015"));
+		bdm.setInputValue("conditionOnSurvival", false);
+		bdm.initAndValidate();
+
+		return bdm;
+	}
+
 	/**
 	 * 1-dim and 1 rate-change test
 	 * coloured and uncoloured trees
@@ -1617,6 +1924,46 @@ public class BirthDeathMigrationLikelihoodTest extends TestCase {
 		
 	}
 	
+	/**
+	 * Merged identical intervals: evaluating the same model again (or setting up a simulator from it) has to start
+	 * from the rho values of all intervals, not from the merged ones
+	 * Uncoloured tree, 2 states, rho-sampling, 3 intervals with identical rates
+	 * @throws Exception
+	 */
+	@Test
+	public void testLikelihoodMergedIntervalsRho() throws Exception {
+
+		Tree tree = new TreeParser("((1[&type=0]: 4.5, 2[&type=1]: 4.5):1,3[&type=0]:5.5);",false);
+
+		BirthDeathMigrationModelUncoloured bdm =  new BirthDeathMigrationModelUncoloured();
+
+		bdm.setInputValue("tree", tree);
+		bdm.setInputValue("typeLabel", "type");
+		bdm.setInputValue("stateNumber", "2");
+		bdm.setInputValue("migrationMatrix", "0.3 0.4");
+		bdm.setInputValue("parallelize", false);
+		bdm.setInputValue("frequencies", "0.6 0.4");
+		bdm.setInputValue("intervalTimes", "0. 1. 2.");
+		bdm.setInputValue("R0", new RealParameter("1.5 1.5 1.5 1.4 1.4 1.4"));
+		bdm.setInputValue("becomeUninfectiousRate", new RealParameter("1.5 1.5 1.5 1.3 1.3 1.3"));
+		bdm.setInputValue("samplingProportion", new RealParameter("0. 0. 0. 0. 0. 0.") );
+		bdm.setInputValue("rho", new RealParameter("0.01 0.015") );
+		bdm.setInputValue("conditionOnSurvival", false);
+
+		bdm.initAndValidate();
+
+		// same model as in testLikelihoodMigrationRhoSampling, without interval changes
+		assertEquals(-8.906223150087108, bdm.calculateLogP(), 1e-4);
+		assertEquals(-8.906223150087108, bdm.calculateLogP(), 1e-4);
+
+		bdm.setInputValue("origin", "6.");
+		bdm.initAndValidate();
+
+		double logL = bdm.calculateLogP();
+		bdm.newPopHistorySimulator();
+		assertEquals(logL, bdm.calculateLogP(), 1e-10);
+	}
+
 	/**
 	 * Basic test on sampled-ancestors lik. calculation.
 	 * 2 leaves, 1 SA. 1 type, no rho-sampling, no rate-change
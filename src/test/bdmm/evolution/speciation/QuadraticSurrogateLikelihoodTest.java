@@ -0,0 +1,109 @@
+package test.bdmm.evolution.speciation;
+
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import bdmm.evolution.speciation.BirthDeathMigrationModelUncoloured;
+import bdmm.evolution.speciation.QuadraticSurrogateLikelihood;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class QuadraticSurrogateLikelihoodTest extends TestCase {
+
+	/**
+	 * Within one proposal, the surrogate is the same function of the state however often it is evaluated (many more
+	 * times than exactEvery here), and once the adaptation is over, adapting at a state outside of the fitted range
+	 * no longer changes it
+	 * Uncoloured tree, 1 state, surrogate over R0
+	 * @throws Exception
+	 */
+	@Test
+	public void testSurrogateFixedWithinProposal() throws Exception {
+
+		RealParameter R0 = new RealParameter("1.5");
+		QuadraticSurrogateLikelihood surrogate = surrogate(R0, 20);
+
+		// adapt at states spread over [1.2, 1.8], so that a quadratic is fitted
+		for (int i=0; i<19; i++) {
+			setR0(R0, 1.2 + 0.1*(i%7));
+			surrogate.adapt();
+		}
+
+		// one proposal from x = 1.4 to y = 1.55
+		setR0(R0, 1.4);
+		surrogate.adapt();
+		double logLx = surrogate.calculateLogP();
+
+		setR0(R0, 1.55);
+		double logLy = surrogate.calculateLogP();
+
+		for (int i=0; i<50; i++) {
+			setR0(R0, 1.4);
+			assertEquals(logLx, surrogate.calculateLogP(), 0.);
+			setR0(R0, 1.55);
+			assertEquals(logLy, surrogate.calculateLogP(), 0.);
+		}
+
+		assertTrue(surrogate.isAdapted());
+
+		setR0(R0, 2.5);
+		surrogate.adapt();
+
+		setR0(R0, 1.55);
+		assertEquals(logLy, surrogate.calculateLogP(), 0.);
+	}
+
+	/**
+	 * Once fitted to exact evaluations spread over [1.4, 1.6], the surrogate is within 0.01 of the exact log-likelihood
+	 * around the centre of the fit
+	 * Uncoloured tree, 1 state, surrogate over R0
+	 * @throws Exception
+	 */
+	@Test
+	public void testSurrogateNearFitCentre() throws Exception {
+
+		RealParameter R0 = new RealParameter("1.5");
+		QuadraticSurrogateLikelihood surrogate = surrogate(R0, 40);
+
+		for (int i=0; i<40; i++) {
+			setR0(R0, 1.4 + 0.02*(i%11));
+			surrogate.adapt();
+		}
+		assertTrue(surrogate.isAdapted());
+
+		BirthDeathMigrationModelUncoloured bdm = (BirthDeathMigrationModelUncoloured) surrogate.likelihoodInput.get();
+
+		for (double value : new double[]{1.45, 1.48, 1.5, 1.53, 1.55}) {
+			setR0(R0, value);
+			assertEquals(bdm.calculateLogP(), surrogate.calculateLogP(), 1e-2);
+		}
+	}
+
+	private void setR0(RealParameter R0, double value) {
+		R0.assignFromWithoutID(new RealParameter(new Double[]{value}));
+	}
+
+	private QuadraticSurrogateLikelihood surrogate(RealParameter R0, int adaptationCalls) {
+
+		BirthDeathMigrationModelUncoloured bdm =  new BirthDeathMigrationModelUncoloured();
+
+		bdm.setInputValue("tree", new TreeParser("((3:1.5,4:0.5):1,(1:2,2:1):3);", false));
+		bdm.setInputValue("tipTypeArray", "0 0 0 0");
+		bdm.setInputValue("origin", "6.");
+		bdm.setInputValue("stateNumber", "1");
+		bdm.setInputValue("migrationMatrix", "0.");
+		bdm.setInputValue("frequencies", "1");
+		bdm.setInputValue("R0", R0);
+		bdm.setInputValue("becomeUninfectiousRate", new RealParameter("1.5"));
+		bdm.setInputValue("samplingProportion", new RealParameter("0.3"));
+		bdm.setInputValue("conditionOnSurvival", true);
+		bdm.initAndValidate();
+
+		QuadraticSurrogateLikelihood surrogate = new QuadraticSurrogateLikelihood();
+		surrogate.setInputValue("likelihood", bdm);
+		surrogate.setInputValue("parameter", R0);
+		surrogate.setInputValue("adaptationCalls", adaptationCalls);
+		surrogate.initAndValidate();
+
+		return surrogate;
+	}
+}
@@ -0,0 +1,269 @@
+package test.bdmm.treesimulator;
+
+import bdmm.treesimulator.Event;
+import bdmm.treesimulator.PopHistory;
+import bdmm.treesimulator.PopHistorySimulator;
+import beast.base.evolution.tree.Node;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+
+public class PopHistorySimulatorTest extends TestCase {
+
+	/**
+	 * With tau-leaping, no event of a history happens in a deme that is empty at the time of the event, whatever the
+	 * order of the events within the leaps, also while the total population is large and the other deme is nearly empty
+	 * 2 demes, a growing one and a shrinking one fed by rare migrations, sampling through time
+	 */
+	@Test
+	public void testNoEventInEmptyDeme() {
+
+		PopHistorySimulator simulator = new PopHistorySimulator(2, new double[]{0},
+				new double[]{2., 1.}, new double[]{0.5, 3.}, new double[]{0.05, 0.05}, new double[]{0.001, 0.1},
+				new double[]{0.5, 0.5}, false, new double[]{1});
+		simulator.setEndTime(7.);
+		simulator.setTauLeaping(20, 0.3);
+		simulator.setRandom(new SplittableRandom(42));
+
+		for (int h = 0; h < 100; h++) {
+
+			PopHistory history = simulator.SimulatePopHistory(1);
+
+			for (int e = 0; e < history.getEventCount(); e++) {
+
+				int deme = history.getDemeAffected(e);
+				Event event = history.getEvent(e);
+
+				assertTrue(event + " in empty deme " + deme + " at event " + e + " of history " + h,
+						history.getPopSizeAfterEvent(e - 1, deme) > 0);
+			}
+		}
+	}
+
+	/**
+	 * The mean and variance of the population size at the present with tau-leaping (epsilon 0.03) are those of the
+	 * exact simulation, within 4 standard errors of their difference
+	 * 1 deme, birth 1, death 0.5, no sampling through time, all individuals sampled at the present, 10000 histories each
+	 */
+	@Test
+	public void testTauLeapingMoments() {
+
+		double[] exact = popSizeMoments(0);
+		double[] leaped = popSizeMoments(20);
+
+		assertEquals(exact[0], leaped[0], 4 * Math.sqrt(exact[1] + leaped[1]));
+		assertEquals(exact[2], leaped[2], 4 * Math.sqrt(exact[3] + leaped[3]));
+	}
+
+	/**
+	 * The rates change at the interval boundary: the mean population size at the present of a pure birth process with
+	 * birth rate 0.2 before time 2 and 0.6 after it is exp(0.2*2 + 0.6*3), within 4 standard errors
+	 * 1 deme, all individuals sampled at the present (time 5), 10000 histories
+	 */
+	@Test
+	public void testRateChangeAtIntervalBoundary() {
+
+		PopHistorySimulator simulator = new PopHistorySimulator(1, new double[]{0, 2.},
+				new double[]{0.2, 0.6}, new double[]{0.}, new double[]{0.}, new double[]{},
+				new double[]{1.}, false, new double[]{1});
+		simulator.setEndTime(5.);
+		simulator.setRhoSampling(new double[]{5.}, new double[]{1.});
+		simulator.setRandom(new SplittableRandom(42));
+
+		int histories = 10000;
+		double mean = 0;
+		for (int h = 0; h < histories; h++)
+			mean += (double) simulator.SimulatePopHistory(0).getNumberOfSamplesTaken() / histories;
+
+		// the population size of a pure birth process is geometric
+		double expected = Math.exp(0.2 * 2 + 0.6 * 3);
+		double standardError = Math.sqrt(expected * (expected - 1) / histories);
+
+		assertEquals(expected, mean, 4 * standardError);
+	}
+
+	/**
+	 * At a rho-sampling time, the number of individuals sampled in each deme is rho times the size of the deme just
+	 * before, within 4 standard errors over all histories
+	 * 2 demes with rho 0.3 and 0.7 at time 2, births and migrations, sampled individuals not removed, and everyone
+	 * sampled at the present (time 4), so that the histories are never truncated before time 2; 2000 histories
+	 */
+	@Test
+	public void testRhoSampledCount() {
+
+		PopHistorySimulator simulator = new PopHistorySimulator(2, new double[]{0},
+				new double[]{1., 0.8}, new double[]{0., 0.}, new double[]{0., 0.}, new double[]{0.3, 0.3},
+				new double[]{1., 0.}, true, new double[]{0., 0.});
+		simulator.setEndTime(4.);
+		simulator.setRhoSampling(new double[]{2., 4.}, new double[]{0.3, 1., 0.7, 1.});
+		simulator.setRandom(new SplittableRandom(42));
+
+		double[] rho = {0.3, 0.7};
+		long[] sampled = new long[2];
+		long[] present = new long[2];
+
+		for (int h = 0; h < 2000; h++) {
+
+			PopHistory history = simulator.SimulatePopHistory(0);
+			assertEquals(4., history.getEventTime(history.getEventCount() - 1), 0.);
+
+			int first = 0;
+			while (history.getEventTime(first) < 2.) first++;
+
+			for (int deme = 0; deme < 2; deme++) present[deme] += history.getPopSizeAfterEvent(first - 1, deme);
+
+			for (int e = first; history.getEventTime(e) == 2.; e++) {
+				assertEquals(Event.SAMPLINGWITHOUTREMOVAL, history.getEvent(e));
+				sampled[history.getDemeAffected(e)]++;
+			}
+		}
+
+		for (int deme = 0; deme < 2; deme++) {
+			assertTrue(present[deme] > 1000);
+			double standardError = Math.sqrt(present[deme] * rho[deme] * (1 - rho[deme]));
+			assertEquals("deme " + deme, rho[deme] * present[deme], sampled[deme], 4 * standardError);
+		}
+	}
+
+	/**
+	 * The histories simulated conditioned on leaving a sample have the distribution of the unconditioned ones with at
+	 * least one sample: the mean numbers of samples, of events up to the last sample and the mean time of the last
+	 * sample agree within 4 standard errors of their difference
+	 * 2 demes, sampling through time, migration, rho 0.5 at the present (time 4), 10000 histories each
+	 */
+	@Test
+	public void testSurvivalConditionedAgainstRejection() {
+
+		double[][] rejected = historyMeans(false);
+		double[][] conditioned = historyMeans(true);
+
+		for (int m = 0; m < 3; m++)
+			assertEquals("mean " + m, rejected[m][0], conditioned[m][0], 4 * Math.sqrt(rejected[m][1] + conditioned[m][1]));
+	}
+
+	/**
+	 * @param conditionOnSurvival false to discard the histories without samples
+	 * @return for the number of samples, the number of events and the time of the last sample: their mean and its
+	 * squared standard error
+	 */
+	private double[][] historyMeans(boolean conditionOnSurvival) {
+
+		PopHistorySimulator simulator = new PopHistorySimulator(2, new double[]{0},
+				new double[]{1.2, 0.8}, new double[]{1., 1.}, new double[]{0.2, 0.1}, new double[]{0.3, 0.2},
+				new double[]{0.5, 0.5}, false, new double[]{1});
+		simulator.setEndTime(4.);
+		simulator.setRhoSampling(new double[]{4.}, new double[]{0.5, 0.5});
+		simulator.setConditionOnSurvival(conditionOnSurvival);
+		simulator.setRandom(new SplittableRandom(42));
+
+		int histories = 10000;
+		double[][] values = new double[3][histories];
+
+		for (int h = 0; h < histories; h++) {
+			PopHistory history = simulator.SimulatePopHistory(1);
+			values[0][h] = history.getNumberOfSamplesTaken();
+			values[1][h] = history.getEventCount();
+			values[2][h] = history.getEventTime(history.getEventCount() - 1);
+		}
+
+		double[][] means = new double[3][2];
+		for (int m = 0; m < 3; m++) {
+			for (double value : values[m]) means[m][0] += value / histories;
+			for (double value : values[m]) means[m][1] += (value - means[m][0]) * (value - means[m][0]) / (histories - 1);
+			means[m][1] /= histories;
+		}
+		return means;
+	}
+
+	/**
+	 * The trees reconstructed with a fixed seed have the node heights, tip types and numbers of sampled ancestors of the
+	 * trees built by the earlier list-based reconstruction, recorded below. Both draw the same random numbers, but
+	 * keep their lineages in a different order, so that only the topologies may differ.
+	 * 2 demes, sampling through time, migration, sampled individuals removed with probability 0.5, first 5 trees
+	 */
+	@Test
+	public void testReconstructedTreesWithFixedSeed() {
+
+		String[] expected = {
+				"0 [0.048324516976621545:1, 0.05947549145745268:0, 0.0:1] [0.37481533292080327, 0.825171909815517]",
+				"2 [0.0:1, 1.0557447332121783:0, 1.3023384143327315:0, 1.9513580184188508:0, 2.1634572042384552:0, 2.6185952324866903:0] [1.6037560544060878, 1.9513580184188508, 2.6185952324866903, 3.263377586755631, 3.3665020359182245]",
+				"0 [0.0:0] []",
+				"0 [0.0:1] []",
+				"3 [0.0:0, 0.33185087654971657:0, 1.1291875549956631:0, 1.5658833087882589:0, 1.8552653696130568:0, 1.8778349911303733:0, 2.3112619089334507:0, 2.324446546880737:0] [0.33185087654971657, 2.3112619089334507, 2.324446546880737, 2.3473077451992923, 2.3544255264951826, 2.446231218448232, 3.0459854260683614]"
+		};
+
+		PopHistorySimulator simulator = new PopHistorySimulator(2, new double[]{0},
+				new double[]{1.5, 1.}, new double[]{1., 0.8}, new double[]{0.3, 0.2}, new double[]{0.2, 0.3},
+				new double[]{0.5, 0.5}, true, new double[]{0.5, 0.5});
+		simulator.setEndTime(4.);
+		simulator.setRandom(new SplittableRandom(42));
+
+		for (String tree : expected) {
+			Node root = simulator.buildTipTypedTreeFromStructuredPopHistory(simulator.SimulatePopHistory(1), false);
+			assertEquals(tree, summary(root));
+		}
+	}
+
+	/**
+	 * @param root
+	 * @return the number of sampled ancestors, the sorted heights and types of the leaves, and the sorted heights of
+	 * the internal nodes
+	 */
+	private String summary(Node root) {
+
+		List<String> leaves = new ArrayList<>();
+		List<Double> internalNodes = new ArrayList<>();
+		int sampledAncestors = 0;
+
+		for (Node node : root.getAllChildNodesAndSelf()) {
+			if (node.isLeaf()) {
+				leaves.add(node.getHeight() + ":" + node.getMetaData("type"));
+			} else {
+				internalNodes.add(node.getHeight());
+				for (Node child : node.getChildren())
+					if (child.isLeaf() && child.getHeight() == node.getHeight()) sampledAncestors++;
+			}
+		}
+
+		Collections.sort(leaves);
+		Collections.sort(internalNodes);
+		return sampledAncestors + " " + leaves + " " + internalNodes;
+	}
+
+	/**
+	 * @param tauLeapingThreshold 0 for the exact simulation
+	 * @return mean of the population size at the present, its squared standard error, the variance, and its squared
+	 * standard error
+	 */
+	private double[] popSizeMoments(int tauLeapingThreshold) {
+
+		PopHistorySimulator simulator = new PopHistorySimulator(1, new double[]{0},
+				new double[]{1.}, new double[]{0.5}, new double[]{0.}, new double[]{},
+				new double[]{1.}, false, new double[]{1});
+		simulator.setEndTime(10.);
+		simulator.setRhoSampling(new double[]{10.}, new double[]{1.});
+		simulator.setTauLeaping(tauLeapingThreshold, 0.03);
+		simulator.setRandom(new SplittableRandom(42));
+
+		int histories = 10000;
+		double[] sizes = new double[histories];
+		double mean = 0;
+
+		for (int h = 0; h < histories; h++) {
+			sizes[h] = simulator.SimulatePopHistory(0).getNumberOfSamplesTaken();
+			mean += sizes[h] / histories;
+		}
+
+		double m2 = 0, m4 = 0;
+		for (double size : sizes) {
+			m2 += (size - mean) * (size - mean) / histories;
+			m4 += Math.pow(size - mean, 4) / histories;
+		}
+
+		return new double[]{mean, m2 / histories, m2, (m4 - m2 * m2) / histories};
+	}
+}
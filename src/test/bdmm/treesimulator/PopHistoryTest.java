@@ -0,0 +1,125 @@
+package test.bdmm.treesimulator;
+
+import bdmm.treesimulator.Event;
+import bdmm.treesimulator.PopHistory;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+public class PopHistoryTest extends TestCase {
+
+	/**
+	 * The population sizes rebuilt from the event log are the ones recorded while adding the events, read forwards,
+	 * backwards and in jumps across several checkpoints, and again after discarding the events after the last sample,
+	 * which removes a checkpoint
+	 * 3 demes, 210000 events, no sample among the last 70000
+	 */
+	@Test
+	public void testReplayedPopSizes() {
+
+		SplittableRandom random = new SplittableRandom(42);
+
+		PopHistory history = new PopHistory(1, 3, 0);
+
+		// population sizes after each event, the initial ones first
+		List<int[]> recorded = new ArrayList<>();
+		int[] popSize = {1, 0, 0};
+		recorded.add(popSize.clone());
+
+		for (int e = 0; e < 210000; e++) {
+
+			boolean sampling = e < 140000;
+
+			int deme = random.nextInt(3);
+			int target = (deme + 1 + random.nextInt(2)) % 3;
+
+			Event event;
+			if (popSize[deme] == 0) event = Event.BIRTH;
+			else {
+				double u = random.nextDouble();
+				if (u < 0.4) event = Event.BIRTH;
+				else if (u < 0.6) event = Event.DEATH;
+				else if (u < 0.8) event = Event.MIGRATION;
+				else if (sampling && u < 0.9) event = Event.SAMPLING;
+				else if (sampling) event = Event.SAMPLINGWITHOUTREMOVAL;
+				else event = Event.DEATH;
+			}
+
+			switch (event) {
+				case BIRTH:
+					popSize[deme]++;
+					break;
+				case DEATH:
+				case SAMPLING:
+					popSize[deme]--;
+					break;
+				case MIGRATION:
+					popSize[deme]--;
+					popSize[target]++;
+					break;
+				default:
+					break;
+			}
+
+			history.addEvent(event, deme, target, e);
+			recorded.add(popSize.clone());
+		}
+
+		assertEquals(210000, history.getEventCount());
+		assertReplayed(history, recorded, random);
+
+		int lastSample = 139999;
+		while (history.getEvent(lastSample) != Event.SAMPLING && history.getEvent(lastSample) != Event.SAMPLINGWITHOUTREMOVAL)
+			lastSample--;
+
+		history.truncateAfterLastSample();
+
+		assertEquals(lastSample + 1, history.getEventCount());
+		assertEquals(210000, history.getSimulatedEventCount());
+
+		int total = 0;
+		for (int deme = 0; deme < 3; deme++) {
+			assertEquals(recorded.get(lastSample + 1)[deme], history.getCurrentPopSize()[deme]);
+			total += recorded.get(lastSample + 1)[deme];
+		}
+		assertEquals(total, history.getCurrentTotalPopSize());
+
+		assertReplayed(history, recorded.subList(0, lastSample + 2), random);
+	}
+
+	/**
+	 * @param history
+	 * @param recorded population sizes after each event of the history, the initial ones first
+	 * @param random
+	 */
+	private void assertReplayed(PopHistory history, List<int[]> recorded, SplittableRandom random) {
+
+		int eventCount = history.getEventCount();
+
+		for (int e = -1; e < eventCount; e++)
+			for (int deme = 0; deme < 3; deme++)
+				assertEquals("forwards after event " + e, recorded.get(e + 1)[deme], history.getPopSizeAfterEvent(e, deme));
+
+		for (int e = eventCount - 1; e >= -1; e--)
+			for (int deme = 0; deme < 3; deme++)
+				assertEquals("backwards after event " + e, recorded.get(e + 1)[deme], history.getPopSizeAfterEvent(e, deme));
+
+		// around every checkpoint, reached from far away
+		for (int checkpoint = 65536; checkpoint <= eventCount; checkpoint += 65536) {
+			for (int e = checkpoint - 2; e <= checkpoint && e < eventCount; e++) {
+				history.getPopSizeAfterEvent(-1, 0);
+				for (int deme = 0; deme < 3; deme++)
+					assertEquals("after event " + e, recorded.get(e + 1)[deme], history.getPopSizeAfterEvent(e, deme));
+			}
+		}
+
+		for (int i = 0; i < 1000; i++) {
+			int e = random.nextInt(eventCount + 1) - 1;
+			int deme = random.nextInt(3);
+			assertEquals("jump to event " + e, recorded.get(e + 1)[deme], history.getPopSizeAfterEvent(e, deme));
+		}
+	}
+}
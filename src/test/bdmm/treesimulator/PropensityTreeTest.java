@@ -0,0 +1,140 @@
+package test.bdmm.treesimulator;
+
+import bdmm.treesimulator.Event;
+import bdmm.treesimulator.EventType;
+import bdmm.treesimulator.PopHistory;
+import bdmm.treesimulator.PopHistorySimulator;
+import bdmm.treesimulator.PropensityTree;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+
+public class PropensityTreeTest extends TestCase {
+
+	/**
+	 * After any sequence of updates, the total is the sum of the weights, and find() returns the index a linear scan of
+	 * the cumulative weights gives, with the same remainder, also for values on the boundaries between indices and
+	 * across the periodic rebuild of the partial sums
+	 * Integer weights (exact sums), zero weights included, sizes around powers of two, 70000 updates
+	 */
+	@Test
+	public void testUpdateAndFind() {
+
+		SplittableRandom random = new SplittableRandom(42);
+
+		for (int size : new int[]{1, 2, 5, 16, 17, 100}) {
+
+			PropensityTree propensities = new PropensityTree(size);
+			double[] weights = new double[size];
+
+			for (int update = 0; update < 70000; update++) {
+
+				int index = random.nextInt(size);
+				weights[index] = random.nextInt(4) == 0 ? 0 : random.nextInt(10);
+				propensities.set(index, weights[index]);
+
+				if (update % 100 != 0 && update < 69900) continue;
+
+				double total = 0;
+				for (int i = 0; i < size; i++) {
+					assertEquals(weights[i], propensities.getWeight(i), 0.);
+					total += weights[i];
+				}
+				assertEquals(total, propensities.getTotal(), 0.);
+
+				if (total == 0) continue;
+
+				// every boundary between indices, and a random value
+				for (int u = 0; u <= total; u++) assertFound(propensities, weights, u);
+				assertFound(propensities, weights, random.nextDouble() * total);
+			}
+		}
+	}
+
+	private void assertFound(PropensityTree propensities, double[] weights, double u) {
+
+		int expected = -1;
+		double cumulative = 0;
+		for (int i = 0; i < weights.length; i++) {
+			if (u < cumulative + weights[i]) {
+				expected = i;
+				break;
+			}
+			cumulative += weights[i];
+		}
+
+		int found = propensities.find(u);
+		assertEquals("index for " + u, expected, found);
+		if (found >= 0) assertEquals("remainder for " + u, u - cumulative, propensities.getRemainder(), 1e-12);
+	}
+
+	/**
+	 * The events drawn for fixed population sizes occur with frequencies proportional to their rates times the size
+	 * of their deme, within 4 standard errors
+	 * 3 demes, one of them empty, births, deaths, sampling and migrations, 200000 draws
+	 */
+	@Test
+	public void testEventFrequencies() {
+
+		double[] birth = {1., 2., 0.5};
+		double[] death = {0.5, 1., 1.5};
+		double[] psi = {0.1, 0.3, 0.2};
+		double[] migration = {0.2, 0.4, 0.1, 0.3, 0.6, 0.05};
+
+		PopHistorySimulator simulator = new PopHistorySimulator(3, new double[]{0}, birth, death, psi, migration,
+				new double[]{1, 0, 0}, false, new double[]{1});
+		simulator.setRandom(new SplittableRandom(42));
+
+		// 5 individuals in deme 0, none in deme 1 and 12 in deme 2
+		PopHistory history = new PopHistory(1, 3, 0);
+		for (int i = 0; i < 4; i++) history.addEvent(Event.BIRTH, 0, 0, 0.);
+		for (int i = 0; i < 12; i++) history.addEvent(Event.BIRTH, 0, 0, 0.);
+		for (int i = 0; i < 12; i++) history.addEvent(Event.MIGRATION, 0, 2, 0.);
+		int[] popSize = history.getCurrentPopSize();
+		assertEquals(5, popSize[0]);
+		assertEquals(0, popSize[1]);
+		assertEquals(12, popSize[2]);
+
+		// per deme: birth, death, sampling, then migration to each other deme
+		double[][] expected = new double[3][5];
+		double total = 0;
+		for (int i = 0; i < 3; i++) {
+			expected[i][0] = birth[i] * popSize[i];
+			expected[i][1] = death[i] * popSize[i];
+			expected[i][2] = psi[i] * popSize[i];
+			expected[i][3] = migration[2 * i] * popSize[i];
+			expected[i][4] = migration[2 * i + 1] * popSize[i];
+			for (double rate : expected[i]) total += rate;
+		}
+
+		int draws = 200000;
+		long[][] counts = new long[3][5];
+
+		for (int d = 0; d < draws; d++) {
+
+			EventType event = simulator.getTypeOfNextEvent(history);
+			int deme = event.getDemeAffected();
+
+			switch (event.getEvent()) {
+				case BIRTH: counts[deme][0]++; break;
+				case DEATH: counts[deme][1]++; break;
+				case SAMPLING: counts[deme][2]++; break;
+				case MIGRATION:
+					int target = event.getDemeTarget();
+					counts[deme][3 + (target < deme ? target : target - 1)]++;
+					break;
+				default:
+					fail("unexpected event " + event.getEvent());
+			}
+		}
+
+		for (int i = 0; i < 3; i++) {
+			for (int c = 0; c < 5; c++) {
+				double p = expected[i][c] / total;
+				double standardError = Math.sqrt(draws * p * (1 - p));
+				assertEquals("deme " + i + " channel " + c, draws * p, counts[i][c], 4 * standardError);
+			}
+		}
+	}
+}
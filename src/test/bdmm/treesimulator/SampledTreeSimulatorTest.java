@@ -0,0 +1,99 @@
+package test.bdmm.treesimulator;
+
+import bdmm.treesimulator.PopHistorySimulator;
+import bdmm.treesimulator.SampledTreeSimulator;
+import beast.base.evolution.tree.Node;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+public class SampledTreeSimulatorTest extends TestCase {
+
+	/**
+	 * The trees simulated directly from p0 have the distribution of the trees reconstructed from forward-simulated
+	 * histories with at least one sample: the mean numbers of tips and mean tree heights agree within 4 standard
+	 * errors of their difference, and the tree heights pass a two-sample Kolmogorov-Smirnov test at level 0.001
+	 * 2 demes, sampling through time, migration, present at time 5, 4000 trees each
+	 */
+	@Test
+	public void testAgainstForwardSimulation() {
+
+		int trees = 4000;
+
+		PopHistorySimulator forward = simulator();
+		forward.setRandom(new SplittableRandom(42));
+
+		double[] forwardTips = new double[trees];
+		double[] forwardHeights = new double[trees];
+		for (int t = 0; t < trees; t++) {
+			Node root = forward.buildTipTypedTreeFromStructuredPopHistory(forward.SimulatePopHistory(1), false);
+			forwardTips[t] = root.getLeafNodeCount();
+			forwardHeights[t] = root.getHeight();
+		}
+
+		SampledTreeSimulator direct = new SampledTreeSimulator(simulator());
+		SplittableRandom random = new SplittableRandom(43);
+
+		double[] directTips = new double[trees];
+		double[] directHeights = new double[trees];
+		for (int t = 0; t < trees; t++) {
+			Node root = direct.toTipTypedTree(direct.simulate(1, random), false);
+			directTips[t] = root.getLeafNodeCount();
+			directHeights[t] = root.getHeight();
+		}
+
+		assertSameMean(forwardTips, directTips);
+		assertSameMean(forwardHeights, directHeights);
+
+		// critical value of the two-sample Kolmogorov-Smirnov statistic at level 0.001
+		assertTrue(ksStatistic(forwardHeights, directHeights) < 1.95 * Math.sqrt(2. / trees));
+	}
+
+	private PopHistorySimulator simulator() {
+
+		PopHistorySimulator simulator = new PopHistorySimulator(2, new double[]{0},
+				new double[]{1.5, 1.}, new double[]{1., 0.8}, new double[]{0.3, 0.2}, new double[]{0.2, 0.3},
+				new double[]{0.5, 0.5}, false, new double[]{1});
+		simulator.setEndTime(5.);
+		return simulator;
+	}
+
+	private void assertSameMean(double[] x, double[] y) {
+
+		double[] meanX = meanAndSquaredError(x);
+		double[] meanY = meanAndSquaredError(y);
+
+		assertEquals(meanX[0], meanY[0], 4 * Math.sqrt(meanX[1] + meanY[1]));
+	}
+
+	/**
+	 * @return the mean of the values and its squared standard error
+	 */
+	private double[] meanAndSquaredError(double[] values) {
+
+		double mean = 0, variance = 0;
+		for (double value : values) mean += value / values.length;
+		for (double value : values) variance += (value - mean) * (value - mean) / (values.length - 1);
+
+		return new double[]{mean, variance / values.length};
+	}
+
+	private double ksStatistic(double[] x, double[] y) {
+
+		double[] a = x.clone(), b = y.clone();
+		Arrays.sort(a);
+		Arrays.sort(b);
+
+		double statistic = 0;
+		int i = 0, j = 0;
+		while (i < a.length && j < b.length) {
+			double value = Math.min(a[i], b[j]);
+			while (i < a.length && a[i] == value) i++;
+			while (j < b.length && b[j] == value) j++;
+			statistic = Math.max(statistic, Math.abs((double) i / a.length - (double) j / b.length));
+		}
+		return statistic;
+	}
+}
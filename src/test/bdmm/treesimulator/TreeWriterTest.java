@@ -0,0 +1,88 @@
+package test.bdmm.treesimulator;
+
+import bdmm.treesimulator.PopHistorySimulator;
+import bdmm.treesimulator.TreeWriter;
+import beast.base.evolution.tree.Node;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+public class TreeWriterTest extends TestCase {
+
+	/**
+	 * Each tree is written in Newick as TipTypedTreeLogger logs it with Node.toSortedNewick, type annotations of the
+	 * leaves included
+	 * 2 demes, sampling through time, migration, sampled ancestors, 200 trees
+	 */
+	@Test
+	public void testNewickAsSortedNewick() {
+
+		List<Node> trees = simulateTrees(200);
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		try (TreeWriter writer = new TreeWriter(stream, TreeWriter.Format.NEWICK, false, true, "type")) {
+			for (Node root : trees) writer.write(root);
+		}
+
+		String[] lines = new String(stream.toByteArray(), StandardCharsets.UTF_8).split("\n");
+		assertEquals(trees.size(), lines.length);
+
+		for (int t = 0; t < trees.size(); t++) {
+			Node root = trees.get(t);
+
+			// annotations as set by TipTypedTreeLogger
+			for (Node leaf : root.getAllLeafNodes())
+				leaf.metaDataString = "type=\"" + leaf.getMetaData("type") + "\"";
+
+			assertEquals("tree " + t, root.toSortedNewick(new int[1], true) + ";", lines[t]);
+		}
+	}
+
+	/**
+	 * Nexus files hold the trees numbered from 0 in a trees block, and nothing else
+	 * 3 trees
+	 */
+	@Test
+	public void testNexus() {
+
+		List<Node> trees = simulateTrees(3);
+
+		ByteArrayOutputStream newick = new ByteArrayOutputStream();
+		ByteArrayOutputStream nexus = new ByteArrayOutputStream();
+		try (TreeWriter newickWriter = new TreeWriter(newick, TreeWriter.Format.NEWICK, false, true, "type");
+			 TreeWriter nexusWriter = new TreeWriter(nexus, TreeWriter.Format.NEXUS, false, true, "type")) {
+			for (Node root : trees) {
+				newickWriter.write(root);
+				nexusWriter.write(root);
+			}
+			assertEquals(3, nexusWriter.getTreesWritten());
+		}
+
+		String[] lines = new String(newick.toByteArray(), StandardCharsets.UTF_8).split("\n");
+
+		StringBuilder expected = new StringBuilder("#NEXUS\n\nBegin trees;\n");
+		for (int t = 0; t < trees.size(); t++) expected.append("tree STATE_").append(t).append(" = ").append(lines[t]).append("\n");
+		expected.append("End;\n");
+
+		assertEquals(expected.toString(), new String(nexus.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	private List<Node> simulateTrees(int count) {
+
+		PopHistorySimulator simulator = new PopHistorySimulator(2, new double[]{0},
+				new double[]{1.5, 1.}, new double[]{1., 0.8}, new double[]{0.3, 0.2}, new double[]{0.2, 0.3},
+				new double[]{0.5, 0.5}, true, new double[]{0.5, 0.5});
+		simulator.setEndTime(4.);
+		simulator.setRandom(new SplittableRandom(42));
+
+		List<Node> trees = new ArrayList<>();
+		for (int t = 0; t < count; t++)
+			trees.add(simulator.buildTipTypedTreeFromStructuredPopHistory(simulator.SimulatePopHistory(1), false));
+		return trees;
+	}
+}